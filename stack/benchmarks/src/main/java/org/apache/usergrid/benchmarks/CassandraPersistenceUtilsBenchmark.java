@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.benchmarks;
+
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.apache.usergrid.persistence.cassandra.CassandraPersistenceUtils;
+import org.apache.usergrid.utils.UUIDUtils;
+
+
+/**
+ * Building row keys, done for every index and dictionary row an entity write or a query touches, and the ids of
+ * aliases
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CassandraPersistenceUtilsBenchmark {
+
+    private UUID entityId;
+
+    private UUID applicationId;
+
+
+    @Setup
+    public void setup() {
+        entityId = UUIDUtils.newTimeUUID( 1400000000000L );
+        applicationId = UUIDUtils.newTimeUUID( 1400000000001L );
+    }
+
+
+    @Benchmark
+    public Object single() {
+        return CassandraPersistenceUtils.key( entityId );
+    }
+
+
+    @Benchmark
+    public Object collectionIndex() {
+        return CassandraPersistenceUtils.key( entityId, "users", "name" );
+    }
+
+
+    @Benchmark
+    public Object bucketedIndex() {
+        return CassandraPersistenceUtils.key( applicationId, entityId, "connections", "likes", "restaurant", 3 );
+    }
+
+
+    @Benchmark
+    public UUID aliasId() {
+        return CassandraPersistenceUtils.aliasID( applicationId, "user", "JDoe" );
+    }
+}
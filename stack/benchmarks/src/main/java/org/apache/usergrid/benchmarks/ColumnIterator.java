@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.benchmarks;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.usergrid.persistence.cassandra.CursorCache;
+import org.apache.usergrid.persistence.query.ir.result.ResultIterator;
+import org.apache.usergrid.persistence.query.ir.result.ScanColumn;
+import org.apache.usergrid.persistence.query.ir.result.UUIDIndexSliceParser;
+
+import com.google.common.collect.Iterables;
+
+
+/** An in memory result iterator that pages through uuids in the order they were given, in place of an index scan */
+public class ColumnIterator implements ResultIterator {
+
+    private final List<ScanColumn> columns;
+    private final int pageSize;
+    private Iterator<List<ScanColumn>> pages;
+
+
+    public ColumnIterator( List<UUID> ids, int pageSize ) {
+        this.columns = new ArrayList<ScanColumn>( ids.size() );
+        this.pageSize = pageSize;
+
+        for ( UUID id : ids ) {
+            columns.add( new UUIDIndexSliceParser.UUIDColumn( id, ByteBuffer.allocate( 0 ) ) );
+        }
+    }
+
+
+    @Override
+    public void reset() {
+        pages = Iterables.partition( columns, pageSize ).iterator();
+    }
+
+
+    @Override
+    public void finalizeCursor( CursorCache cache, UUID lastValue ) {
+    }
+
+
+    @Override
+    public Iterator<Set<ScanColumn>> iterator() {
+        return this;
+    }
+
+
+    @Override
+    public boolean hasNext() {
+        if ( pages == null ) {
+            reset();
+        }
+
+        return pages.hasNext();
+    }
+
+
+    @Override
+    public Set<ScanColumn> next() {
+        if ( pages == null ) {
+            reset();
+        }
+
+        return new LinkedHashSet<ScanColumn>( pages.next() );
+    }
+
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
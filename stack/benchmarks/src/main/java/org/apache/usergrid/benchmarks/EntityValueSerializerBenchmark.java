@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.benchmarks;
+
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.apache.usergrid.persistence.cassandra.EntityValueSerializer;
+import org.apache.usergrid.utils.UUIDUtils;
+
+
+/** Serializing column values on writes, a single property value and a composite index entry */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EntityValueSerializerBenchmark {
+
+    private final EntityValueSerializer serializer = new EntityValueSerializer();
+
+    private String value;
+
+    private List<Object> composite;
+
+
+    @Setup
+    public void setup() {
+        UUID id = UUIDUtils.newTimeUUID( 1400000000000L );
+
+        value = "a property value of a typical length";
+        composite = Arrays.<Object>asList( "users", id, "name", value, 1400000000000L );
+    }
+
+
+    @Benchmark
+    public ByteBuffer value() {
+        return serializer.toByteBuffer( value );
+    }
+
+
+    @Benchmark
+    public ByteBuffer composite() {
+        return serializer.toByteBuffer( composite );
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.benchmarks;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.apache.usergrid.persistence.cassandra.index.IndexMultiBucketSetLoader;
+import org.apache.usergrid.utils.UUIDUtils;
+
+import me.prettyprint.cassandra.serializers.ByteBufferSerializer;
+import me.prettyprint.hector.api.beans.DynamicComposite;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.factory.HFactory;
+
+import static org.apache.usergrid.persistence.cassandra.ApplicationCF.ENTITY_INDEX;
+
+
+/**
+ * Merging the index columns read from each bucket into one page, as geo searches do. Every bucket returns a full page
+ * of columns with random values.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexMultiBucketSetLoaderBenchmark {
+
+    private static final int PAGE_SIZE = 1000;
+
+    @Param({ "1", "4", "16" })
+    public int buckets;
+
+    private List<List<HColumn<ByteBuffer, ByteBuffer>>> columns;
+
+
+    @Setup
+    public void setup() {
+        Random random = new Random( 0 );
+        ByteBufferSerializer serializer = ByteBufferSerializer.get();
+
+        columns = new ArrayList<List<HColumn<ByteBuffer, ByteBuffer>>>( buckets );
+
+        for ( int i = 0; i < buckets; i++ ) {
+            List<HColumn<ByteBuffer, ByteBuffer>> bucket = new ArrayList<HColumn<ByteBuffer, ByteBuffer>>( PAGE_SIZE );
+
+            for ( int j = 0; j < PAGE_SIZE; j++ ) {
+                ByteBuffer name = DynamicComposite.toByteBuffer(
+                        Arrays.asList( random.nextInt( 100000 ), UUIDUtils.newTimeUUID( 1400000000000L + j ) ) );
+
+                bucket.add( HFactory.createColumn( name, ByteBuffer.allocate( 0 ), serializer, serializer ) );
+            }
+
+            columns.add( bucket );
+        }
+    }
+
+
+    @Benchmark
+    public TreeSet<HColumn<ByteBuffer, ByteBuffer>> merge() {
+        return IndexMultiBucketSetLoader.merge( columns, ENTITY_INDEX, PAGE_SIZE, false );
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.benchmarks;
+
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.apache.usergrid.utils.JsonUtils;
+import org.apache.usergrid.utils.UUIDUtils;
+
+
+/** Writing and reading the JSON of an entity the size of a typical user */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonUtilsBenchmark {
+
+    private Map<String, Object> entity;
+
+    private String json;
+
+
+    @Setup
+    public void setup() {
+        Map<String, Object> address = new LinkedHashMap<String, Object>();
+        address.put( "street", "1 Main Street" );
+        address.put( "city", "Springfield" );
+        address.put( "zip", "12345" );
+
+        entity = new LinkedHashMap<String, Object>();
+        entity.put( "uuid", UUIDUtils.newTimeUUID( 1400000000000L ) );
+        entity.put( "type", "user" );
+        entity.put( "created", 1400000000000L );
+        entity.put( "modified", 1400000000000L );
+        entity.put( "username", "jdoe" );
+        entity.put( "email", "jdoe@example.com" );
+        entity.put( "activated", true );
+        entity.put( "age", 42 );
+        entity.put( "tags", Arrays.asList( "one", "two", "three" ) );
+        entity.put( "address", address );
+
+        json = JsonUtils.mapToJsonString( entity );
+    }
+
+
+    @Benchmark
+    public String write() {
+        return JsonUtils.mapToJsonString( entity );
+    }
+
+
+    @Benchmark
+    public Object parse() {
+        return JsonUtils.parse( json );
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.benchmarks;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import org.apache.usergrid.persistence.query.ir.result.IntersectionIterator;
+import org.apache.usergrid.persistence.query.ir.result.ResultIterator;
+import org.apache.usergrid.persistence.query.ir.result.ScanColumn;
+import org.apache.usergrid.persistence.query.ir.result.SubtractionIterator;
+import org.apache.usergrid.persistence.query.ir.result.UnionIterator;
+import org.apache.usergrid.utils.UUIDUtils;
+
+
+/**
+ * Time to read every page of the intersection, union and subtraction of two in memory index scans.  The scans hold
+ * time uuids in order, the second one holds about half of the first one plus as many of its own.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MergeIteratorBenchmark {
+
+    private static final int PAGE_SIZE = 1000;
+
+    @Param({ "1000", "10000" })
+    public int size;
+
+    private List<UUID> first;
+    private List<UUID> second;
+
+
+    @Setup
+    public void setup() {
+        Random random = new Random( 0 );
+
+        first = new ArrayList<UUID>( size );
+        second = new ArrayList<UUID>( size );
+
+        for ( int i = 0; i < size * 2; i++ ) {
+            UUID id = UUIDUtils.newTimeUUID( 1400000000000L + i );
+
+            if ( i % 2 == 0 ) {
+                first.add( id );
+
+                if ( random.nextBoolean() ) {
+                    second.add( id );
+                }
+            }
+            else if ( random.nextBoolean() ) {
+                second.add( id );
+            }
+        }
+    }
+
+
+    @Benchmark
+    public void intersection( Blackhole blackhole ) {
+        IntersectionIterator intersection = new IntersectionIterator( PAGE_SIZE );
+        intersection.addIterator( new ColumnIterator( first, PAGE_SIZE ) );
+        intersection.addIterator( new ColumnIterator( second, PAGE_SIZE ) );
+
+        consume( intersection, blackhole );
+    }
+
+
+    @Benchmark
+    public void union( Blackhole blackhole ) {
+        UnionIterator union = new UnionIterator( PAGE_SIZE, 0, null );
+        union.addIterator( new ColumnIterator( first, PAGE_SIZE ) );
+        union.addIterator( new ColumnIterator( second, PAGE_SIZE ) );
+
+        consume( union, blackhole );
+    }
+
+
+    @Benchmark
+    public void subtraction( Blackhole blackhole ) {
+        SubtractionIterator subtraction = new SubtractionIterator( PAGE_SIZE );
+        subtraction.setKeepIterator( new ColumnIterator( first, PAGE_SIZE ) );
+        subtraction.setSubtractIterator( new ColumnIterator( second, PAGE_SIZE ) );
+
+        consume( subtraction, blackhole );
+    }
+
+
+    private static void consume( ResultIterator iterator, Blackhole blackhole ) {
+        for ( Set<ScanColumn> page : iterator ) {
+            blackhole.consume( page );
+        }
+    }
+}
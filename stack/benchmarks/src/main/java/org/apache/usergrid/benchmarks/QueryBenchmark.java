@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.benchmarks;
+
+
+import java.util.concurrent.TimeUnit;
+
+import org.antlr.runtime.ANTLRStringStream;
+import org.antlr.runtime.CommonTokenStream;
+import org.antlr.runtime.RecognitionException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.apache.usergrid.persistence.Query;
+import org.apache.usergrid.persistence.exceptions.QueryParseException;
+import org.apache.usergrid.persistence.query.tree.QueryFilterLexer;
+import org.apache.usergrid.persistence.query.tree.QueryFilterParser;
+
+
+/**
+ * Parsing a query.  Query.fromQL goes through the cache of parsed query shapes, the literal changes on every call so
+ * only the shape is reused.  The parser benchmark runs the ANTLR parser alone, as fromQL did before the cache.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueryBenchmark {
+
+    private static final String QL = "select * where status = 'active' and age > %d and name contains 'fr*' order by "
+            + "created desc";
+
+    private final String[] queries = new String[64];
+
+    private int next;
+
+
+    @Setup
+    public void setup() {
+        for ( int i = 0; i < queries.length; i++ ) {
+            queries[i] = String.format( QL, i );
+        }
+    }
+
+
+    @Benchmark
+    public Query fromQL() throws QueryParseException {
+        return Query.fromQL( nextQuery() );
+    }
+
+
+    @Benchmark
+    public Query parse() throws RecognitionException {
+        QueryFilterLexer lexer = new QueryFilterLexer( new ANTLRStringStream( nextQuery() ) );
+        QueryFilterParser parser = new QueryFilterParser( new CommonTokenStream( lexer ) );
+
+        return parser.ql().query;
+    }
+
+
+    private String nextQuery() {
+        next = ( next + 1 ) % queries.length;
+        return queries[next];
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.benchmarks;
+
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.apache.usergrid.utils.UUIDUtils;
+
+
+/**
+ * Throughput of time UUID generation. The locking benchmarks run the generator UUIDUtils used before it went lock
+ * free, as a baseline.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UUIDUtilsBenchmark {
+
+    private final LockingGenerator locking = new LockingGenerator();
+
+
+    @Benchmark
+    public UUID newTimeUUID() {
+        return UUIDUtils.newTimeUUID();
+    }
+
+
+    @Benchmark
+    @Threads(8)
+    public UUID newTimeUUIDContended() {
+        return UUIDUtils.newTimeUUID();
+    }
+
+
+    @Benchmark
+    public UUID newTimeUUIDWithTimestamp() {
+        return UUIDUtils.newTimeUUID( 1400000000000L );
+    }
+
+
+    @Benchmark
+    public UUID locking() {
+        return locking.newTimeUUID();
+    }
+
+
+    @Benchmark
+    @Threads(8)
+    public UUID lockingContended() {
+        return locking.newTimeUUID();
+    }
+
+
+    /** The fair lock generator UUIDUtils.newTimeUUID() used to be */
+    private static class LockingGenerator {
+
+        private final ReentrantLock tsLock = new ReentrantLock( true );
+        private final AtomicInteger currentMicrosPoint = new AtomicInteger( 0 );
+        private long timestampMillisNow = System.currentTimeMillis();
+
+
+        public UUID newTimeUUID() {
+            tsLock.lock();
+            long ts = System.currentTimeMillis();
+            if ( ts > timestampMillisNow ) {
+                timestampMillisNow = ts;
+                currentMicrosPoint.set( 0 );
+            }
+            int pointer = currentMicrosPoint.getAndIncrement();
+            try {
+                if ( pointer > 990 ) {
+                    TimeUnit.MILLISECONDS.sleep( 1L );
+                }
+            }
+            catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+            finally {
+                tsLock.unlock();
+            }
+            return UUIDUtils.newTimeUUID( ts, pointer * 10 );
+        }
+    }
+}
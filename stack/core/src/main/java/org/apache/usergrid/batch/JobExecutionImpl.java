@@ -42,7 +42,8 @@ public class JobExecutionImpl implements JobExecution, JobRuntime {
     private Status status = Status.NOT_STARTED;
     private long startTime;
     private JobRuntimeService runtime;
-    private UUID transactionId;
+    // renewed by the scheduler's keep alive thread while the job is queued for a worker
+    private volatile UUID transactionId;
     private JobData data;
     private JobStat stats;
     private long delay = -1;
@@ -32,4 +32,10 @@ public interface JobFactory {
 
     /** Return one or more BulkJob ready for execution by a worker thread */
     Job jobsFrom( JobDescriptor descriptor ) throws JobNotFoundException;
+
+    /**
+     * Return the name of the {@link org.apache.usergrid.batch.service.JobPool} the job should run in, or null to run
+     * it in the default pool
+     */
+    String poolFor( JobDescriptor descriptor );
 }
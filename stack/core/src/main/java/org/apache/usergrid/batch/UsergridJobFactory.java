@@ -19,6 +19,7 @@ package org.apache.usergrid.batch;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,6 +36,8 @@ public class UsergridJobFactory implements JobFactory {
 
     private Logger logger = LoggerFactory.getLogger( UsergridJobFactory.class );
 
+    private Map<String, String> jobPools = Collections.emptyMap();
+
 
     @Override
     public Job jobsFrom( JobDescriptor descriptor ) throws JobNotFoundException {
@@ -50,4 +53,16 @@ public class UsergridJobFactory implements JobFactory {
 
         return job;
     }
+
+
+    @Override
+    public String poolFor( JobDescriptor descriptor ) {
+        return jobPools.get( descriptor.getJobName() );
+    }
+
+
+    /** @param jobPools the pool name to run each job in, keyed by job name. Jobs not listed use the default pool */
+    public void setJobPools( Map<String, String> jobPools ) {
+        this.jobPools = jobPools;
+    }
 }
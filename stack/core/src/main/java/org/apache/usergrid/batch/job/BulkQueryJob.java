@@ -0,0 +1,251 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.batch.job;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.apache.usergrid.batch.Job;
+import org.apache.usergrid.batch.JobExecution;
+import org.apache.usergrid.persistence.EntityManager;
+import org.apache.usergrid.persistence.EntityManagerFactory;
+import org.apache.usergrid.persistence.EntityRef;
+import org.apache.usergrid.persistence.Query;
+import org.apache.usergrid.persistence.Results;
+import org.apache.usergrid.persistence.Results.Level;
+import org.apache.usergrid.persistence.cassandra.EntityManagerImpl;
+import org.apache.usergrid.persistence.entities.JobData;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import static org.apache.usergrid.utils.ClassUtils.cast;
+import static org.apache.usergrid.utils.ConversionUtils.string;
+import static org.apache.usergrid.utils.ConversionUtils.uuid;
+
+
+/**
+ * Deletes or updates every entity of a collection matched by a query. The matches are streamed a page at a time and
+ * each page is split among a few threads. After every page the number of processed entities and the cursor are saved
+ * on the job data, so the progress can be followed through the scheduler and a failed job resumes where it stopped.
+ * <p/>
+ * Updates are written with {@link EntityManagerImpl#updateProperties(List, Map)}, while a request's update goes
+ * through Service.updateEntity of the service of each entity's type. Overrides of updateEntity are skipped, so
+ * services with one must reject bulk updates. Unique properties are rejected, every match would get the same value.
+ * Deletes go through {@link EntityManager#removeFromCollection} like a request's delete.
+ */
+@Component(BulkQueryJob.NAME)
+public class BulkQueryJob implements Job {
+
+    private static final Logger logger = LoggerFactory.getLogger( BulkQueryJob.class );
+
+    public static final String NAME = "bulkQueryJob";
+
+    public static final String APPLICATION_ID = JobProgress.APPLICATION_ID;
+    public static final String COLLECTION = JobProgress.COLLECTION;
+    public static final String QL = "ql";
+    public static final String OPERATION = "operation";
+    public static final String PROPERTIES = "properties";
+    public static final String PROCESSED = JobProgress.PROCESSED;
+
+    public static final String DELETE = "delete";
+    public static final String UPDATE = "update";
+
+    public static final int DEFAULT_PAGE_SIZE = 500;
+    public static final int DEFAULT_THREADS = 4;
+
+    private EntityManagerFactory emf;
+
+    private int pageSize = DEFAULT_PAGE_SIZE;
+
+    private int threads = DEFAULT_THREADS;
+
+    private ExecutorService executor;
+
+
+    @PostConstruct
+    public void init() {
+        executor = Executors.newFixedThreadPool( threads,
+                new ThreadFactoryBuilder().setNameFormat( "bulk-query-%d" ).setDaemon( true ).build() );
+    }
+
+
+    @PreDestroy
+    public void destroy() {
+        if ( executor != null ) {
+            executor.shutdownNow();
+        }
+    }
+
+
+    /** Create the data of a job that applies the operation to everything the query matches in the collection */
+    public static JobData createJobData( UUID applicationId, EntityRef owner, String collectionName, String ql,
+                                         String operation, Map<String, Object> properties ) {
+        JobData jobData = JobProgress.createJobData( applicationId, owner, collectionName );
+        jobData.setProperty( QL, ql );
+        jobData.setProperty( OPERATION, operation );
+        jobData.setProperty( PROPERTIES, properties );
+        return jobData;
+    }
+
+
+    @Override
+    public void execute( JobExecution execution ) throws Exception {
+
+        JobData jobData = execution.getJobData();
+
+        UUID applicationId = uuid( jobData.getProperty( APPLICATION_ID ), null );
+        EntityRef owner = JobProgress.getOwner( jobData );
+        String collectionName = string( jobData.getProperty( COLLECTION ) );
+        String ql = string( jobData.getProperty( QL ) );
+        String operation = string( jobData.getProperty( OPERATION ) );
+        Map<String, Object> properties = cast( jobData.getProperty( PROPERTIES ) );
+
+        if ( ( applicationId == null ) || ( owner == null ) || ( collectionName == null ) || ( ql == null ) || (
+                !DELETE.equals( operation ) && ( !UPDATE.equals( operation ) || ( properties == null ) ) ) ) {
+            logger.error( "Incomplete bulk query job {}", execution.getJobId() );
+            return;
+        }
+
+        EntityManager em = emf.getEntityManager( applicationId );
+
+        Query query = Query.fromQL( ql );
+        query.setResultsLevel( Level.REFS );
+        query.setLimit( pageSize );
+        query.setCursor( JobProgress.getCursor( jobData ) );
+
+        long processed = JobProgress.getProcessed( jobData );
+
+        logger.info( "Starting bulk {} of {} in {} of application {} at {}",
+                new Object[] { operation, ql, collectionName, applicationId, processed } );
+
+        Results results = null;
+
+        do {
+            results = em.searchCollection( owner, collectionName, query );
+
+            List<EntityRef> refs = results.getRefs();
+            if ( refs.isEmpty() ) {
+                break;
+            }
+
+            apply( em, owner, collectionName, operation, properties, refs );
+
+            processed += refs.size();
+            query.setCursor( results.getCursor() );
+
+            JobProgress.saveProgress( emf, jobData, processed, results.getCursor() );
+            execution.heartbeat();
+        }
+        while ( results.getCursor() != null );
+
+        logger.info( "Finished bulk {} of {} in {} of application {}, {} entities",
+                new Object[] { operation, ql, collectionName, applicationId, processed } );
+    }
+
+
+    /** Apply the operation to a page of entities, split among the threads */
+    private void apply( final EntityManager em, final EntityRef owner, final String collectionName,
+                        final String operation, final Map<String, Object> properties, List<EntityRef> refs )
+            throws Exception {
+
+        int chunkSize = Math.max( 1, ( refs.size() + threads - 1 ) / threads );
+
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+
+        for ( final List<EntityRef> chunk : Lists.partition( refs, chunkSize ) ) {
+            futures.add( executor.submit( new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    if ( DELETE.equals( operation ) ) {
+                        for ( EntityRef ref : chunk ) {
+                            em.removeFromCollection( owner, collectionName, ref );
+                        }
+                    }
+                    else {
+                        ( ( EntityManagerImpl ) em ).updateProperties( chunk, properties );
+                    }
+                    return null;
+                }
+            } ) );
+        }
+
+        try {
+            for ( Future<Void> future : futures ) {
+                future.get();
+            }
+        }
+        catch ( ExecutionException e ) {
+            for ( Future<Void> future : futures ) {
+                future.cancel( false );
+            }
+
+            if ( e.getCause() instanceof Exception ) {
+                throw ( Exception ) e.getCause();
+            }
+
+            throw e;
+        }
+    }
+
+
+    @Override
+    public void dead( JobExecution execution ) throws Exception {
+        JobData jobData = execution.getJobData();
+
+        logger.error( "Gave up bulk {} of {} in {} of application {} after {} entities", new Object[] {
+                jobData.getProperty( OPERATION ), jobData.getProperty( QL ), jobData.getProperty( COLLECTION ),
+                jobData.getProperty( APPLICATION_ID ), jobData.getProperty( PROCESSED )
+        } );
+    }
+
+
+    @Autowired
+    public void setEntityManagerFactory( EntityManagerFactory emf ) {
+        this.emf = emf;
+    }
+
+
+    /** How many matches to read and apply at a time */
+    @Value( "${usergrid.bulk.query.page:500}" )
+    public void setPageSize( int pageSize ) {
+        this.pageSize = pageSize;
+    }
+
+
+    /** How many threads apply the matches of a page */
+    @Value( "${usergrid.bulk.query.threads:4}" )
+    public void setThreads( int threads ) {
+        this.threads = threads;
+    }
+}
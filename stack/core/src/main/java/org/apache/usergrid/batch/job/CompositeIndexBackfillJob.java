@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.batch.job;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.apache.usergrid.batch.Job;
+import org.apache.usergrid.batch.JobExecution;
+import org.apache.usergrid.persistence.Entity;
+import org.apache.usergrid.persistence.EntityManagerFactory;
+import org.apache.usergrid.persistence.EntityRef;
+import org.apache.usergrid.persistence.Query;
+import org.apache.usergrid.persistence.Results;
+import org.apache.usergrid.persistence.Results.Level;
+import org.apache.usergrid.persistence.cassandra.EntityManagerImpl;
+import org.apache.usergrid.persistence.entities.JobData;
+import org.apache.usergrid.persistence.schema.CollectionInfo;
+import org.apache.usergrid.persistence.schema.CompositeIndexInfo;
+
+import static org.apache.usergrid.persistence.Schema.getDefaultSchema;
+import static org.apache.usergrid.utils.ClassUtils.cast;
+import static org.apache.usergrid.utils.ConversionUtils.string;
+import static org.apache.usergrid.utils.ConversionUtils.uuid;
+
+
+/**
+ * Adds the entities of a collection to composite indexes declared after they were written, then marks the indexes
+ * built so queries start using them. Writes keep the indexes up to date while the job runs, each entity is backfilled
+ * under the same lock as its writes. The collection is read a page at a time and the progress is saved on the job
+ * data after every page, so a failed job resumes where it stopped. A job that gives up marks its indexes failed, and
+ * the next read of the collection schedules a new one.
+ */
+@Component(CompositeIndexBackfillJob.NAME)
+public class CompositeIndexBackfillJob implements Job {
+
+    private static final Logger logger = LoggerFactory.getLogger( CompositeIndexBackfillJob.class );
+
+    public static final String NAME = "compositeIndexBackfillJob";
+
+    public static final String APPLICATION_ID = JobProgress.APPLICATION_ID;
+    public static final String COLLECTION = JobProgress.COLLECTION;
+    public static final String INDEXES = "indexes";
+
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    private EntityManagerFactory emf;
+
+    private int pageSize = DEFAULT_PAGE_SIZE;
+
+
+    /** Create the data of a job that adds the entities of a collection to its composite indexes */
+    public static JobData createJobData( UUID applicationId, EntityRef owner, String collectionName,
+                                         List<String> indexNames ) {
+        JobData jobData = JobProgress.createJobData( applicationId, owner, collectionName );
+        jobData.setProperty( INDEXES, indexNames );
+        return jobData;
+    }
+
+
+    @Override
+    public void execute( JobExecution execution ) throws Exception {
+
+        JobData jobData = execution.getJobData();
+
+        UUID applicationId = uuid( jobData.getProperty( APPLICATION_ID ), null );
+        EntityRef owner = JobProgress.getOwner( jobData );
+        String collectionName = string( jobData.getProperty( COLLECTION ) );
+        List<String> indexNames = cast( jobData.getProperty( INDEXES ) );
+
+        if ( ( applicationId == null ) || ( owner == null ) || ( collectionName == null ) || ( indexNames
+                == null ) ) {
+            logger.error( "Incomplete composite index backfill job {}", execution.getJobId() );
+            return;
+        }
+
+        CollectionInfo collection = getDefaultSchema().getCollection( owner.getType(), collectionName );
+
+        // indexes dropped from the declaration since the job was scheduled are left alone
+        List<CompositeIndexInfo> compositeIndexes = new ArrayList<CompositeIndexInfo>();
+        if ( collection != null ) {
+            for ( CompositeIndexInfo compositeIndex : collection.getCompositeIndexes() ) {
+                if ( indexNames.contains( compositeIndex.getName() ) ) {
+                    compositeIndexes.add( compositeIndex );
+                }
+            }
+        }
+
+        if ( compositeIndexes.isEmpty() ) {
+            logger.warn( "Composite indexes {} of {} are no longer declared", indexNames, collectionName );
+            return;
+        }
+
+        EntityManagerImpl em = ( EntityManagerImpl ) emf.getEntityManager( applicationId );
+
+        Query query = new Query();
+        query.setResultsLevel( Level.ALL_PROPERTIES );
+        query.setLimit( pageSize );
+        query.setCursor( JobProgress.getCursor( jobData ) );
+
+        long processed = JobProgress.getProcessed( jobData );
+        long added = 0;
+
+        logger.info( "Starting the backfill of composite indexes {} of {} in application {} at {}",
+                new Object[] { indexNames, collectionName, applicationId, processed } );
+
+        Results results = null;
+
+        do {
+            results = em.searchCollection( owner, collectionName, query );
+
+            List<Entity> entities = results.getEntities();
+            if ( entities.isEmpty() ) {
+                break;
+            }
+
+            for ( CompositeIndexInfo compositeIndex : compositeIndexes ) {
+                added += em.backfillCompositeIndex( compositeIndex, entities );
+            }
+
+            processed += entities.size();
+            query.setCursor( results.getCursor() );
+
+            JobProgress.saveProgress( emf, jobData, processed, results.getCursor() );
+            execution.heartbeat();
+        }
+        while ( results.getCursor() != null );
+
+        List<String> built = new ArrayList<String>();
+        for ( CompositeIndexInfo compositeIndex : compositeIndexes ) {
+            built.add( compositeIndex.getName() );
+        }
+
+        em.setCompositeIndexesBuilt( owner, collectionName, built );
+
+        logger.info( "Built composite indexes {} of {} in application {}, added {} entries for {} entities",
+                new Object[] { built, collectionName, applicationId, added, processed } );
+    }
+
+
+    @Override
+    public void dead( JobExecution execution ) throws Exception {
+        JobData jobData = execution.getJobData();
+
+        UUID applicationId = uuid( jobData.getProperty( APPLICATION_ID ), null );
+        EntityRef owner = JobProgress.getOwner( jobData );
+        String collectionName = string( jobData.getProperty( COLLECTION ) );
+        List<String> indexNames = cast( jobData.getProperty( INDEXES ) );
+
+        logger.error( "Gave up the backfill of composite indexes {} of {} in application {}, it will be scheduled again",
+                new Object[] { indexNames, collectionName, applicationId } );
+
+        if ( ( applicationId == null ) || ( owner == null ) || ( collectionName == null ) || ( indexNames
+                == null ) ) {
+            return;
+        }
+
+        // otherwise the indexes would stay building and never be used
+        ( ( EntityManagerImpl ) emf.getEntityManager( applicationId ) )
+                .setCompositeIndexesFailed( owner, collectionName, indexNames );
+    }
+
+
+    @Autowired
+    public void setEntityManagerFactory( EntityManagerFactory emf ) {
+        this.emf = emf;
+    }
+
+
+    /** How many entities to read at a time */
+    @Value( "${usergrid.index.composite.backfill.page:500}" )
+    public void setPageSize( int pageSize ) {
+        this.pageSize = pageSize;
+    }
+}
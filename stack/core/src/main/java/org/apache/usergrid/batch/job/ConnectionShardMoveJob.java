@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.batch.job;
+
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.apache.usergrid.batch.Job;
+import org.apache.usergrid.batch.JobExecution;
+import org.apache.usergrid.persistence.EntityManagerFactory;
+import org.apache.usergrid.persistence.cassandra.ConnectionShardLocator;
+import org.apache.usergrid.persistence.cassandra.EntityManagerImpl;
+import org.apache.usergrid.persistence.entities.JobData;
+
+import static org.apache.usergrid.utils.ConversionUtils.bytes;
+import static org.apache.usergrid.utils.ConversionUtils.string;
+import static org.apache.usergrid.utils.ConversionUtils.uuid;
+
+
+/**
+ * Moves the entries of the first shard of a connection row that was split to the shards they hash to, so the row
+ * shrinks to its share instead of keeping every entry written before the split. The last entry read is saved on the
+ * job data after every page, so a failed job resumes after it.
+ */
+@Component(ConnectionShardMoveJob.NAME)
+public class ConnectionShardMoveJob implements Job {
+
+    private static final Logger logger = LoggerFactory.getLogger( ConnectionShardMoveJob.class );
+
+    public static final String NAME = "connectionShardMoveJob";
+
+    public static final String APPLICATION_ID = JobProgress.APPLICATION_ID;
+    public static final String ENTITY_ID = "entityId";
+    public static final String DICTIONARY_TYPE = "dictionaryType";
+    public static final String CONNECTION_TYPE = "connectionType";
+
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private EntityManagerFactory emf;
+
+    private int pageSize = DEFAULT_PAGE_SIZE;
+
+
+    /** Create the data of a job that moves the entries of the first shard of a split row */
+    public static JobData createJobData( UUID applicationId, UUID entityId, String dictionaryType,
+                                         String connectionType ) {
+        JobData jobData = new JobData();
+        jobData.setProperty( APPLICATION_ID, applicationId );
+        jobData.setProperty( ENTITY_ID, entityId );
+        jobData.setProperty( DICTIONARY_TYPE, dictionaryType );
+        jobData.setProperty( CONNECTION_TYPE, connectionType );
+        return jobData;
+    }
+
+
+    @Override
+    public void execute( JobExecution execution ) throws Exception {
+
+        JobData jobData = execution.getJobData();
+
+        UUID applicationId = uuid( jobData.getProperty( APPLICATION_ID ), null );
+        UUID entityId = uuid( jobData.getProperty( ENTITY_ID ), null );
+        String dictionaryType = string( jobData.getProperty( DICTIONARY_TYPE ) );
+        String connectionType = string( jobData.getProperty( CONNECTION_TYPE ) );
+
+        if ( ( applicationId == null ) || ( entityId == null ) || ( dictionaryType == null ) || ( connectionType
+                == null ) ) {
+            logger.error( "Incomplete connection shard move job {}", execution.getJobId() );
+            return;
+        }
+
+        ConnectionShardLocator locator =
+                ( ( EntityManagerImpl ) emf.getEntityManager( applicationId ) ).getConnectionShardLocator();
+
+        logger.info( "Moving the {} {} of entity {} in application {} to their shards",
+                new Object[] { dictionaryType, connectionType, entityId, applicationId } );
+
+        String cursor = JobProgress.getCursor( jobData );
+
+        ByteBuffer start = cursor == null ? null : ByteBuffer.wrap( Hex.decodeHex( cursor.toCharArray() ) );
+        long pages = JobProgress.getProcessed( jobData );
+
+        do {
+            start = locator.moveEntries( entityId, dictionaryType, connectionType, start, pageSize );
+            pages++;
+
+            JobProgress.saveProgress( emf, jobData, pages,
+                    start == null ? null : Hex.encodeHexString( bytes( start ) ) );
+            execution.heartbeat();
+        }
+        while ( start != null );
+
+        logger.info( "Moved the {} {} of entity {} in application {} to their shards, {} pages read",
+                new Object[] { dictionaryType, connectionType, entityId, applicationId, pages } );
+    }
+
+
+    @Override
+    public void dead( JobExecution execution ) throws Exception {
+        JobData jobData = execution.getJobData();
+
+        logger.error( "Gave up moving the {} {} of entity {} in application {} to their shards, they stay readable",
+                new Object[] {
+                        jobData.getProperty( DICTIONARY_TYPE ), jobData.getProperty( CONNECTION_TYPE ),
+                        jobData.getProperty( ENTITY_ID ), jobData.getProperty( APPLICATION_ID )
+                } );
+    }
+
+
+    @Autowired
+    public void setEntityManagerFactory( EntityManagerFactory emf ) {
+        this.emf = emf;
+    }
+
+
+    /** How many entries to read at a time */
+    @Value( "${usergrid.connections.shard.move.page:1000}" )
+    public void setPageSize( int pageSize ) {
+        this.pageSize = pageSize;
+    }
+}
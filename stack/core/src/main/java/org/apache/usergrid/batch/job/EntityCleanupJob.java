@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.batch.job;
+
+
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.apache.usergrid.batch.Job;
+import org.apache.usergrid.batch.JobExecution;
+import org.apache.usergrid.persistence.EntityManagerFactory;
+import org.apache.usergrid.persistence.cassandra.EntityManagerImpl;
+import org.apache.usergrid.persistence.entities.JobData;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import static org.apache.usergrid.utils.ConversionUtils.getLong;
+import static org.apache.usergrid.utils.ConversionUtils.string;
+import static org.apache.usergrid.utils.ConversionUtils.uuid;
+
+
+/**
+ * Finishes the deletes of entities that were hidden by an asynchronous delete. Cleanups are rate limited per node so
+ * a mass delete doesn't take the cluster's capacity away from requests, the ones over the limit are delayed.
+ */
+@Component(EntityCleanupJob.NAME)
+public class EntityCleanupJob implements Job {
+
+    private static final Logger logger = LoggerFactory.getLogger( EntityCleanupJob.class );
+
+    public static final String NAME = "entityCleanupJob";
+
+    public static final String APPLICATION_ID = "applicationId";
+    public static final String ENTITY_ID = "entityId";
+    public static final String ENTITY_TYPE = "entityType";
+    public static final String HIDDEN_AT = "hiddenAt";
+
+    public static final double DEFAULT_RATE = 20;
+    public static final long DEFAULT_DELAY = 1000;
+
+    private EntityManagerFactory emf;
+
+    private RateLimiter limiter = RateLimiter.create( DEFAULT_RATE );
+
+    private long delay = DEFAULT_DELAY;
+
+
+    @Override
+    public void execute( JobExecution execution ) throws Exception {
+
+        JobData jobData = execution.getJobData();
+
+        UUID applicationId = uuid( jobData.getProperty( APPLICATION_ID ) );
+        UUID entityId = uuid( jobData.getProperty( ENTITY_ID ) );
+        String entityType = string( jobData.getProperty( ENTITY_TYPE ) );
+        long hiddenAt = getLong( jobData.getProperty( HIDDEN_AT ) );
+
+        if ( ( applicationId == null ) || ( entityId == null ) || ( entityType == null ) ) {
+            logger.error( "Unable to clean up entity without an application, id and type, job {}",
+                    execution.getJobId() );
+            return;
+        }
+
+        if ( !limiter.tryAcquire() ) {
+            execution.delay( delay );
+            return;
+        }
+
+        logger.debug( "Cleaning up {} {} of application {}", new Object[] { entityType, entityId, applicationId } );
+
+        ( ( EntityManagerImpl ) emf.getEntityManager( applicationId ) ).purgeEntity( entityId, entityType, hiddenAt );
+    }
+
+
+    @Override
+    public void dead( JobExecution execution ) throws Exception {
+        JobData jobData = execution.getJobData();
+
+        logger.error( "Gave up cleaning up entity {} of application {}, it's hidden but its relations remain",
+                jobData.getProperty( ENTITY_ID ), jobData.getProperty( APPLICATION_ID ) );
+    }
+
+
+    @Autowired
+    public void setEntityManagerFactory( EntityManagerFactory emf ) {
+        this.emf = emf;
+    }
+
+
+    /** The most cleanups to start per second on this node */
+    @Value( "${usergrid.entity.delete.cleanup.rate:20}" )
+    public void setRate( double rate ) {
+        limiter = RateLimiter.create( rate );
+    }
+
+
+    /** How long to delay a cleanup over the rate, in milliseconds */
+    @Value( "${usergrid.entity.delete.cleanup.delay:1000}" )
+    public void setDelay( long delay ) {
+        this.delay = delay;
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.batch.job;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.apache.usergrid.batch.Job;
+import org.apache.usergrid.batch.JobExecution;
+import org.apache.usergrid.batch.service.SchedulerService;
+import org.apache.usergrid.persistence.EntityManager;
+import org.apache.usergrid.persistence.EntityManagerFactory;
+import org.apache.usergrid.persistence.EntityRef;
+import org.apache.usergrid.persistence.IndexStatistics;
+import org.apache.usergrid.persistence.cassandra.EntityManagerImpl;
+import org.apache.usergrid.persistence.cassandra.index.IndexStatisticsCollector;
+import org.apache.usergrid.persistence.entities.JobData;
+
+import com.google.common.base.Preconditions;
+
+import static org.apache.usergrid.persistence.Schema.DICTIONARY_INDEX_STATISTICS_JOBS;
+import static org.apache.usergrid.utils.ClassUtils.cast;
+import static org.apache.usergrid.utils.ConversionUtils.getLong;
+import static org.apache.usergrid.utils.ConversionUtils.string;
+import static org.apache.usergrid.utils.ConversionUtils.uuid;
+
+
+/**
+ * Collects the statistics of the property indexes of a collection by reading their bucket rows, and stores them for
+ * the query planner. Properties whose entries pile up in one bucket row are logged, those rows are hot spots for both
+ * writes and reads. With an interval the job runs again after it, so the statistics follow the data.
+ * <p/>
+ * A collection has at most one job, registered in the owner's index statistics jobs dictionary. Scheduling a job
+ * replaces the collection's previous one, and a job that is no longer registered stops instead of running again.
+ */
+@Component(IndexStatisticsJob.NAME)
+public class IndexStatisticsJob implements Job {
+
+    private static final Logger logger = LoggerFactory.getLogger( IndexStatisticsJob.class );
+
+    public static final String NAME = "indexStatisticsJob";
+
+    public static final String APPLICATION_ID = JobProgress.APPLICATION_ID;
+    public static final String COLLECTION = JobProgress.COLLECTION;
+    public static final String PROPERTIES = "properties";
+    public static final String INTERVAL = "interval";
+
+    public static final int DEFAULT_SAMPLE_SIZE = 10000;
+    public static final int DEFAULT_QUANTILES = 20;
+    public static final int DEFAULT_FREQUENT = 20;
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+    public static final long DEFAULT_MAX_BUCKET_ENTRIES = 1000000;
+    public static final long DEFAULT_MIN_INTERVAL = 3600000;
+
+    /** A bucket row with this many times its share of the entries is reported as hot */
+    public static final double HOT_BUCKET_FACTOR = 2;
+
+    private EntityManagerFactory emf;
+
+    private SchedulerService schedulerService;
+
+    private int sampleSize = DEFAULT_SAMPLE_SIZE;
+
+    private int quantiles = DEFAULT_QUANTILES;
+
+    private int frequent = DEFAULT_FREQUENT;
+
+    private int pageSize = DEFAULT_PAGE_SIZE;
+
+    private long maxBucketEntries = DEFAULT_MAX_BUCKET_ENTRIES;
+
+    private long minInterval = DEFAULT_MIN_INTERVAL;
+
+    private final Random random = new Random();
+
+
+    /**
+     * Create the data of a job that collects the statistics of the indexes of a collection
+     *
+     * @param properties The properties to collect, null for every indexed property
+     * @param interval How long to wait before collecting them again, in milliseconds, 0 to collect them once
+     */
+    public static JobData createJobData( UUID applicationId, EntityRef owner, String collectionName,
+                                         List<String> properties, long interval ) {
+        JobData jobData = JobProgress.createJobData( applicationId, owner, collectionName );
+        jobData.setProperty( PROPERTIES, properties );
+        jobData.setProperty( INTERVAL, interval );
+        return jobData;
+    }
+
+
+    /**
+     * Schedule the collection of the statistics of the indexes of a collection, replacing its previous job
+     *
+     * @param properties The properties to collect, null for every indexed property
+     * @param interval How long to wait before collecting them again, in milliseconds, 0 to collect them once
+     *
+     * @return the data of the new job
+     */
+    public JobData schedule( UUID applicationId, EntityRef owner, String collectionName, List<String> properties,
+                             long interval ) throws Exception {
+        Preconditions.checkArgument( ( interval == 0 ) || ( interval >= minInterval ),
+                "The interval must be 0 or at least " + minInterval + " ms" );
+
+        EntityManager em = emf.getEntityManager( applicationId );
+
+        stop( em, owner, collectionName );
+
+        JobData job = schedulerService.createJob( NAME, System.currentTimeMillis(),
+                createJobData( applicationId, owner, collectionName, properties, interval ) );
+
+        em.addToDictionary( owner, DICTIONARY_INDEX_STATISTICS_JOBS, collectionName.toLowerCase(),
+                job.getUuid().toString() );
+
+        return job;
+    }
+
+
+    /**
+     * Stop collecting the statistics of the indexes of a collection
+     *
+     * @return false if the collection had no job
+     */
+    public boolean stop( UUID applicationId, EntityRef owner, String collectionName ) throws Exception {
+        return stop( emf.getEntityManager( applicationId ), owner, collectionName );
+    }
+
+
+    private boolean stop( EntityManager em, EntityRef owner, String collectionName ) throws Exception {
+        UUID jobId = getRegisteredJob( em, owner, collectionName );
+        if ( jobId == null ) {
+            return false;
+        }
+
+        em.removeFromDictionary( owner, DICTIONARY_INDEX_STATISTICS_JOBS, collectionName.toLowerCase() );
+
+        // a running job sees it's no longer registered and doesn't run again
+        try {
+            schedulerService.deleteJob( jobId );
+        }
+        catch ( RuntimeException e ) {
+            logger.warn( "Unable to delete index statistics job {}", jobId, e );
+        }
+
+        return true;
+    }
+
+
+    private static UUID getRegisteredJob( EntityManager em, EntityRef owner, String collectionName )
+            throws Exception {
+        return uuid( em.getDictionaryElementValue( owner, DICTIONARY_INDEX_STATISTICS_JOBS,
+                collectionName.toLowerCase() ), null );
+    }
+
+
+    @Override
+    public void execute( JobExecution execution ) throws Exception {
+
+        JobData jobData = execution.getJobData();
+
+        UUID applicationId = uuid( jobData.getProperty( APPLICATION_ID ), null );
+        EntityRef owner = JobProgress.getOwner( jobData );
+        String collectionName = string( jobData.getProperty( COLLECTION ) );
+        List<String> properties = cast( jobData.getProperty( PROPERTIES ) );
+        long interval = getLong( jobData.getProperty( INTERVAL ) );
+
+        if ( ( applicationId == null ) || ( owner == null ) || ( collectionName == null ) ) {
+            logger.error( "Incomplete index statistics job {}", execution.getJobId() );
+            return;
+        }
+
+        EntityManagerImpl em = ( EntityManagerImpl ) emf.getEntityManager( applicationId );
+
+        // the job is registered right after it's created, so it may not be yet
+        UUID registered = getRegisteredJob( em, owner, collectionName );
+        if ( ( registered != null ) && !registered.equals( execution.getJobId() ) ) {
+            logger.info( "Index statistics job {} of {} was replaced by {}",
+                    new Object[] { execution.getJobId(), collectionName, registered } );
+            return;
+        }
+
+        if ( properties == null ) {
+            properties = new ArrayList<String>( em.getCollectionIndexes( owner, collectionName ) );
+        }
+
+        logger.info( "Collecting the statistics of {} indexes of {} in application {}",
+                new Object[] { properties.size(), collectionName, applicationId } );
+
+        for ( String propertyName : properties ) {
+            IndexStatisticsCollector collector =
+                    new IndexStatisticsCollector( propertyName, sampleSize, quantiles, frequent, random );
+
+            em.getRelationManager( owner )
+              .collectIndexStatistics( collectionName, propertyName, collector, pageSize, maxBucketEntries );
+
+            IndexStatistics statistics = collector.getStatistics();
+
+            em.setIndexStatistics( owner, collectionName, statistics );
+
+            if ( isHot( statistics ) ) {
+                logger.warn( "Index of {} in {} of application {} is hot, bucket {} has {} of {} entries", new Object[] {
+                        propertyName, collectionName, applicationId, statistics.getHotBucket(),
+                        statistics.getMaxBucketEntries(), statistics.getEntries()
+                } );
+            }
+
+            if ( statistics.isTruncated() ) {
+                logger.warn( "Index of {} in {} of application {} has bucket rows over {} entries",
+                        new Object[] { propertyName, collectionName, applicationId, maxBucketEntries } );
+            }
+
+            execution.heartbeat();
+        }
+
+        if ( interval > 0 ) {
+            if ( execution.getJobId().equals( getRegisteredJob( em, owner, collectionName ) ) ) {
+                execution.delay( Math.max( interval, minInterval ) );
+            }
+            else {
+                logger.info( "Index statistics job {} of {} was stopped", execution.getJobId(), collectionName );
+            }
+        }
+    }
+
+
+    /** @return true if a bucket row holds much more than its share of the entries */
+    public static boolean isHot( IndexStatistics statistics ) {
+        return ( statistics.getBuckets() > 1 ) && ( statistics.getMaxBucketEntries()
+                > HOT_BUCKET_FACTOR * statistics.getEntries() / statistics.getBuckets() );
+    }
+
+
+    @Override
+    public void dead( JobExecution execution ) throws Exception {
+        JobData jobData = execution.getJobData();
+
+        logger.error( "Gave up collecting the index statistics of {} in application {}",
+                jobData.getProperty( COLLECTION ), jobData.getProperty( APPLICATION_ID ) );
+    }
+
+
+    @Autowired
+    public void setEntityManagerFactory( EntityManagerFactory emf ) {
+        this.emf = emf;
+    }
+
+
+    @Autowired
+    public void setSchedulerService( SchedulerService schedulerService ) {
+        this.schedulerService = schedulerService;
+    }
+
+
+    /** How many values of an index to sample for its quantiles and frequent values */
+    @Value( "${usergrid.index.statistics.sample:10000}" )
+    public void setSampleSize( int sampleSize ) {
+        this.sampleSize = sampleSize;
+    }
+
+
+    /** How many parts to split the values of an index in */
+    @Value( "${usergrid.index.statistics.quantiles:20}" )
+    public void setQuantiles( int quantiles ) {
+        this.quantiles = quantiles;
+    }
+
+
+    /** How many of the most frequent values of an index to keep */
+    @Value( "${usergrid.index.statistics.frequent:20}" )
+    public void setFrequent( int frequent ) {
+        this.frequent = frequent;
+    }
+
+
+    /** How many index entries to read at a time */
+    @Value( "${usergrid.index.statistics.page:1000}" )
+    public void setPageSize( int pageSize ) {
+        this.pageSize = pageSize;
+    }
+
+
+    /** The most entries to read from a bucket row of an index */
+    @Value( "${usergrid.index.statistics.max:1000000}" )
+    public void setMaxBucketEntries( long maxBucketEntries ) {
+        this.maxBucketEntries = maxBucketEntries;
+    }
+
+
+    /** The shortest interval between two collections of the statistics of a collection, in milliseconds */
+    @Value( "${usergrid.index.statistics.interval.min:3600000}" )
+    public void setMinInterval( long minInterval ) {
+        this.minInterval = minInterval;
+    }
+}
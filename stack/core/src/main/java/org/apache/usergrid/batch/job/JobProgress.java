@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.batch.job;
+
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.usergrid.persistence.EntityManagerFactory;
+import org.apache.usergrid.persistence.EntityRef;
+import org.apache.usergrid.persistence.SimpleEntityRef;
+import org.apache.usergrid.persistence.entities.JobData;
+
+import static org.apache.usergrid.persistence.cassandra.CassandraService.MANAGEMENT_APPLICATION_ID;
+import static org.apache.usergrid.utils.ConversionUtils.getLong;
+import static org.apache.usergrid.utils.ConversionUtils.string;
+import static org.apache.usergrid.utils.ConversionUtils.uuid;
+
+
+/**
+ * The job data shared by jobs that work through a collection. Progress is saved on the job data with {@link
+ * #saveProgress(EntityManagerFactory, JobData, long, String)}, so it can be followed through the scheduler and a job
+ * that failed resumes from the saved cursor.
+ */
+public class JobProgress {
+
+    public static final String APPLICATION_ID = "applicationId";
+    public static final String OWNER_ID = "ownerId";
+    public static final String OWNER_TYPE = "ownerType";
+    public static final String COLLECTION = "collection";
+
+    /** Progress, saved after every page */
+    public static final String PROCESSED = "processed";
+    public static final String CURSOR = "cursor";
+
+
+    private JobProgress() {
+    }
+
+
+    /** Create the data of a job that works through a collection of an application, with no progress yet */
+    public static JobData createJobData( UUID applicationId, EntityRef owner, String collectionName ) {
+        JobData jobData = new JobData();
+        jobData.setProperty( APPLICATION_ID, applicationId );
+        jobData.setProperty( OWNER_ID, owner.getUuid() );
+        jobData.setProperty( OWNER_TYPE, owner.getType() );
+        jobData.setProperty( COLLECTION, collectionName );
+        jobData.setProperty( PROCESSED, 0 );
+        return jobData;
+    }
+
+
+    /** @return the owner of the collection, null if the job data has none */
+    public static EntityRef getOwner( JobData jobData ) {
+        UUID ownerId = uuid( jobData.getProperty( OWNER_ID ), null );
+        if ( ownerId == null ) {
+            return null;
+        }
+        return new SimpleEntityRef( string( jobData.getProperty( OWNER_TYPE ) ), ownerId );
+    }
+
+
+    /** @return how much the job processed before, 0 if it's starting */
+    public static long getProcessed( JobData jobData ) {
+        return getLong( jobData.getProperty( PROCESSED ) );
+    }
+
+
+    /** @return the cursor to resume from, null if the job is starting */
+    public static String getCursor( JobData jobData ) {
+        return string( jobData.getProperty( CURSOR ) );
+    }
+
+
+    /** Save the progress on the job data so it can be followed, and resumed if the job fails */
+    public static void saveProgress( EntityManagerFactory emf, JobData jobData, long processed, String cursor )
+            throws Exception {
+        jobData.setProperty( PROCESSED, processed );
+        jobData.setProperty( CURSOR, cursor );
+
+        Map<String, Object> progress = new HashMap<String, Object>();
+        progress.put( PROCESSED, processed );
+        progress.put( CURSOR, cursor );
+
+        emf.getEntityManager( MANAGEMENT_APPLICATION_ID ).updateProperties( jobData, progress );
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.batch.service;
+
+
+/**
+ * Configuration of a pool of job workers. Jobs are routed to a pool by name through
+ * {@link org.apache.usergrid.batch.JobFactory#poolFor(org.apache.usergrid.batch.repository.JobDescriptor)}.
+ * <p/>
+ * Each pool owns its workers, so jobs in one pool can never starve another pool of threads. Idle workers steal queued
+ * jobs from other pools, highest priority first, but never let a pool use more than its weighted share of all workers.
+ */
+public class JobPool {
+
+    public static final String DEFAULT_POOL = "default";
+
+    private String name = DEFAULT_POOL;
+    private int workers = 1;
+    private int priority = 0;
+    private int weight = 1;
+
+
+    public JobPool() {
+    }
+
+
+    public JobPool( String name, int workers, int priority, int weight ) {
+        this.name = name;
+        this.workers = workers;
+        this.priority = priority;
+        this.weight = weight;
+    }
+
+
+    /** @return the name jobs are routed to this pool by */
+    public String getName() {
+        return name;
+    }
+
+
+    public void setName( String name ) {
+        this.name = name;
+    }
+
+
+    /** @return the number of worker threads owned by this pool */
+    public int getWorkers() {
+        return workers;
+    }
+
+
+    public void setWorkers( int workers ) {
+        this.workers = workers;
+    }
+
+
+    /** @return the order idle workers of other pools steal from this pool in, highest first */
+    public int getPriority() {
+        return priority;
+    }
+
+
+    public void setPriority( int priority ) {
+        this.priority = priority;
+    }
+
+
+    /**
+     * @return the relative share of all workers jobs of this pool may occupy at once, including workers stolen from
+     *         other pools. A pool can always use its own workers
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+
+    public void setWeight( int weight ) {
+        this.weight = weight;
+    }
+
+
+    @Override
+    public String toString() {
+        return "JobPool [name=" + name + ", workers=" + workers + ", priority=" + priority + ", weight=" + weight + "]";
+    }
+}
@@ -0,0 +1,459 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.batch.service;
+
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.usergrid.metrics.MetricsFactory;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+
+
+/**
+ * Runs jobs on per pool worker threads with work stealing between pools. A worker always takes jobs queued for its own
+ * pool first. When that queue is empty it steals from the other pools in priority order, as long as the victim pool is
+ * below its weighted share of all workers.
+ * <p/>
+ * Jobs waiting in a pool queue have their queue transaction renewed by a separate keep alive thread, so they don't time
+ * out and get picked up by another node while they wait for a worker.
+ */
+public class JobPoolExecutor {
+
+    private static final Logger LOG = LoggerFactory.getLogger( JobPoolExecutor.class );
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition workAvailable = lock.newCondition();
+
+    private final Map<String, PoolState> pools = new LinkedHashMap<String, PoolState>();
+
+    /** All pools, highest priority first, for stealing */
+    private final List<PoolState> byPriority;
+
+    private final PoolState defaultPool;
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private final ScheduledExecutorService keepAliveExecutor;
+    private final int capacity;
+
+    private volatile boolean running = true;
+
+
+    /**
+     * @param poolConfigs the pools to create. Must not be empty
+     * @param defaultPoolName the pool used for jobs without a pool or with an unknown pool
+     * @param threadFactory creates the worker threads
+     * @param keepAliveInterval how often in milliseconds to renew transactions of queued jobs
+     * @param metricsFactory optional, registers queue depth and latency metrics per pool
+     */
+    public JobPoolExecutor( List<JobPool> poolConfigs, String defaultPoolName, ThreadFactory threadFactory,
+                            long keepAliveInterval, MetricsFactory metricsFactory ) {
+
+        if ( poolConfigs == null || poolConfigs.isEmpty() ) {
+            throw new IllegalArgumentException( "At least one pool is required" );
+        }
+
+        int totalWorkers = 0;
+        int totalWeight = 0;
+
+        for ( JobPool config : poolConfigs ) {
+            if ( config.getWorkers() < 1 ) {
+                throw new IllegalArgumentException( "Pool " + config.getName() + " must have at least 1 worker" );
+            }
+            if ( config.getWeight() < 1 ) {
+                throw new IllegalArgumentException( "Pool " + config.getName() + " must have a weight of at least 1" );
+            }
+            if ( pools.containsKey( config.getName() ) ) {
+                throw new IllegalArgumentException( "Duplicate pool " + config.getName() );
+            }
+
+            pools.put( config.getName(), new PoolState( config, metricsFactory ) );
+            totalWorkers += config.getWorkers();
+            totalWeight += config.getWeight();
+        }
+
+        this.capacity = totalWorkers;
+
+        for ( PoolState pool : pools.values() ) {
+            int share = ( int ) Math.ceil( ( double ) totalWorkers * pool.config.getWeight() / totalWeight );
+            pool.limit = Math.max( pool.config.getWorkers(), share );
+        }
+
+        PoolState defaultState = pools.get( defaultPoolName );
+        this.defaultPool = defaultState != null ? defaultState : pools.values().iterator().next();
+
+        byPriority = new ArrayList<PoolState>( pools.values() );
+        Collections.sort( byPriority, new Comparator<PoolState>() {
+            @Override
+            public int compare( PoolState o1, PoolState o2 ) {
+                return o2.config.getPriority() - o1.config.getPriority();
+            }
+        } );
+
+        for ( PoolState pool : pools.values() ) {
+            for ( int i = 0; i < pool.config.getWorkers(); i++ ) {
+                Thread worker = threadFactory.newThread( new Worker( pool ) );
+                workers.add( worker );
+                worker.start();
+            }
+
+            LOG.info( "Started {} with a limit of {} workers", pool.config, pool.limit );
+        }
+
+        keepAliveExecutor = Executors.newSingleThreadScheduledExecutor( threadFactory );
+        keepAliveExecutor.scheduleWithFixedDelay( new Runnable() {
+            @Override
+            public void run() {
+                keepAliveQueued();
+            }
+        }, keepAliveInterval, keepAliveInterval, TimeUnit.MILLISECONDS );
+    }
+
+
+    /**
+     * Queue a job on a pool.
+     *
+     * @param poolName the pool to run in, null or unknown names run in the default pool
+     * @param job the job to run
+     * @param keepAlive optional, invoked periodically while the job is waiting for a worker
+     */
+    public ListenableFuture<Void> submit( String poolName, Callable<Void> job, Runnable keepAlive ) {
+        if ( !running ) {
+            throw new RejectedExecutionException( "Job pool executor is shut down" );
+        }
+
+        PoolState pool = getPool( poolName );
+
+        QueuedJob queued = new QueuedJob( pool, ListenableFutureTask.create( job ), keepAlive );
+
+        lock.lock();
+        try {
+            pool.queue.add( queued );
+            workAvailable.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+
+        return queued.task;
+    }
+
+
+    /**
+     * Queue a job on a pool only if the pool can take it, that is if the jobs of the pool already running or waiting
+     * are below the number of workers it may use at once. This keeps a backlog of one pool from piling up jobs that
+     * hold the capacity other pools need.
+     *
+     * @return the future of the job, or null if the pool is full
+     */
+    public ListenableFuture<Void> trySubmit( String poolName, Callable<Void> job, Runnable keepAlive ) {
+        if ( !running ) {
+            throw new RejectedExecutionException( "Job pool executor is shut down" );
+        }
+
+        PoolState pool = getPool( poolName );
+
+        lock.lock();
+        try {
+            if ( pool.running + pool.queue.size() >= pool.limit ) {
+                return null;
+            }
+
+            QueuedJob queued = new QueuedJob( pool, ListenableFutureTask.create( job ), keepAlive );
+            pool.queue.add( queued );
+            workAvailable.signalAll();
+
+            return queued.task;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /** @return the number of jobs the pools can take right now, the sum of their free slots capped by the workers */
+    public int getAvailableCapacity() {
+        lock.lock();
+        try {
+            int free = 0;
+
+            for ( PoolState pool : pools.values() ) {
+                free += Math.max( 0, pool.limit - pool.running - pool.queue.size() );
+            }
+
+            return Math.min( free, capacity );
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /** @return the total number of workers across all pools */
+    public int getCapacity() {
+        return capacity;
+    }
+
+
+    /** @return the number of jobs waiting for a worker in the given pool */
+    public int getQueueDepth( String poolName ) {
+        PoolState pool = pools.get( poolName );
+
+        if ( pool == null ) {
+            return 0;
+        }
+
+        lock.lock();
+        try {
+            return pool.queue.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /** Stop accepting jobs. Queued jobs are discarded and left on the job queue, running jobs finish */
+    public void shutdown() {
+        running = false;
+        keepAliveExecutor.shutdown();
+
+        lock.lock();
+        try {
+            for ( PoolState pool : pools.values() ) {
+                for ( QueuedJob queued : pool.queue ) {
+                    queued.task.cancel( false );
+                }
+                pool.queue.clear();
+            }
+            workAvailable.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    private PoolState getPool( String poolName ) {
+        PoolState pool = poolName == null ? null : pools.get( poolName );
+
+        if ( pool == null ) {
+            if ( poolName != null ) {
+                LOG.warn( "Unknown job pool {}, using the {} pool", poolName, defaultPool.config.getName() );
+            }
+            pool = defaultPool;
+        }
+
+        return pool;
+    }
+
+
+    /** Take the next job for a worker of the given pool, blocking until there is one or we shut down */
+    private QueuedJob take( PoolState own ) throws InterruptedException {
+        lock.lock();
+        try {
+            while ( running ) {
+                QueuedJob next = poll( own );
+
+                if ( next == null ) {
+                    for ( PoolState victim : byPriority ) {
+                        if ( victim != own ) {
+                            next = poll( victim );
+                            if ( next != null ) {
+                                LOG.debug( "Worker of pool {} stole a job from pool {}", own.config.getName(),
+                                        victim.config.getName() );
+                                break;
+                            }
+                        }
+                    }
+                }
+
+                if ( next != null ) {
+                    next.pool.running++;
+                    return next;
+                }
+
+                workAvailable.await();
+            }
+
+            return null;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    private QueuedJob poll( PoolState pool ) {
+        if ( pool.running >= pool.limit ) {
+            return null;
+        }
+        return pool.queue.poll();
+    }
+
+
+    private void finished( PoolState pool ) {
+        lock.lock();
+        try {
+            pool.running--;
+            // a pool dropping below its limit may let other workers steal again
+            workAvailable.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    private void keepAliveQueued() {
+        List<QueuedJob> waiting = new ArrayList<QueuedJob>();
+
+        lock.lock();
+        try {
+            for ( PoolState pool : pools.values() ) {
+                for ( QueuedJob queued : pool.queue ) {
+                    if ( queued.keepAlive != null ) {
+                        waiting.add( queued );
+                    }
+                }
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+
+        // renew outside the lock, these go to cassandra
+        for ( QueuedJob queued : waiting ) {
+            try {
+                queued.keepAlive.run();
+            }
+            catch ( RuntimeException e ) {
+                LOG.warn( "Unable to keep queued job alive", e );
+            }
+        }
+    }
+
+
+    private class Worker implements Runnable {
+
+        private final PoolState pool;
+
+
+        private Worker( PoolState pool ) {
+            this.pool = pool;
+        }
+
+
+        @Override
+        public void run() {
+            while ( running ) {
+                QueuedJob queued;
+
+                try {
+                    queued = take( pool );
+                }
+                catch ( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                if ( queued == null ) {
+                    return;
+                }
+
+                queued.pool.queueLatency.update( System.currentTimeMillis() - queued.queuedAt, TimeUnit.MILLISECONDS );
+
+                try {
+                    queued.task.run();
+                }
+                finally {
+                    finished( queued.pool );
+                }
+            }
+        }
+    }
+
+
+    private static class QueuedJob {
+        private final PoolState pool;
+        private final ListenableFutureTask<Void> task;
+        private final Runnable keepAlive;
+        private final long queuedAt = System.currentTimeMillis();
+
+
+        private QueuedJob( PoolState pool, ListenableFutureTask<Void> task, Runnable keepAlive ) {
+            this.pool = pool;
+            this.task = task;
+            this.keepAlive = keepAlive;
+        }
+    }
+
+
+    /** Mutable state of a pool, guarded by the executor lock */
+    private static class PoolState {
+        private final JobPool config;
+        private final ArrayDeque<QueuedJob> queue = new ArrayDeque<QueuedJob>();
+        private final Timer queueLatency;
+        private int running;
+        private int limit;
+
+
+        private PoolState( JobPool config, MetricsFactory metricsFactory ) {
+            this.config = config;
+
+            if ( metricsFactory == null ) {
+                queueLatency = new Timer();
+                return;
+            }
+
+            queueLatency = metricsFactory.getTimer( JobPoolExecutor.class, "pool_" + config.getName() + "_latency" );
+
+            MetricRegistry registry = metricsFactory.getRegistry();
+            String depthName = MetricRegistry.name( JobPoolExecutor.class, "pool_" + config.getName() + "_depth" );
+
+            // the gauge reads the queue of the current executor, replace any left by an earlier one
+            registry.remove( depthName );
+            registry.register( depthName, new Gauge<Integer>() {
+                @Override
+                public Integer getValue() {
+                    // a racy read is fine for a gauge
+                    return queue.size();
+                }
+            } );
+        }
+    }
+}
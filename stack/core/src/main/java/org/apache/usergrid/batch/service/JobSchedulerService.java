@@ -17,10 +17,10 @@
 package org.apache.usergrid.batch.service;
 
 
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
@@ -29,7 +29,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.apache.usergrid.batch.Job;
-import org.apache.usergrid.batch.JobExecution;
 import org.apache.usergrid.batch.JobExecution.Status;
 import org.apache.usergrid.batch.JobExecutionImpl;
 import org.apache.usergrid.batch.JobFactory;
@@ -44,8 +43,6 @@ import com.google.common.util.concurrent.AbstractScheduledService;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListeningScheduledExecutorService;
-import com.google.common.util.concurrent.MoreExecutors;
 import com.yammer.metrics.annotation.ExceptionMetered;
 import com.yammer.metrics.annotation.Timed;
 
@@ -55,19 +52,28 @@ import com.yammer.metrics.annotation.Timed;
  */
 public class JobSchedulerService extends AbstractScheduledService {
     protected static final long DEFAULT_DELAY = 1000;
+    protected static final long DEFAULT_POLL_INTERVAL = 60000;
+    protected static final long DEFAULT_QUEUED_HEARTBEAT_INTERVAL = 30000;
+    protected static final long DEFAULT_FULL_POOL_DELAY = 5000;
 
     private static final Logger LOG = LoggerFactory.getLogger( JobSchedulerService.class );
 
     private long interval = DEFAULT_DELAY;
     private int workerSize = 1;
     private int maxFailCount = 10;
+    private boolean pushDispatch = false;
+    private long pollInterval = DEFAULT_POLL_INTERVAL;
+    private long lastPoll = 0;
+    private long queuedHeartbeatInterval = DEFAULT_QUEUED_HEARTBEAT_INTERVAL;
+    private long fullPoolDelay = DEFAULT_FULL_POOL_DELAY;
+    private List<JobPool> pools = Collections.emptyList();
 
     private JobAccessor jobAccessor;
     private JobFactory jobFactory;
+    private JobTimingWheel timingWheel;
 
-    private Semaphore capacitySemaphore;
-
-    private ListeningScheduledExecutorService service;
+    private MetricsFactory metricsFactory;
+    private JobPoolExecutor service;
     private JobListener jobListener;
 
     private Timer jobTimer;
@@ -87,27 +93,26 @@ public class JobSchedulerService extends AbstractScheduledService {
     protected void runOneIteration() throws Exception {
 
         try {
+            if ( !isQueueReadDue() ) {
+                return;
+            }
+
             LOG.info( "Running one check iteration ..." );
             List<JobDescriptor> activeJobs;
 
-            // run until there are no more active jobs
+            // run until there are no more active jobs or no pool has room for them
             while ( true ) {
 
-                // get the semaphore if we can. This means we have space for at least 1
-                // job
-                if ( LOG.isDebugEnabled() ) {
-                    LOG.debug( "About to acquire semaphore.  Capacity is {}", capacitySemaphore.availablePermits() );
-                }
-
-                capacitySemaphore.acquire();
-                // release the sempaphore we only need to acquire as a way to stop the
-                // loop if there's no capacity
-                capacitySemaphore.release();
-
-                int capacity = capacitySemaphore.availablePermits();
+                // never block here, a full pool must not hold up the jobs of the others
+                int capacity = service.getAvailableCapacity();
 
                 LOG.debug( "Capacity is {}", capacity );
 
+                if ( capacity == 0 ) {
+                    LOG.debug( "All pools are full. Exiting run loop" );
+                    return;
+                }
+
                 activeJobs = jobAccessor.getJobs( capacity );
 
                 // nothing to do, we don't have any jobs to run
@@ -116,10 +121,20 @@ public class JobSchedulerService extends AbstractScheduledService {
                     return;
                 }
 
+                int submitted = 0;
+
                 for ( JobDescriptor jd : activeJobs ) {
                     LOG.info( "Submitting work for {}", jd );
-                    submitWork( jd );
-                    LOG.info( "Work submitted for {}", jd );
+                    if ( submitWork( jd ) ) {
+                        submitted++;
+                        LOG.info( "Work submitted for {}", jd );
+                    }
+                }
+
+                // every job we read belongs to a full pool, wait for the next iteration
+                if ( submitted == 0 ) {
+                    LOG.debug( "No jobs could be submitted. Exiting run loop" );
+                    return;
                 }
             }
         }
@@ -129,6 +144,44 @@ public class JobSchedulerService extends AbstractScheduledService {
     }
 
 
+    /**
+     * In push dispatch mode, wait on the timing wheel for up to one interval and only read the queue if a job known to
+     * this node became due, or the safety poll interval has passed. In poll mode the queue is always read.
+     */
+    private boolean isQueueReadDue() throws InterruptedException {
+
+        if ( !isPushDispatch() ) {
+            // keep the wheel drained if it's being fed while we poll
+            if ( timingWheel != null ) {
+                timingWheel.awaitDue( 0 );
+            }
+            return true;
+        }
+
+        boolean due = timingWheel.awaitDue( interval );
+        long now = System.currentTimeMillis();
+
+        if ( due ) {
+            LOG.debug( "Jobs are due according to the timing wheel" );
+        }
+        else if ( now - lastPoll >= pollInterval ) {
+            LOG.debug( "No jobs due locally, running the safety poll" );
+        }
+        else {
+            return false;
+        }
+
+        lastPoll = now;
+
+        return true;
+    }
+
+
+    private boolean isPushDispatch() {
+        return pushDispatch && timingWheel != null;
+    }
+
+
     /*
      * (non-Javadoc)
      *
@@ -136,15 +189,20 @@ public class JobSchedulerService extends AbstractScheduledService {
      */
     @Override
     protected Scheduler scheduler() {
-        return Scheduler.newFixedDelaySchedule( 0, interval, TimeUnit.MILLISECONDS );
+        // in push mode each iteration blocks on the timing wheel for up to an interval, so run them back to back
+        long delay = isPushDispatch() ? 1 : interval;
+
+        return Scheduler.newFixedDelaySchedule( 0, delay, TimeUnit.MILLISECONDS );
     }
 
 
     /**
      * Use the provided BulkJobFactory to build and submit BulkJob items as ListenableFuture objects
+     *
+     * @return true if the job was submitted to its pool
      */
     @ExceptionMetered( name = "BulkJobScheduledService_submitWork_exceptions", group = "scheduler" )
-    private void submitWork( final JobDescriptor jobDescriptor ) {
+    private boolean submitWork( final JobDescriptor jobDescriptor ) {
         final Job job;
 
         try {
@@ -152,89 +210,99 @@ public class JobSchedulerService extends AbstractScheduledService {
         }
         catch ( JobNotFoundException e ) {
             LOG.error( "Could not create jobs", e );
-            return;
+            return false;
         }
 
 
         // job execution needs to be external to both the callback and the task.
         // This way regardless of any error we can
         // mark a job as failed if required
-        final JobExecution execution = new JobExecutionImpl( jobDescriptor );
+        final JobExecutionImpl execution = new JobExecutionImpl( jobDescriptor );
 
         // We don't care if this is atomic (not worth using a lock object)
         // we just need to prevent NPEs from ever occurring
         final JobListener currentListener = this.jobListener;
 
+        final String poolName = jobFactory.poolFor( jobDescriptor );
+
         /**
-         * Acquire the semaphore before we schedule.  This way we wont' take things from the Q that end up
-         * stuck in the queue for the scheduler and then time out their distributed heartbeat
+         * Renew the queue transaction while the job waits for a worker in its pool, off the worker threads. Once the
+         * job runs it's responsible for its own heartbeats
          */
-        try {
-            capacitySemaphore.acquire();
-        }
-        catch ( InterruptedException e ) {
-            LOG.error( "Unable to acquire semaphore capacity before submitting job", e );
-            //just return, they'll get picked up again later
-            return;
-        }
-
-
-        final Timer.Context timer = jobTimer.time();
+        Runnable keepAlive = new Runnable() {
+            @Override
+            public void run() {
+                jobDescriptor.getRuntime().heartbeat( execution );
+            }
+        };
 
+        ListenableFuture<Void> future;
 
-        ListenableFuture<Void> future = service.submit( new Callable<Void>() {
-            @Override
-            public Void call() throws Exception {
+        try {
+            /**
+             * Only submit if the job's own pool has room. This way we won't take things from the Q that end up
+             * stuck behind a backlog of another pool's jobs
+             */
+            future = service.trySubmit( poolName, new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+
+                    LOG.debug( "Starting the job with job id {}", execution.getJobId() );
+                    runCounter.inc();
+
+                    execution.start( maxFailCount );
+
+
+                    //this job is dead, treat it as such
+                    if ( execution.getStatus() == Status.DEAD ) {
+
+                        try {
+                            job.dead( execution );
+                            jobAccessor.save( execution );
+                        }
+                        catch ( Exception t ) {
+                            //we purposefully swallow all exceptions here, we don't want it to effect the outcome
+                            //of finally popping this job from the queue
+                            LOG.error( "Unable to invoke dead event on job", t );
+                        }
+
+                        return null;
+                    }
 
-                LOG.debug( "Starting the job with job id {}", execution.getJobId() );
-                runCounter.inc();
+                    jobAccessor.save( execution );
 
-                execution.start( maxFailCount );
+                    // TODO wrap and throw specifically typed exception for onFailure,
+                    // needs jobId
 
+                    LOG.info( "Starting job {} with execution data {}", job, execution );
 
-                //this job is dead, treat it as such
-                if ( execution.getStatus() == Status.DEAD ) {
+                    job.execute( execution );
 
-                    try {
-                        job.dead( execution );
-                        jobAccessor.save( execution );
-                    }
-                    catch ( Exception t ) {
-                        //we purposefully swallow all exceptions here, we don't want it to effect the outcome
-                        //of finally popping this job from the queue
-                        LOG.error( "Unable to invoke dead event on job", t );
+                    if ( currentListener != null ) {
+                        currentListener.onSubmit( execution );
                     }
 
                     return null;
                 }
+            }, keepAlive );
+        }
+        catch ( RejectedExecutionException e ) {
+            LOG.warn( "Scheduler is shutting down, leaving job {} on the queue", execution.getJobId() );
+            return false;
+        }
 
-                jobAccessor.save( execution );
-
-                // TODO wrap and throw specifically typed exception for onFailure,
-                // needs jobId
-
-                LOG.info( "Starting job {} with execution data {}", job, execution );
-
-                job.execute( execution );
-
-                if ( currentListener != null ) {
-                    currentListener.onSubmit( execution );
-                }
+        if ( future == null ) {
+            deferFullPool( jobDescriptor, execution, poolName );
+            return false;
+        }
 
-                return null;
-            }
-        } );
+        final Timer.Context timer = jobTimer.time();
 
         Futures.addCallback( future, new FutureCallback<Void>() {
             @Override
             public void onSuccess( Void param ) {
 
-                /**
-                 * Release semaphore first in case there are other problems with communicating with Cassandra
-                 */
-
                 LOG.debug( "Job succeeded with the job id {}", execution.getJobId() );
-                capacitySemaphore.release();
                 timer.stop();
                 runCounter.dec();
                 successCounter.inc();
@@ -258,11 +326,7 @@ public class JobSchedulerService extends AbstractScheduledService {
             @Override
             public void onFailure( Throwable throwable ) {
 
-                /**
-                 * Release semaphore first in case there are other problems with communicating with Cassandra
-                 */
                 LOG.error( "Job failed with the job id {}", execution.getJobId() );
-                capacitySemaphore.release();
                 timer.stop();
                 runCounter.dec();
                 failCounter.inc();
@@ -282,6 +346,26 @@ public class JobSchedulerService extends AbstractScheduledService {
                 }
             }
         } );
+
+        return true;
+    }
+
+
+    /**
+     * Put a job whose pool is full back on the queue by shortening its transaction, so it is read again after the
+     * full pool delay instead of the whole job timeout
+     */
+    private void deferFullPool( JobDescriptor jobDescriptor, JobExecutionImpl execution, String poolName ) {
+        LOG.debug( "Pool {} is full, retrying job {} in {} ms",
+                new Object[] { poolName, execution.getJobId(), fullPoolDelay } );
+
+        try {
+            jobDescriptor.getRuntime().heartbeat( execution, fullPoolDelay );
+        }
+        catch ( RuntimeException e ) {
+            // the job stays on the queue and is read again once its transaction times out
+            LOG.warn( "Unable to defer job {} of full pool {}", new Object[] { execution.getJobId(), poolName, e } );
+        }
     }
 
 
@@ -298,6 +382,42 @@ public class JobSchedulerService extends AbstractScheduledService {
     }
 
 
+    /**
+     * @param pushDispatch true to start jobs when the timing wheel says they are due instead of polling the queue every
+     * interval. Requires a timing wheel
+     */
+    public void setPushDispatch( boolean pushDispatch ) {
+        this.pushDispatch = pushDispatch;
+    }
+
+
+    public boolean getPushDispatch() {
+        return pushDispatch;
+    }
+
+
+    /**
+     * @param milliseconds in push dispatch mode, how often to read the queue even if no jobs are due locally. This
+     * picks up jobs scheduled by other nodes and jobs whose transaction timed out
+     */
+    public void setPollInterval( long milliseconds ) {
+        this.pollInterval = milliseconds;
+    }
+
+
+    public long getPollInterval() {
+        return pollInterval;
+    }
+
+
+    /**
+     * @param timingWheel the wheel the scheduler service records job fire times in
+     */
+    public void setTimingWheel( JobTimingWheel timingWheel ) {
+        this.timingWheel = timingWheel;
+    }
+
+
     /**
      * @param listeners the listeners to set
      */
@@ -311,6 +431,42 @@ public class JobSchedulerService extends AbstractScheduledService {
     }
 
 
+    /**
+     * @param pools the worker pools to run jobs in. Jobs are routed to pools by {@link JobFactory#poolFor}. When empty,
+     * all jobs run in a single default pool of workerSize workers
+     */
+    public void setPools( List<JobPool> pools ) {
+        this.pools = pools;
+    }
+
+
+    public List<JobPool> getPools() {
+        return pools;
+    }
+
+
+    /**
+     * @param milliseconds how often to renew the queue transaction of jobs waiting for a worker in their pool. Must be
+     * below the scheduler job timeout
+     */
+    public void setQueuedHeartbeatInterval( long milliseconds ) {
+        this.queuedHeartbeatInterval = milliseconds;
+    }
+
+
+    /**
+     * @param milliseconds how long a job read for a pool that has no room is left on the queue before it's read again
+     */
+    public void setFullPoolDelay( long milliseconds ) {
+        this.fullPoolDelay = milliseconds;
+    }
+
+
+    public long getFullPoolDelay() {
+        return fullPoolDelay;
+    }
+
+
     /**
      * @param jobAccessor the jobAccessor to set
      */
@@ -339,6 +495,7 @@ public class JobSchedulerService extends AbstractScheduledService {
      * Set the metrics factory
      */
     public void setMetricsFactory( MetricsFactory metricsFactory ) {
+        this.metricsFactory = metricsFactory;
         jobTimer = metricsFactory.getTimer( JobSchedulerService.class, "job_execution_timer" );
         runCounter = metricsFactory.getCounter( JobSchedulerService.class, "running_workers" );
         successCounter = metricsFactory.getCounter( JobSchedulerService.class, "successful_jobs" );
@@ -353,11 +510,16 @@ public class JobSchedulerService extends AbstractScheduledService {
      */
     @Override
     protected void startUp() throws Exception {
-        service = MoreExecutors
-                .listeningDecorator( Executors.newScheduledThreadPool( workerSize, JobThreadFactory.INSTANCE ) );
-        capacitySemaphore = new Semaphore( workerSize );
+        List<JobPool> poolConfigs = pools;
+
+        if ( poolConfigs == null || poolConfigs.isEmpty() ) {
+            poolConfigs = Collections.singletonList( new JobPool( JobPool.DEFAULT_POOL, workerSize, 0, 1 ) );
+        }
+
+        service = new JobPoolExecutor( poolConfigs, JobPool.DEFAULT_POOL, JobThreadFactory.INSTANCE,
+                queuedHeartbeatInterval, metricsFactory );
 
-        LOG.info( "Starting executor pool.  Capacity is {}", workerSize );
+        LOG.info( "Starting executor pools.  Capacity is {}", service.getCapacity() );
 
         super.startUp();
 
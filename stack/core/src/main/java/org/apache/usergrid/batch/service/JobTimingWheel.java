@@ -0,0 +1,239 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.batch.service;
+
+
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Hashed timing wheel of job fire times known to this node. The scheduler writes every job it puts on the job queue
+ * here, and the {@link JobSchedulerService} blocks in {@link #awaitDue(long)} until one of them is due instead of
+ * polling the queue on a fixed delay.
+ * <p/>
+ * Only fire times are tracked, not the jobs themselves, so the queue remains the source of truth. The wheel just
+ * decides when reading it is worthwhile. Jobs scheduled by other nodes are not seen here, so the dispatcher still polls
+ * the queue on a long safety interval.
+ */
+public class JobTimingWheel {
+
+    private static final Logger LOG = LoggerFactory.getLogger( JobTimingWheel.class );
+
+    public static final long DEFAULT_TICK_MILLIS = 10;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+    public static final int DEFAULT_MAX_PENDING = 100000;
+
+    private static final long NONE = Long.MAX_VALUE;
+
+    private final long tickMillis;
+    private final int mask;
+    private final int maxPending;
+
+    /** Deadline ticks per bucket, each bucket holds size[i] entries */
+    private final long[][] buckets;
+    private final int[] sizes;
+
+    private long currentTick;
+    private long earliestTick = NONE;
+    private int pending;
+    private int due;
+
+
+    public JobTimingWheel() {
+        this( DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE, DEFAULT_MAX_PENDING );
+    }
+
+
+    /**
+     * @param tickMillis the resolution of the wheel in milliseconds
+     * @param wheelSize the number of buckets, rounded up to a power of 2
+     * @param maxPending the maximum number of fire times tracked. Beyond that new fire times are dropped and left to
+     * the safety poll
+     */
+    public JobTimingWheel( long tickMillis, int wheelSize, int maxPending ) {
+        if ( tickMillis < 1 ) {
+            throw new IllegalArgumentException( "tickMillis must be at least 1" );
+        }
+        if ( wheelSize < 1 ) {
+            throw new IllegalArgumentException( "wheelSize must be at least 1" );
+        }
+
+        int size = Integer.highestOneBit( wheelSize );
+        if ( size < wheelSize ) {
+            size <<= 1;
+        }
+
+        this.tickMillis = tickMillis;
+        this.mask = size - 1;
+        this.maxPending = maxPending;
+        this.buckets = new long[size][];
+        this.sizes = new int[size];
+        this.currentTick = System.currentTimeMillis() / tickMillis;
+    }
+
+
+    /** Record that a job will become available on the queue at the given time */
+    public synchronized void schedule( long fireTime ) {
+
+        // round up so we never wake before the message is visible on the queue
+        long deadline = ( fireTime + tickMillis - 1 ) / tickMillis;
+
+        if ( deadline <= currentTick ) {
+            due++;
+            notifyAll();
+            return;
+        }
+
+        if ( pending >= maxPending ) {
+            LOG.warn( "Timing wheel is full with {} pending jobs, leaving job firing at {} to the safety poll", pending,
+                    fireTime );
+            return;
+        }
+
+        int index = ( int ) ( deadline & mask );
+        long[] bucket = buckets[index];
+
+        if ( bucket == null ) {
+            bucket = new long[4];
+            buckets[index] = bucket;
+        }
+        else if ( sizes[index] == bucket.length ) {
+            bucket = Arrays.copyOf( bucket, bucket.length * 2 );
+            buckets[index] = bucket;
+        }
+
+        bucket[sizes[index]++] = deadline;
+        pending++;
+
+        if ( deadline < earliestTick ) {
+            earliestTick = deadline;
+            notifyAll();
+        }
+    }
+
+
+    /**
+     * Wait until at least one scheduled job is due, or the wait time elapses.
+     *
+     * @param maxWaitMillis the longest time to wait. 0 checks without waiting
+     *
+     * @return true if jobs became due since the last call. The due jobs are cleared from the wheel
+     */
+    public synchronized boolean awaitDue( long maxWaitMillis ) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + maxWaitMillis;
+
+        while ( true ) {
+            long now = System.currentTimeMillis();
+
+            advance( now / tickMillis );
+
+            if ( due > 0 ) {
+                due = 0;
+                return true;
+            }
+
+            long remaining = deadline - now;
+
+            if ( remaining <= 0 ) {
+                return false;
+            }
+
+            long wait = remaining;
+
+            if ( earliestTick != NONE ) {
+                wait = Math.min( wait, Math.max( 1, earliestTick * tickMillis - now ) );
+            }
+
+            wait( wait );
+        }
+    }
+
+
+    /** The number of fire times that are tracked and not yet due */
+    public synchronized int getPending() {
+        return pending;
+    }
+
+
+    /** Move every entry with a deadline up to the given tick into the due count */
+    private void advance( long nowTick ) {
+        if ( nowTick <= currentTick ) {
+            return;
+        }
+
+        if ( pending > 0 && earliestTick <= nowTick ) {
+
+            // past a full turn every bucket may hold expired entries
+            if ( nowTick - currentTick >= buckets.length ) {
+                for ( int i = 0; i < buckets.length; i++ ) {
+                    expire( i, nowTick );
+                }
+            }
+            else {
+                for ( long tick = currentTick + 1; tick <= nowTick; tick++ ) {
+                    expire( ( int ) ( tick & mask ), nowTick );
+                }
+            }
+
+            earliestTick = findEarliest();
+        }
+
+        currentTick = nowTick;
+    }
+
+
+    private void expire( int index, long nowTick ) {
+        long[] bucket = buckets[index];
+        int size = sizes[index];
+        int kept = 0;
+
+        for ( int i = 0; i < size; i++ ) {
+            if ( bucket[i] <= nowTick ) {
+                due++;
+                pending--;
+            }
+            else {
+                bucket[kept++] = bucket[i];
+            }
+        }
+
+        sizes[index] = kept;
+    }
+
+
+    private long findEarliest() {
+        long earliest = NONE;
+
+        if ( pending == 0 ) {
+            return earliest;
+        }
+
+        for ( int i = 0; i < buckets.length; i++ ) {
+            long[] bucket = buckets[i];
+            for ( int j = 0; j < sizes[i]; j++ ) {
+                if ( bucket[j] < earliest ) {
+                    earliest = bucket[j];
+                }
+            }
+        }
+
+        return earliest;
+    }
+}
@@ -85,6 +85,8 @@ public class SchedulerServiceImpl implements SchedulerService, JobAccessor, JobR
     private QueueManager qm;
     private EntityManager em;
 
+    private JobTimingWheel timingWheel;
+
     /** Timeout for how long to set the transaction timeout from the queue. Default is 30000 */
     private long jobTimeout = 30000;
 
@@ -137,6 +139,10 @@ public class SchedulerServiceImpl implements SchedulerService, JobAccessor, JobR
         message.setProperty( STATS_ID, jobStatId );
 
         qm.postToQueue( jobQueueName, message );
+
+        if ( timingWheel != null ) {
+            timingWheel.schedule( fireTime );
+        }
     }
 
 
@@ -427,4 +433,10 @@ public class SchedulerServiceImpl implements SchedulerService, JobAccessor, JobR
     public void setJobTimeout( long timeout ) {
         this.jobTimeout = timeout;
     }
+
+
+    /** @param timingWheel the wheel to record the fire time of every queued job in */
+    public void setTimingWheel( JobTimingWheel timingWheel ) {
+        this.timingWheel = timingWheel;
+    }
 }
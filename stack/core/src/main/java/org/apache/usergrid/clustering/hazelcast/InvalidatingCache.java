@@ -0,0 +1,192 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.clustering.hazelcast;
+
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.ITopic;
+import com.hazelcast.core.MessageListener;
+
+
+/**
+ * A local cache for metadata that is read on most requests but rarely changes, such as application names. Entries
+ * expire after a time to live, and are invalidated explicitly by the code that changes them. When clustering is
+ * enabled, invalidations are published on a Hazelcast topic so every node drops the entry, not only the node that
+ * made the change. Without clustering, other nodes see the change once their entry expires.
+ * <p/>
+ * Missing values are not cached, so something created on one node is found right away on the others. A value whose
+ * load overlapped an invalidation isn't cached either, since it may have been read before the change.
+ */
+public class InvalidatingCache<V> implements MessageListener<String> {
+
+    private static final Logger logger = LoggerFactory.getLogger( InvalidatingCache.class );
+
+    public static final String TOPIC = "usergrid-cache-invalidations";
+
+    /** Separates the cache name from the key in invalidation messages */
+    private static final char SEPARATOR = '|';
+
+    private final String name;
+    private final Cache<String, V> cache;
+
+    private boolean clustered = false;
+
+    private ITopic<String> topic;
+
+    /** Bumped by every invalidation, guarded by this */
+    private long generation;
+
+
+    /**
+     * @param name The name of the cache, unique within the cluster
+     * @param maximumSize The most entries to keep
+     * @param timeToLive How long to keep an entry after it's loaded, in milliseconds
+     */
+    public InvalidatingCache( String name, long maximumSize, long timeToLive ) {
+        this.name = name;
+        this.cache = CacheBuilder.newBuilder().maximumSize( maximumSize )
+                                 .expireAfterWrite( timeToLive, TimeUnit.MILLISECONDS ).build();
+    }
+
+
+    /** Subscribe to invalidations from other nodes when clustering is enabled */
+    public void init() {
+        if ( !clustered ) {
+            return;
+        }
+
+        topic = Hazelcast.getTopic( TOPIC );
+        topic.addMessageListener( this );
+
+        logger.info( "Listening for invalidations of cache {} on topic {}", name, TOPIC );
+    }
+
+
+    public void destroy() {
+        if ( topic != null ) {
+            topic.removeMessageListener( this );
+        }
+    }
+
+
+    /**
+     * Get the value for the key, loading it if it isn't cached
+     *
+     * @param loader Loads the value, may return null if there is none
+     */
+    public V get( String key, Callable<V> loader ) throws Exception {
+        V value = cache.getIfPresent( key );
+
+        if ( value != null ) {
+            return value;
+        }
+
+        long loadedAt = getGeneration();
+
+        value = loader.call();
+
+        if ( value != null ) {
+            putIfCurrent( key, value, loadedAt );
+        }
+
+        return value;
+    }
+
+
+    private synchronized long getGeneration() {
+        return generation;
+    }
+
+
+    /** Cache a loaded value, unless something was invalidated since the load started */
+    private synchronized void putIfCurrent( String key, V value, long loadedAt ) {
+        if ( generation == loadedAt ) {
+            cache.put( key, value );
+        }
+    }
+
+
+    private synchronized void invalidateLocal( String key ) {
+        generation++;
+        cache.invalidate( key );
+    }
+
+
+    /** Drop the key on this node and, if clustered, all other nodes */
+    public void invalidate( String key ) {
+        invalidateLocal( key );
+
+        if ( topic != null ) {
+            try {
+                topic.publish( name + SEPARATOR + key );
+            }
+            catch ( RuntimeException e ) {
+                // other nodes will still drop the entry when it expires
+                logger.warn( "Unable to publish invalidation of {} in cache {}", new Object[] { key, name, e } );
+            }
+        }
+    }
+
+
+    /** Drop every entry on this node */
+    public synchronized void invalidateAll() {
+        generation++;
+        cache.invalidateAll();
+    }
+
+
+    @Override
+    public void onMessage( String message ) {
+        int separator = message.indexOf( SEPARATOR );
+
+        if ( separator < 0 || !name.equals( message.substring( 0, separator ) ) ) {
+            return;
+        }
+
+        invalidateLocal( message.substring( separator + 1 ) );
+    }
+
+
+    /** @return the number of cached entries */
+    public long size() {
+        return cache.size();
+    }
+
+
+    public String getName() {
+        return name;
+    }
+
+
+    /** @return true if invalidations are published to other nodes */
+    public boolean isClustered() {
+        return clustered;
+    }
+
+
+    public void setClustered( boolean clustered ) {
+        this.clustered = clustered;
+    }
+}
@@ -49,4 +49,19 @@ public class LockHelper {
 
         return manager.createLock( applicationId, buildPath( Hex.encodeHexString( bytes( value ) ), path ) );
     }
+
+
+    /** The lock held while the composite index entries of an entity are read and written */
+    public static Lock getCompositeIndexLock( LockManager manager, UUID applicationId, UUID entityId )
+            throws UGLockException {
+        return manager.createLock( applicationId, "composite_indexes", entityId.toString() );
+    }
+
+
+    /** The lock held while the composite index backfills of a collection are scheduled */
+    public static Lock getCompositeIndexBackfillLock( LockManager manager, UUID applicationId, UUID ownerId,
+                                                      String collectionName ) throws UGLockException {
+        return manager.createLock( applicationId, "composite_backfill", ownerId.toString(),
+                collectionName.toLowerCase() );
+    }
 }
@@ -24,6 +24,7 @@ import org.slf4j.LoggerFactory;
 import org.apache.usergrid.locking.LockManager;
 import org.apache.usergrid.mq.QueueManager;
 import org.apache.usergrid.mq.QueueManagerFactory;
+import org.apache.usergrid.mq.cassandra.io.ConsumerLeaseManager;
 import org.apache.usergrid.persistence.cassandra.CassandraService;
 import org.apache.usergrid.persistence.cassandra.CounterUtils;
 
@@ -40,6 +41,8 @@ public class QueueManagerFactoryImpl implements QueueManagerFactory {
     private CounterUtils counterUtils;
     private LockManager lockManager;
     private int lockTimeout;
+    private ConsumerLeaseManager leaseManager;
+    private QueuePostNotifier postNotifier;
 
     /**
      * Must be constructed with a CassandraClientPool.
@@ -55,6 +58,18 @@ public class QueueManagerFactoryImpl implements QueueManagerFactory {
     }
 
 
+    /** Optional, when enabled transactional queue reads take consumer leases instead of locks */
+    public void setLeaseManager( ConsumerLeaseManager leaseManager ) {
+        this.leaseManager = leaseManager;
+    }
+
+
+    /** Optional, lets queue reads wait for new messages */
+    public void setPostNotifier( QueuePostNotifier postNotifier ) {
+        this.postNotifier = postNotifier;
+    }
+
+
     @Override
     public String getImpementationDescription() throws Exception {
         return IMPLEMENTATION_DESCRIPTION;
@@ -64,7 +79,8 @@ public class QueueManagerFactoryImpl implements QueueManagerFactory {
     @Override
     public QueueManager getQueueManager( UUID applicationId ) {
         QueueManagerImpl qm = new QueueManagerImpl();
-        qm.init( cass, counterUtils, lockManager, applicationId, lockTimeout );
+        qm.init( cass, counterUtils, lockManager, leaseManager, applicationId, lockTimeout );
+        qm.setPostNotifier( postNotifier );
         return qm;
         //return applicationContext.getAutowireCapableBeanFactory()
         //		.createBean(QueueManagerImpl.class)
@@ -28,6 +28,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,6 +46,7 @@ import org.apache.usergrid.mq.QueueResults;
 import org.apache.usergrid.mq.QueueSet;
 import org.apache.usergrid.mq.QueueSet.QueueInfo;
 import org.apache.usergrid.mq.cassandra.QueueIndexUpdate.QueueIndexEntry;
+import org.apache.usergrid.mq.cassandra.io.ConsumerLeaseManager;
 import org.apache.usergrid.mq.cassandra.io.ConsumerTransaction;
 import org.apache.usergrid.mq.cassandra.io.EndSearch;
 import org.apache.usergrid.mq.cassandra.io.FilterSearch;
@@ -60,6 +62,7 @@ import org.apache.usergrid.persistence.cassandra.CassandraPersistenceUtils;
 import org.apache.usergrid.persistence.cassandra.CassandraService;
 import org.apache.usergrid.persistence.cassandra.CounterUtils;
 import org.apache.usergrid.persistence.cassandra.CounterUtils.AggregateCounterSelection;
+import org.apache.usergrid.persistence.exceptions.QueueException;
 import org.apache.usergrid.persistence.exceptions.TransactionNotFoundException;
 import org.apache.usergrid.persistence.hector.CountingMutator;
 import org.apache.usergrid.utils.UUIDUtils;
@@ -147,6 +150,8 @@ public class QueueManagerImpl implements QueueManager {
     private CassandraService cass;
     private CounterUtils counterUtils;
     private LockManager lockManager;
+    private ConsumerLeaseManager leaseManager;
+    private QueuePostNotifier postNotifier;
     private int lockTimeout;
 
 
@@ -166,6 +171,19 @@ public class QueueManagerImpl implements QueueManager {
     }
 
 
+    public QueueManagerImpl init( CassandraService cass, CounterUtils counterUtils, LockManager lockManager,
+                                  ConsumerLeaseManager leaseManager, UUID applicationId, int lockTimeout ) {
+        this.leaseManager = leaseManager;
+        return init( cass, counterUtils, lockManager, applicationId, lockTimeout );
+    }
+
+
+    /** Optional, lets readers wait for posts instead of returning empty results */
+    public void setPostNotifier( QueuePostNotifier postNotifier ) {
+        this.postNotifier = postNotifier;
+    }
+
+
     @Override
     public Message getMessage( UUID messageId ) {
         SliceQuery<UUID, String, ByteBuffer> q =
@@ -241,6 +259,8 @@ public class QueueManagerImpl implements QueueManager {
 
         batchExecute( batch, RETRY_COUNT );
 
+        notifyPosted( queuePath );
+
         String firstSubscriberQueuePath = null;
         while ( true ) {
 
@@ -258,6 +278,10 @@ public class QueueManagerImpl implements QueueManager {
             }
             batchExecute( batch, RETRY_COUNT );
 
+            for ( QueueInfo q : subscribers.getQueues() ) {
+                notifyPosted( q.getPath() );
+            }
+
             if ( !subscribers.hasMore() ) {
                 break;
             }
@@ -267,6 +291,14 @@ public class QueueManagerImpl implements QueueManager {
     }
 
 
+    /** Wake readers waiting for messages on the queue */
+    private void notifyPosted( String queuePath ) {
+        if ( postNotifier != null ) {
+            postNotifier.posted( applicationId, getQueueId( normalizeQueuePath( queuePath ) ) );
+        }
+    }
+
+
     @Override
     public List<Message> postToQueue( String queuePath, List<Message> messages ) {
 
@@ -386,7 +418,7 @@ public class QueueManagerImpl implements QueueManager {
 
         else if ( query.getPosition() == LAST || query.getPosition() == CONSUMER ) {
             if ( query.getTimeout() > 0 ) {
-                search = new ConsumerTransaction( applicationId, ko, lockManager, cass, lockTimeout );
+                search = new ConsumerTransaction( applicationId, ko, lockManager, leaseManager, cass, lockTimeout );
             }
             else {
                 search = new NoTransactionSearch( ko );
@@ -403,10 +435,64 @@ public class QueueManagerImpl implements QueueManager {
             throw new IllegalArgumentException( "You must specify a valid position or query" );
         }
 
+        if ( query.getWait() > 0 && postNotifier != null ) {
+            return waitForResults( search, queuePath, query );
+        }
+
         return search.getResults( queuePath, query );
     }
 
 
+    /**
+     * Read from the queue, and while there is nothing to read, park until a message is posted to the queue or the wait
+     * in the query runs out. Parked readers don't touch Cassandra, but they do hold the request thread, so the wait is
+     * capped by the notifier's max wait and readers beyond its parking limit return the empty result right away.
+     */
+    private QueueResults waitForResults( QueueSearch search, String queuePath, QueueQuery query ) {
+
+        UUID queueId = getQueueId( normalizeQueuePath( queuePath ) );
+
+        long deadline = System.currentTimeMillis() + Math.min( query.getWait(), postNotifier.getMaxWait() );
+
+        while ( true ) {
+
+            // register before reading, so a post after our read can't be missed
+            QueuePostNotifier.Waiter waiter = postNotifier.register( applicationId, queueId );
+
+            try {
+                QueueResults results = search.getResults( queuePath, query );
+
+                long remaining = deadline - System.currentTimeMillis();
+
+                if ( !results.getMessages().isEmpty() || remaining <= 0 ) {
+                    return results;
+                }
+
+                if ( !postNotifier.tryPark() ) {
+                    logger.debug( "Too many readers waiting, returning no messages for queue {}", queuePath );
+                    return results;
+                }
+
+                logger.debug( "Waiting up to {} ms for messages on queue {}", remaining, queuePath );
+
+                try {
+                    waiter.await( remaining, TimeUnit.MILLISECONDS );
+                }
+                finally {
+                    postNotifier.unpark();
+                }
+            }
+            catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new QueueException( "Interrupted waiting for messages on queue " + queuePath, e );
+            }
+            finally {
+                postNotifier.unregister( waiter );
+            }
+        }
+    }
+
+
     public void batchSubscribeToQueue( Mutator<ByteBuffer> batch, String publisherQueuePath, UUID publisherQueueId,
                                        String subscriberQueuePath, UUID subscriberQueueId, long timestamp ) {
 
@@ -1311,7 +1397,7 @@ public class QueueManagerImpl implements QueueManager {
     public UUID renewTransaction( String queuePath, UUID transactionId, QueueQuery query )
             throws TransactionNotFoundException {
         Keyspace ko = cass.getApplicationKeyspace( applicationId );
-        return new ConsumerTransaction( applicationId, ko, lockManager, cass, lockTimeout )
+        return new ConsumerTransaction( applicationId, ko, lockManager, leaseManager, cass, lockTimeout )
                 .renewTransaction( queuePath, transactionId, query );
     }
 
@@ -1331,7 +1417,7 @@ public class QueueManagerImpl implements QueueManager {
     @Override
     public void commitTransaction( String queuePath, UUID transactionId, QueueQuery query ) {
         Keyspace ko = cass.getApplicationKeyspace( applicationId );
-        new ConsumerTransaction( applicationId, ko, lockManager, cass, lockTimeout )
+        new ConsumerTransaction( applicationId, ko, lockManager, leaseManager, cass, lockTimeout )
                 .deleteTransaction( queuePath, transactionId, query );
     }
 
@@ -1347,7 +1433,7 @@ public class QueueManagerImpl implements QueueManager {
 
         Keyspace ko = cass.getApplicationKeyspace( applicationId );
 
-        return new ConsumerTransaction( applicationId, ko, lockManager, cass , lockTimeout)
+        return new ConsumerTransaction( applicationId, ko, lockManager, leaseManager, cass, lockTimeout )
                 .hasOutstandingTransactions( queueId, consumerId );
     }
 
@@ -0,0 +1,241 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.mq.cassandra;
+
+
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.hazelcast.core.Hazelcast;
+import com.hazelcast.core.ITopic;
+import com.hazelcast.core.MessageListener;
+
+
+/**
+ * Wakes up readers waiting for messages on a queue when a message is posted to it. Posts on this node notify waiters
+ * directly. When clustering is enabled, posts are also published on a Hazelcast topic so readers parked on other nodes
+ * wake up too.
+ * <p/>
+ * A waiter must be registered before the read that found the queue empty, otherwise a post between the read and the
+ * registration would be missed.
+ * <p/>
+ * A parked reader holds its request thread for the whole wait, so waits are capped at a few seconds and only a limited
+ * number of readers may be parked at once, see {@link #tryPark()}. Readers beyond that limit get an empty result right
+ * away and poll again.
+ */
+public class QueuePostNotifier implements MessageListener<String> {
+
+    private static final Logger logger = LoggerFactory.getLogger( QueuePostNotifier.class );
+
+    public static final String TOPIC = "usergrid-queue-posts";
+
+    private final ConcurrentMap<String, Set<Waiter>> waiters = new ConcurrentHashMap<String, Set<Waiter>>();
+
+    private boolean clustered = false;
+    private long maxWait = 5000;
+    private int maxParked = 50;
+
+    private final AtomicInteger parked = new AtomicInteger();
+
+    private ITopic<String> topic;
+
+
+    /** Subscribe to posts from other nodes when clustering is enabled */
+    public void init() {
+        if ( !clustered ) {
+            return;
+        }
+
+        topic = Hazelcast.getTopic( TOPIC );
+        topic.addMessageListener( this );
+
+        logger.info( "Listening for queue posts on topic {}", TOPIC );
+    }
+
+
+    public void destroy() {
+        if ( topic != null ) {
+            topic.removeMessageListener( this );
+        }
+    }
+
+
+    /** Register interest in the next post to the queue. The returned waiter must be passed to {@link #unregister} */
+    public synchronized Waiter register( UUID applicationId, UUID queueId ) {
+        String key = key( applicationId, queueId );
+        Waiter waiter = new Waiter( key );
+
+        Set<Waiter> queueWaiters = waiters.get( key );
+
+        if ( queueWaiters == null ) {
+            queueWaiters = new CopyOnWriteArraySet<Waiter>();
+            waiters.put( key, queueWaiters );
+        }
+
+        queueWaiters.add( waiter );
+
+        return waiter;
+    }
+
+
+    public synchronized void unregister( Waiter waiter ) {
+        Set<Waiter> queueWaiters = waiters.get( waiter.key );
+
+        if ( queueWaiters == null ) {
+            return;
+        }
+
+        queueWaiters.remove( waiter );
+
+        if ( queueWaiters.isEmpty() ) {
+            waiters.remove( waiter.key );
+        }
+    }
+
+
+    /** Notify readers on this node and, if clustered, all other nodes that a message was posted to the queue */
+    public void posted( UUID applicationId, UUID queueId ) {
+        String key = key( applicationId, queueId );
+
+        wake( key );
+
+        if ( topic != null ) {
+            try {
+                topic.publish( key );
+            }
+            catch ( RuntimeException e ) {
+                // readers on other nodes will still see the message when their wait times out
+                logger.warn( "Unable to publish post to queue {}", queueId, e );
+            }
+        }
+    }
+
+
+    /**
+     * Claim one of the slots for readers waiting for messages. Every successful call must be followed by {@link
+     * #unpark()}
+     *
+     * @return false if the maximum number of readers is already parked, in which case the reader must not wait
+     */
+    public boolean tryPark() {
+        while ( true ) {
+            int current = parked.get();
+
+            if ( current >= maxParked ) {
+                return false;
+            }
+
+            if ( parked.compareAndSet( current, current + 1 ) ) {
+                return true;
+            }
+        }
+    }
+
+
+    public void unpark() {
+        parked.decrementAndGet();
+    }
+
+
+    @Override
+    public void onMessage( String key ) {
+        wake( key );
+    }
+
+
+    private void wake( String key ) {
+        Set<Waiter> queueWaiters = waiters.get( key );
+
+        if ( queueWaiters == null ) {
+            return;
+        }
+
+        for ( Waiter waiter : queueWaiters ) {
+            waiter.latch.countDown();
+        }
+    }
+
+
+    private static String key( UUID applicationId, UUID queueId ) {
+        return applicationId + ":" + queueId;
+    }
+
+
+    /** @return true if posts are published to other nodes */
+    public boolean isClustered() {
+        return clustered;
+    }
+
+
+    public void setClustered( boolean clustered ) {
+        this.clustered = clustered;
+    }
+
+
+    /** @return the longest a reader may wait for messages, in milliseconds */
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+
+    public void setMaxWait( long maxWait ) {
+        this.maxWait = maxWait;
+    }
+
+
+    /** @return the most readers that may wait for messages at once, each of them holds a request thread */
+    public int getMaxParked() {
+        return maxParked;
+    }
+
+
+    public void setMaxParked( int maxParked ) {
+        this.maxParked = maxParked;
+    }
+
+
+    /** A reader waiting for the next post to a queue */
+    public static class Waiter {
+
+        private final String key;
+        private final CountDownLatch latch = new CountDownLatch( 1 );
+
+
+        private Waiter( String key ) {
+            this.key = key;
+        }
+
+
+        /**
+         * Wait for a post to the queue
+         *
+         * @return true if a message was posted, false if the wait timed out
+         */
+        public boolean await( long timeout, TimeUnit unit ) throws InterruptedException {
+            return latch.await( timeout, unit );
+        }
+    }
+}
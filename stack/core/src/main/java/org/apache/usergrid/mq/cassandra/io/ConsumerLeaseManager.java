@@ -0,0 +1,394 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.mq.cassandra.io;
+
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.apache.usergrid.persistence.cassandra.CassandraService;
+import org.apache.usergrid.persistence.exceptions.QueueException;
+import org.apache.usergrid.persistence.hector.CountingMutator;
+
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.mutation.Mutator;
+
+import static me.prettyprint.hector.api.factory.HFactory.createColumn;
+import static me.prettyprint.hector.api.factory.HFactory.createColumnQuery;
+import static org.apache.usergrid.mq.cassandra.QueueManagerImpl.QUEUE_SHARD_INTERVAL;
+import static org.apache.usergrid.mq.cassandra.QueuesCF.QUEUE_PROPERTIES;
+import static org.apache.usergrid.persistence.cassandra.Serializers.*;
+import static org.apache.usergrid.utils.NumberUtils.roundLong;
+
+
+/**
+ * Hands out leases on queue consumers so transactional reads don't need a distributed lock per read.
+ * <p/>
+ * A lease is a column with a TTL on the queue's property row naming the node that owns the consumer. Once this node
+ * owns a consumer, reads only serialize on a local lock and go to Cassandra again when the lease has to be renewed.
+ * A lease that isn't renewed expires by itself, so a consumer moves to another node after it has been idle here for
+ * the lease duration.
+ * <p/>
+ * Leases are also taken per queue time shard, see
+ * {@link org.apache.usergrid.mq.cassandra.QueueManagerImpl#QUEUE_SHARD_INTERVAL}, so a consumer that is never idle
+ * still gets handed to whichever node reads it first in the next shard. Nobody reads the consumer in the last half
+ * lease duration of a shard, the same margin renewals keep for clock drift, so the owner of the old shard's lease and
+ * the first owner of the new one can't read at the same time.
+ * <p/>
+ * Claiming a free lease is last write wins, so a node that claims one reads the column back after a poll interval and
+ * backs off if another node's claim won. Only claims landing further apart than that can both succeed, in which case
+ * the nodes may both read once before the loser sees the other's claim. Transactional reads are at least once, so
+ * this can redeliver a message but never loses one.
+ * <p/>
+ * Leases whose column has expired are dropped from the local map when leases are released, so idle consumers don't
+ * accumulate.
+ */
+public class ConsumerLeaseManager
+{
+
+    private static final Logger logger = LoggerFactory.getLogger( ConsumerLeaseManager.class );
+
+    private static final String LEASE_PREFIX = "consumer_lease_";
+
+    private final UUID ownerId = UUID.randomUUID();
+
+    private final ConcurrentMap<String, Lease> leases = new ConcurrentHashMap<String, Lease>();
+
+    /** When to next look for expired leases to drop */
+    private volatile long pruneAt;
+
+    private boolean enabled = false;
+
+    /** How long a lease is valid in Cassandra, in milliseconds */
+    private long leaseDuration = 30000;
+
+    /** How long to wait between checks when another node owns the lease, in milliseconds */
+    private long pollInterval = 100;
+
+
+    /**
+     * Take the lease on the consumer, blocking until it's ours or the timeout elapses. The returned lease must be
+     * released with {@link #release(Lease)}
+     *
+     * @param ko The keyspace of the queue
+     * @param cass The cassandra service, for write timestamps
+     * @param applicationId The application the queue belongs to
+     * @param queueId The queue id
+     * @param consumerId The consumer id
+     * @param timeout The maximum time to wait
+     * @param unit The unit of the timeout
+     */
+    public Lease acquire( Keyspace ko, CassandraService cass, UUID applicationId, UUID queueId, UUID consumerId,
+                          long timeout, TimeUnit unit )
+    {
+        final long deadline = System.currentTimeMillis() + unit.toMillis( timeout );
+
+        Lease lease;
+
+        try
+        {
+            while ( true )
+            {
+                lease = getLease( applicationId, queueId, consumerId );
+
+                long wait = Math.max( 0, deadline - System.currentTimeMillis() );
+
+                if ( !lease.local.tryLock( wait, TimeUnit.MILLISECONDS ) )
+                {
+                    throw new QueueException(
+                            "Unable to obtain a lease on consumer '" + consumerId + "' after '" + timeout + "' "
+                                    + unit );
+                }
+
+                // pruned while we waited for it, take the one now in the map
+                if ( !lease.pruned )
+                {
+                    break;
+                }
+
+                lease.local.unlock();
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new QueueException( "Interrupted waiting for a lease on consumer '" + consumerId + "'", e );
+        }
+
+        boolean owned = false;
+
+        try
+        {
+            while ( true )
+            {
+                long now = System.currentTimeMillis();
+
+                long shard = roundLong( now, QUEUE_SHARD_INTERVAL );
+                long handover = shard + QUEUE_SHARD_INTERVAL - leaseDuration / 2;
+
+                // the lease moves to a new column in the next shard, wait it out so leases can't overlap
+                if ( now >= handover )
+                {
+                    long next = shard + QUEUE_SHARD_INTERVAL;
+
+                    if ( next > deadline )
+                    {
+                        throw new QueueException( "Consumer '" + consumerId + "' on queue '" + queueId
+                                + "' is changing lease shards, try again later" );
+                    }
+
+                    Thread.sleep( next - now );
+                    continue;
+                }
+
+                // still inside our lease, no need to go to cassandra
+                if ( now < lease.renewAt )
+                {
+                    owned = true;
+                    return lease;
+                }
+
+                String column = lease.prefix + shard;
+
+                UUID owner = readOwner( ko, queueId, column );
+
+                if ( owner == null || ownerId.equals( owner ) )
+                {
+                    writeOwner( ko, cass, queueId, column );
+
+                    if ( owner == null && !confirmOwner( ko, queueId, column ) )
+                    {
+                        logger.debug( "Lost the claim on consumer '{}' on queue '{}' to another node", consumerId,
+                                queueId );
+                    }
+                    else
+                    {
+                        // renew well before the column expires, so clock drift between nodes can't overlap leases
+                        lease.renewAt = Math.min( now + leaseDuration / 2, handover );
+                        lease.expiresAt = now + leaseDuration;
+                        owned = true;
+
+                        logger.debug( "Leased consumer '{}' on queue '{}'", consumerId, queueId );
+
+                        return lease;
+                    }
+                }
+
+                if ( now + pollInterval > deadline )
+                {
+                    throw new QueueException( "Consumer '" + consumerId + "' on queue '" + queueId
+                            + "' is leased by another node, try again later" );
+                }
+
+                Thread.sleep( pollInterval );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new QueueException( "Interrupted waiting for a lease on consumer '" + consumerId + "'", e );
+        }
+        finally
+        {
+            if ( !owned )
+            {
+                lease.local.unlock();
+            }
+        }
+    }
+
+
+    /** Release a lease taken with acquire. The lease stays ours in Cassandra until it expires */
+    public void release( Lease lease )
+    {
+        lease.local.unlock();
+
+        prune();
+    }
+
+
+    /** Drop leases whose column has expired and that nobody holds, at most once per lease duration */
+    private void prune()
+    {
+        long now = System.currentTimeMillis();
+
+        if ( now < pruneAt )
+        {
+            return;
+        }
+
+        pruneAt = now + leaseDuration;
+
+        for ( Map.Entry<String, Lease> entry : leases.entrySet() )
+        {
+            Lease lease = entry.getValue();
+
+            if ( !lease.local.tryLock() )
+            {
+                continue;
+            }
+
+            try
+            {
+                if ( now >= lease.expiresAt )
+                {
+                    lease.pruned = true;
+                    leases.remove( entry.getKey(), lease );
+                }
+            }
+            finally
+            {
+                lease.local.unlock();
+            }
+        }
+    }
+
+
+    private Lease getLease( UUID applicationId, UUID queueId, UUID consumerId )
+    {
+        String prefix = LEASE_PREFIX + consumerId + "_";
+
+        // queue ids are derived from the path, so the same queue id exists in every application
+        String key = applicationId + ":" + queueId + ":" + prefix;
+
+        Lease lease = leases.get( key );
+
+        if ( lease == null )
+        {
+            lease = new Lease( prefix );
+            Lease existing = leases.putIfAbsent( key, lease );
+
+            if ( existing != null )
+            {
+                lease = existing;
+            }
+        }
+
+        return lease;
+    }
+
+
+    private UUID readOwner( Keyspace ko, UUID queueId, String column )
+    {
+        HColumn<String, UUID> result =
+                createColumnQuery( ko, ue, se, ue ).setKey( queueId ).setName( column )
+                        .setColumnFamily( QUEUE_PROPERTIES.getColumnFamily() ).execute().get();
+
+        return result == null ? null : result.getValue();
+    }
+
+
+    /**
+     * Read our claim on a free lease back once concurrent claims had time to land. Claims are last write wins, so if
+     * another node wrote after us the column now names that node and we back off
+     */
+    private boolean confirmOwner( Keyspace ko, UUID queueId, String column ) throws InterruptedException
+    {
+        Thread.sleep( pollInterval );
+
+        return ownerId.equals( readOwner( ko, queueId, column ) );
+    }
+
+
+    private void writeOwner( Keyspace ko, CassandraService cass, UUID queueId, String column )
+    {
+        int ttl = ( int ) Math.max( 1, TimeUnit.MILLISECONDS.toSeconds( leaseDuration ) );
+
+        HColumn<String, UUID> col = createColumn( column, ownerId, cass.createTimestamp(), se, ue );
+        col.setTtl( ttl );
+
+        Mutator<UUID> mutator = CountingMutator.createFlushingMutator( ko, ue );
+        mutator.addInsertion( queueId, QUEUE_PROPERTIES.getColumnFamily(), col );
+        mutator.execute();
+    }
+
+
+    /** @return true if transactional reads should use leases instead of the lock manager */
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+
+    public void setEnabled( boolean enabled )
+    {
+        this.enabled = enabled;
+    }
+
+
+    public long getLeaseDuration()
+    {
+        return leaseDuration;
+    }
+
+
+    public void setLeaseDuration( long leaseDuration )
+    {
+        if ( leaseDuration < 1000 )
+        {
+            throw new IllegalArgumentException( "leaseDuration must be at least 1000 milliseconds" );
+        }
+        if ( leaseDuration >= QUEUE_SHARD_INTERVAL )
+        {
+            throw new IllegalArgumentException( "leaseDuration must be shorter than the queue shard interval" );
+        }
+        this.leaseDuration = leaseDuration;
+    }
+
+
+    public long getPollInterval()
+    {
+        return pollInterval;
+    }
+
+
+    public void setPollInterval( long pollInterval )
+    {
+        this.pollInterval = pollInterval;
+    }
+
+
+    /** A lease on one consumer of a queue */
+    public static class Lease
+    {
+        /** The lease column name without the time shard */
+        private final String prefix;
+        private final ReentrantLock local = new ReentrantLock();
+
+        /** When we have to go back to cassandra to renew, guarded by the local lock */
+        private long renewAt;
+
+        /** When the column expires in cassandra, guarded by the local lock */
+        private long expiresAt;
+
+        /** Set when the lease was dropped from the map, guarded by the local lock */
+        private boolean pruned;
+
+
+        private Lease( String prefix )
+        {
+            this.prefix = prefix;
+        }
+    }
+}
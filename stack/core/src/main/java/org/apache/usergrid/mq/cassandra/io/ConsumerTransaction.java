@@ -19,7 +19,6 @@ package org.apache.usergrid.mq.cassandra.io;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
@@ -63,6 +62,7 @@ public class ConsumerTransaction extends NoTransactionSearch
     private static final Logger logger = LoggerFactory.getLogger( ConsumerTransaction.class );
     private static final int MAX_READ = 10000;
     private final LockManager lockManager;
+    private final ConsumerLeaseManager leaseManager;
     private final UUID applicationId;
     protected final CassandraService cass;
 
@@ -74,10 +74,21 @@ public class ConsumerTransaction extends NoTransactionSearch
      * @param ko
      */
     public ConsumerTransaction( UUID applicationId, Keyspace ko, LockManager lockManager, CassandraService cass, int lockTimeout )
+    {
+        this( applicationId, ko, lockManager, null, cass, lockTimeout );
+    }
+
+
+    /**
+     * @param leaseManager When enabled, reads take a lease on the consumer instead of a lock from the lock manager
+     */
+    public ConsumerTransaction( UUID applicationId, Keyspace ko, LockManager lockManager,
+                                ConsumerLeaseManager leaseManager, CassandraService cass, int lockTimeout )
     {
         super( ko );
         this.applicationId = applicationId;
         this.lockManager = lockManager;
+        this.leaseManager = leaseManager;
         this.cass = cass;
         this.lockTimeout = lockTimeout;
     }
@@ -194,7 +205,20 @@ public class ConsumerTransaction extends NoTransactionSearch
                     query.getLimit( DEFAULT_READ ), MAX_READ ) );
         }
 
-        QueueResults results = null;
+        if ( leaseManager != null && leaseManager.isEnabled() )
+        {
+            ConsumerLeaseManager.Lease lease =
+                    leaseManager.acquire( ko, cass, applicationId, queueId, consumerId, lockTimeout, TimeUnit.SECONDS );
+
+            try
+            {
+                return readTransactional( queuePath, queueId, consumerId, query );
+            }
+            finally
+            {
+                leaseManager.release( lease );
+            }
+        }
 
         Lock lock = lockManager.createLock( applicationId, queueId.toString(), consumerId.toString() );
 
@@ -206,106 +230,119 @@ public class ConsumerTransaction extends NoTransactionSearch
                 throw new QueueException( "Unable to obtain a lock on queue '" + queuePath + "' after '" + lockTimeout + "'seconds" );
             }
 
-            long startTime = System.currentTimeMillis();
-
-            UUID startTimeUUID = UUIDUtils.newTimeUUID( startTime, 0 );
-
-            QueueBounds bounds = getQueueBounds( queueId );
-
-            //queue has never been written to
-            if ( bounds == null )
+            return readTransactional( queuePath, queueId, consumerId, query );
+        }
+        catch ( UGLockException e )
+        {
+            logger.debug( "Unable to acquire lock", e );
+            throw new QueueException( "Unable to acquire lock", e );
+        }
+        finally
+        {
+            try
             {
-                return createResults( new ArrayList<Message>( 0 ), queuePath, queueId, consumerId );
+                lock.unlock();
+            }
+            catch ( UGLockException e )
+            {
+                logger.debug( "Unable to release lock", e );
+                throw new QueueException( "Unable to release lock", e );
             }
+        }
+    }
 
-            // with transactional reads, we can't read into the future, set the bounds
-            // to be now
-            bounds = new QueueBounds( bounds.getOldest(), startTimeUUID );
 
-            SearchParam params = getParams( queueId, consumerId, query );
+    /** Read the next messages and start transactions on them. Callers must have exclusive access to the consumer */
+    private QueueResults readTransactional( String queuePath, UUID queueId, UUID consumerId, QueueQuery query )
+    {
+        long startTime = System.currentTimeMillis();
 
-            List<UUID> ids = getQueueRange( queueId, bounds, params );
+        UUID startTimeUUID = UUIDUtils.newTimeUUID( startTime, 0 );
 
-            // get a list of ids from the consumer.
+        QueueBounds bounds = getQueueBounds( queueId );
 
-            List<TransactionPointer> pointers = getConsumerIds( queueId, consumerId, params, startTimeUUID );
+        //queue has never been written to
+        if ( bounds == null )
+        {
+            return createResults( new ArrayList<Message>( 0 ), queuePath, queueId, consumerId );
+        }
 
-            TransactionPointer pointer = null;
+        // with transactional reads, we can't read into the future, set the bounds
+        // to be now
+        bounds = new QueueBounds( bounds.getOldest(), startTimeUUID );
 
-            int lastTransactionIndex = -1;
+        SearchParam params = getParams( queueId, consumerId, query );
 
-            for ( int i = 0; i < pointers.size(); i++ )
-            {
+        List<UUID> queueIds = getQueueRange( queueId, bounds, params );
 
-                pointer = pointers.get( i );
+        // get a list of ids from the consumer.
 
-                int insertIndex = Collections.binarySearch( ids, pointer.expiration );
+        List<TransactionPointer> pointers = getConsumerIds( queueId, consumerId, params, startTimeUUID );
 
-                // we're done, this message goes at the end, no point in continuing
-                // since
-                // we have our full result set
-                if ( insertIndex <= params.limit * -1 - 1 )
-                {
-                    break;
-                }
+        List<UUID> ids = new ArrayList<UUID>( Math.min( params.limit, queueIds.size() + pointers.size() ) );
 
-                // get the insertion index into the set
-                insertIndex = ( insertIndex + 1 ) * -1;
+        int lastTransactionIndex = merge( queueIds, pointers, params.limit, ids ) - 1;
 
-                ids.add( insertIndex, pointer.targetMessage );
+        // load the messages
+        List<Message> messages = loadMessages( ids, params.reversed );
 
-                lastTransactionIndex = i;
-            }
+        // write our future timeouts for all these messages
+        writeTransactions( messages, query.getTimeout() + startTime, queueId, consumerId );
 
-            // now we've merge the results, trim them to size;
-            if ( ids.size() > params.limit )
-            {
-                ids = ids.subList( 0, params.limit );
-            }
+        // remove all read transaction pointers
+        deleteTransactionPointers( pointers, lastTransactionIndex + 1, queueId, consumerId );
 
-            // load the messages
-            List<Message> messages = loadMessages( ids, params.reversed );
+        // return the results
+        QueueResults results = createResults( messages, queuePath, queueId, consumerId );
 
-            // write our future timeouts for all these messages
-            writeTransactions( messages, query.getTimeout() + startTime, queueId, consumerId );
+        UUID lastReadTransactionPointer =
+                lastTransactionIndex == -1 ? null : pointers.get( lastTransactionIndex ).expiration;
 
-            // remove all read transaction pointers
-            deleteTransactionPointers( pointers, lastTransactionIndex + 1, queueId, consumerId );
+        UUID lastId = messages.size() == 0 ? null : messages.get( messages.size() - 1 ).getUuid();
 
-            // return the results
-            results = createResults( messages, queuePath, queueId, consumerId );
+        // our last read id will either be the last read transaction pointer, or
+        // the
+        // last read messages uuid, whichever is greater
+        UUID lastReadId = UUIDUtils.max( lastReadTransactionPointer, lastId );
 
-            UUID lastReadTransactionPointer =
-                    lastTransactionIndex == -1 ? null : pointers.get( lastTransactionIndex ).expiration;
+        writeClientPointer( queueId, consumerId, lastReadId );
 
-            UUID lastId = messages.size() == 0 ? null : messages.get( messages.size() - 1 ).getUuid();
+        return results;
+    }
 
-            // our last read id will either be the last read transaction pointer, or
-            // the
-            // last read messages uuid, whichever is greater
-            UUID lastReadId = UUIDUtils.max( lastReadTransactionPointer, lastId );
 
-            writeClientPointer( queueId, consumerId, lastReadId );
-        }
-        catch ( UGLockException e )
-        {
-            logger.debug( "Unable to acquire lock", e );
-            throw new QueueException( "Unable to acquire lock", e );
-        }
-        finally
+    /**
+     * Merge the expired transaction pointers into the ids read from the queue in a single pass. Both lists are in time
+     * order, a pointer goes in front of every queue id that is newer than its expiration.
+     *
+     * @param queueIds The message ids read from the queue
+     * @param pointers The expired transaction pointers
+     * @param limit The maximum number of ids to merge
+     * @param results The list to add the merged message ids to
+     *
+     * @return The number of pointers that were merged
+     */
+    static int merge( List<UUID> queueIds, List<TransactionPointer> pointers, int limit, List<UUID> results )
+    {
+        int queueIndex = 0;
+        int pointerIndex = 0;
+
+        while ( results.size() < limit && ( queueIndex < queueIds.size() || pointerIndex < pointers.size() ) )
         {
-            try
+            if ( pointerIndex < pointers.size() && ( queueIndex == queueIds.size()
+                    || UUIDUtils.compare( pointers.get( pointerIndex ).expiration, queueIds.get( queueIndex ) ) < 0 ) )
             {
-                lock.unlock();
+                results.add( pointers.get( pointerIndex ).targetMessage );
+                pointerIndex++;
             }
-            catch ( UGLockException e )
+            else
             {
-                logger.debug( "Unable to release lock", e );
-                throw new QueueException( "Unable to release lock", e );
+                results.add( queueIds.get( queueIndex ) );
+                queueIndex++;
             }
         }
 
-        return results;
+        return pointerIndex;
     }
 
 
@@ -442,7 +479,7 @@ public class ConsumerTransaction extends NoTransactionSearch
     }
 
 
-    private static class TransactionPointer
+    static class TransactionPointer
     {
         private UUID expiration;
         private UUID targetMessage;
@@ -452,7 +489,7 @@ public class ConsumerTransaction extends NoTransactionSearch
          * @param expiration
          * @param targetMessage
          */
-        public TransactionPointer( UUID expiration, UUID targetMessage )
+        TransactionPointer( UUID expiration, UUID targetMessage )
         {
             super();
             this.expiration = expiration;
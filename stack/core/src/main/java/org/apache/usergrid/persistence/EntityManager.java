@@ -412,6 +412,13 @@ public interface EntityManager {
 
     public Set<String> getCollectionIndexes( EntityRef entity, String collectionName ) throws Exception;
 
+    /**
+     * Get the statistics of the indexes of a collection, by property. They're collected by the index statistics job,
+     * properties it hasn't read yet have none.
+     */
+    public Map<String, IndexStatistics> getIndexStatistics( EntityRef entity, String collectionName )
+            throws Exception;
+
     public void copyRelationships( EntityRef srcEntityRef, String srcRelationName, EntityRef dstEntityRef,
                                    String dstRelationName ) throws Exception;
 
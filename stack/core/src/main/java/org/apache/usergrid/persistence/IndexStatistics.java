@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence;
+
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.apache.usergrid.persistence.cassandra.IndexUpdate.compareIndexedValues;
+import static org.apache.usergrid.persistence.cassandra.IndexUpdate.toIndexableValue;
+
+
+/**
+ * Statistics on the index of a property in a collection, collected by sampling its index rows. They tell how many
+ * entries and distinct values the index has, how the values are spread and how evenly the entries are spread over the
+ * buckets, so queries can be planned on the data and hot index rows can be found
+ */
+public class IndexStatistics {
+
+    private String propertyName;
+    private long updated;
+    private long entries;
+    private long distinct;
+    private int buckets;
+    private long maxBucketEntries;
+    private String hotBucket;
+    private boolean truncated;
+    private List<Object> quantiles = Collections.emptyList();
+    private Map<String, Long> frequent = Collections.emptyMap();
+
+
+    public IndexStatistics() {
+    }
+
+
+    public String getPropertyName() {
+        return propertyName;
+    }
+
+
+    public void setPropertyName( String propertyName ) {
+        this.propertyName = propertyName;
+    }
+
+
+    /** @return when the statistics were collected, in milliseconds */
+    public long getUpdated() {
+        return updated;
+    }
+
+
+    public void setUpdated( long updated ) {
+        this.updated = updated;
+    }
+
+
+    /** @return the number of entries read from the index */
+    public long getEntries() {
+        return entries;
+    }
+
+
+    public void setEntries( long entries ) {
+        this.entries = entries;
+    }
+
+
+    /** @return the estimated number of distinct values */
+    public long getDistinct() {
+        return distinct;
+    }
+
+
+    public void setDistinct( long distinct ) {
+        this.distinct = distinct;
+    }
+
+
+    public int getBuckets() {
+        return buckets;
+    }
+
+
+    public void setBuckets( int buckets ) {
+        this.buckets = buckets;
+    }
+
+
+    /** @return the number of entries of the largest bucket row */
+    public long getMaxBucketEntries() {
+        return maxBucketEntries;
+    }
+
+
+    public void setMaxBucketEntries( long maxBucketEntries ) {
+        this.maxBucketEntries = maxBucketEntries;
+    }
+
+
+    /** @return the bucket of the largest row */
+    public String getHotBucket() {
+        return hotBucket;
+    }
+
+
+    public void setHotBucket( String hotBucket ) {
+        this.hotBucket = hotBucket;
+    }
+
+
+    /** @return true if a bucket row had more entries than were read, the counts are then lower bounds */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+
+    public void setTruncated( boolean truncated ) {
+        this.truncated = truncated;
+    }
+
+
+    /** @return sampled values splitting the index in parts of equal size, from the lowest value to the highest */
+    public List<Object> getQuantiles() {
+        return quantiles;
+    }
+
+
+    public void setQuantiles( List<Object> quantiles ) {
+        this.quantiles = quantiles != null ? quantiles : Collections.emptyList();
+    }
+
+
+    /** @return the values seen most often in the sample, with their estimated number of entries */
+    public Map<String, Long> getFrequent() {
+        return frequent;
+    }
+
+
+    public void setFrequent( Map<String, Long> frequent ) {
+        this.frequent = frequent != null ? frequent : Collections.<String, Long>emptyMap();
+    }
+
+
+    /** @return the estimated fraction of the entries with the value */
+    public double estimateEqual( Object value ) {
+        if ( entries == 0 ) {
+            return 0;
+        }
+
+        Long count = frequent.get( getFrequentKey( value ) );
+        if ( count != null ) {
+            return Math.min( 1, ( double ) count / entries );
+        }
+
+        return 1.0 / Math.max( 1, distinct );
+    }
+
+
+    /**
+     * @param start The lowest value, null if the range is open
+     * @param finish The highest value, null if the range is open
+     *
+     * @return the estimated fraction of the entries in the range
+     */
+    public double estimateRange( Object start, Object finish ) {
+        if ( entries == 0 ) {
+            return 0;
+        }
+
+        if ( quantiles.isEmpty() ) {
+            return 1;
+        }
+
+        // every quantile in the range adds the part of the index past it
+        int inRange = 0;
+
+        for ( Object quantile : quantiles ) {
+            if ( ( ( start == null ) || ( compareIndexedValues( quantile, start ) >= 0 ) ) && ( ( finish == null )
+                    || ( compareIndexedValues( quantile, finish ) <= 0 ) ) ) {
+                inRange++;
+            }
+        }
+
+        return ( inRange + 1.0 ) / ( quantiles.size() + 1 );
+    }
+
+
+    /** @return the key of the value in the frequent values */
+    public static String getFrequentKey( Object value ) {
+        return String.valueOf( toIndexableValue( value ) );
+    }
+
+
+    @Override
+    public String toString() {
+        return "IndexStatistics [propertyName=" + propertyName + ", entries=" + entries + ", distinct=" + distinct
+                + ", buckets=" + buckets + ", maxBucketEntries=" + maxBucketEntries + ", truncated=" + truncated + "]";
+    }
+}
@@ -21,7 +21,9 @@ import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -30,7 +32,6 @@ import java.util.UUID;
 
 import org.antlr.runtime.ANTLRStringStream;
 import org.antlr.runtime.ClassicToken;
-import org.antlr.runtime.CommonTokenStream;
 import org.antlr.runtime.RecognitionException;
 import org.antlr.runtime.Token;
 import org.antlr.runtime.TokenRewriteStream;
@@ -51,6 +52,7 @@ import org.apache.usergrid.persistence.query.tree.GreaterThanEqual;
 import org.apache.usergrid.persistence.query.tree.LessThan;
 import org.apache.usergrid.persistence.query.tree.LessThanEqual;
 import org.apache.usergrid.persistence.query.tree.Operand;
+import org.apache.usergrid.persistence.query.tree.ParsedQueryCache;
 import org.apache.usergrid.persistence.query.tree.QueryFilterLexer;
 import org.apache.usergrid.persistence.query.tree.QueryFilterParser;
 import org.apache.usergrid.utils.JsonUtils;
@@ -78,6 +80,11 @@ public class Query {
 
     public static final int MAX_LIMIT = 1000;
 
+    /** The number of distinct query shapes to keep parsed */
+    public static final int PARSED_QUERY_CACHE_SIZE = 1000;
+
+    private static final ParsedQueryCache PARSED_QUERIES = new ParsedQueryCache( PARSED_QUERY_CACHE_SIZE );
+
     private String type;
     private List<SortPredicate> sortPredicates = new ArrayList<SortPredicate>();
     private Operand rootOperand;
@@ -95,6 +102,7 @@ public class Query {
     private Long startTime;
     private Long finishTime;
     private boolean pad;
+    private boolean bulk;
     private CounterResolution resolution = CounterResolution.ALL;
     private List<Identifier> identifiers;
     private List<CounterFilterPredicate> counterFilters;
@@ -125,6 +133,7 @@ public class Query {
             finishTime = q.finishTime;
             resolution = q.resolution;
             pad = q.pad;
+            bulk = q.bulk;
             rootOperand = q.rootOperand;
             identifiers = q.identifiers != null ? new ArrayList<Identifier>( q.identifiers ) : null;
             counterFilters =
@@ -152,13 +161,8 @@ public class Query {
             }
         }
 
-        ANTLRStringStream in = new ANTLRStringStream( qlt.trim() );
-        QueryFilterLexer lexer = new QueryFilterLexer( in );
-        CommonTokenStream tokens = new CommonTokenStream( lexer );
-        QueryFilterParser parser = new QueryFilterParser( tokens );
-
         try {
-            Query q = parser.ql().query;
+            Query q = PARSED_QUERIES.parse( qlt.trim() );
             q.setQl( originalQl );
             return q;
         }
@@ -226,6 +230,7 @@ public class Query {
         }
 
         Boolean pad = firstBoolean( params.get( "pad" ) );
+        Boolean bulk = firstBoolean( params.get( "bulk" ) );
 
         for ( Entry<String, List<String>> param : params.entrySet() ) {
             Identifier identifier = Identifier.from( param.getKey() );
@@ -315,6 +320,11 @@ public class Query {
             q.setPad( pad );
         }
 
+        if ( bulk != null ) {
+            q = newQueryIfNull( q );
+            q.setBulk( bulk );
+        }
+
         if ( identifiers != null ) {
             q = newQueryIfNull( q );
             q.setIdentifiers( identifiers );
@@ -575,6 +585,22 @@ public class Query {
     }
 
 
+    /** @return the entity properties read by the selects, the first property of each select path */
+    @JsonIgnore
+    public Set<String> getSelectedProperties() {
+        Collection<String> paths = isMergeSelectResults() ? getSelectAssignments().values() : getSelectSubjects();
+
+        Set<String> properties = new LinkedHashSet<String>();
+
+        for ( String path : paths ) {
+            int end = StringUtils.indexOfAny( path, ".[" );
+            properties.add( ( end < 0 ? path : path.substring( 0, end ) ).trim() );
+        }
+
+        return properties;
+    }
+
+
     public Query addSort( String propertyName ) {
         if ( isBlank( propertyName ) ) {
             return this;
@@ -892,6 +918,17 @@ public class Query {
     }
 
 
+    /** @return true if a delete or update should apply to every match in a background job, not only the first page */
+    public boolean isBulk() {
+        return bulk;
+    }
+
+
+    public void setBulk( boolean bulk ) {
+        this.bulk = bulk;
+    }
+
+
     public void setResolution( CounterResolution resolution ) {
         this.resolution = resolution;
     }
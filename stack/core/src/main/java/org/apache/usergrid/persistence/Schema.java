@@ -59,6 +59,7 @@ import org.apache.usergrid.persistence.cassandra.CassandraPersistenceUtils;
 import org.apache.usergrid.persistence.entities.Application;
 import org.apache.usergrid.persistence.exceptions.PropertyTypeConversionException;
 import org.apache.usergrid.persistence.schema.CollectionInfo;
+import org.apache.usergrid.persistence.schema.CompositeIndexInfo;
 import org.apache.usergrid.persistence.schema.DictionaryInfo;
 import org.apache.usergrid.persistence.schema.EntityInfo;
 import org.apache.usergrid.persistence.schema.PropertyInfo;
@@ -160,6 +161,11 @@ public class Schema {
     public static final String DICTIONARY_ID_SETS = "id_sets";
     public static final String DICTIONARY_COUNTERS = "counters";
     public static final String DICTIONARY_GEOCELL = "geocell";
+    public static final String DICTIONARY_PROJECTIONS = "projections";
+    public static final String DICTIONARY_INDEX_STATISTICS = "index_statistics";
+    public static final String DICTIONARY_INDEX_STATISTICS_JOBS = "index_statistics_jobs";
+    public static final String DICTIONARY_COMPOSITE_INDEXES = "composite_indexes";
+    public static final String DICTIONARY_CONNECTION_SHARDS = "connection_shards";
 
     private static final List<String> entitiesPackage = new ArrayList<String>();
     private static final List<String> entitiesScanPath = new ArrayList<String>();
@@ -238,6 +244,14 @@ public class Schema {
 
     Map<String, PropertyInfo> allProperties = new TreeMap<String, PropertyInfo>( String.CASE_INSENSITIVE_ORDER );
 
+    /** Composite indexes of the dynamic application collections, by collection name */
+    private volatile Map<String, List<CompositeIndexInfo>> dynamicCompositeIndexes =
+            new TreeMap<String, List<CompositeIndexInfo>>( String.CASE_INSENSITIVE_ORDER );
+
+    /** Projections of the dynamic application collections, by collection name */
+    private volatile Map<String, Set<String>> dynamicProjections =
+            new TreeMap<String, Set<String>>( String.CASE_INSENSITIVE_ORDER );
+
     private static Schema instance;
 
     boolean initialized = false;
@@ -937,6 +951,86 @@ public class Schema {
     }
 
 
+    /**
+     * Set the composite indexes of the application collections that aren't declared by an entity class. Declared
+     * collections list theirs in {@link EntityCollection#compositeIndexes()}
+     *
+     * @param config Comma separated collection:property+property, for example "orders:status+created"
+     */
+    public void setCompositeIndexes( String config ) {
+        Map<String, List<CompositeIndexInfo>> configured =
+                new TreeMap<String, List<CompositeIndexInfo>>( String.CASE_INSENSITIVE_ORDER );
+
+        for ( Map.Entry<String, List<String>> collection : parseCollectionConfig( config ).entrySet() ) {
+            List<CompositeIndexInfo> indexes = new ArrayList<CompositeIndexInfo>();
+            for ( String index : collection.getValue() ) {
+                indexes.add( new CompositeIndexInfo( index ) );
+            }
+            configured.put( collection.getKey(), indexes );
+        }
+
+        dynamicCompositeIndexes = configured;
+    }
+
+
+    /**
+     * Set the projections of the application collections that aren't declared by an entity class. Declared collections
+     * list theirs in {@link EntityCollection#projection()}
+     *
+     * @param config Comma separated collection:property+property, for example "users:name+picture"
+     */
+    public void setProjections( String config ) {
+        Map<String, Set<String>> configured = new TreeMap<String, Set<String>>( String.CASE_INSENSITIVE_ORDER );
+
+        for ( Map.Entry<String, List<String>> collection : parseCollectionConfig( config ).entrySet() ) {
+            Set<String> projection = new LinkedHashSet<String>();
+            for ( String properties : collection.getValue() ) {
+                for ( String property : properties.split( "\\+" ) ) {
+                    if ( property.trim().length() > 0 ) {
+                        projection.add( property.trim() );
+                    }
+                }
+            }
+            configured.put( collection.getKey(), projection );
+        }
+
+        dynamicProjections = configured;
+    }
+
+
+    /** Split comma separated collection:value entries into the values of each collection */
+    private static Map<String, List<String>> parseCollectionConfig( String config ) {
+        Map<String, List<String>> configured = new TreeMap<String, List<String>>( String.CASE_INSENSITIVE_ORDER );
+
+        if ( config == null ) {
+            return configured;
+        }
+
+        for ( String entry : config.split( "," ) ) {
+            entry = entry.trim();
+            if ( entry.length() == 0 ) {
+                continue;
+            }
+
+            int separator = entry.indexOf( ':' );
+            if ( separator < 0 ) {
+                throw new IllegalArgumentException( "No collection for " + entry );
+            }
+
+            String collectionName = entry.substring( 0, separator ).trim();
+
+            List<String> values = configured.get( collectionName );
+            if ( values == null ) {
+                values = new ArrayList<String>();
+                configured.put( collectionName, values );
+            }
+            values.add( entry.substring( separator + 1 ) );
+        }
+
+        return configured;
+    }
+
+
     private CollectionInfo getDynamicApplicationCollection( String collectionName ) {
         EntityInfo entity = getEntityInfo( Application.ENTITY_TYPE );
         if ( entity == null ) {
@@ -958,6 +1052,8 @@ public class Schema {
         properties.add( PROPERTY_CREATED );
         properties.add( PROPERTY_MODIFIED );
         collection.setPropertiesIndexed( properties );
+        collection.setCompositeIndexes( dynamicCompositeIndexes.get( collectionName ) );
+        collection.setProjection( dynamicProjections.get( collectionName ) );
         // entity.getCollections().put(collectionName, collection);
         // mapCollector(collection.getType(), Application.ENTITY_TYPE,
         // collectionName, collection);
@@ -41,4 +41,13 @@ public @interface EntityCollection {
     boolean includedInExport() default true;
 
     String sort() default "";
+
+    /** Indexes on several properties, each the property names joined by "+", for example "status+created" */
+    String[] compositeIndexes() default { };
+
+    /**
+     * Properties stored beside the collection's indexes, so queries that only select or sort on them are answered
+     * without loading the entities
+     */
+    String[] projection() default { };
 }
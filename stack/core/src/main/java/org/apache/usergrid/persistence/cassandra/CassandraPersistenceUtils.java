@@ -259,30 +259,8 @@ public class CassandraPersistenceUtils {
                 return obj;
             }
         }
-        StringBuilder s = new StringBuilder();
-        for ( Object obj : objects ) {
-            if ( obj instanceof String ) {
-                s.append( ( ( String ) obj ).toLowerCase() );
-            }
-            else if ( obj instanceof List<?> ) {
-                s.append( key( ( ( List<?> ) obj ).toArray() ) );
-            }
-            else if ( obj instanceof Object[] ) {
-                s.append( key( ( Object[] ) obj ) );
-            }
-            else if ( obj != null ) {
-                s.append( obj );
-            }
-            else {
-                s.append( "*" );
-            }
-
-            s.append( KEY_DELIM );
-        }
-
-        s.deleteCharAt( s.length() - 1 );
 
-        return s.toString();
+        return RowKeyBuilder.key( objects );
     }
 
 
@@ -298,7 +276,7 @@ public class CassandraPersistenceUtils {
         if ( keyStr.length() == 0 ) {
             return NULL_ID;
         }
-        UUID uuid = UUID.nameUUIDFromBytes( keyStr.getBytes() );
+        UUID uuid = RowKeyBuilder.keyID( keyStr );
         logger.debug( "Key {} equals UUID {}", keyStr, uuid );
         return uuid;
     }
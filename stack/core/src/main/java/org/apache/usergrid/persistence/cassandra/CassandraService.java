@@ -50,6 +50,7 @@ import me.prettyprint.cassandra.serializers.LongSerializer;
 import me.prettyprint.cassandra.serializers.StringSerializer;
 import me.prettyprint.cassandra.serializers.UUIDSerializer;
 import me.prettyprint.cassandra.service.CassandraHostConfigurator;
+import me.prettyprint.cassandra.service.FailoverPolicy;
 import me.prettyprint.cassandra.service.ThriftKsDef;
 import me.prettyprint.hector.api.Cluster;
 import me.prettyprint.hector.api.ConsistencyLevelPolicy;
@@ -259,22 +260,36 @@ public class CassandraService {
 
 
     public Keyspace getKeyspace( String keyspace, UUID prefix ) {
+        return getKeyspace( keyspace, prefix, ON_FAIL_TRY_ALL_AVAILABLE );
+    }
+
+
+    public Keyspace getKeyspace( String keyspace, UUID prefix, FailoverPolicy failoverPolicy ) {
         Keyspace ko = null;
         if ( USE_VIRTUAL_KEYSPACES && ( prefix != null ) ) {
-            ko = createVirtualKeyspace( keyspace, prefix, ue, cluster, consistencyLevelPolicy,
-                    ON_FAIL_TRY_ALL_AVAILABLE, accessMap );
+            ko = createVirtualKeyspace( keyspace, prefix, ue, cluster, consistencyLevelPolicy, failoverPolicy,
+                    accessMap );
         }
         else {
-            ko = HFactory.createKeyspace( keyspace, cluster, consistencyLevelPolicy, ON_FAIL_TRY_ALL_AVAILABLE,
-                    accessMap );
+            ko = HFactory.createKeyspace( keyspace, cluster, consistencyLevelPolicy, failoverPolicy, accessMap );
         }
         return ko;
     }
 
 
     public Keyspace getApplicationKeyspace( UUID applicationId ) {
+        return getApplicationKeyspace( applicationId, ON_FAIL_TRY_ALL_AVAILABLE );
+    }
+
+
+    /**
+     * @param failoverPolicy How to retry failed operations. Counter increments that time out may have been applied, use
+     * {@link FailoverPolicy#FAIL_FAST} to write them at most once
+     */
+    public Keyspace getApplicationKeyspace( UUID applicationId, FailoverPolicy failoverPolicy ) {
         assert applicationId != null;
-        Keyspace ko = getKeyspace( keyspaceForApplication( applicationId ), prefixForApplication( applicationId ) );
+        Keyspace ko = getKeyspace( keyspaceForApplication( applicationId ), prefixForApplication( applicationId ),
+                failoverPolicy );
         return ko;
     }
 
@@ -539,6 +554,31 @@ public class CassandraService {
     }
 
 
+    /**
+     * Count the columns of a row, up to a limit. The columns are counted by Cassandra without being returned, but it
+     * still reads them, keep the limit to what the caller needs to know
+     *
+     * @param max The most columns to count
+     *
+     * @return the number of columns, no more than max
+     */
+    public int countColumns( Keyspace ko, Object columnFamily, Object key, int max ) throws Exception {
+
+        if ( db_logger.isDebugEnabled() ) {
+            db_logger.debug( "countColumns cf=" + columnFamily + " key=" + key + " max=" + max );
+        }
+
+        CountQuery<ByteBuffer, ByteBuffer> q = HFactory.createCountQuery( ko, be, be );
+        q.setColumnFamily( columnFamily.toString() );
+        q.setKey( bytebuffer( key ) );
+        q.setRange( null, null, max );
+
+        Integer count = q.execute().get();
+
+        return count != null ? count : 0;
+    }
+
+
     public Map<ByteBuffer, List<HColumn<ByteBuffer, ByteBuffer>>> multiGetColumns( Keyspace ko, Object columnFamily,
                                                                                    List<?> keys, Object start,
                                                                                    Object finish, int count,
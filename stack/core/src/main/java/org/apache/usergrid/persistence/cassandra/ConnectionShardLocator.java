@@ -0,0 +1,439 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.cassandra;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.apache.usergrid.persistence.Schema;
+import org.apache.usergrid.persistence.hector.CountingMutator;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.beans.DynamicComposite;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.beans.CounterSlice;
+import me.prettyprint.hector.api.beans.HCounterColumn;
+import me.prettyprint.hector.api.mutation.Mutator;
+import me.prettyprint.hector.api.query.SliceCounterQuery;
+
+import static me.prettyprint.hector.api.factory.HFactory.createCounterColumn;
+import static me.prettyprint.hector.api.factory.HFactory.createCounterSliceQuery;
+import static org.apache.usergrid.persistence.cassandra.ApplicationCF.ENTITY_COMPOSITE_DICTIONARIES;
+import static org.apache.usergrid.persistence.cassandra.ApplicationCF.ENTITY_COUNTERS;
+import static org.apache.usergrid.persistence.cassandra.ApplicationCF.ENTITY_DICTIONARIES;
+import static org.apache.usergrid.persistence.cassandra.CassandraPersistenceUtils.addDeleteToMutator;
+import static org.apache.usergrid.persistence.cassandra.CassandraPersistenceUtils.addInsertToMutator;
+import static org.apache.usergrid.persistence.cassandra.CassandraPersistenceUtils.batchExecute;
+import static org.apache.usergrid.persistence.cassandra.CassandraPersistenceUtils.key;
+import static org.apache.usergrid.persistence.cassandra.Serializers.be;
+import static org.apache.usergrid.persistence.cassandra.Serializers.se;
+import static org.apache.usergrid.utils.ConversionUtils.bytebuffer;
+import static org.apache.usergrid.utils.ConversionUtils.bytes;
+import static org.apache.usergrid.utils.ConversionUtils.getInt;
+
+
+/**
+ * Locates the rows of the connections of an entity by type, in either direction. A row that grows past the threshold
+ * is split in shards, found by the hash of the connected entity. The first shard is the original row, so entries
+ * written before the split stay readable, and a sharded row is read by merging its shards. After a split the entries
+ * of the first shard that hash to another one are moved there in the background, see {@link #moveEntries}.
+ * <p/>
+ * The split rows of an application are kept in a single row, read again once the cache expires, so writes to rows
+ * that aren't split don't read anything. Other nodes learn a split when they read it again, up to the cache duration
+ * later. Until then they write to the original row and read only it, so they miss the connections written to the
+ * other shards by nodes that know of the split. Deletes don't depend on the cache, they go to every shard a row could
+ * have, see {@link #getAllShardKeys}. The entries of the original row are only moved once every node knows of the
+ * split, so reads on other nodes don't lose them.
+ * <p/>
+ * The size of a row is estimated by a counter incremented and decremented with its entries. It's read every few writes
+ * to the row on this node, and the row is split once the counter passes the threshold. The first read of the counter
+ * of a row counts its entries once, up to the threshold, for those written before the counter existed.
+ * <p/>
+ * Moving the entries of the first shard deletes them there, so the first shard keeps a tombstone per moved entry until
+ * gc_grace_seconds have passed and it's compacted. Until then reads of the first shard scan past those tombstones.
+ * Splits are rare and the move is one pass, so this is left to compaction rather than tracked by the reads.
+ */
+public class ConnectionShardLocator {
+
+    private static final Logger logger = LoggerFactory.getLogger( ConnectionShardLocator.class );
+
+    private static final HashFunction HASH = Hashing.murmur3_32();
+
+    public static final int DEFAULT_THRESHOLD = 100000;
+    public static final int DEFAULT_SHARDS = 16;
+    public static final int DEFAULT_CHECK_INTERVAL = 1000;
+    public static final long DEFAULT_CACHE_TTL = 60000;
+
+    /** Appended to the name of the size counter of a row for the counter of the entries it had before */
+    private static final String SEED_SUFFIX = ":seed";
+
+    private final CassandraService cass;
+    private final UUID applicationId;
+
+    private final int threshold;
+    private final int shards;
+    private final int checkInterval;
+
+    private final long cacheTtl;
+
+    /** Shard counts of the split rows of the application, by row */
+    private volatile Map<String, Integer> shardCounts;
+    private volatile long shardCountsRead;
+
+    /** Writes to rows not split yet, by row */
+    private final Cache<String, AtomicLong> writes;
+
+
+    /**
+     * @param threshold The number of entries of a row that splits it, 0 to never split rows
+     * @param shards The number of shards to split a row in
+     * @param checkInterval How many writes to a row on this node between counts of its entries
+     * @param cacheTtl How long to keep the shard counts of the application, in milliseconds
+     */
+    public ConnectionShardLocator( CassandraService cass, UUID applicationId, int threshold, int shards,
+                                   int checkInterval, long cacheTtl ) {
+        this.cass = cass;
+        this.applicationId = applicationId;
+        this.threshold = threshold;
+        this.shards = shards;
+        this.checkInterval = Math.max( 1, checkInterval );
+        this.cacheTtl = cacheTtl;
+        this.writes = CacheBuilder.newBuilder().maximumSize( 10000 ).expireAfterAccess( 1, TimeUnit.HOURS ).build();
+    }
+
+
+    /** @return the key of the row that holds the connection to the entity */
+    public Object getShardKey( UUID entityId, String dictionaryType, String connectionType, UUID connectedEntityId )
+            throws Exception {
+        int shardCount = getShardCount( entityId, dictionaryType, connectionType );
+
+        if ( shardCount <= 1 ) {
+            return getShardKey( entityId, dictionaryType, connectionType, 0 );
+        }
+
+        return getShardKey( entityId, dictionaryType, connectionType, getShard( connectedEntityId, shardCount ) );
+    }
+
+
+    /** @return the shard of the connection to the entity */
+    static int getShard( UUID connectedEntityId, int shardCount ) {
+        return ( HASH.hashBytes( bytes( connectedEntityId ) ).asInt() & Integer.MAX_VALUE ) % shardCount;
+    }
+
+
+    /** @return the keys of every row of the connections of the type, the original row first */
+    public List<Object> getShardKeys( UUID entityId, String dictionaryType, String connectionType )
+            throws Exception {
+        int shardCount = getShardCount( entityId, dictionaryType, connectionType );
+
+        List<Object> keys = new ArrayList<Object>( Math.max( 1, shardCount ) );
+
+        keys.add( getShardKey( entityId, dictionaryType, connectionType, 0 ) );
+
+        for ( int shard = 1; shard < shardCount; shard++ ) {
+            keys.add( getShardKey( entityId, dictionaryType, connectionType, shard ) );
+        }
+
+        return keys;
+    }
+
+
+    /**
+     * @return the keys of every row the connections of the type could be in, whether or not this node knows the row
+     *         is split. For deletes, which write without reading
+     */
+    public List<Object> getAllShardKeys( UUID entityId, String dictionaryType, String connectionType )
+            throws Exception {
+        int shardCount = getShardCount( entityId, dictionaryType, connectionType );
+
+        if ( ( threshold > 0 ) && ( shards > shardCount ) ) {
+            shardCount = shards;
+        }
+
+        List<Object> keys = new ArrayList<Object>( shardCount );
+
+        for ( int shard = 0; shard < shardCount; shard++ ) {
+            keys.add( getShardKey( entityId, dictionaryType, connectionType, shard ) );
+        }
+
+        return keys;
+    }
+
+
+    /** @return how long a split can go unnoticed by other nodes, in milliseconds */
+    public long getCacheTtl() {
+        return cacheTtl;
+    }
+
+
+    private static Object getShardKey( UUID entityId, String dictionaryType, String connectionType, int shard ) {
+        if ( shard == 0 ) {
+            return key( entityId, dictionaryType, connectionType );
+        }
+
+        return key( entityId, dictionaryType, connectionType, String.valueOf( shard ) );
+    }
+
+
+    /** @return the number of rows the connections of the type are split in, 1 if they're in a single row */
+    public int getShardCount( UUID entityId, String dictionaryType, String connectionType ) throws Exception {
+        Integer shardCount = getShardCounts().get( getCacheKey( entityId, dictionaryType, connectionType ) );
+
+        return shardCount != null ? shardCount : 1;
+    }
+
+
+    private Map<String, Integer> getShardCounts() throws Exception {
+        Map<String, Integer> counts = shardCounts;
+
+        if ( ( counts == null ) || ( System.currentTimeMillis() - shardCountsRead >= cacheTtl ) ) {
+            synchronized ( this ) {
+                counts = shardCounts;
+
+                if ( ( counts == null ) || ( System.currentTimeMillis() - shardCountsRead >= cacheTtl ) ) {
+                    counts = readShardCounts();
+                    shardCounts = counts;
+                    shardCountsRead = System.currentTimeMillis();
+                }
+            }
+        }
+
+        return counts;
+    }
+
+
+    private Map<String, Integer> readShardCounts() throws Exception {
+        List<HColumn<String, ByteBuffer>> columns =
+                cass.getAllColumns( cass.getApplicationKeyspace( applicationId ), ENTITY_DICTIONARIES,
+                        getShardCountsKey() );
+
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+
+        for ( HColumn<String, ByteBuffer> column : columns ) {
+            if ( ( column.getValue() != null ) && ( column.getValue().remaining() >= 4 ) ) {
+                counts.put( column.getName(), Math.max( 1, getInt( column.getValue() ) ) );
+            }
+        }
+
+        return counts;
+    }
+
+
+    /**
+     * Add the change of the number of entries of the row of the connections of the type to the batch, while it isn't
+     * split
+     */
+    public void addSizeMutation( Mutator<ByteBuffer> batch, UUID entityId, String dictionaryType,
+                                 String connectionType, long delta ) throws Exception {
+        if ( ( threshold <= 0 ) || ( shards <= 1 ) || ( getShardCount( entityId, dictionaryType, connectionType )
+                > 1 ) ) {
+            return;
+        }
+
+        batch.addCounter( bytebuffer( getSizeKey( entityId, dictionaryType ) ), ENTITY_COUNTERS.toString(),
+                createCounterColumn( connectionType, delta, se ) );
+    }
+
+
+    /**
+     * Read the size of the row. The first read counts the entries of the row, up to the threshold, and adds those the
+     * counter is missing to a seed counter, so rows that had entries before the counter existed split too. The seed
+     * is stored plus one, so a seed of no entries is still seen as done
+     */
+    private long readSize( UUID entityId, String dictionaryType, String connectionType ) throws Exception {
+        Keyspace ko = cass.getApplicationKeyspace( applicationId );
+        ByteBuffer sizeKey = bytebuffer( getSizeKey( entityId, dictionaryType ) );
+        String seedName = connectionType + SEED_SUFFIX;
+
+        SliceCounterQuery<ByteBuffer, String> q = createCounterSliceQuery( ko, be, se );
+        q.setColumnFamily( ENTITY_COUNTERS.toString() );
+        q.setKey( sizeKey );
+        q.setColumnNames( connectionType, seedName );
+
+        Long size = null;
+        Long seed = null;
+
+        CounterSlice<String> slice = q.execute().get();
+        if ( slice != null ) {
+            for ( HCounterColumn<String> column : slice.getColumns() ) {
+                if ( connectionType.equals( column.getName() ) ) {
+                    size = column.getValue();
+                }
+                else {
+                    seed = column.getValue();
+                }
+            }
+        }
+
+        long counted = size != null ? size : 0;
+
+        if ( seed != null ) {
+            return counted + seed - 1;
+        }
+
+        // two nodes seeding at once count the entries twice, which only splits the row early
+        long entries = cass.countColumns( ko, ENTITY_COMPOSITE_DICTIONARIES,
+                getShardKey( entityId, dictionaryType, connectionType, 0 ), threshold );
+        long missing = Math.max( 0, entries - counted );
+
+        Mutator<ByteBuffer> batch = CountingMutator.createFlushingMutator( ko, be );
+        batch.addCounter( sizeKey, ENTITY_COUNTERS.toString(), createCounterColumn( seedName, missing + 1, se ) );
+        batchExecute( batch, CassandraService.RETRY_COUNT );
+
+        return counted + missing;
+    }
+
+
+    /**
+     * Record a write of a connection to the row, and split it if it has grown past the threshold. The size of a row
+     * is read once every check interval writes to it on this node
+     *
+     * @return true if the row was split
+     */
+    public boolean checkShards( UUID entityId, String dictionaryType, String connectionType, long timestamp )
+            throws Exception {
+        if ( ( threshold <= 0 ) || ( shards <= 1 ) ) {
+            return false;
+        }
+
+        String cacheKey = getCacheKey( entityId, dictionaryType, connectionType );
+
+        AtomicLong count = writes.get( cacheKey, new Callable<AtomicLong>() {
+            @Override
+            public AtomicLong call() {
+                return new AtomicLong();
+            }
+        } );
+
+        if ( count.incrementAndGet() % checkInterval != 0 ) {
+            return false;
+        }
+
+        if ( getShardCount( entityId, dictionaryType, connectionType ) > 1 ) {
+            writes.invalidate( cacheKey );
+            return false;
+        }
+
+        if ( readSize( entityId, dictionaryType, connectionType ) < threshold ) {
+            return false;
+        }
+
+        logger.warn( "Splitting the {} {} of entity {} in application {} in {} shards, it has over {} entries",
+                new Object[] { dictionaryType, connectionType, entityId, applicationId, shards, threshold } );
+
+        Mutator<ByteBuffer> batch =
+                CountingMutator.createFlushingMutator( cass.getApplicationKeyspace( applicationId ), be );
+
+        addInsertToMutator( batch, ENTITY_DICTIONARIES, getShardCountsKey(), cacheKey, shards, timestamp );
+
+        batchExecute( batch, CassandraService.RETRY_COUNT );
+
+        synchronized ( this ) {
+            Map<String, Integer> counts = new HashMap<String, Integer>( getShardCounts() );
+            counts.put( cacheKey, shards );
+            shardCounts = counts;
+        }
+
+        writes.invalidate( cacheKey );
+
+        return true;
+    }
+
+
+    /**
+     * Move a page of the entries of the first shard of a split row to the shards they hash to. Entries keep their
+     * timestamp, so a connection deleted or written again meanwhile keeps its latest state. The entries moved leave
+     * tombstones in the first shard until it's compacted after gc_grace_seconds.
+     *
+     * @param start The entry to start from, null for the first one
+     *
+     * @return the entry to continue from, null once every entry was read
+     */
+    public ByteBuffer moveEntries( UUID entityId, String dictionaryType, String connectionType, ByteBuffer start,
+                                   int count ) throws Exception {
+        int shardCount = getShardCount( entityId, dictionaryType, connectionType );
+        if ( shardCount <= 1 ) {
+            return null;
+        }
+
+        Keyspace ko = cass.getApplicationKeyspace( applicationId );
+        Object firstKey = getShardKey( entityId, dictionaryType, connectionType, 0 );
+
+        count = Math.max( 2, count );
+
+        List<HColumn<ByteBuffer, ByteBuffer>> columns =
+                cass.getColumns( ko, ENTITY_COMPOSITE_DICTIONARIES, firstKey, start, null, count, false );
+
+        Mutator<ByteBuffer> batch = CountingMutator.createFlushingMutator( ko, be );
+
+        for ( HColumn<ByteBuffer, ByteBuffer> column : columns ) {
+            UUID connectedEntityId = ( UUID ) DynamicComposite.fromByteBuffer( column.getName().duplicate() ).get( 0 );
+
+            int shard = getShard( connectedEntityId, shardCount );
+            if ( shard == 0 ) {
+                continue;
+            }
+
+            addInsertToMutator( batch, ENTITY_COMPOSITE_DICTIONARIES,
+                    getShardKey( entityId, dictionaryType, connectionType, shard ), column.getName(),
+                    column.getValue(), column.getClock() );
+
+            addDeleteToMutator( batch, ENTITY_COMPOSITE_DICTIONARIES, firstKey, column.getName(), column.getClock() );
+        }
+
+        batchExecute( batch, CassandraService.RETRY_COUNT );
+
+        // the last entry is read again by the next page when it stays, so a page needs room for a new one
+        if ( columns.size() < count ) {
+            return null;
+        }
+
+        return columns.get( columns.size() - 1 ).getName();
+    }
+
+
+    /** The row of the shard counts of the split rows of the application */
+    private Object getShardCountsKey() {
+        return key( applicationId, Schema.DICTIONARY_CONNECTION_SHARDS );
+    }
+
+
+    /** The row of the counters of the sizes of the rows of an entity's connections */
+    private static Object getSizeKey( UUID entityId, String dictionaryType ) {
+        return key( entityId, Schema.DICTIONARY_CONNECTION_SHARDS, dictionaryType );
+    }
+
+
+    private static String getCacheKey( UUID entityId, String dictionaryType, String connectionType ) {
+        return entityId + "/" + dictionaryType + "/" + connectionType;
+    }
+}
@@ -0,0 +1,530 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.cassandra;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.commons.lang.StringUtils;
+
+import org.apache.usergrid.locking.Lock;
+import org.apache.usergrid.locking.LockManager;
+import org.apache.usergrid.persistence.AggregateCounter;
+import org.apache.usergrid.persistence.CounterResolution;
+import org.apache.usergrid.persistence.EntityManagerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import me.prettyprint.cassandra.service.FailoverPolicy;
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.beans.CounterRow;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.beans.HCounterColumn;
+import me.prettyprint.hector.api.mutation.Mutator;
+import me.prettyprint.hector.api.query.MultigetSliceCounterQuery;
+
+import static me.prettyprint.hector.api.factory.HFactory.createCounterColumn;
+import static me.prettyprint.hector.api.factory.HFactory.createMultigetSliceCounterQuery;
+import static me.prettyprint.hector.api.factory.HFactory.createMutator;
+import static org.apache.usergrid.persistence.cassandra.ApplicationCF.APPLICATION_AGGREGATE_COUNTERS;
+import static org.apache.usergrid.persistence.cassandra.ApplicationCF.ENTITY_DICTIONARIES;
+import static org.apache.usergrid.persistence.cassandra.CassandraPersistenceUtils.addInsertToMutator;
+import static org.apache.usergrid.persistence.cassandra.CassandraPersistenceUtils.batchExecute;
+import static org.apache.usergrid.persistence.cassandra.CassandraPersistenceUtils.key;
+import static org.apache.usergrid.persistence.cassandra.CassandraService.ALL_COUNT;
+import static org.apache.usergrid.persistence.cassandra.CassandraService.RETRY_COUNT;
+import static org.apache.usergrid.persistence.cassandra.CounterUtils.AggregateCounterSelection.rowBuilder;
+import static org.apache.usergrid.persistence.cassandra.CounterUtils.DICTIONARY_COUNTER_ROLLUPS;
+import static org.apache.usergrid.utils.ConversionUtils.bytebuffer;
+import static org.apache.usergrid.utils.ConversionUtils.string;
+import static org.apache.usergrid.persistence.cassandra.Serializers.*;
+
+
+/**
+ * Folds the finest counter resolution into the coarser ones. With rollups enabled, increments only write the
+ * {@link CounterResolution#ALL} and {@link CounterResolution#MINUTE} rows, and mark the minute of every row they touch
+ * as pending. A pass reads the pending minutes old enough not to be written anymore, and sets each coarser bucket they
+ * fall in to the sum of its buckets in the next finer resolution. Counters can't be set, so the difference to the
+ * current value is added instead. Folding a bucket again adds nothing, so a pass that fails part way is repeated by
+ * the next one. The differences are written without retries, a retried increment that had been applied would be
+ * counted twice and nothing would fold it again.
+ * <p/>
+ * Pending minutes are kept in a row per application and hour they were marked in, so the markers a pass deletes
+ * don't pile up as tombstones in a row that every pass reads.
+ * <p/>
+ * Once a pass is done, everything before its checkpoint has been folded. Reads use the coarse buckets that end before
+ * the checkpoint and sum the rest from the finer resolutions.
+ */
+public class CounterRollup {
+
+    private static final Logger logger = LoggerFactory.getLogger( CounterRollup.class );
+
+    /** Dictionary with the minute everything before has been rolled up */
+    public static final String DICTIONARY_COUNTER_CHECKPOINTS = "counter_checkpoints";
+
+    public static final String CHECKPOINT = "checkpoint";
+
+    /** The resolutions that are rolled up, each is folded after the one it's summed from */
+    public static final CounterResolution[] ROLLED_UP = {
+            CounterResolution.FIVE_MINUTES, CounterResolution.HALF_HOUR, CounterResolution.HOUR,
+            CounterResolution.SIX_HOUR, CounterResolution.HALF_DAY, CounterResolution.DAY, CounterResolution.WEEK,
+            CounterResolution.MONTH
+    };
+
+    /** How often to roll up counters, in milliseconds */
+    public static final long DEFAULT_INTERVAL = 60000;
+
+    /** The most pending rows folded in one pass for an application */
+    public static final int DEFAULT_MAX_PENDING = 10000;
+
+    /** The pending minutes are bucketed by the hour they're marked in */
+    public static final CounterResolution PENDING_BUCKET = CounterResolution.HOUR;
+
+    /** How far back the first pass of an application reads the pending minutes, in milliseconds */
+    public static final long FIRST_PASS_BACKLOG = 24 * 60 * 60 * 1000L;
+
+    /** Pending minutes are zero padded so they sort by time */
+    private static final int MINUTE_DIGITS = 13;
+
+    private static final char PENDING_SEPARATOR = '|';
+
+    private CassandraService cass;
+
+    private EntityManagerFactory emf;
+
+    private LockManager lockManager;
+
+    private CounterUtils counterUtils;
+
+    private long interval = DEFAULT_INTERVAL;
+
+    private int maxPending = DEFAULT_MAX_PENDING;
+
+    private ScheduledExecutorService executor;
+
+
+    /**
+     * Start rolling up counters if it's enabled
+     *
+     * @throws IllegalStateException if rollups are enabled for counters that are batched
+     */
+    public void init() {
+        if ( counterUtils != null && counterUtils.isRollupRequested() && !counterUtils.isRollup() ) {
+            throw new IllegalStateException( "Counter rollups only apply to counters that aren't batched, "
+                    + "usergrid.counter.rollup.enabled requires usergrid.counter.type=o, not "
+                    + counterUtils.getCounterType() );
+        }
+
+        if ( !isEnabled() ) {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat( "counter-rollup-%d" ).setDaemon( true ).build() );
+
+        executor.scheduleWithFixedDelay( new Runnable() {
+            @Override
+            public void run() {
+                rollup();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS );
+
+        logger.info( "Rolling up counters every {} ms", interval );
+    }
+
+
+    public void destroy() {
+        if ( executor != null ) {
+            executor.shutdownNow();
+        }
+    }
+
+
+    /** @return true if increments only write the finest resolution */
+    public boolean isEnabled() {
+        return counterUtils != null && counterUtils.isRollup();
+    }
+
+
+    /** Roll up the counters of every application */
+    public void rollup() {
+        Collection<UUID> applicationIds;
+
+        try {
+            applicationIds = emf.getApplications().values();
+        }
+        catch ( Exception e ) {
+            logger.error( "Unable to read the applications to roll up counters for", e );
+            return;
+        }
+
+        for ( UUID applicationId : applicationIds ) {
+            try {
+                rollup( applicationId );
+            }
+            catch ( Exception e ) {
+                // the pending minutes are kept, the next pass folds them again
+                logger.error( "Unable to roll up counters for application " + applicationId, e );
+            }
+        }
+    }
+
+
+    /**
+     * Fold the pending minutes of the application into the coarser resolutions. Skipped if another node is rolling up
+     * the application
+     *
+     * @return The new checkpoint, or -1 if skipped
+     */
+    public long rollup( UUID applicationId ) throws Exception {
+        Lock lock = lockManager.createLock( applicationId, DICTIONARY_COUNTER_ROLLUPS );
+
+        if ( !lock.tryLock( 0, TimeUnit.MILLISECONDS ) ) {
+            return -1;
+        }
+
+        try {
+            return fold( applicationId );
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    private long fold( UUID applicationId ) throws Exception {
+        Keyspace ko = cass.getApplicationKeyspace( applicationId );
+
+        long now = System.currentTimeMillis();
+        long lag = counterUtils.getRollupLag();
+        long checkpoint = CounterResolution.MINUTE.round( now - lag );
+
+        // minutes after the last checkpoint were marked after it, give or take the clock skew the lag allows for
+        long previous = getCheckpoint( applicationId );
+        long bucket = PENDING_BUCKET.round( previous > 0 ? previous - lag : now - FIRST_PASS_BACKLOG );
+
+        Map<Object, List<HColumn<ByteBuffer, ByteBuffer>>> rows =
+                new LinkedHashMap<Object, List<HColumn<ByteBuffer, ByteBuffer>>>();
+        Map<String, Set<Long>> pending = new HashMap<String, Set<Long>>();
+        int count = 0;
+
+        // every pending minute before the checkpoint, by the hour it was marked in
+        for ( ; bucket <= now && count < maxPending; bucket = PENDING_BUCKET.next( bucket ) ) {
+            Object row = pendingRow( applicationId, bucket );
+
+            List<HColumn<ByteBuffer, ByteBuffer>> columns =
+                    cass.getColumns( ko, ENTITY_DICTIONARIES, row, "", pendingColumn( checkpoint, "" ),
+                            maxPending - count, false );
+
+            if ( columns.isEmpty() ) {
+                continue;
+            }
+
+            long minute = 0;
+
+            for ( HColumn<ByteBuffer, ByteBuffer> column : columns ) {
+                String name = string( column.getName() );
+                minute = Long.parseLong( name.substring( 0, MINUTE_DIGITS ) );
+                String base = name.substring( MINUTE_DIGITS + 1 );
+
+                Set<Long> minutes = pending.get( base );
+
+                if ( minutes == null ) {
+                    minutes = new TreeSet<Long>();
+                    pending.put( base, minutes );
+                }
+
+                minutes.add( minute );
+            }
+
+            rows.put( row, columns );
+            count += columns.size();
+
+            // the rest of the last minute read may still be pending
+            if ( count == maxPending ) {
+                checkpoint = Math.min( checkpoint, minute );
+            }
+        }
+
+        // increments that time out are not retried on another host
+        Keyspace counters = cass.getApplicationKeyspace( applicationId, FailoverPolicy.FAIL_FAST );
+
+        for ( CounterResolution resolution : ROLLED_UP ) {
+            Mutator<ByteBuffer> m = createMutator( counters, be );
+
+            for ( Map.Entry<String, Set<Long>> entry : pending.entrySet() ) {
+                fold( ko, m, entry.getKey(), resolution, entry.getValue() );
+            }
+
+            // the next resolution is summed from this one. Not retried, if it fails the minutes are kept pending and
+            // the next pass adds whatever this one didn't
+            m.execute();
+        }
+
+        long timestamp = cass.createTimestamp();
+
+        Mutator<ByteBuffer> m = createMutator( ko, be );
+
+        addInsertToMutator( m, ENTITY_DICTIONARIES, key( applicationId, DICTIONARY_COUNTER_CHECKPOINTS ), CHECKPOINT,
+                checkpoint, timestamp );
+
+        // minutes marked again since they were read have a newer clock and are kept
+        for ( Map.Entry<Object, List<HColumn<ByteBuffer, ByteBuffer>>> entry : rows.entrySet() ) {
+            for ( HColumn<ByteBuffer, ByteBuffer> column : entry.getValue() ) {
+                m.addDeletion( bytebuffer( entry.getKey() ), ENTITY_DICTIONARIES.toString(), column.getName(), be,
+                        column.getClock() );
+            }
+        }
+
+        batchExecute( m, RETRY_COUNT );
+
+        if ( logger.isDebugEnabled() ) {
+            logger.debug( "Rolled up {} counter rows of application {} until {}",
+                    new Object[] { pending.size(), applicationId, checkpoint } );
+        }
+
+        return checkpoint;
+    }
+
+
+    /** Set the buckets of the resolution the minutes fall in to the sum of the finer resolution */
+    void fold( Keyspace ko, Mutator<ByteBuffer> m, String base, CounterResolution resolution, Set<Long> minutes ) {
+        CounterResolution source = getSource( resolution );
+
+        TreeSet<Long> buckets = new TreeSet<Long>();
+
+        for ( long minute : minutes ) {
+            buckets.add( resolution.round( minute ) );
+        }
+
+        String row = rowBuilder( base, resolution );
+        Map<Long, Long> current = read( ko, row, buckets.first(), buckets.last() );
+
+        for ( long bucket : buckets ) {
+            long sum = 0;
+
+            for ( long value : read( ko, rowBuilder( base, source ), bucket, resolution.next( bucket ) - 1 )
+                    .values() ) {
+                sum += value;
+            }
+
+            Long value = current.get( bucket );
+            long delta = sum - ( value != null ? value : 0 );
+
+            if ( delta != 0 ) {
+                m.addCounter( bytebuffer( row ), APPLICATION_AGGREGATE_COUNTERS.toString(),
+                        createCounterColumn( bucket, delta, le ) );
+            }
+        }
+    }
+
+
+    private Map<Long, Long> read( Keyspace ko, String row, long start, long finish ) {
+        return read( ko, Collections.singleton( row ), start, finish ).get( row );
+    }
+
+
+    /** @return The counters of the rows between the start and finish bucket, by row */
+    Map<String, Map<Long, Long>> read( Keyspace ko, Collection<String> rows, long start, long finish ) {
+        Map<String, Map<Long, Long>> values = new HashMap<String, Map<Long, Long>>();
+
+        for ( String row : rows ) {
+            values.put( row, new HashMap<Long, Long>() );
+        }
+
+        MultigetSliceCounterQuery<String, Long> q = createMultigetSliceCounterQuery( ko, se, le );
+        q.setColumnFamily( APPLICATION_AGGREGATE_COUNTERS.toString() );
+        q.setRange( start, finish, false, ALL_COUNT );
+        q.setKeys( rows );
+
+        for ( CounterRow<String, Long> row : q.execute().get() ) {
+            Map<Long, Long> counters = values.get( row.getKey() );
+
+            for ( HCounterColumn<Long> column : row.getColumnSlice().getColumns() ) {
+                counters.put( column.getName(), column.getValue() );
+            }
+        }
+
+        return values;
+    }
+
+
+    /** @return The minute everything before has been rolled up, or 0 if the application hasn't been */
+    public long getCheckpoint( UUID applicationId ) throws Exception {
+        HColumn<String, ByteBuffer> column =
+                cass.getColumn( cass.getApplicationKeyspace( applicationId ), ENTITY_DICTIONARIES,
+                        key( applicationId, DICTIONARY_COUNTER_CHECKPOINTS ), CHECKPOINT );
+
+        return column != null ? le.fromByteBuffer( column.getValue() ) : 0;
+    }
+
+
+    /**
+     * Read the counters of the rows between the start and finish bucket. Buckets the checkpoint hasn't passed are
+     * summed from the coarsest finer resolution that has them
+     *
+     * @param bases The rows without their resolution
+     *
+     * @return The counters by base, ordered by time
+     */
+    public Map<String, List<AggregateCounter>> getCounters( UUID applicationId, Collection<String> bases,
+                                                            CounterResolution resolution, long start, long finish )
+            throws Exception {
+        long checkpoint = isEnabled() ? getCheckpoint( applicationId ) : 0;
+
+        Map<String, SortedMap<Long, Long>> values =
+                read( cass.getApplicationKeyspace( applicationId ), bases, resolution, start, finish, checkpoint );
+
+        Map<String, List<AggregateCounter>> counters = new HashMap<String, List<AggregateCounter>>();
+
+        for ( Map.Entry<String, SortedMap<Long, Long>> entry : values.entrySet() ) {
+            List<AggregateCounter> list = new ArrayList<AggregateCounter>( entry.getValue().size() );
+
+            for ( Map.Entry<Long, Long> value : entry.getValue().entrySet() ) {
+                list.add( new AggregateCounter( value.getKey(), value.getValue() ) );
+            }
+
+            counters.put( entry.getKey(), list );
+        }
+
+        return counters;
+    }
+
+
+    Map<String, SortedMap<Long, Long>> read( Keyspace ko, Collection<String> bases, CounterResolution resolution,
+                                             long start, long finish, long checkpoint ) {
+        CounterResolution source = getSource( resolution );
+
+        // the buckets before this one have been folded
+        long ready = source != null && checkpoint > 0 ? resolution.round( checkpoint ) : Long.MAX_VALUE;
+
+        Map<String, SortedMap<Long, Long>> values = new HashMap<String, SortedMap<Long, Long>>();
+        Map<String, String> rows = new HashMap<String, String>();
+
+        for ( String base : bases ) {
+            values.put( base, new TreeMap<Long, Long>() );
+            rows.put( rowBuilder( base, resolution ), base );
+        }
+
+        if ( start < ready ) {
+            Map<String, Map<Long, Long>> head = read( ko, rows.keySet(), start, Math.min( finish, ready - 1 ) );
+
+            for ( Map.Entry<String, Map<Long, Long>> entry : head.entrySet() ) {
+                values.get( rows.get( entry.getKey() ) ).putAll( entry.getValue() );
+            }
+        }
+
+        if ( finish >= ready ) {
+            Map<String, SortedMap<Long, Long>> tail =
+                    read( ko, bases, source, Math.max( start, ready ), resolution.next( finish ) - 1, checkpoint );
+
+            for ( Map.Entry<String, SortedMap<Long, Long>> entry : tail.entrySet() ) {
+                SortedMap<Long, Long> counters = values.get( entry.getKey() );
+
+                for ( Map.Entry<Long, Long> value : entry.getValue().entrySet() ) {
+                    long bucket = resolution.round( value.getKey() );
+                    Long sum = counters.get( bucket );
+                    counters.put( bucket, ( sum != null ? sum : 0 ) + value.getValue() );
+                }
+            }
+        }
+
+        return values;
+    }
+
+
+    /** @return The row the minutes marked pending at the time are written to */
+    public static Object pendingRow( UUID applicationId, long timestamp ) {
+        return key( applicationId, DICTIONARY_COUNTER_ROLLUPS, PENDING_BUCKET.round( timestamp ) );
+    }
+
+
+    /** @return The column marking the minute of the row pending */
+    public static String pendingColumn( long minute, String base ) {
+        return StringUtils.leftPad( Long.toString( minute ), MINUTE_DIGITS, '0' ) + PENDING_SEPARATOR + base;
+    }
+
+
+    /**
+     * @return The coarsest resolution the buckets of the resolution are made of, or null if it isn't rolled up. Buckets
+     *         are aligned to multiples of their interval, so they're only made of buckets whose interval divides theirs
+     */
+    public static CounterResolution getSource( CounterResolution resolution ) {
+        if ( resolution == CounterResolution.ALL || resolution == CounterResolution.MINUTE ) {
+            return null;
+        }
+
+        CounterResolution source = null;
+
+        for ( CounterResolution finer : CounterResolution.values() ) {
+            if ( finer != CounterResolution.ALL && finer.interval() < resolution.interval()
+                    && resolution.interval() % finer.interval() == 0 ) {
+                source = finer;
+            }
+        }
+
+        return source;
+    }
+
+
+    public void setCassandraService( CassandraService cass ) {
+        this.cass = cass;
+    }
+
+
+    public void setEntityManagerFactory( EntityManagerFactory emf ) {
+        this.emf = emf;
+    }
+
+
+    public void setLockManager( LockManager lockManager ) {
+        this.lockManager = lockManager;
+    }
+
+
+    public void setCounterUtils( CounterUtils counterUtils ) {
+        this.counterUtils = counterUtils;
+    }
+
+
+    public void setInterval( long interval ) {
+        this.interval = interval;
+    }
+
+
+    public void setMaxPending( int maxPending ) {
+        this.maxPending = maxPending;
+    }
+}
@@ -37,6 +37,9 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.usergrid.count.Batcher;
 import org.apache.usergrid.count.common.Count;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 import me.prettyprint.cassandra.serializers.PrefixedSerializer;
 import me.prettyprint.hector.api.beans.HCounterColumn;
 import me.prettyprint.hector.api.mutation.Mutator;
@@ -57,10 +60,26 @@ public class CounterUtils {
 
     public static final Logger logger = LoggerFactory.getLogger( CounterUtils.class );
 
+    /** Dictionary of the rows with minutes that haven't been folded into the coarser resolutions yet */
+    public static final String DICTIONARY_COUNTER_ROLLUPS = "counter_rollups";
+
+    /** The resolutions written on every increment when the others are rolled up */
+    public static final CounterResolution[] ROLLUP_RESOLUTIONS = { CounterResolution.ALL, CounterResolution.MINUTE };
+
+    /** How long after a minute ends before it's rolled up, in milliseconds */
+    public static final long DEFAULT_ROLLUP_LAG = 120000;
+
     private String counterType = "o";
 
     private Batcher batcher;
 
+    private boolean rollup = false;
+
+    private long rollupLag = DEFAULT_ROLLUP_LAG;
+
+    /** The last minute each row was marked pending in, so it's only marked once a minute per node */
+    private final Cache<String, Long> pending = CacheBuilder.newBuilder().maximumSize( 10000 ).build();
+
 
     public void setBatcher( Batcher batcher ) {
         this.batcher = batcher;
@@ -83,6 +102,47 @@ public class CounterUtils {
     }
 
 
+    /**
+     * Write only the finest resolution on every increment, and leave the coarser ones to {@link CounterRollup}. Only
+     * applies to counters written directly ("o"), batched counters are written too late to know when a minute is
+     * complete
+     */
+    public void setRollup( boolean rollup ) {
+        this.rollup = rollup;
+    }
+
+
+    /** @return true if the coarse resolutions are rolled up rather than written on every increment */
+    public boolean isRollup() {
+        return rollup && "o".equals( counterType );
+    }
+
+
+    /** @return true if rollups are enabled, whether or not the counter type allows them */
+    public boolean isRollupRequested() {
+        return rollup;
+    }
+
+
+    public String getCounterType() {
+        return counterType;
+    }
+
+
+    /**
+     * How long after a minute ends before it's rolled up, in milliseconds. Must be longer than a write can take and the
+     * clock skew between nodes, counters written for an older minute are rolled up again on the next pass
+     */
+    public void setRollupLag( long rollupLag ) {
+        this.rollupLag = rollupLag;
+    }
+
+
+    public long getRollupLag() {
+        return rollupLag;
+    }
+
+
     public static class AggregateCounterSelection {
         public static final String COLON = ":";
         public static final String STAR = "*";
@@ -166,15 +226,33 @@ public class CounterUtils {
         }
 
 
+        /** @return The row without its resolution */
+        public String getBase() {
+            return baseBuilder( name, userId, groupId, queueId, category );
+        }
+
+
         public static String rowBuilder( String name, UUID userId, UUID groupId, UUID queueId, String category,
                                          CounterResolution resolution ) {
+            return baseBuilder( name, userId, groupId, queueId, category ) + COLON + resolution.name();
+        }
+
+
+        /** The row without its resolution, shared by the rows of every resolution */
+        public static String baseBuilder( String name, UUID userId, UUID groupId, UUID queueId, String category ) {
             StringBuilder builder = new StringBuilder( name );
             builder.append( COLON ).append( ( userId != null ? userId.toString() : STAR ) ).append( COLON )
                    .append( groupId != null ? groupId.toString() : STAR ).append( COLON )
                    .append( ( queueId != null ? queueId.toString() : STAR ) ).append( COLON )
-                   .append( ( category != null ? category : STAR ) ).append( COLON ).append( resolution.name() );
+                   .append( ( category != null ? category : STAR ) );
             return builder.toString();
         }
+
+
+        /** The row of the base for the resolution */
+        public static String rowBuilder( String base, CounterResolution resolution ) {
+            return base + COLON + resolution.name();
+        }
     }
 
 
@@ -223,10 +301,11 @@ public class CounterUtils {
     public void batchIncrementAggregateCounters( Mutator<ByteBuffer> m, UUID applicationId, UUID userId, UUID groupId,
                                                  UUID queueId, String category, String name, long value,
                                                  long counterTimestamp, long cassandraTimestamp ) {
-        for ( CounterResolution resolution : CounterResolution.values() ) {
+        CounterResolution[] resolutions = isRollup() ? ROLLUP_RESOLUTIONS : CounterResolution.values();
+        for ( CounterResolution resolution : resolutions ) {
             logger.debug( "BIAC for resolution {}", resolution );
             batchIncrementAggregateCounters( m, userId, groupId, queueId, category, resolution, name, value,
-                    counterTimestamp, applicationId );
+                    counterTimestamp, cassandraTimestamp, applicationId );
             logger.debug( "DONE BIAC for resolution {}", resolution );
         }
         batchIncrementEntityCounter( m, applicationId, name, value, cassandraTimestamp, applicationId );
@@ -241,7 +320,10 @@ public class CounterUtils {
 
     private void batchIncrementAggregateCounters( Mutator<ByteBuffer> m, UUID userId, UUID groupId, UUID queueId,
                                                   String category, CounterResolution resolution, String name,
-                                                  long value, long counterTimestamp, UUID applicationId ) {
+                                                  long value, long counterTimestamp, long cassandraTimestamp,
+                                                  UUID applicationId ) {
+
+        boolean markPending = isRollup() && resolution == CounterResolution.MINUTE;
 
         String[] segments = StringUtils.split( name, '.' );
         for ( int j = 0; j < segments.length; j++ ) {
@@ -252,10 +334,12 @@ public class CounterUtils {
             }
 
             // *:*:*:*
-            handleAggregateCounterRow( m,
-                    AggregateCounterSelection.rowBuilder( name, null, null, null, null, resolution ),
+            String currentRow = AggregateCounterSelection.baseBuilder( name, null, null, null, null );
+            handleAggregateCounterRow( m, AggregateCounterSelection.rowBuilder( currentRow, resolution ),
                     resolution.round( counterTimestamp ), value, applicationId );
-            String currentRow = null;
+            if ( markPending ) {
+                addPendingRollup( m, applicationId, currentRow, counterTimestamp, cassandraTimestamp );
+            }
             HashSet<String> rowSet = new HashSet<String>( 16 );
             for ( int i = 0; i < 16; i++ ) {
 
@@ -275,13 +359,16 @@ public class CounterUtils {
                     }
                 }
                 currentRow = AggregateCounterSelection
-                        .rowBuilder( name, ( UUID ) parameters[0], ( UUID ) parameters[1], ( UUID ) parameters[2],
-                                ( String ) parameters[3], resolution );
+                        .baseBuilder( name, ( UUID ) parameters[0], ( UUID ) parameters[1], ( UUID ) parameters[2],
+                                ( String ) parameters[3] );
 
                 if ( non_null > 0 && !rowSet.contains( currentRow ) ) {
                     rowSet.add( currentRow );
-                    handleAggregateCounterRow( m, currentRow, resolution.round( counterTimestamp ), value,
-                            applicationId );
+                    handleAggregateCounterRow( m, AggregateCounterSelection.rowBuilder( currentRow, resolution ),
+                            resolution.round( counterTimestamp ), value, applicationId );
+                    if ( markPending ) {
+                        addPendingRollup( m, applicationId, currentRow, counterTimestamp, cassandraTimestamp );
+                    }
                 }
             }
         }
@@ -310,6 +397,36 @@ public class CounterUtils {
     }
 
 
+    /**
+     * Mark the minute of the row as pending, so {@link CounterRollup} folds it into the coarser resolutions. Rows are
+     * only marked once a minute per node, unless the minute may already have been rolled up. Marks are written to the
+     * row of the hour they're written in, not the hour of the minute, so a pass only reads the hours since its last
+     * checkpoint
+     */
+    private void addPendingRollup( Mutator<ByteBuffer> m, UUID applicationId, String base, long counterTimestamp,
+                                   long cassandraTimestamp ) {
+        if ( m == null ) {
+            return;
+        }
+
+        long minute = CounterResolution.MINUTE.round( counterTimestamp );
+        boolean late = minute < CounterResolution.MINUTE.round( System.currentTimeMillis() - rollupLag );
+
+        String cached = applicationId + AggregateCounterSelection.COLON + base;
+        Long marked = pending.getIfPresent( cached );
+
+        if ( !late && marked != null && marked == minute ) {
+            return;
+        }
+
+        pending.put( cached, minute );
+
+        addInsertToMutator( m, ENTITY_DICTIONARIES,
+                CounterRollup.pendingRow( applicationId, System.currentTimeMillis() ),
+                CounterRollup.pendingColumn( minute, base ), null, cassandraTimestamp );
+    }
+
+
     public AggregateCounterSelection getAggregateCounterSelection( String name, UUID userId, UUID groupId, UUID queueId,
                                                                    String category ) {
         return new AggregateCounterSelection( name, userId, groupId, queueId, category );
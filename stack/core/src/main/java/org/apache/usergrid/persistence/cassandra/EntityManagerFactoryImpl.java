@@ -21,12 +21,14 @@ import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
+import org.apache.usergrid.clustering.hazelcast.InvalidatingCache;
 import org.apache.usergrid.persistence.DynamicEntity;
 import org.apache.usergrid.persistence.EntityManager;
 import org.apache.usergrid.persistence.EntityManagerFactory;
@@ -82,6 +84,9 @@ public class EntityManagerFactoryImpl implements EntityManagerFactory, Applicati
 
     public static final Class<DynamicEntity> APPLICATION_ENTITY_CLASS = DynamicEntity.class;
 
+    /** How long application ids are cached by name, in milliseconds */
+    public static final long DEFAULT_APPLICATION_ID_TTL = 300000;
+
 
     ApplicationContext applicationContext;
 
@@ -90,6 +95,10 @@ public class EntityManagerFactoryImpl implements EntityManagerFactory, Applicati
 
     private boolean skipAggregateCounters;
 
+    /** Application ids by name, read on nearly every request */
+    private InvalidatingCache<UUID> applicationIds =
+            new InvalidatingCache<UUID>( "applicationIds", 10000, DEFAULT_APPLICATION_ID_TTL );
+
     private LoadingCache<UUID, EntityManager> entityManagers =
             CacheBuilder.newBuilder().maximumSize( 100 ).build( new CacheLoader<UUID, EntityManager>() {
                 public EntityManager load( UUID appId ) { // no checked exception
@@ -251,6 +260,8 @@ public class EntityManagerFactoryImpl implements EntityManagerFactory, Applicati
 
         batchExecute( m, RETRY_COUNT );
 
+        applicationIds.invalidate( appName );
+
         EntityManager em = getEntityManager( applicationId );
         em.create( TYPE_APPLICATION, APPLICATION_ENTITY_CLASS, properties );
 
@@ -281,13 +292,19 @@ public class EntityManagerFactoryImpl implements EntityManagerFactory, Applicati
     @Override
     @Metered(group = "core", name = "EntityManagerFactory_lookupApplication_byName")
     public UUID lookupApplication( String name ) throws Exception {
-        name = name.toLowerCase();
-        HColumn<String, ByteBuffer> column =
-                cass.getColumn( cass.getSystemKeyspace(), APPLICATIONS_CF, name, PROPERTY_UUID );
-        if ( column != null ) {
-            return uuid( column.getValue() );
-        }
-        return null;
+        final String appName = name.toLowerCase();
+
+        return applicationIds.get( appName, new Callable<UUID>() {
+            @Override
+            public UUID call() throws Exception {
+                HColumn<String, ByteBuffer> column =
+                        cass.getColumn( cass.getSystemKeyspace(), APPLICATIONS_CF, appName, PROPERTY_UUID );
+                if ( column != null ) {
+                    return uuid( column.getValue() );
+                }
+                return null;
+            }
+        } );
     }
 
 
@@ -302,15 +319,11 @@ public class EntityManagerFactoryImpl implements EntityManagerFactory, Applicati
      */
     @Metered(group = "core", name = "EntityManagerFactory_getApplication")
     public Application getApplication( String name ) throws Exception {
-        name = name.toLowerCase();
-        HColumn<String, ByteBuffer> column =
-                cass.getColumn( cass.getSystemKeyspace(), APPLICATIONS_CF, name, PROPERTY_UUID );
-        if ( column == null ) {
+        UUID applicationId = lookupApplication( name );
+        if ( applicationId == null ) {
             return null;
         }
 
-        UUID applicationId = uuid( column.getValue() );
-
         EntityManager em = getEntityManager( applicationId );
         return ( ( EntityManagerImpl ) em ).getEntity( applicationId, Application.class );
     }
@@ -393,6 +406,12 @@ public class EntityManagerFactoryImpl implements EntityManagerFactory, Applicati
     }
 
 
+    /** Replace the cache of application ids by name, I.E. with one that is clustered */
+    public void setApplicationIdCache( InvalidatingCache<UUID> applicationIds ) {
+        this.applicationIds = applicationIds;
+    }
+
+
     public void setCounterUtils( CounterUtils counterUtils ) {
         this.counterUtils = counterUtils;
     }
@@ -30,17 +30,25 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Resource;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationContext;
 import org.springframework.util.Assert;
+import org.apache.usergrid.batch.job.CompositeIndexBackfillJob;
+import org.apache.usergrid.batch.job.ConnectionShardMoveJob;
+import org.apache.usergrid.batch.job.EntityCleanupJob;
+import org.apache.usergrid.batch.service.SchedulerService;
 import org.apache.usergrid.locking.Lock;
+import org.apache.usergrid.locking.exception.UGLockException;
 import org.apache.usergrid.mq.Message;
 import org.apache.usergrid.mq.QueueManager;
 import org.apache.usergrid.mq.cassandra.QueueManagerFactoryImpl;
@@ -58,6 +66,7 @@ import org.apache.usergrid.persistence.EntityRef;
 import org.apache.usergrid.persistence.Identifier;
 import org.apache.usergrid.persistence.IndexBucketLocator;
 import org.apache.usergrid.persistence.IndexBucketLocator.IndexType;
+import org.apache.usergrid.persistence.IndexStatistics;
 import org.apache.usergrid.persistence.Query;
 import org.apache.usergrid.persistence.Query.CounterFilterPredicate;
 import org.apache.usergrid.persistence.Results;
@@ -73,6 +82,7 @@ import org.apache.usergrid.persistence.cassandra.util.TraceParticipant;
 import org.apache.usergrid.persistence.entities.Application;
 import org.apache.usergrid.persistence.entities.Event;
 import org.apache.usergrid.persistence.entities.Group;
+import org.apache.usergrid.persistence.entities.JobData;
 import org.apache.usergrid.persistence.entities.Role;
 import org.apache.usergrid.persistence.entities.User;
 import org.apache.usergrid.persistence.exceptions.DuplicateUniquePropertyExistsException;
@@ -81,27 +91,26 @@ import org.apache.usergrid.persistence.exceptions.RequiredPropertyNotFoundExcept
 import org.apache.usergrid.persistence.exceptions.UnexpectedEntityTypeException;
 import org.apache.usergrid.persistence.hector.CountingMutator;
 import org.apache.usergrid.persistence.schema.CollectionInfo;
+import org.apache.usergrid.persistence.schema.CompositeIndexInfo;
 import org.apache.usergrid.utils.ClassUtils;
 import org.apache.usergrid.utils.CompositeUtils;
 import org.apache.usergrid.utils.UUIDUtils;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 import com.yammer.metrics.annotation.Metered;
 
 import me.prettyprint.hector.api.Keyspace;
 import me.prettyprint.hector.api.beans.ColumnSlice;
-import me.prettyprint.hector.api.beans.CounterRow;
-import me.prettyprint.hector.api.beans.CounterRows;
 import me.prettyprint.hector.api.beans.CounterSlice;
 import me.prettyprint.hector.api.beans.DynamicComposite;
 import me.prettyprint.hector.api.beans.HColumn;
 import me.prettyprint.hector.api.beans.HCounterColumn;
 import me.prettyprint.hector.api.beans.Row;
 import me.prettyprint.hector.api.beans.Rows;
-import me.prettyprint.hector.api.factory.HFactory;
 import me.prettyprint.hector.api.mutation.Mutator;
-import me.prettyprint.hector.api.query.MultigetSliceCounterQuery;
 import me.prettyprint.hector.api.query.QueryResult;
 import me.prettyprint.hector.api.query.SliceCounterQuery;
 
@@ -112,6 +121,8 @@ import static me.prettyprint.hector.api.factory.HFactory.createCounterSliceQuery
 
 import static org.apache.commons.lang.StringUtils.capitalize;
 import static org.apache.commons.lang.StringUtils.isBlank;
+import static org.apache.usergrid.locking.LockHelper.getCompositeIndexBackfillLock;
+import static org.apache.usergrid.locking.LockHelper.getCompositeIndexLock;
 import static org.apache.usergrid.locking.LockHelper.getUniqueUpdateLock;
 import static org.apache.usergrid.persistence.Results.Level.REFS;
 import static org.apache.usergrid.persistence.Results.fromEntities;
@@ -148,16 +159,20 @@ import static org.apache.usergrid.persistence.cassandra.ApplicationCF.ENTITY_COM
 import static org.apache.usergrid.persistence.cassandra.ApplicationCF.ENTITY_COUNTERS;
 import static org.apache.usergrid.persistence.cassandra.ApplicationCF.ENTITY_DICTIONARIES;
 import static org.apache.usergrid.persistence.cassandra.ApplicationCF.ENTITY_ID_SETS;
+import static org.apache.usergrid.persistence.cassandra.ApplicationCF.ENTITY_INDEX_ENTRIES;
 import static org.apache.usergrid.persistence.cassandra.ApplicationCF.ENTITY_PROPERTIES;
 import static org.apache.usergrid.persistence.cassandra.ApplicationCF.ENTITY_UNIQUE;
 import static org.apache.usergrid.persistence.cassandra.CassandraPersistenceUtils.addDeleteToMutator;
+import static org.apache.usergrid.persistence.cassandra.CassandraPersistenceUtils.asMap;
 import static org.apache.usergrid.persistence.cassandra.CassandraPersistenceUtils.addInsertToMutator;
 import static org.apache.usergrid.persistence.cassandra.CassandraPersistenceUtils.addPropertyToMutator;
 import static org.apache.usergrid.persistence.cassandra.CassandraPersistenceUtils.batchExecute;
 import static org.apache.usergrid.persistence.cassandra.CassandraPersistenceUtils.key;
 import static org.apache.usergrid.persistence.cassandra.CassandraPersistenceUtils.toStorableBinaryValue;
 import static org.apache.usergrid.persistence.cassandra.CassandraService.ALL_COUNT;
+import static org.apache.usergrid.persistence.cassandra.CassandraService.MANAGEMENT_APPLICATION_ID;
 import static org.apache.usergrid.utils.ClassUtils.cast;
+import static org.apache.usergrid.utils.CompositeUtils.setGreaterThanEqualityFlag;
 import static org.apache.usergrid.utils.ConversionUtils.bytebuffer;
 import static org.apache.usergrid.utils.ConversionUtils.getLong;
 import static org.apache.usergrid.utils.ConversionUtils.object;
@@ -198,9 +213,37 @@ public class EntityManagerImpl implements EntityManager {
     private CassandraService cass;
     @Resource
     private CounterUtils counterUtils;
+    @Resource
+    private CounterRollup counterRollup;
+    @Resource
+    private SchedulerService schedulerService;
 
     private boolean skipAggregateCounters;
 
+    /** Hide deleted entities right away and clean them up in the background */
+    private boolean asyncDelete;
+
+    /** Leave the indexes of fulltext properties alone when they're updated with the same text */
+    private boolean skipUnchangedText;
+
+    /** Splits the connection rows of entities with many connections, created on first use */
+    private volatile ConnectionShardLocator connectionShardLocator;
+
+    private int connectionShardThreshold = ConnectionShardLocator.DEFAULT_THRESHOLD;
+    private int connectionShards = ConnectionShardLocator.DEFAULT_SHARDS;
+    private int connectionShardCheckInterval = ConnectionShardLocator.DEFAULT_CHECK_INTERVAL;
+    private long connectionShardCacheTtl = ConnectionShardLocator.DEFAULT_CACHE_TTL;
+
+    /** Index statistics read for query planning, by owner and collection */
+    private Cache<String, Map<String, IndexStatistics>> indexStatistics =
+            CacheBuilder.newBuilder().maximumSize( 1000 ).expireAfterWrite( 300000, TimeUnit.MILLISECONDS )
+                        .<String, Map<String, IndexStatistics>>build();
+
+    /** Composite indexes built for query planning, by owner and collection */
+    private Cache<String, Set<String>> builtCompositeIndexes =
+            CacheBuilder.newBuilder().maximumSize( 1000 ).expireAfterWrite( 60000, TimeUnit.MILLISECONDS )
+                        .<String, Set<String>>build();
+
     public EntityManagerImpl() {
     }
 
@@ -227,6 +270,121 @@ public class EntityManagerImpl implements EntityManager {
 
     public void setApplicationId( UUID applicationId ) {
         this.applicationId = applicationId;
+        this.connectionShardLocator = null;
+    }
+
+
+    /** The number of connections of an entity by type that splits them in shards, 0 to never split them */
+    @Value( "${usergrid.connections.shard.threshold:100000}" )
+    public void setConnectionShardThreshold( int connectionShardThreshold ) {
+        this.connectionShardThreshold = connectionShardThreshold;
+        this.connectionShardLocator = null;
+    }
+
+
+    /** The number of shards to split the connections of an entity by type in */
+    @Value( "${usergrid.connections.shard.count:16}" )
+    public void setConnectionShards( int connectionShards ) {
+        this.connectionShards = connectionShards;
+        this.connectionShardLocator = null;
+    }
+
+
+    /** How many connections written to an entity's row on this node between reads of its size */
+    @Value( "${usergrid.connections.shard.check:1000}" )
+    public void setConnectionShardCheckInterval( int connectionShardCheckInterval ) {
+        this.connectionShardCheckInterval = connectionShardCheckInterval;
+        this.connectionShardLocator = null;
+    }
+
+
+    /** How long to keep the split connection rows of the application, in milliseconds */
+    @Value( "${usergrid.connections.shard.cache:60000}" )
+    public void setConnectionShardCacheTtl( long connectionShardCacheTtl ) {
+        this.connectionShardCacheTtl = connectionShardCacheTtl;
+        this.connectionShardLocator = null;
+    }
+
+
+    public ConnectionShardLocator getConnectionShardLocator() {
+        ConnectionShardLocator locator = connectionShardLocator;
+
+        if ( locator == null ) {
+            synchronized ( this ) {
+                locator = connectionShardLocator;
+
+                if ( locator == null ) {
+                    locator = new ConnectionShardLocator( cass, applicationId, connectionShardThreshold,
+                            connectionShards, connectionShardCheckInterval, connectionShardCacheTtl );
+                    connectionShardLocator = locator;
+                }
+            }
+        }
+
+        return locator;
+    }
+
+
+    /**
+     * Schedule moving the entries of the first shard of a connection row that was just split to their shards. The
+     * move starts once the other nodes have read the split, until then they read only the first shard
+     */
+    public void scheduleConnectionShardMove( UUID entityId, String dictionaryType, String connectionType ) {
+        schedulerService.createJob( ConnectionShardMoveJob.NAME,
+                System.currentTimeMillis() + getConnectionShardLocator().getCacheTtl(),
+                ConnectionShardMoveJob.createJobData( applicationId, entityId, dictionaryType, connectionType ) );
+    }
+
+
+    /**
+     * How long to keep the index statistics of a collection before reading them again, in milliseconds, 0 to read them
+     * for every query
+     */
+    @Value( "${usergrid.index.statistics.cache:300000}" )
+    public void setIndexStatisticsCacheTtl( long indexStatisticsCacheTtl ) {
+        indexStatistics = indexStatisticsCacheTtl <= 0 ? null :
+                          CacheBuilder.newBuilder().maximumSize( 1000 )
+                                      .expireAfterWrite( indexStatisticsCacheTtl, TimeUnit.MILLISECONDS )
+                                      .<String, Map<String, IndexStatistics>>build();
+    }
+
+
+    /**
+     * How long to keep which composite indexes of a collection are built before reading it again, in milliseconds, 0
+     * to read it for every query
+     */
+    @Value( "${usergrid.index.composite.cache:60000}" )
+    public void setCompositeIndexCacheTtl( long compositeIndexCacheTtl ) {
+        builtCompositeIndexes = compositeIndexCacheTtl <= 0 ? null :
+                                CacheBuilder.newBuilder().maximumSize( 1000 )
+                                            .expireAfterWrite( compositeIndexCacheTtl, TimeUnit.MILLISECONDS )
+                                            .<String, Set<String>>build();
+    }
+
+
+    /**
+     * Delete entities by hiding them and leaving their connections, indexes and dictionaries to the {@link
+     * EntityCleanupJob}, so a delete costs about as much as a write instead of growing with the entity's relations.
+     * Queries that don't load the entities read whether the ones they return are hidden, once per page
+     */
+    @Value( "${usergrid.entity.delete.async:false}" )
+    public void setAsyncDelete( boolean asyncDelete ) {
+        this.asyncDelete = asyncDelete;
+    }
+
+
+    /**
+     * Skip the reindexing of fulltext properties updated with the text they already have, compared by a hash kept in
+     * their index ledger. Leave this off to rebuild the indexes by writing the entities again
+     */
+    @Value( "${usergrid.index.skip.unchanged:false}" )
+    public void setSkipUnchangedText( boolean skipUnchangedText ) {
+        this.skipUnchangedText = skipUnchangedText;
+    }
+
+
+    public boolean isSkipUnchangedText() {
+        return skipUnchangedText;
     }
 
 
@@ -295,6 +453,21 @@ public class EntityManagerImpl implements EntityManager {
     public Mutator<ByteBuffer> batchSetProperty( Mutator<ByteBuffer> batch, EntityRef entity, String propertyName,
                                                  Object propertyValue, boolean force, boolean noRead,
                                                  UUID timestampUuid ) throws Exception {
+        return batchSetProperty( batch, entity, propertyName, propertyValue, force, noRead, timestampUuid, null,
+                null );
+    }
+
+
+    /**
+     * @param relationManager The relation manager of the entity to update the indexes with, may be null
+     * @param uniqueOwners The owners of the unique values written, read at once for all properties while the caller
+     * holds their locks, see {@link #lockUniqueProperties(String, Map)}. When null the value is locked and its owners
+     * read here
+     */
+    private Mutator<ByteBuffer> batchSetProperty( Mutator<ByteBuffer> batch, EntityRef entity, String propertyName,
+                                                  Object propertyValue, boolean force, boolean noRead,
+                                                  UUID timestampUuid, RelationManagerImpl relationManager,
+                                                  Map<Object, Set<UUID>> uniqueOwners ) throws Exception {
 
         long timestamp = getTimestampInMicros( timestampUuid );
 
@@ -336,37 +509,55 @@ public class EntityManagerImpl implements EntityManager {
              */
             if ( defaultSchema.getEntityInfo( entity.getType() ).isPropertyUnique( propertyName ) ) {
 
-                Lock lock = getUniqueUpdateLock( cass.getLockManager(), applicationId, propertyValue, entity.getType(),
-                        propertyName );
+                String collectionName = Schema.defaultCollectionName( entity.getType() );
+
+                // the caller holds the lock and read the owners already
+                Lock lock = uniqueOwners != null ? null :
+                            getUniqueUpdateLock( cass.getLockManager(), applicationId, propertyValue,
+                                    entity.getType(), propertyName );
 
                 try {
-                    lock.lock();
+                    Set<UUID> owners = null;
+
+                    if ( lock != null ) {
+                        lock.lock();
 
-                    if ( !isPropertyValueUniqueForEntity( entity.getUuid(), entity.getType(), propertyName,
-                            propertyValue ) ) {
+                        if ( propertyValue != null ) {
+                            owners = getUUIDsForUniqueProperty( applicationId, entity.getType(), propertyName,
+                                    propertyValue );
+                        }
+                    }
+                    else if ( propertyValue != null ) {
+                        owners = uniqueOwners.get(
+                                createUniqueIndexKey( applicationId, collectionName, propertyName, propertyValue ) );
+                    }
+
+                    if ( owners != null && !owners.isEmpty() && !owners.contains( entity.getUuid() ) ) {
                         throw new DuplicateUniquePropertyExistsException( entity.getType(), propertyName,
                                 propertyValue );
                     }
 
-
-                    String collectionName = Schema.defaultCollectionName( entity.getType() );
-
                     uniquePropertyDelete( batch, collectionName, entity.getType(), propertyName, propertyValue,
                             entity.getUuid(), timestamp - 1 );
                     uniquePropertyWrite( batch, collectionName, propertyName, propertyValue, entity.getUuid(),
                             timestamp );
                 }
                 finally {
-                    lock.unlock();
+                    if ( lock != null ) {
+                        lock.unlock();
+                    }
                 }
             }
         }
 
         if ( getDefaultSchema().isPropertyIndexed( entity.getType(), propertyName ) ) {
+            if ( relationManager == null ) {
+                relationManager = getRelationManager( entity );
+            }
+
             //this call is incorrect.  The current entity is NOT the head entity
-            getRelationManager( entity )
-                    .batchUpdatePropertyIndexes( batch, propertyName, propertyValue, entitySchemaHasProperty, noRead,
-                            timestampUuid );
+            relationManager.batchUpdatePropertyIndexes( batch, propertyName, propertyValue, entitySchemaHasProperty,
+                    noRead, timestampUuid );
         }
 
 
@@ -406,12 +597,42 @@ public class EntityManagerImpl implements EntityManager {
                                                       Map<String, Object> properties, UUID timestampUuid )
             throws Exception {
 
+        RelationManagerImpl relationManager = null;
+        int indexed = 0;
+
         for ( String propertyName : properties.keySet() ) {
-            Object propertyValue = properties.get( propertyName );
+            if ( getDefaultSchema().isPropertyIndexed( entity.getType(), propertyName ) ) {
+                indexed++;
+            }
+        }
 
-            batch = batchSetProperty( batch, entity, propertyName, propertyValue, timestampUuid );
+        // read the previous index entries of all the properties at once
+        if ( indexed > 1 ) {
+            relationManager = getRelationManager( entity );
+            relationManager.prefetchIndexEntries();
         }
 
+        List<Lock> uniqueLocks = lockUniqueProperties( entity.getType(), properties );
+
+        try {
+            Map<Object, Set<UUID>> uniqueOwners = getUniquePropertyOwners( entity.getType(), properties );
+
+            for ( String propertyName : properties.keySet() ) {
+                Object propertyValue = properties.get( propertyName );
+
+                batch = batchSetProperty( batch, entity, propertyName, propertyValue, false, false, timestampUuid,
+                        relationManager, uniqueOwners );
+            }
+        }
+        finally {
+            unlockUniqueProperties( uniqueLocks );
+        }
+
+        if ( relationManager == null ) {
+            relationManager = getRelationManager( entity );
+        }
+        relationManager.batchUpdateCombinedIndexes( batch, properties, false, timestampUuid );
+
         return batch;
     }
 
@@ -533,36 +754,129 @@ public class EntityManagerImpl implements EntityManager {
 
         Object key = createUniqueIndexKey( ownerEntityId, collectionNameInternal, propertyName, propertyValue );
 
-        List<HColumn<ByteBuffer, ByteBuffer>> cols =
-                cass.getColumns( cass.getApplicationKeyspace( applicationId ), ENTITY_UNIQUE, key, null, null, 2,
-                        false );
+        return getUUIDsForUniqueKeys( Collections.singletonList( key ) ).get( key );
+    }
 
 
-        //No columns at all, it's unique
-        if ( cols.size() == 0 ) {
-            return Collections.emptySet();
+    /**
+     * Return the UUIDs that have each unique value, reading all of them at once
+     *
+     * @param keys The unique index keys
+     *
+     * @return The UUIDs by key, empty if none have it
+     */
+    private Map<Object, Set<UUID>> getUUIDsForUniqueKeys( List<Object> keys ) throws Exception {
+        Map<Object, Set<UUID>> results = new HashMap<Object, Set<UUID>>();
+
+        Map<ByteBuffer, List<HColumn<ByteBuffer, ByteBuffer>>> rows =
+                cass.multiGetColumns( cass.getApplicationKeyspace( applicationId ), ENTITY_UNIQUE, keys, null, null,
+                        2, false );
+
+        for ( Object key : keys ) {
+            List<HColumn<ByteBuffer, ByteBuffer>> cols = rows.get( bytebuffer( key ) );
+
+            //No columns at all, it's unique
+            if ( cols == null || cols.size() == 0 ) {
+                results.put( key, Collections.<UUID>emptySet() );
+                continue;
+            }
+
+            //shouldn't happen, but it's an error case
+            if ( cols.size() > 1 ) {
+                logger.error( "INDEX CORRUPTION: More than 1 unique value exists for entities with key {}", key );
+            }
+
+            /**
+             * Doing this in a loop sucks, but we need to account for possibly having more than 1 entry in the index due
+             * to corruption.  We need to allow them to update, otherwise
+             * both entities will be unable to update and must be deleted
+             */
+
+            Set<UUID> owners = new HashSet<UUID>( cols.size() );
+
+            for ( HColumn<ByteBuffer, ByteBuffer> col : cols ) {
+                owners.add( ue.fromByteBuffer( col.getName() ) );
+            }
+
+            results.put( key, owners );
         }
 
-        //shouldn't happen, but it's an error case
-        if ( cols.size() > 1 ) {
-            logger.error( "INDEX CORRUPTION: More than 1 unique value exists for entities in ownerId {} of type {} on "
-                    + "property {} with value {}",
-                    new Object[] { ownerEntityId, collectionNameInternal, propertyName, propertyValue } );
+        return results;
+    }
+
+
+    /**
+     * Read the owners of the values of all the unique properties written at once. Callers hold the locks from {@link
+     * #lockUniqueProperties(String, Map)} so no other entity can claim a value after it was read
+     *
+     * @return The owners by unique index key, or null if none of the properties are unique
+     */
+    private Map<Object, Set<UUID>> getUniquePropertyOwners( String entityType, Map<String, Object> properties )
+            throws Exception {
+        String collectionName = defaultCollectionName( entityType );
+        List<Object> keys = new ArrayList<Object>();
+
+        for ( Map.Entry<String, Object> unique : getUniqueValues( entityType, properties ).entrySet() ) {
+            keys.add( createUniqueIndexKey( applicationId, collectionName, unique.getKey(), unique.getValue() ) );
         }
 
-        /**
-         * Doing this in a loop sucks, but we need to account for possibly having more than 1 entry in the index due
-         * to corruption.  We need to allow them to update, otherwise
-         * both entities will be unable to update and must be deleted
-         */
+        return keys.isEmpty() ? null : getUUIDsForUniqueKeys( keys );
+    }
 
-        Set<UUID> results = new HashSet<UUID>( cols.size() );
 
-        for ( HColumn<ByteBuffer, ByteBuffer> col : cols ) {
-            results.add( ue.fromByteBuffer( col.getName() ) );
+    /**
+     * Lock the values of all the unique properties written. Locks are taken in property name order so two writers
+     * sharing values can't deadlock
+     *
+     * @return The locks taken, to release with {@link #unlockUniqueProperties(List)}
+     */
+    private List<Lock> lockUniqueProperties( String entityType, Map<String, Object> properties ) throws Exception {
+        List<Lock> locks = new ArrayList<Lock>();
+
+        try {
+            for ( Map.Entry<String, Object> unique : getUniqueValues( entityType, properties ).entrySet() ) {
+                Lock lock = getUniqueUpdateLock( cass.getLockManager(), applicationId, unique.getValue(), entityType,
+                        unique.getKey() );
+                lock.lock();
+                locks.add( lock );
+            }
+        }
+        catch ( Exception e ) {
+            unlockUniqueProperties( locks );
+            throw e;
         }
 
-        return results;
+        return locks;
+    }
+
+
+    private void unlockUniqueProperties( List<Lock> locks ) throws UGLockException {
+        for ( int i = locks.size() - 1; i >= 0; i-- ) {
+            locks.get( i ).unlock();
+        }
+    }
+
+
+    /** @return The validated values of the unique properties that aren't null, sorted by property name */
+    private SortedMap<String, Object> getUniqueValues( String entityType, Map<String, Object> properties )
+            throws Exception {
+        Schema schema = getDefaultSchema();
+        SortedMap<String, Object> values = new TreeMap<String, Object>();
+
+        for ( Map.Entry<String, Object> property : properties.entrySet() ) {
+            if ( property.getValue() == null || !schema.isPropertyUnique( entityType, property.getKey() ) ) {
+                continue;
+            }
+
+            // the value is validated before it's checked
+            Object value = schema.validateEntityPropertyValue( entityType, property.getKey(), property.getValue() );
+
+            if ( value != null ) {
+                values.put( property.getKey(), value );
+            }
+        }
+
+        return values;
     }
 
 
@@ -646,11 +960,19 @@ public class EntityManagerImpl implements EntityManager {
 
         String propertyName = Schema.getDefaultSchema().aliasProperty( collectionName );
 
-        Map<String, EntityRef> results = new HashMap<String, EntityRef>();
+        String collectionNameInternal = defaultCollectionName( collectionName );
+        List<Object> keys = new ArrayList<Object>( aliases.size() );
 
         for ( String alias : aliases ) {
-            for ( UUID id : getUUIDsForUniqueProperty( ownerId, collectionName, propertyName, alias ) ) {
-                results.put( alias, new SimpleEntityRef( collectionName, id ) );
+            keys.add( createUniqueIndexKey( ownerId, collectionNameInternal, propertyName, alias ) );
+        }
+
+        Map<Object, Set<UUID>> owners = getUUIDsForUniqueKeys( keys );
+        Map<String, EntityRef> results = new HashMap<String, EntityRef>();
+
+        for ( int i = 0; i < aliases.size(); i++ ) {
+            for ( UUID id : owners.get( keys.get( i ) ) ) {
+                results.put( aliases.get( i ), new SimpleEntityRef( collectionName, id ) );
             }
         }
 
@@ -880,24 +1202,36 @@ public class EntityManagerImpl implements EntityManager {
             return entity;
         }
 
-        for ( String prop_name : properties.keySet() ) {
+        List<Lock> uniqueLocks = lockUniqueProperties( entity.getType(), properties );
 
-            Object propertyValue = properties.get( prop_name );
+        try {
+            Map<Object, Set<UUID>> uniqueOwners = getUniquePropertyOwners( entity.getType(), properties );
 
-            if ( propertyValue == null ) {
-                continue;
-            }
+            for ( String prop_name : properties.keySet() ) {
 
+                Object propertyValue = properties.get( prop_name );
 
-            if ( User.ENTITY_TYPE.equals( entityType ) && "me".equals( prop_name ) ) {
-                throw new DuplicateUniquePropertyExistsException( entityType, prop_name, propertyValue );
-            }
+                if ( propertyValue == null ) {
+                    continue;
+                }
+
+
+                if ( User.ENTITY_TYPE.equals( entityType ) && "me".equals( prop_name ) ) {
+                    throw new DuplicateUniquePropertyExistsException( entityType, prop_name, propertyValue );
+                }
 
-            entity.setProperty( prop_name, propertyValue );
+                entity.setProperty( prop_name, propertyValue );
 
-            batchSetProperty( m, entity, prop_name, propertyValue, true, true, timestampUuid );
+                batchSetProperty( m, entity, prop_name, propertyValue, true, true, timestampUuid, null,
+                        uniqueOwners );
+            }
+        }
+        finally {
+            unlockUniqueProperties( uniqueLocks );
         }
 
+        getRelationManager( entity ).batchUpdateCombinedIndexes( m, properties, true, timestampUuid );
+
         if ( !is_application ) {
             incrementEntityCollection( collection_name, timestamp );
         }
@@ -1378,13 +1712,92 @@ public class EntityManagerImpl implements EntityManager {
             return;
         }
 
+        UUID timestampUuid = newTimeUUID();
+        properties.put( PROPERTY_MODIFIED, getTimestampInMillis( timestampUuid ) );
+
+        updateLockedProperties( entity, properties, timestampUuid );
+    }
+
+
+    /** Update the properties of an entity in a batch of its own, under its composite index lock if it needs it */
+    private void updateLockedProperties( EntityRef entity, Map<String, Object> properties, UUID timestampUuid )
+            throws Exception {
+        Lock lock = lockCompositeIndexes( entity, properties.keySet() );
+
+        try {
+            Mutator<ByteBuffer> m =
+                    CountingMutator.createFlushingMutator( cass.getApplicationKeyspace( applicationId ), be );
+
+            batchUpdateProperties( m, entity, properties, timestampUuid );
+
+            batchExecute( m, CassandraService.RETRY_COUNT );
+        }
+        finally {
+            if ( lock != null ) {
+                lock.unlock();
+            }
+        }
+    }
+
+
+    /**
+     * Lock the composite indexes of an entity if the properties of an update are in any. An entry combines the updated
+     * properties with the entity's other ones, so without the lock two updates of different properties of an index
+     * could each write an entry with the other's old value. The lock must be held until the batch is executed and the
+     * entity must be read after it was taken
+     *
+     * @return the lock, null if none of the properties are in a composite index
+     */
+    private Lock lockCompositeIndexes( EntityRef entity, Set<String> propertyNames ) throws Exception {
+        if ( !RelationManagerImpl.hasCompositeIndexes( entity.getType(), propertyNames ) ) {
+            return null;
+        }
+
+        Lock lock = getCompositeIndexLock( cass.getLockManager(), applicationId, entity.getUuid() );
+        lock.lock();
+        return lock;
+    }
+
+
+    /**
+     * Set the same properties on many entities with one batch of mutations
+     *
+     * @param entities the entities to update, with their types
+     * @param properties the properties to set, cleaned up for each entity's type
+     *
+     * @throws IllegalArgumentException if a property is unique for the type of an entity
+     */
+    @Metered( group = "core", name = "EntityManager_updatePropertiesOfEntities" )
+    public void updateProperties( List<EntityRef> entities, Map<String, Object> properties ) throws Exception {
+
+        for ( EntityRef entity : entities ) {
+            for ( String propertyName : properties.keySet() ) {
+                if ( getDefaultSchema().isPropertyUnique( entity.getType(), propertyName ) ) {
+                    throw new IllegalArgumentException(
+                            "Unique property " + propertyName + " can't be set on many entities at once" );
+                }
+            }
+        }
+
         Keyspace ko = cass.getApplicationKeyspace( applicationId );
         Mutator<ByteBuffer> m = CountingMutator.createFlushingMutator( ko, be );
 
         UUID timestampUuid = newTimeUUID();
-        properties.put( PROPERTY_MODIFIED, getTimestampInMillis( timestampUuid ) );
 
-        batchUpdateProperties( m, entity, properties, timestampUuid );
+        for ( EntityRef entity : entities ) {
+            Map<String, Object> entityProperties = new TreeMap<String, Object>( CASE_INSENSITIVE_ORDER );
+            entityProperties.putAll( properties );
+            entityProperties = getDefaultSchema().cleanUpdatedProperties( entity.getType(), entityProperties, false );
+            entityProperties.put( PROPERTY_MODIFIED, getTimestampInMillis( timestampUuid ) );
+
+            // entries of composite indexes are written under the entity's lock, so the entity gets a batch of its own
+            if ( RelationManagerImpl.hasCompositeIndexes( entity.getType(), entityProperties.keySet() ) ) {
+                updateLockedProperties( entity, entityProperties, timestampUuid );
+                continue;
+            }
+
+            batchUpdateProperties( m, entity, entityProperties, timestampUuid );
+        }
 
         batchExecute( m, CassandraService.RETRY_COUNT );
     }
@@ -1402,14 +1815,191 @@ public class EntityManagerImpl implements EntityManager {
 
         logger.info( "deleteEntity: {} is of type {}", entityId, entity.getType() );
 
+        // applications and the jobs of the management application are always deleted right away
+        if ( asyncDelete && !TYPE_APPLICATION.equals( entity.getType() ) && !MANAGEMENT_APPLICATION_ID
+                .equals( applicationId ) ) {
+            hideEntity( entity );
+            return;
+        }
+
+        deleteEntity( entity, false );
+    }
+
+
+    /**
+     * Remove what's left of an entity hidden by an asynchronous delete, when the time it was hidden isn't known. The
+     * entity is left alone if it still has its type
+     *
+     * @see #purgeEntity(UUID, String, long)
+     */
+    public void purgeEntity( UUID entityId, String entityType ) throws Exception {
+        purgeEntity( entityId, entityType, 0 );
+    }
+
+
+    /**
+     * Remove what's left of an entity hidden by an asynchronous delete: its connections, property and dictionary
+     * indexes, collection memberships and rows. Does nothing if the entity was written again in the meantime.
+     * <p/>
+     * An entity that still has its type but wasn't written after it was hidden is purged too. The batch that hid it
+     * failed part way, so its unique values or collection membership may already be gone and it has to be deleted.
+     *
+     * @param entityId the entity id
+     * @param entityType the type the entity had when it was deleted
+     * @param hiddenAt the timestamp of the writes that hid the entity, 0 if it isn't known
+     */
+    @Metered( group = "core", name = "EntityManager_purgeEntity" )
+    public void purgeEntity( UUID entityId, String entityType, long hiddenAt ) throws Exception {
+
+        List<HColumn<String, ByteBuffer>> results =
+                cass.getAllColumns( cass.getApplicationKeyspace( applicationId ), ENTITY_PROPERTIES, key( entityId ) );
+
+        Map<String, ByteBuffer> columns = asMap( results );
+
+        if ( ( columns == null ) || columns.isEmpty() ) {
+            logger.info( "purgeEntity: {} is already gone", entityId );
+            return;
+        }
+
+        boolean written = columns.containsKey( PROPERTY_TYPE );
+
+        // kept its type, written again or the hide only partly applied
+        if ( written && ( hiddenAt > 0 ) ) {
+            written = false;
+
+            for ( HColumn<String, ByteBuffer> column : results ) {
+                written |= column.getClock() > hiddenAt;
+            }
+        }
+
+        if ( written ) {
+            logger.warn( "purgeEntity: {} has been written since it was deleted, leaving it", entityId );
+            return;
+        }
+
+        // the entity can't be read anymore, so load it with the type it was deleted with
+        columns.put( PROPERTY_TYPE, bytebuffer( entityType ) );
+
+        Map<String, Object> properties = deserializeEntityProperties( columns );
+        if ( properties == null ) {
+            return;
+        }
+
+        deleteEntity( new DynamicEntity( entityType, entityId, properties ), true );
+    }
+
+
+    /**
+     * @return The entities that read as missing, either hidden by an asynchronous delete that hasn't been cleaned up
+     *         or deleted. Nothing is read unless deletes are asynchronous, otherwise the indexes don't hold deleted
+     *         entities
+     */
+    public Set<UUID> getHiddenEntities( List<UUID> entityIds ) throws Exception {
+        if ( !asyncDelete || entityIds.isEmpty() ) {
+            return Collections.emptySet();
+        }
+
+        Map<ByteBuffer, List<HColumn<ByteBuffer, ByteBuffer>>> rows =
+                cass.multiGetColumns( cass.getApplicationKeyspace( applicationId ), ENTITY_PROPERTIES, entityIds,
+                        PROPERTY_TYPE, PROPERTY_TYPE, 1, false );
+
+        Set<UUID> hidden = new HashSet<UUID>();
+
+        for ( UUID entityId : entityIds ) {
+            List<HColumn<ByteBuffer, ByteBuffer>> columns = rows.get( bytebuffer( entityId ) );
+
+            if ( ( columns == null ) || columns.isEmpty() ) {
+                hidden.add( entityId );
+            }
+        }
+
+        return hidden;
+    }
+
+
+    /**
+     * Make the entity read as missing and drop it and its projection from its default collection, release its unique
+     * values so they can be claimed again, and schedule the rest of the delete
+     */
+    private void hideEntity( EntityRef entity ) throws Exception {
+
+        Keyspace ko = cass.getApplicationKeyspace( applicationId );
+        Mutator<ByteBuffer> m = CountingMutator.createFlushingMutator( ko, be );
+
+        long timestamp = cass.createTimestamp();
+
+        String collectionName = defaultCollectionName( entity.getType() );
+
+        List<String> uniqueProperties = new ArrayList<String>();
+        for ( String propertyName : getDefaultSchema().getEntityInfo( entity.getType() ).getProperties().keySet() ) {
+            if ( getDefaultSchema().isPropertyUnique( entity.getType(), propertyName ) ) {
+                uniqueProperties.add( propertyName );
+            }
+        }
+
+        // the cleanup can't read the values once the entity is hidden
+        if ( !uniqueProperties.isEmpty() ) {
+            DynamicEntity values = loadPartialEntity( entity.getUuid(),
+                    uniqueProperties.toArray( new String[uniqueProperties.size()] ) );
+
+            if ( values != null ) {
+                for ( String propertyName : uniqueProperties ) {
+                    Object value = values.getProperty( propertyName );
+                    if ( value != null ) {
+                        addDeleteToMutator( m, ENTITY_UNIQUE,
+                                createUniqueIndexKey( applicationId, collectionName, propertyName, value ), timestamp,
+                                entity.getUuid() );
+                    }
+                }
+            }
+        }
+
+        String bucketId =
+                indexBucketLocator.getBucket( applicationId, IndexType.COLLECTION, entity.getUuid(), collectionName );
+
+        addDeleteToMutator( m, ENTITY_ID_SETS, key( applicationId, DICTIONARY_COLLECTIONS, collectionName, bucketId ),
+                entity.getUuid(), timestamp );
+
+        // without a type the entity reads as missing, and queries leave it out until it's cleaned up
+        addDeleteToMutator( m, ENTITY_PROPERTIES, key( entity.getUuid() ), PROPERTY_TYPE, timestamp );
+
+        // a projection is read instead of the entity, so it would still return it
+        getRelationManager( getApplicationRef() ).batchRemoveProjection( m, applicationId,
+                getDefaultSchema().getCollection( TYPE_APPLICATION, collectionName ), entity.getUuid(),
+                timestamp );
+
+        JobData jobData = new JobData();
+        jobData.setProperty( EntityCleanupJob.APPLICATION_ID, applicationId );
+        jobData.setProperty( EntityCleanupJob.ENTITY_ID, entity.getUuid() );
+        jobData.setProperty( EntityCleanupJob.ENTITY_TYPE, entity.getType() );
+        jobData.setProperty( EntityCleanupJob.HIDDEN_AT, timestamp );
+
+        // schedule first, so that if the batch fails part way the cleanup still deletes what's left. It purges the
+        // entity even if it kept its type, as long as nothing was written to it after this timestamp
+        schedulerService.createJob( EntityCleanupJob.NAME, System.currentTimeMillis(), jobData );
+
+        batchExecute( m, CassandraService.RETRY_COUNT );
+
+        decrementEntityCollection( collectionName );
+    }
+
+
+    /** @param purge true if the entity was hidden by an asynchronous delete and is being cleaned up */
+    private void deleteEntity( EntityRef entity, boolean purge ) throws Exception {
+
         Keyspace ko = cass.getApplicationKeyspace( applicationId );
         Mutator<ByteBuffer> m = CountingMutator.createFlushingMutator( ko, be );
 
         UUID timestampUuid = newTimeUUID();
         long timestamp = getTimestampInMicros( timestampUuid );
 
-        // get all connections and disconnect them
-        getRelationManager( ref( entityId ) ).batchDisconnect( m, timestampUuid );
+        // get all connections and disconnect them, a purged entity can't be read so it's passed along loaded
+        RelationManagerImpl relationManager =
+                getRelationManager( entity instanceof Entity ? entity : ref( entity.getUuid() ) );
+
+        // including the ones from entities that are hidden too
+        relationManager.setHiddenFiltered( !purge );
+        relationManager.batchDisconnect( m, timestampUuid );
 
         // delete all core properties and any dynamic property that's ever been
         // dictionary for this entity
@@ -1438,7 +2028,7 @@ public class EntityManagerImpl implements EntityManager {
         getRelationManager( entity ).batchRemoveFromContainers( m, timestampUuid );
 
         //decrease entity count
-        if ( !TYPE_APPLICATION.equals( entity.getType() ) ) {
+        if ( !purge && !TYPE_APPLICATION.equals( entity.getType() ) ) {
             String collection_name = Schema.defaultCollectionName( entity.getType() );
             decrementEntityCollection( collection_name );
         }
@@ -1457,7 +2047,7 @@ public class EntityManagerImpl implements EntityManager {
             }
         }
 
-        addDeleteToMutator( m, ENTITY_PROPERTIES, key( entityId ), timestamp );
+        addDeleteToMutator( m, ENTITY_PROPERTIES, key( entity.getUuid() ), timestamp );
 
         batchExecute( m, CassandraService.RETRY_COUNT );
     }
@@ -1576,16 +2166,17 @@ public class EntityManagerImpl implements EntityManager {
         start = resolution.round( start );
         finish = resolution.round( finish );
         long expected_time = start;
-        Keyspace ko = cass.getApplicationKeyspace( applicationId );
-        SliceCounterQuery<String, Long> q = createCounterSliceQuery( ko, se, le );
-        q.setColumnFamily( APPLICATION_AGGREGATE_COUNTERS.toString() );
-        q.setRange( start, finish, false, ALL_COUNT );
-        QueryResult<CounterSlice<Long>> r = q.setKey(
-                counterUtils.getAggregateCounterRow( counterName, userId, groupId, queueId, category, resolution ) )
-                                             .execute();
+        String base = AggregateCounterSelection.baseBuilder( counterName, userId, groupId, queueId, category );
+        List<AggregateCounter> columns;
+        try {
+            columns = counterRollup.getCounters( applicationId, Collections.singleton( base ), resolution, start,
+                    finish ).get( base );
+        }
+        catch ( Exception e ) {
+            throw new RuntimeException( "Unable to read counter " + counterName, e );
+        }
         List<AggregateCounter> counters = new ArrayList<AggregateCounter>();
-        for ( HCounterColumn<Long> column : r.get().getColumns() ) {
-            AggregateCounter count = new AggregateCounter( column.getName(), column.getValue() );
+        for ( AggregateCounter count : columns ) {
             if ( pad && !( resolution == CounterResolution.ALL ) ) {
                 while ( count.getTimestamp() != expected_time ) {
                     counters.add( new AggregateCounter( expected_time, 0 ) );
@@ -1637,27 +2228,23 @@ public class EntityManagerImpl implements EntityManager {
             return null;
         }
         Map<String, AggregateCounterSelection> selections = new HashMap<String, AggregateCounterSelection>();
-        Keyspace ko = cass.getApplicationKeyspace( applicationId );
 
         for ( CounterFilterPredicate filter : filters ) {
             AggregateCounterSelection selection =
                     new AggregateCounterSelection( filter.getName(), getUuid( getUserByIdentifier( filter.getUser() ) ),
                             getUuid( getGroupByIdentifier( filter.getGroup() ) ),
                             org.apache.usergrid.mq.Queue.getQueueId( filter.getQueue() ), filter.getCategory() );
-            selections.put( selection.getRow( resolution ), selection );
+            selections.put( selection.getBase(), selection );
         }
 
-        MultigetSliceCounterQuery<String, Long> q = HFactory.createMultigetSliceCounterQuery( ko, se, le );
-        q.setColumnFamily( APPLICATION_AGGREGATE_COUNTERS.toString() );
-        q.setRange( start, finish, false, ALL_COUNT );
-        QueryResult<CounterRows<String, Long>> rows = q.setKeys( selections.keySet() ).execute();
+        Map<String, List<AggregateCounter>> rows =
+                counterRollup.getCounters( applicationId, selections.keySet(), resolution, start, finish );
 
         List<AggregateCounterSet> countSets = new ArrayList<AggregateCounterSet>();
-        for ( CounterRow<String, Long> r : rows.get() ) {
+        for ( Map.Entry<String, List<AggregateCounter>> r : rows.entrySet() ) {
             expected_time = start;
             List<AggregateCounter> counters = new ArrayList<AggregateCounter>();
-            for ( HCounterColumn<Long> column : r.getColumnSlice().getColumns() ) {
-                AggregateCounter count = new AggregateCounter( column.getName(), column.getValue() );
+            for ( AggregateCounter count : r.getValue() ) {
                 if ( pad && ( resolution != CounterResolution.ALL ) ) {
                     while ( count.getTimestamp() != expected_time ) {
                         counters.add( new AggregateCounter( expected_time, 0 ) );
@@ -2012,15 +2599,34 @@ public class EntityManagerImpl implements EntityManager {
         // todo: would this ever need to load more?
         DynamicEntity entity = loadPartialEntity( entityRef.getUuid(), propertyName );
 
-        UUID timestampUuid = newTimeUUID();
-        Mutator<ByteBuffer> batch = CountingMutator.createFlushingMutator( cass.getApplicationKeyspace( applicationId ),
-                be );
+        Lock lock = lockCompositeIndexes( entity, Collections.singleton( propertyName ) );
 
-        propertyValue = getDefaultSchema().validateEntityPropertyValue( entity.getType(), propertyName, propertyValue );
+        try {
+            UUID timestampUuid = newTimeUUID();
+            Mutator<ByteBuffer> batch =
+                    CountingMutator.createFlushingMutator( cass.getApplicationKeyspace( applicationId ), be );
+
+            propertyValue =
+                    getDefaultSchema().validateEntityPropertyValue( entity.getType(), propertyName, propertyValue );
+
+            entity.setProperty( propertyName, propertyValue );
+            batch = batchSetProperty( batch, entity, propertyName, propertyValue, override, false, timestampUuid );
+
+            // the entity is only partially loaded, the indexes read the other properties
+            if ( override || !getDefaultSchema().hasProperty( entity.getType(), propertyName ) || getDefaultSchema()
+                    .isPropertyMutable( entity.getType(), propertyName ) ) {
+                getRelationManager( new SimpleEntityRef( entity.getType(), entity.getUuid() ) )
+                        .batchUpdateCombinedIndexes( batch, Collections.singletonMap( propertyName, propertyValue ),
+                                false, timestampUuid );
+            }
 
-        entity.setProperty( propertyName, propertyValue );
-        batch = batchSetProperty( batch, entity, propertyName, propertyValue, override, false, timestampUuid );
-        batchExecute( batch, CassandraService.RETRY_COUNT );
+            batchExecute( batch, CassandraService.RETRY_COUNT );
+        }
+        finally {
+            if ( lock != null ) {
+                lock.unlock();
+            }
+        }
     }
 
 
@@ -2659,6 +3265,236 @@ public class EntityManagerImpl implements EntityManager {
     }
 
 
+    @Override
+    public Map<String, IndexStatistics> getIndexStatistics( EntityRef entity, String collectionName )
+            throws Exception {
+        if ( indexStatistics == null ) {
+            return getRelationManager( entity ).getIndexStatistics( collectionName );
+        }
+
+        String cacheKey = getIndexStatisticsCacheKey( entity, collectionName );
+
+        Map<String, IndexStatistics> statistics = indexStatistics.getIfPresent( cacheKey );
+        if ( statistics == null ) {
+            statistics = getRelationManager( entity ).getIndexStatistics( collectionName );
+            indexStatistics.put( cacheKey, statistics );
+        }
+
+        return statistics;
+    }
+
+
+    /** Store the statistics of the index of a property in a collection */
+    public void setIndexStatistics( EntityRef entity, String collectionName, IndexStatistics statistics )
+            throws Exception {
+        getRelationManager( entity ).storeIndexStatistics( collectionName, statistics );
+
+        if ( indexStatistics != null ) {
+            indexStatistics.invalidate( getIndexStatisticsCacheKey( entity, collectionName ) );
+        }
+    }
+
+
+    private static String getIndexStatisticsCacheKey( EntityRef entity, String collectionName ) {
+        return entity.getUuid() + "/" + collectionName.toLowerCase();
+    }
+
+
+    /**
+     * The composite indexes of a collection that hold all of its entities. An index declared after entities were
+     * added to the collection misses them until a {@link CompositeIndexBackfillJob} adds them, the first read of a
+     * collection schedules one for its new indexes.
+     */
+    public Set<String> getBuiltCompositeIndexes( EntityRef entity, CollectionInfo collection ) throws Exception {
+        if ( ( collection == null ) || collection.getCompositeIndexes().isEmpty() ) {
+            return Collections.emptySet();
+        }
+
+        String cacheKey = getIndexStatisticsCacheKey( entity, collection.getName() );
+
+        Set<String> built = builtCompositeIndexes != null ? builtCompositeIndexes.getIfPresent( cacheKey ) : null;
+        if ( built == null ) {
+            built = readBuiltCompositeIndexes( entity, collection );
+
+            if ( builtCompositeIndexes != null ) {
+                builtCompositeIndexes.put( cacheKey, built );
+            }
+        }
+
+        return built;
+    }
+
+
+    private Set<String> readBuiltCompositeIndexes( EntityRef entity, CollectionInfo collection ) throws Exception {
+        RelationManagerImpl relationManager = getRelationManager( entity );
+        Map<String, String> states = relationManager.getCompositeIndexStates( collection.getName() );
+
+        Set<String> built = new TreeSet<String>( String.CASE_INSENSITIVE_ORDER );
+        List<String> unscheduled = new ArrayList<String>();
+
+        for ( CompositeIndexInfo compositeIndex : collection.getCompositeIndexes() ) {
+            String state = states.get( compositeIndex.getName() );
+
+            if ( CompositeIndexInfo.STATE_BUILT.equals( state ) ) {
+                built.add( compositeIndex.getName() );
+            }
+            else if ( ( state == null ) || CompositeIndexInfo.STATE_FAILED.equals( state ) ) {
+                unscheduled.add( compositeIndex.getName() );
+            }
+        }
+
+        if ( !unscheduled.isEmpty() ) {
+            scheduleCompositeIndexBackfill( relationManager, entity, collection );
+        }
+
+        return built;
+    }
+
+
+    /**
+     * Schedule one backfill for the composite indexes of a collection that don't have one. Collections are read on
+     * every node, so the states are read again under a lock and a node that finds them scheduled leaves them be
+     */
+    private void scheduleCompositeIndexBackfill( RelationManagerImpl relationManager, EntityRef entity,
+                                                 CollectionInfo collection ) throws Exception {
+        Lock lock = getCompositeIndexBackfillLock( cass.getLockManager(), applicationId, entity.getUuid(),
+                collection.getName() );
+        lock.lock();
+
+        try {
+            Map<String, String> states = relationManager.getCompositeIndexStates( collection.getName() );
+            List<String> unscheduled = new ArrayList<String>();
+
+            for ( CompositeIndexInfo compositeIndex : collection.getCompositeIndexes() ) {
+                String state = states.get( compositeIndex.getName() );
+
+                if ( ( state == null ) || CompositeIndexInfo.STATE_FAILED.equals( state ) ) {
+                    unscheduled.add( compositeIndex.getName() );
+                }
+            }
+
+            if ( unscheduled.isEmpty() ) {
+                return;
+            }
+
+            logger.info( "Scheduling the backfill of composite indexes {} of {} of {}",
+                    new Object[] { unscheduled, collection.getName(), entity.getUuid() } );
+
+            schedulerService.createJob( CompositeIndexBackfillJob.NAME, System.currentTimeMillis(),
+                    CompositeIndexBackfillJob.createJobData( applicationId, entity, collection.getName(), unscheduled ) );
+
+            relationManager.storeCompositeIndexStates( collection.getName(), unscheduled,
+                    CompositeIndexInfo.STATE_BUILDING );
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /** Mark composite indexes of a collection whose backfill gave up, so the next read schedules it again */
+    public void setCompositeIndexesFailed( EntityRef entity, String collectionName, Collection<String> indexNames )
+            throws Exception {
+        getRelationManager( entity )
+                .storeCompositeIndexStates( collectionName, indexNames, CompositeIndexInfo.STATE_FAILED );
+    }
+
+
+    /** Mark composite indexes of a collection as built, so queries use them */
+    public void setCompositeIndexesBuilt( EntityRef entity, String collectionName, Collection<String> indexNames )
+            throws Exception {
+        getRelationManager( entity )
+                .storeCompositeIndexStates( collectionName, indexNames, CompositeIndexInfo.STATE_BUILT );
+
+        if ( builtCompositeIndexes != null ) {
+            builtCompositeIndexes.invalidate( getIndexStatisticsCacheKey( entity, collectionName ) );
+        }
+    }
+
+
+    /**
+     * Add entities to a composite index in every collection of theirs that declares it. Entities with an entry in the
+     * index were written since it was declared and are skipped. The others are read again under their composite index
+     * lock and written one at a time, so an update running meanwhile either sees the backfilled entry or is seen by
+     * it.
+     *
+     * @return how many entities were added
+     */
+    public int backfillCompositeIndex( CompositeIndexInfo compositeIndex, List<Entity> entities ) throws Exception {
+        if ( entities.isEmpty() ) {
+            return 0;
+        }
+
+        List<UUID> entityIds = new ArrayList<UUID>( entities.size() );
+        for ( Entity entity : entities ) {
+            entityIds.add( entity.getUuid() );
+        }
+
+        Keyspace ko = cass.getApplicationKeyspace( applicationId );
+
+        Map<ByteBuffer, List<HColumn<ByteBuffer, ByteBuffer>>> entries =
+                cass.multiGetColumns( ko, ENTITY_INDEX_ENTRIES, entityIds,
+                        new DynamicComposite( compositeIndex.getName() ),
+                        setGreaterThanEqualityFlag( new DynamicComposite( compositeIndex.getName() ) ), 1, false );
+
+        int added = 0;
+
+        for ( Entity entity : entities ) {
+            List<HColumn<ByteBuffer, ByteBuffer>> columns = entries.get( bytebuffer( entity.getUuid() ) );
+            if ( ( columns != null ) && !columns.isEmpty() ) {
+                continue;
+            }
+
+            // entities missing a property aren't in the index
+            if ( getCompositeIndexProperties( compositeIndex, entity ) == null ) {
+                continue;
+            }
+
+            Lock lock = getCompositeIndexLock( cass.getLockManager(), applicationId, entity.getUuid() );
+            lock.lock();
+
+            try {
+                Entity current = get( entity.getUuid() );
+                Map<String, Object> properties =
+                        current != null ? getCompositeIndexProperties( compositeIndex, current ) : null;
+
+                if ( properties == null ) {
+                    continue;
+                }
+
+                Mutator<ByteBuffer> batch = CountingMutator.createFlushingMutator( ko, be );
+
+                getRelationManager( current ).batchUpdateCombinedIndexes( batch, properties, false, newTimeUUID() );
+
+                batchExecute( batch, CassandraService.RETRY_COUNT );
+            }
+            finally {
+                lock.unlock();
+            }
+
+            added++;
+        }
+
+        return added;
+    }
+
+
+    /** @return the values of the properties of the composite index, null if the entity is missing one */
+    private static Map<String, Object> getCompositeIndexProperties( CompositeIndexInfo compositeIndex, Entity entity ) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+
+        for ( String propertyName : compositeIndex.getProperties() ) {
+            Object value = entity.getProperty( propertyName );
+            if ( value == null ) {
+                return null;
+            }
+            properties.put( propertyName, value );
+        }
+
+        return properties;
+    }
+
+
     @Override
     public ConnectionRef createConnection( ConnectionRef connection ) throws Exception {
         return getRelationManager( connection ).createConnection( connection );
@@ -70,6 +70,7 @@ public class IndexUpdate {
     private long timestamp;
     private final UUID timestampUuid;
     private UUID associatedId;
+    private boolean unchanged;
 
 
     public IndexUpdate( Mutator<ByteBuffer> batch, Entity entity, String entryName, Object entryValue,
@@ -222,6 +223,17 @@ public class IndexUpdate {
     }
 
 
+    /** @return true if the text of the entry is the same as the indexed one, so the update has nothing to do */
+    public boolean isUnchanged() {
+        return unchanged;
+    }
+
+
+    public void setUnchanged( boolean unchanged ) {
+        this.unchanged = unchanged;
+    }
+
+
     public class IndexEntry {
         private final byte code;
         private String path;
@@ -440,7 +452,7 @@ public class IndexUpdate {
         int c2 = indexValueCode( o2 );
         if ( c1 == c2 ) {
             if ( o1 instanceof UUID ) {
-                UUIDComparator.staticCompare( ( UUID ) o1, ( UUID ) o2 );
+                return UUIDComparator.staticCompare( ( UUID ) o1, ( UUID ) o2 );
             }
             else if ( o1 instanceof Comparable ) {
                 return ( ( Comparable ) o1 ).compareTo( o2 );
@@ -19,9 +19,13 @@ package org.apache.usergrid.persistence.cassandra;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
+import java.util.TreeMap;
 import java.util.UUID;
 
 import org.slf4j.Logger;
@@ -29,6 +33,7 @@ import org.slf4j.LoggerFactory;
 
 import org.apache.usergrid.persistence.EntityManager;
 import org.apache.usergrid.persistence.Identifier;
+import org.apache.usergrid.persistence.IndexStatistics;
 import org.apache.usergrid.persistence.Query;
 import org.apache.usergrid.persistence.Query.SortDirection;
 import org.apache.usergrid.persistence.Query.SortPredicate;
@@ -51,6 +56,8 @@ import org.apache.usergrid.persistence.query.ir.SearchVisitor;
 import org.apache.usergrid.persistence.query.ir.SliceNode;
 import org.apache.usergrid.persistence.query.ir.UuidIdentifierNode;
 import org.apache.usergrid.persistence.query.ir.WithinNode;
+import org.apache.usergrid.persistence.query.ir.result.CollectionProjection;
+import org.apache.usergrid.persistence.query.ir.result.EntityResultsLoader;
 import org.apache.usergrid.persistence.query.ir.result.ResultIterator;
 import org.apache.usergrid.persistence.query.ir.result.ResultsLoader;
 import org.apache.usergrid.persistence.query.ir.result.ResultsLoaderFactory;
@@ -71,6 +78,8 @@ import org.apache.usergrid.persistence.query.tree.QueryVisitor;
 import org.apache.usergrid.persistence.query.tree.StringLiteral;
 import org.apache.usergrid.persistence.query.tree.WithinOperand;
 import org.apache.usergrid.persistence.schema.CollectionInfo;
+import org.apache.usergrid.persistence.schema.CompositeIndexInfo;
+import org.apache.usergrid.utils.IndexUtils;
 
 import me.prettyprint.cassandra.serializers.UUIDSerializer;
 
@@ -98,9 +107,32 @@ public class QueryProcessor {
     private Query query;
     private int sliceCount;
 
+    /** The composite index that answers the query and the sort it applies, if any */
+    private String compositeIndexName;
+    private SortPredicate compositeSort;
+
+    /** The composite indexes of the collection that hold every entity, only those can answer a query */
+    private Set<String> builtCompositeIndexes;
+
+    private CollectionProjection projection;
+
+    /** The statistics of the indexes of the collection, used to plan the query */
+    private Map<String, IndexStatistics> indexStatistics;
+
+    private boolean hiddenFiltered = true;
+
 
     public QueryProcessor( Query query, CollectionInfo collectionInfo, EntityManager em,
                            ResultsLoaderFactory loaderFactory ) throws PersistenceException {
+        this( query, collectionInfo, em, loaderFactory, Collections.<String>emptySet() );
+    }
+
+
+    /** @param builtCompositeIndexes The names of the composite indexes of the collection that are built */
+    public QueryProcessor( Query query, CollectionInfo collectionInfo, EntityManager em,
+                           ResultsLoaderFactory loaderFactory, Set<String> builtCompositeIndexes )
+            throws PersistenceException {
+        this.builtCompositeIndexes = builtCompositeIndexes;
         setQuery( query );
         this.collectionInfo = collectionInfo;
         this.em = em;
@@ -134,8 +166,15 @@ public class QueryProcessor {
 
         sliceCount = 0;
 
-        // no operand. Check for sorts
         if ( rootOperand != null ) {
+            rootNode = getCompositeIndexNode();
+        }
+
+        // no operand. Check for sorts
+        if ( rootNode != null ) {
+            sliceCount = rootNode.getCount();
+        }
+        else if ( rootOperand != null ) {
             // visit the tree
 
             TreeEvaluator visitor = new TreeEvaluator();
@@ -149,7 +188,7 @@ public class QueryProcessor {
 
         // see if we have sorts, if so, we can add them all as a single node at
         // the root
-        if ( sorts.size() > 0 ) {
+        if ( sorts.size() > 0 && compositeIndexName == null ) {
 
             OrderByNode order = generateSorts( sliceCount );
 
@@ -247,6 +286,10 @@ public class QueryProcessor {
 
 
     private SortPredicate getSort( String propertyName ) {
+        if ( propertyName.equals( compositeIndexName ) ) {
+            return compositeSort;
+        }
+
         for ( SortPredicate sort : sorts ) {
             if ( sort.getPropertyName().equals( propertyName ) ) {
                 return sort;
@@ -274,8 +317,14 @@ public class QueryProcessor {
 
         CursorCache resultsCursor = new CursorCache();
 
+        final ResultsLoader loader = loaderFactory.getResultsLoader( em, query, query.getResultsLevel() );
+
+        // loading the entities leaves out the missing ones already
+        boolean filter = hiddenFiltered && ( em instanceof EntityManagerImpl ) && !( loader instanceof
+                EntityResultsLoader );
+
         while ( entityIds.size() < size && itr.hasNext() ) {
-            entityIds.addAll( itr.next() );
+            entityIds.addAll( filter ? withoutHidden( itr.next() ) : itr.next() );
         }
 
         //set our cursor, we paged through more entities than we want to return
@@ -292,7 +341,6 @@ public class QueryProcessor {
                     entityIds.size() );
         }
 
-        final ResultsLoader loader = loaderFactory.getResultsLoader( em, query, query.getResultsLevel() );
         final Results results = loader.getResults( entityIds );
 
         if ( results == null ) {
@@ -310,6 +358,40 @@ public class QueryProcessor {
     }
 
 
+    /**
+     * @return The columns of the entities that aren't hidden by an asynchronous delete. Their index entries,
+     *         connections and memberships in other collections remain until they're cleaned up
+     */
+    private List<ScanColumn> withoutHidden( Set<ScanColumn> columns ) throws Exception {
+        List<UUID> entityIds = new ArrayList<UUID>( columns.size() );
+
+        for ( ScanColumn column : columns ) {
+            entityIds.add( column.getUUID() );
+        }
+
+        Set<UUID> hidden = ( ( EntityManagerImpl ) em ).getHiddenEntities( entityIds );
+
+        List<ScanColumn> visible = new ArrayList<ScanColumn>( columns.size() );
+
+        for ( ScanColumn column : columns ) {
+            if ( !hidden.contains( column.getUUID() ) ) {
+                visible.add( column );
+            }
+        }
+
+        return visible;
+    }
+
+
+    /**
+     * Whether to leave out the entities hidden by an asynchronous delete, true unless the results are used to clean
+     * them up
+     */
+    public void setHiddenFiltered( boolean hiddenFiltered ) {
+        this.hiddenFiltered = hiddenFiltered;
+    }
+
+
     private class TreeEvaluator implements QueryVisitor {
 
         // stack for nodes that will be used to construct the tree and create
@@ -451,8 +533,16 @@ public class QueryProcessor {
 
             String fieldName = op.getProperty().getIndexedValue();
 
-            node.setStart( fieldName, string.getValue(), true );
-            node.setFinish( fieldName, string.getEndValue(), true );
+            String value = string.getValue();
+            String endValue = string.getEndValue();
+
+            // whole words are searched for the way the property's text was analyzed, prefixes as they are
+            if ( !string.isPrefix() ) {
+                value = endValue = IndexUtils.analyzeTerm( entityType, propertyName, value );
+            }
+
+            node.setStart( fieldName, value, true );
+            node.setFinish( fieldName, endValue, true );
         }
 
 
@@ -526,8 +616,16 @@ public class QueryProcessor {
 
                 StringLiteral stringLiteral = ( StringLiteral ) literal;
 
+                String value = stringLiteral.getValue();
                 String endValue = stringLiteral.getEndValue();
 
+                // a typeahead prefix is read as an equality from the prefix index if the property has one
+                if ( stringLiteral.isPrefix() && IndexUtils.isPrefixIndexed( entityType, fieldName ) && IndexUtils
+                        .isIndexedPrefix( value ) ) {
+                    node.setPrefix( fieldName, value );
+                    return;
+                }
+
                 if ( endValue != null ) {
                     node.setFinish( fieldName, endValue, true );
                 }
@@ -621,6 +719,98 @@ public class QueryProcessor {
 
 
 
+    /**
+     * Answer the query with a single slice of a composite index of the collection. The query must only be equalities
+     * on the first properties of the index, and be sorted by its last property or have an equality on every property.
+     * Entities missing a property aren't in the index, so an index with properties the query doesn't mention can't
+     * answer it, nor can an index that isn't built yet.
+     *
+     * @return the slice node, or null if no composite index matches the query
+     */
+    private SliceNode getCompositeIndexNode() {
+        if ( ( collectionInfo == null ) || builtCompositeIndexes.isEmpty() || ( sorts.size() > 1 ) ) {
+            return null;
+        }
+
+        Map<String, Object> equalities = new TreeMap<String, Object>( String.CASE_INSENSITIVE_ORDER );
+        if ( !getEqualities( rootOperand, equalities ) ) {
+            return null;
+        }
+
+        SortPredicate sort = sorts.isEmpty() ? null : sorts.get( 0 );
+        int count = equalities.size();
+
+        for ( CompositeIndexInfo compositeIndex : collectionInfo.getCompositeIndexes() ) {
+            List<String> properties = compositeIndex.getProperties();
+
+            if ( !builtCompositeIndexes.contains( compositeIndex.getName() ) ) {
+                continue;
+            }
+
+            if ( sort == null ? properties.size() != count : ( properties.size() != count + 1 || !properties
+                    .get( count ).equalsIgnoreCase( sort.getPropertyName() ) ) ) {
+                continue;
+            }
+
+            List<Object> values = new ArrayList<Object>();
+            for ( String propertyName : properties.subList( 0, count ) ) {
+                if ( !equalities.containsKey( propertyName ) ) {
+                    break;
+                }
+                values.add( equalities.get( propertyName ) );
+            }
+
+            String prefix = values.size() == count ? compositeIndex.getValue( values ) : null;
+            if ( prefix == null ) {
+                continue;
+            }
+
+            SliceNode node = new SliceNode( 0 );
+            node.setStart( compositeIndex.getName(), prefix, true );
+            node.setFinish( compositeIndex.getName(),
+                    sort != null ? CompositeIndexInfo.getPrefixEnd( prefix ) : prefix, true );
+
+            compositeIndexName = compositeIndex.getName();
+            compositeSort = sort;
+
+            logger.debug( "Using composite index {} for query {}", compositeIndexName, query );
+
+            return node;
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Collect the equalities of the operand
+     *
+     * @return false if the operand isn't only equalities joined by and
+     */
+    private static boolean getEqualities( Operand operand, Map<String, Object> equalities ) {
+        if ( operand instanceof AndOperand ) {
+            return getEqualities( ( ( AndOperand ) operand ).getLeft(), equalities ) && getEqualities(
+                    ( ( AndOperand ) operand ).getRight(), equalities );
+        }
+
+        if ( !( operand instanceof Equal ) ) {
+            return false;
+        }
+
+        Equal equal = ( Equal ) operand;
+        Literal<?> literal = equal.getLiteral();
+        String propertyName = equal.getProperty().getValue();
+
+        if ( ( literal.getValue() == null ) || ( ( literal instanceof StringLiteral ) && ( ( StringLiteral ) literal )
+                .isPrefix() ) || equalities.containsKey( propertyName ) ) {
+            return false;
+        }
+
+        equalities.put( propertyName, literal.getValue() );
+        return true;
+    }
+
+
     /**
      * @return the pageSizeHint
      */
@@ -681,4 +871,26 @@ public class QueryProcessor {
     public EntityManager getEntityManager() {
         return em;
     }
+
+
+    /** @return the projection of the collection searched, null if it has none */
+    public CollectionProjection getProjection() {
+        return projection;
+    }
+
+
+    public void setProjection( CollectionProjection projection ) {
+        this.projection = projection;
+    }
+
+
+    /** @return the statistics of the indexes of the collection searched by property, null if it has none */
+    public Map<String, IndexStatistics> getIndexStatistics() {
+        return indexStatistics;
+    }
+
+
+    public void setIndexStatistics( Map<String, IndexStatistics> indexStatistics ) {
+        this.indexStatistics = indexStatistics;
+    }
 }
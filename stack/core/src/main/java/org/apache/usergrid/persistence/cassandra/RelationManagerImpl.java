@@ -20,7 +20,9 @@ package org.apache.usergrid.persistence.cassandra;
 import java.nio.ByteBuffer;
 import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -38,9 +40,11 @@ import org.apache.usergrid.persistence.CollectionRef;
 import org.apache.usergrid.persistence.ConnectedEntityRef;
 import org.apache.usergrid.persistence.ConnectionRef;
 import org.apache.usergrid.persistence.Entity;
+import org.apache.usergrid.persistence.EntityFactory;
 import org.apache.usergrid.persistence.EntityRef;
 import org.apache.usergrid.persistence.IndexBucketLocator;
 import org.apache.usergrid.persistence.IndexBucketLocator.IndexType;
+import org.apache.usergrid.persistence.IndexStatistics;
 import org.apache.usergrid.persistence.PagingResultsIterator;
 import org.apache.usergrid.persistence.Query;
 import org.apache.usergrid.persistence.RelationManager;
@@ -55,6 +59,7 @@ import org.apache.usergrid.persistence.cassandra.IndexUpdate.IndexEntry;
 import org.apache.usergrid.persistence.cassandra.index.ConnectedIndexScanner;
 import org.apache.usergrid.persistence.cassandra.index.IndexBucketScanner;
 import org.apache.usergrid.persistence.cassandra.index.IndexScanner;
+import org.apache.usergrid.persistence.cassandra.index.IndexStatisticsCollector;
 import org.apache.usergrid.persistence.cassandra.index.NoOpIndexScanner;
 import org.apache.usergrid.persistence.entities.Group;
 import org.apache.usergrid.persistence.geo.CollectionGeoSearch;
@@ -68,6 +73,7 @@ import org.apache.usergrid.persistence.query.ir.QueryNode;
 import org.apache.usergrid.persistence.query.ir.QuerySlice;
 import org.apache.usergrid.persistence.query.ir.SearchVisitor;
 import org.apache.usergrid.persistence.query.ir.WithinNode;
+import org.apache.usergrid.persistence.query.ir.result.CollectionProjection;
 import org.apache.usergrid.persistence.query.ir.result.CollectionResultsLoaderFactory;
 import org.apache.usergrid.persistence.query.ir.result.ConnectionIndexSliceParser;
 import org.apache.usergrid.persistence.query.ir.result.ConnectionResultsLoaderFactory;
@@ -78,15 +84,20 @@ import org.apache.usergrid.persistence.query.ir.result.SliceIterator;
 import org.apache.usergrid.persistence.query.ir.result.StaticIdIterator;
 import org.apache.usergrid.persistence.query.ir.result.UUIDIndexSliceParser;
 import org.apache.usergrid.persistence.schema.CollectionInfo;
+import org.apache.usergrid.persistence.schema.CompositeIndexInfo;
 import org.apache.usergrid.utils.IndexUtils;
+import org.apache.usergrid.utils.JsonUtils;
 import org.apache.usergrid.utils.MapUtils;
 
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
 import com.yammer.metrics.annotation.Metered;
 
 import me.prettyprint.cassandra.serializers.ByteBufferSerializer;
 import me.prettyprint.cassandra.serializers.StringSerializer;
 import me.prettyprint.cassandra.serializers.UUIDSerializer;
 import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.beans.ColumnSlice;
 import me.prettyprint.hector.api.beans.DynamicComposite;
 import me.prettyprint.hector.api.beans.HColumn;
 import me.prettyprint.hector.api.mutation.Mutator;
@@ -109,12 +120,15 @@ import static org.apache.usergrid.persistence.Schema.PROPERTY_ITEM_TYPE;
 import static org.apache.usergrid.persistence.Schema.PROPERTY_NAME;
 import static org.apache.usergrid.persistence.Schema.PROPERTY_TITLE;
 import static org.apache.usergrid.persistence.Schema.PROPERTY_TYPE;
+import static org.apache.usergrid.persistence.Schema.PROPERTY_UUID;
 import static org.apache.usergrid.persistence.Schema.TYPE_APPLICATION;
 import static org.apache.usergrid.persistence.Schema.TYPE_ENTITY;
 import static org.apache.usergrid.persistence.Schema.TYPE_MEMBER;
 import static org.apache.usergrid.persistence.Schema.TYPE_ROLE;
 import static org.apache.usergrid.persistence.Schema.defaultCollectionName;
+import static org.apache.usergrid.persistence.Schema.deserializeEntityProperty;
 import static org.apache.usergrid.persistence.Schema.getDefaultSchema;
+import static org.apache.usergrid.persistence.Schema.serializeEntityProperty;
 import static org.apache.usergrid.persistence.cassandra.ApplicationCF.ENTITY_COMPOSITE_DICTIONARIES;
 import static org.apache.usergrid.persistence.cassandra.ApplicationCF.ENTITY_DICTIONARIES;
 import static org.apache.usergrid.persistence.cassandra.ApplicationCF.ENTITY_ID_SETS;
@@ -133,6 +147,8 @@ import static org.apache.usergrid.persistence.cassandra.GeoIndexManager.batchSto
 import static org.apache.usergrid.persistence.cassandra.IndexUpdate.indexValueCode;
 import static org.apache.usergrid.persistence.cassandra.IndexUpdate.toIndexableValue;
 import static org.apache.usergrid.persistence.cassandra.IndexUpdate.validIndexableValue;
+import static org.apache.usergrid.persistence.cassandra.Serializers.be;
+import static org.apache.usergrid.persistence.cassandra.Serializers.ue;
 import static org.apache.usergrid.utils.ClassUtils.cast;
 import static org.apache.usergrid.utils.CompositeUtils.setGreaterThanEqualityFlag;
 import static org.apache.usergrid.utils.ConversionUtils.string;
@@ -152,6 +168,12 @@ public class RelationManagerImpl implements RelationManager {
     private EntityRef headEntity;
     private IndexBucketLocator indexBucketLocator;
 
+    /** Index entries of the head entity by entry name, when read at once for many properties */
+    private Map<String, List<HColumn<ByteBuffer, ByteBuffer>>> prevIndexEntries;
+
+    /** Leave the entities hidden by an asynchronous delete out of query results */
+    private boolean hiddenFiltered = true;
+
 
     public RelationManagerImpl() {
     }
@@ -177,6 +199,12 @@ public class RelationManagerImpl implements RelationManager {
     }
 
 
+    /** Whether queries leave out the entities hidden by an asynchronous delete, true unless cleaning them up */
+    public void setHiddenFiltered( boolean hiddenFiltered ) {
+        this.hiddenFiltered = hiddenFiltered;
+    }
+
+
     private RelationManagerImpl getRelationManager( EntityRef headEntity ) {
         RelationManagerImpl rmi = new RelationManagerImpl();
         rmi.init( em, cass, applicationId, headEntity, indexBucketLocator );
@@ -184,6 +212,41 @@ public class RelationManagerImpl implements RelationManager {
     }
 
 
+    /**
+     * Read the index entries of all the head entity's properties in one slice, so updating many properties doesn't
+     * read the entries of each one separately. Entities with more entries than fit in one slice read them per property
+     * as before.
+     * <p/>
+     * Only use this before updating the properties of an entity in a single batch, the entries read aren't changed by
+     * the updates.
+     */
+    public void prefetchIndexEntries() throws Exception {
+        List<HColumn<ByteBuffer, ByteBuffer>> entries =
+                cass.getColumns( cass.getApplicationKeyspace( applicationId ), ENTITY_INDEX_ENTRIES,
+                        headEntity.getUuid(), null, null, INDEX_ENTRY_LIST_COUNT, false );
+
+        if ( entries.size() >= INDEX_ENTRY_LIST_COUNT ) {
+            logger.debug( "Too many index entries to prefetch for entity {}", headEntity.getUuid() );
+            return;
+        }
+
+        prevIndexEntries = new HashMap<String, List<HColumn<ByteBuffer, ByteBuffer>>>();
+
+        for ( HColumn<ByteBuffer, ByteBuffer> entry : entries ) {
+            String entryName = string( DynamicComposite.fromByteBuffer( entry.getName().duplicate() ).get( 0 ) );
+
+            List<HColumn<ByteBuffer, ByteBuffer>> named = prevIndexEntries.get( entryName );
+
+            if ( named == null ) {
+                named = new ArrayList<HColumn<ByteBuffer, ByteBuffer>>();
+                prevIndexEntries.put( entryName, named );
+            }
+
+            named.add( entry );
+        }
+    }
+
+
     /** side effect: converts headEntity into an Entity if it is an EntityRef! */
     private Entity getHeadEntity() throws Exception {
         Entity entity = null;
@@ -452,6 +515,26 @@ public class RelationManagerImpl implements RelationManager {
             }
         }
 
+        // Add composite indexes
+        CollectionInfo collection = schema.getCollection( ownerType, collectionName );
+        if ( collection != null ) {
+            for ( CompositeIndexInfo compositeIndex : collection.getCompositeIndexes() ) {
+                IndexUpdate indexUpdate = batchStartIndexUpdate( batch, entity, compositeIndex.getName(),
+                        getCompositeIndexValue( compositeIndex, entity, null ), timestampUuid, false, false, false,
+                        false, true );
+                for ( UUID ownerId : ownerIds ) {
+                    EntityRef owner = new SimpleEntityRef( ownerType, ownerId );
+                    batchUpdateCollectionIndex( indexUpdate, owner, collectionName );
+                }
+            }
+
+            if ( collection.hasProjection() ) {
+                for ( UUID ownerId : ownerIds ) {
+                    batchStoreProjection( batch, ownerId, collection, entity, null, timestamp );
+                }
+            }
+        }
+
         // Add set property indexes
 
         Set<String> dictionaryNames = em.getDictionaryNames( entity );
@@ -536,6 +619,19 @@ public class RelationManagerImpl implements RelationManager {
             }
         }
 
+        // Remove composite indexes
+        CollectionInfo collection = schema.getCollection( headEntity.getType(), collectionName );
+        if ( collection != null ) {
+            for ( CompositeIndexInfo compositeIndex : collection.getCompositeIndexes() ) {
+                IndexUpdate indexUpdate =
+                        batchStartIndexUpdate( batch, entity, compositeIndex.getName(), null, timestampUuid, false,
+                                false, false, false );
+                batchUpdateCollectionIndex( indexUpdate, headEntity, collectionName );
+            }
+
+            batchRemoveProjection( batch, headEntity.getUuid(), collection, entity.getUuid(), timestamp );
+        }
+
         // Remove set indexes
 
         Set<String> dictionaryNames = em.getDictionaryNames( entity );
@@ -874,7 +970,15 @@ public class RelationManagerImpl implements RelationManager {
 
         long timestamp = getTimestampInMicros( timestampUuid );
 
-        Entity connectedEntity = em.get( connection.getConnectedEntityId() );
+        Entity connectedEntity = null;
+
+        // disconnecting everything from an entity that's being purged, it can only be read through its head
+        if ( ( headEntity instanceof Entity ) && headEntity.getUuid().equals( connection.getConnectedEntityId() ) ) {
+            connectedEntity = ( Entity ) headEntity;
+        }
+        else {
+            connectedEntity = em.get( connection.getConnectedEntityId() );
+        }
 
         if ( connectedEntity == null ) {
             return batch;
@@ -883,16 +987,31 @@ public class RelationManagerImpl implements RelationManager {
         // Create connection for requested params
 
 
+        ConnectionShardLocator shardLocator = getConnectionShardLocator();
+
         if ( disconnect ) {
-            addDeleteToMutator( batch, ENTITY_COMPOSITE_DICTIONARIES,
-                    key( connection.getConnectingEntityId(), DICTIONARY_CONNECTED_ENTITIES,
-                            connection.getConnectionType() ),
-                    asList( connection.getConnectedEntityId(), connection.getConnectedEntityType() ), timestamp );
+            // the row may be split without this node knowing yet, and a connection written before the split is in
+            // the first shard, delete it from every shard the row could have
+            for ( Object shardKey : shardLocator
+                    .getAllShardKeys( connection.getConnectingEntityId(), DICTIONARY_CONNECTED_ENTITIES,
+                            connection.getConnectionType() ) ) {
+                addDeleteToMutator( batch, ENTITY_COMPOSITE_DICTIONARIES, shardKey,
+                        asList( connection.getConnectedEntityId(), connection.getConnectedEntityType() ), timestamp );
+            }
+
+            for ( Object shardKey : shardLocator
+                    .getAllShardKeys( connection.getConnectedEntityId(), DICTIONARY_CONNECTING_ENTITIES,
+                            connection.getConnectionType() ) ) {
+                addDeleteToMutator( batch, ENTITY_COMPOSITE_DICTIONARIES, shardKey,
+                        asList( connection.getConnectingEntityId(), connection.getConnectingEntityType() ),
+                        timestamp );
+            }
 
-            addDeleteToMutator( batch, ENTITY_COMPOSITE_DICTIONARIES,
-                    key( connection.getConnectedEntityId(), DICTIONARY_CONNECTING_ENTITIES,
-                            connection.getConnectionType() ),
-                    asList( connection.getConnectingEntityId(), connection.getConnectingEntityType() ), timestamp );
+            shardLocator.addSizeMutation( batch, connection.getConnectingEntityId(), DICTIONARY_CONNECTED_ENTITIES,
+                    connection.getConnectionType(), -1 );
+
+            shardLocator.addSizeMutation( batch, connection.getConnectedEntityId(), DICTIONARY_CONNECTING_ENTITIES,
+                    connection.getConnectionType(), -1 );
 
             // delete the connection path if there will be no connections left
 
@@ -981,15 +1100,33 @@ public class RelationManagerImpl implements RelationManager {
             }
         }
         else {
+            if ( shardLocator.checkShards( connection.getConnectingEntityId(), DICTIONARY_CONNECTED_ENTITIES,
+                    connection.getConnectionType(), timestamp ) ) {
+                em.scheduleConnectionShardMove( connection.getConnectingEntityId(), DICTIONARY_CONNECTED_ENTITIES,
+                        connection.getConnectionType() );
+            }
+
+            if ( shardLocator.checkShards( connection.getConnectedEntityId(), DICTIONARY_CONNECTING_ENTITIES,
+                    connection.getConnectionType(), timestamp ) ) {
+                em.scheduleConnectionShardMove( connection.getConnectedEntityId(), DICTIONARY_CONNECTING_ENTITIES,
+                        connection.getConnectionType() );
+            }
+
+            shardLocator.addSizeMutation( batch, connection.getConnectingEntityId(), DICTIONARY_CONNECTED_ENTITIES,
+                    connection.getConnectionType(), 1 );
+
+            shardLocator.addSizeMutation( batch, connection.getConnectedEntityId(), DICTIONARY_CONNECTING_ENTITIES,
+                    connection.getConnectionType(), 1 );
+
             addInsertToMutator( batch, ENTITY_COMPOSITE_DICTIONARIES,
-                    key( connection.getConnectingEntityId(), DICTIONARY_CONNECTED_ENTITIES,
-                            connection.getConnectionType() ),
+                    shardLocator.getShardKey( connection.getConnectingEntityId(), DICTIONARY_CONNECTED_ENTITIES,
+                            connection.getConnectionType(), connection.getConnectedEntityId() ),
                     asList( connection.getConnectedEntityId(), connection.getConnectedEntityType() ), timestamp,
                     timestamp );
 
             addInsertToMutator( batch, ENTITY_COMPOSITE_DICTIONARIES,
-                    key( connection.getConnectedEntityId(), DICTIONARY_CONNECTING_ENTITIES,
-                            connection.getConnectionType() ),
+                    shardLocator.getShardKey( connection.getConnectedEntityId(), DICTIONARY_CONNECTING_ENTITIES,
+                            connection.getConnectionType(), connection.getConnectingEntityId() ),
                     asList( connection.getConnectingEntityId(), connection.getConnectingEntityType() ), timestamp,
                     timestamp );
 
@@ -1117,11 +1254,24 @@ public class RelationManagerImpl implements RelationManager {
     }
 
 
-    @Metered(group = "core", name = "RelationManager_batchStartIndexUpdate")
     public IndexUpdate batchStartIndexUpdate( Mutator<ByteBuffer> batch, Entity entity, String entryName,
                                               Object entryValue, UUID timestampUuid, boolean schemaHasProperty,
                                               boolean isMultiValue, boolean removeListEntry, boolean fulltextIndexed,
                                               boolean skipRead ) throws Exception {
+        return batchStartIndexUpdate( batch, entity, entryName, entryValue, timestampUuid, schemaHasProperty,
+                isMultiValue, removeListEntry, fulltextIndexed, skipRead, false );
+    }
+
+
+    /**
+     * @param skipUnchanged If the entry is fulltext indexed text that's the same as the indexed one, return an update
+     * marked unchanged without writing anything
+     */
+    @Metered(group = "core", name = "RelationManager_batchStartIndexUpdate")
+    public IndexUpdate batchStartIndexUpdate( Mutator<ByteBuffer> batch, Entity entity, String entryName,
+                                              Object entryValue, UUID timestampUuid, boolean schemaHasProperty,
+                                              boolean isMultiValue, boolean removeListEntry, boolean fulltextIndexed,
+                                              boolean skipRead, boolean skipUnchanged ) throws Exception {
 
         long timestamp = getTimestampInMicros( timestampUuid );
 
@@ -1129,6 +1279,12 @@ public class RelationManagerImpl implements RelationManager {
                 new IndexUpdate( batch, entity, entryName, entryValue, schemaHasProperty, isMultiValue, removeListEntry,
                         timestampUuid );
 
+        // the hash of fulltext indexed text is kept as the value of its main ledger entry
+        ByteBuffer textHash = null;
+        if ( fulltextIndexed && !isMultiValue && ( entryValue instanceof String ) ) {
+            textHash = textHash( ( String ) entryValue );
+        }
+
         // entryName = entryName.toLowerCase();
 
         // entity_id,connection_type,connected_entity_id,prop_name
@@ -1144,6 +1300,13 @@ public class RelationManagerImpl implements RelationManager {
                         setGreaterThanEqualityFlag( new DynamicComposite( entryName, indexValueCode( entryValue ),
                                 toIndexableValue( entryValue ) ) ), INDEX_ENTRY_LIST_COUNT, false );
             }
+            else if ( prevIndexEntries != null && entity.getUuid().equals( headEntity.getUuid() ) ) {
+                entries = prevIndexEntries.get( entryName );
+
+                if ( entries == null ) {
+                    entries = Collections.emptyList();
+                }
+            }
             else {
                 entries = cass.getColumns( cass.getApplicationKeyspace( applicationId ), ENTITY_INDEX_ENTRIES,
                         entity.getUuid(), new DynamicComposite( entryName ),
@@ -1157,6 +1320,12 @@ public class RelationManagerImpl implements RelationManager {
                 } );
             }
 
+            if ( skipUnchanged && ( textHash != null ) && isTextUnchanged( entries, textHash ) ) {
+                logger.debug( "Text of {} of entity {} is unchanged", entryName, entity.getUuid() );
+                indexUpdate.setUnchanged( true );
+                return indexUpdate;
+            }
+
             // Delete all matching entries from entry list
             for ( HColumn<ByteBuffer, ByteBuffer> entry : entries ) {
                 UUID prev_timestamp = null;
@@ -1195,7 +1364,8 @@ public class RelationManagerImpl implements RelationManager {
 
         if ( !isMultiValue || ( isMultiValue && !removeListEntry ) ) {
 
-            List<Map.Entry<String, Object>> list = IndexUtils.getKeyValueList( entryName, entryValue, fulltextIndexed );
+            List<Map.Entry<String, Object>> list =
+                    IndexUtils.getKeyValueList( entity.getType(), entryName, entryValue, fulltextIndexed );
 
             if ( entryName.equalsIgnoreCase( "location" ) && ( entryValue instanceof Map ) ) {
                 @SuppressWarnings("rawtypes") double latitude =
@@ -1234,7 +1404,8 @@ public class RelationManagerImpl implements RelationManager {
                     byte code = indexValueCode( indexEntry.getValue() );
                     Object val = toIndexableValue( indexEntry.getValue() );
                     addInsertToMutator( batch, ENTITY_INDEX_ENTRIES, entity.getUuid(),
-                            asList( entryName, code, val, indexUpdate.getTimestampUuid(), name ), null, timestamp );
+                            asList( entryName, code, val, indexUpdate.getTimestampUuid(), name ),
+                            name.length() == 0 ? textHash : null, timestamp );
 
                     indexUpdate.addIndex( indexEntry.getKey() );
                 }
@@ -1247,6 +1418,25 @@ public class RelationManagerImpl implements RelationManager {
     }
 
 
+    private static ByteBuffer textHash( String text ) {
+        return ByteBuffer.wrap( Hashing.murmur3_128().hashString( text, Charsets.UTF_8 ).asBytes() );
+    }
+
+
+    /** @return true if the main ledger entry of the previous value holds the hash of the text */
+    private static boolean isTextUnchanged( List<HColumn<ByteBuffer, ByteBuffer>> entries, ByteBuffer textHash ) {
+        for ( HColumn<ByteBuffer, ByteBuffer> entry : entries ) {
+            DynamicComposite composite = DynamicComposite.fromByteBuffer( entry.getName().duplicate() );
+
+            if ( ( composite.size() > 4 ) && "".equals( composite.get( 4 ) ) ) {
+                return textHash.equals( entry.getValue() );
+            }
+        }
+
+        return false;
+    }
+
+
     @Metered(group = "core", name = "RelationManager_batchUpdatePropertyIndexes")
     public void batchUpdatePropertyIndexes( Mutator<ByteBuffer> batch, String propertyName, Object propertyValue,
                                             boolean entitySchemaHasProperty, boolean noRead, UUID timestampUuid )
@@ -1274,7 +1464,12 @@ public class RelationManagerImpl implements RelationManager {
 
         IndexUpdate indexUpdate = batchStartIndexUpdate( batch, entity, propertyName, propertyValue, timestampUuid,
                 entitySchemaHasProperty, false, false,
-                getDefaultSchema().isPropertyFulltextIndexed( entity.getType(), propertyName ), noRead );
+                getDefaultSchema().isPropertyFulltextIndexed( entity.getType(), propertyName ), noRead,
+                em.isSkipUnchangedText() );
+
+        if ( indexUpdate.isUnchanged() ) {
+            return;
+        }
 
         // Update collections
 
@@ -1332,6 +1527,316 @@ public class RelationManagerImpl implements RelationManager {
     }
 
 
+    /**
+     * Update the composite indexes and the projections that include any of the updated properties, in every collection
+     * of the entity that declares them. Called once all the properties of an update are set, since they combine
+     * several properties
+     *
+     * @param properties The updated properties, the other properties of the indexes are read from the entity. When a
+     * composite index is updated the caller holds the entity's composite index lock until the batch is executed, and
+     * the entity is read after the lock was taken
+     * @param noRead True if the entity was just created and is only in its default collection
+     */
+    @Metered(group = "core", name = "RelationManager_batchUpdateCombinedIndexes")
+    public void batchUpdateCombinedIndexes( Mutator<ByteBuffer> batch, Map<String, Object> properties, boolean noRead,
+                                            UUID timestampUuid ) throws Exception {
+
+        Map<String, Set<CollectionInfo>> containers = getDefaultSchema().getContainers( headEntity.getType() );
+        if ( ( containers == null ) || !hasCombinedIndexes( containers, properties.keySet() ) ) {
+            return;
+        }
+
+        Entity entity = getHeadEntity();
+
+        if ( Schema.isAssociatedEntityType( entity.getType() ) ) {
+            return;
+        }
+
+        Map<String, Object> updated = new TreeMap<String, Object>( String.CASE_INSENSITIVE_ORDER );
+        updated.putAll( properties );
+
+        Map<EntityRef, Set<String>> containerEntities = null;
+        if ( noRead ) {
+            containerEntities = new LinkedHashMap<EntityRef, Set<String>>();
+            EntityRef applicationRef = new SimpleEntityRef( TYPE_APPLICATION, applicationId );
+            addMapSet( containerEntities, applicationRef, defaultCollectionName( entity.getType() ) );
+        }
+        else {
+            containerEntities = getContainingCollections();
+        }
+
+        // an index declared by several collections is read and written to the ledger once
+        Map<String, IndexUpdate> indexUpdates = new LinkedHashMap<String, IndexUpdate>();
+
+        for ( EntityRef containerEntity : containerEntities.keySet() ) {
+            Set<String> collectionNames = containerEntities.get( containerEntity );
+            Set<CollectionInfo> collections = containers.get( containerEntity.getType() );
+
+            if ( collections == null ) {
+                continue;
+            }
+
+            for ( CollectionInfo collection : collections ) {
+                if ( !collectionNames.contains( collection.getName() ) ) {
+                    continue;
+                }
+
+                for ( CompositeIndexInfo compositeIndex : collection.getCompositeIndexes( properties.keySet() ) ) {
+                    IndexUpdate indexUpdate = indexUpdates.get( compositeIndex.getName() );
+
+                    if ( indexUpdate == null ) {
+                        indexUpdate = batchStartIndexUpdate( batch, entity, compositeIndex.getName(),
+                                getCompositeIndexValue( compositeIndex, entity, updated ), timestampUuid, false,
+                                false, false, false, noRead );
+                        indexUpdates.put( compositeIndex.getName(), indexUpdate );
+                    }
+
+                    batchUpdateCollectionIndex( indexUpdate, containerEntity, collection.getName() );
+                }
+
+                if ( collection.isProjectingAny( properties.keySet() ) ) {
+                    batchStoreProjection( batch, containerEntity.getUuid(), collection, entity, updated,
+                            getTimestampInMicros( timestampUuid ) );
+                }
+            }
+        }
+
+        for ( IndexUpdate indexUpdate : indexUpdates.values() ) {
+            for ( IndexEntry entry : indexUpdate.getPrevEntries() ) {
+                addDeleteToMutator( batch, ENTITY_INDEX_ENTRIES, entity.getUuid(), entry.getLedgerColumn(),
+                        indexUpdate.getTimestamp() );
+            }
+        }
+    }
+
+
+    /** @return true if a collection that can hold entities of the type has a composite index on any of the properties */
+    static boolean hasCompositeIndexes( String entityType, Set<String> propertyNames ) {
+        Map<String, Set<CollectionInfo>> containers = getDefaultSchema().getContainers( entityType );
+        if ( containers == null ) {
+            return false;
+        }
+
+        for ( Set<CollectionInfo> collections : containers.values() ) {
+            for ( CollectionInfo collection : collections ) {
+                if ( !collection.getCompositeIndexes( propertyNames ).isEmpty() ) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    private static boolean hasCombinedIndexes( Map<String, Set<CollectionInfo>> containers,
+                                               Set<String> propertyNames ) {
+        for ( Set<CollectionInfo> collections : containers.values() ) {
+            for ( CollectionInfo collection : collections ) {
+                if ( !collection.getCompositeIndexes( propertyNames ).isEmpty() || collection
+                        .isProjectingAny( propertyNames ) ) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * @param properties Updated properties that take precedence over the entity's, may be null
+     *
+     * @return the value of the composite index for the entity, null if it's missing one of the properties
+     */
+    private static String getCompositeIndexValue( CompositeIndexInfo compositeIndex, Entity entity,
+                                                  Map<String, Object> properties ) {
+        List<Object> values = new ArrayList<Object>();
+
+        for ( String propertyName : compositeIndex.getProperties() ) {
+            Object value = null;
+
+            if ( ( properties != null ) && properties.containsKey( propertyName ) ) {
+                value = properties.get( propertyName );
+            }
+            else {
+                value = entity.getProperty( propertyName );
+            }
+
+            if ( value == null ) {
+                return null;
+            }
+
+            values.add( value );
+        }
+
+        return compositeIndex.getValue( values );
+    }
+
+
+    /** The row of the projections of a collection, in the bucket of the entity */
+    private Object getProjectionKey( UUID ownerId, String collectionName, UUID entityId ) {
+        return key( ownerId, collectionName, Schema.DICTIONARY_PROJECTIONS,
+                indexBucketLocator.getBucket( applicationId, IndexType.COLLECTION, entityId, collectionName ) );
+    }
+
+
+    /**
+     * The column of a projected property of an entity. The uuid column is always written with the projection, so an
+     * entity has a projection if it has that column
+     */
+    private static List<Object> getProjectionColumn( UUID entityId, String propertyName ) {
+        return asList( ( Object ) entityId, propertyName );
+    }
+
+
+    /** Delete the projection of an entity from a collection of the owner, if the collection has a projection */
+    public void batchRemoveProjection( Mutator<ByteBuffer> batch, UUID ownerId, CollectionInfo collection,
+                                       UUID entityId, long timestamp ) throws Exception {
+        if ( ( collection == null ) || !collection.hasProjection() ) {
+            return;
+        }
+
+        Object rowKey = getProjectionKey( ownerId, collection.getName(), entityId );
+
+        addDeleteToMutator( batch, ENTITY_DICTIONARIES, rowKey, getProjectionColumn( entityId, PROPERTY_UUID ),
+                timestamp );
+
+        for ( String propertyName : collection.getProjection() ) {
+            addDeleteToMutator( batch, ENTITY_DICTIONARIES, rowKey, getProjectionColumn( entityId, propertyName ),
+                    timestamp );
+        }
+    }
+
+
+    /**
+     * Store the projected properties of the entity in the collection's projection row, a column per property. Values
+     * are serialized like the entity's own properties, so they read back with the same types
+     *
+     * @param properties Updated properties, only those are written so concurrent updates of other properties aren't
+     * overwritten. Null to write the whole projection
+     */
+    private void batchStoreProjection( Mutator<ByteBuffer> batch, UUID ownerId, CollectionInfo collection,
+                                       Entity entity, Map<String, Object> properties, long timestamp )
+            throws Exception {
+        Object rowKey = getProjectionKey( ownerId, collection.getName(), entity.getUuid() );
+
+        if ( properties == null ) {
+            addInsertToMutator( batch, ENTITY_DICTIONARIES, rowKey,
+                    getProjectionColumn( entity.getUuid(), PROPERTY_UUID ), entity.getUuid(), timestamp );
+        }
+
+        for ( String propertyName : collection.getProjection() ) {
+            Object value = null;
+
+            if ( properties == null ) {
+                value = entity.getProperty( propertyName );
+            }
+            else if ( properties.containsKey( propertyName ) ) {
+                value = properties.get( propertyName );
+
+                if ( value == null ) {
+                    addDeleteToMutator( batch, ENTITY_DICTIONARIES, rowKey,
+                            getProjectionColumn( entity.getUuid(), propertyName ), timestamp );
+                    continue;
+                }
+            }
+
+            if ( value != null ) {
+                addInsertToMutator( batch, ENTITY_DICTIONARIES, rowKey,
+                        getProjectionColumn( entity.getUuid(), propertyName ),
+                        serializeEntityProperty( entity.getType(), propertyName, value ), timestamp );
+            }
+        }
+    }
+
+
+    /**
+     * Read the projected properties of entities of a collection of the head entity
+     *
+     * @return The entities with their uuid, type and projected properties only.  Entities without a stored projection,
+     *         written before the collection had one, are left out
+     */
+    @Metered(group = "core", name = "RelationManager_getProjectedEntities")
+    public Map<UUID, Entity> getProjectedEntities( String collectionName, Collection<UUID> ids ) throws Exception {
+
+        Map<UUID, Entity> entities = new HashMap<UUID, Entity>( ids.size() );
+
+        CollectionInfo collection = getDefaultSchema().getCollection( headEntity.getType(), collectionName );
+
+        if ( ( collection == null ) || !collection.hasProjection() || ids.isEmpty() ) {
+            return entities;
+        }
+
+        // a read per bucket holding any of the ids
+        Map<Object, List<UUID>> rows = new LinkedHashMap<Object, List<UUID>>();
+
+        for ( UUID id : ids ) {
+            Object rowKey = getProjectionKey( headEntity.getUuid(), collectionName, id );
+            List<UUID> rowIds = rows.get( rowKey );
+            if ( rowIds == null ) {
+                rowIds = new ArrayList<UUID>();
+                rows.put( rowKey, rowIds );
+            }
+            rowIds.add( id );
+        }
+
+        Keyspace ko = cass.getApplicationKeyspace( applicationId );
+
+        for ( Entry<Object, List<UUID>> row : rows.entrySet() ) {
+            List<ByteBuffer> names = new ArrayList<ByteBuffer>();
+
+            for ( UUID id : row.getValue() ) {
+                names.add( DynamicComposite.toByteBuffer( getProjectionColumn( id, PROPERTY_UUID ) ) );
+
+                for ( String propertyName : collection.getProjection() ) {
+                    names.add( DynamicComposite.toByteBuffer( getProjectionColumn( id, propertyName ) ) );
+                }
+            }
+
+            ColumnSlice<ByteBuffer, ByteBuffer> columns = cass.getColumns( ko, ENTITY_DICTIONARIES, row.getKey(),
+                    names.toArray( new ByteBuffer[names.size()] ), be, be );
+
+            if ( columns == null ) {
+                continue;
+            }
+
+            Map<UUID, Map<String, Object>> projections = new HashMap<UUID, Map<String, Object>>();
+
+            for ( HColumn<ByteBuffer, ByteBuffer> column : columns.getColumns() ) {
+                DynamicComposite name = DynamicComposite.fromByteBuffer( column.getName().duplicate() );
+                UUID id = ( UUID ) name.get( 0 );
+                String propertyName = ( String ) name.get( 1 );
+
+                Map<String, Object> properties = projections.get( id );
+                if ( properties == null ) {
+                    properties = new TreeMap<String, Object>( CASE_INSENSITIVE_ORDER );
+                    projections.put( id, properties );
+                }
+
+                properties.put( propertyName,
+                        deserializeEntityProperty( collection.getType(), propertyName, column.getValue() ) );
+            }
+
+            for ( Entry<UUID, Map<String, Object>> projection : projections.entrySet() ) {
+                Map<String, Object> properties = projection.getValue();
+
+                // only some properties, written by an update racing the entity's removal
+                if ( !properties.containsKey( PROPERTY_UUID ) ) {
+                    continue;
+                }
+
+                properties.remove( PROPERTY_UUID );
+
+                Entity entity = EntityFactory.newEntity( projection.getKey(), collection.getType() );
+                entity.setProperties( properties );
+
+                entities.put( projection.getKey(), entity );
+            }
+        }
+
+        return entities;
+    }
+
+
     public void batchUpdateSetIndexes( Mutator<ByteBuffer> batch, String setName, Object elementValue,
                                        boolean removeFromSet, UUID timestampUuid ) throws Exception {
 
@@ -1374,6 +1879,125 @@ public class RelationManagerImpl implements RelationManager {
     }
 
 
+    /**
+     * Read the index of a property in a collection of the head entity into a statistics collector, a bucket row at a
+     * time
+     *
+     * @param pageSize The number of entries to read at once
+     * @param maxBucketEntries The most entries to read from a bucket row, the collector is truncated past them
+     */
+    @Metered(group = "core", name = "RelationManager_collectIndexStatistics")
+    public void collectIndexStatistics( String collectionName, String propertyName,
+                                        IndexStatisticsCollector collector, int pageSize, long maxBucketEntries )
+            throws Exception {
+
+        Keyspace ko = cass.getApplicationKeyspace( applicationId );
+
+        for ( String bucket : indexBucketLocator.getBuckets( applicationId, IndexType.COLLECTION, collectionName ) ) {
+            collector.startBucket( bucket );
+
+            Object indexKey = key( headEntity.getUuid(), collectionName, propertyName, bucket );
+
+            ByteBuffer start = null;
+            long read = 0;
+
+            while ( true ) {
+                List<HColumn<ByteBuffer, ByteBuffer>> columns =
+                        cass.getColumns( ko, ENTITY_INDEX, indexKey, start, null, pageSize + 1, false );
+
+                // every page but the first starts with the last column of the previous one
+                int first = start == null ? 0 : 1;
+
+                for ( int i = first; i < columns.size(); i++ ) {
+                    if ( read >= maxBucketEntries ) {
+                        break;
+                    }
+
+                    collector.add( DynamicComposite.fromByteBuffer( columns.get( i ).getName().duplicate() ).get( 1 ) );
+                    read++;
+                }
+
+                if ( read >= maxBucketEntries ) {
+                    if ( columns.size() > first ) {
+                        collector.truncate();
+                    }
+                    break;
+                }
+
+                if ( columns.size() <= pageSize ) {
+                    break;
+                }
+
+                start = columns.get( columns.size() - 1 ).getName();
+            }
+        }
+    }
+
+
+    /** Store the statistics of the index of a property in a collection of the head entity */
+    public void storeIndexStatistics( String collectionName, IndexStatistics statistics ) throws Exception {
+        Mutator<ByteBuffer> batch = CountingMutator.createFlushingMutator( cass.getApplicationKeyspace( applicationId ), be );
+
+        addInsertToMutator( batch, ENTITY_DICTIONARIES,
+                key( headEntity.getUuid(), collectionName, Schema.DICTIONARY_INDEX_STATISTICS ),
+                statistics.getPropertyName(), JsonUtils.toByteBuffer( statistics ),
+                getTimestampInMicros( newTimeUUID() ) );
+
+        batchExecute( batch, CassandraService.RETRY_COUNT );
+    }
+
+
+    /** @return the statistics of the indexes of a collection of the head entity, by property */
+    public Map<String, IndexStatistics> getIndexStatistics( String collectionName ) throws Exception {
+        List<HColumn<String, ByteBuffer>> columns = cass.getAllColumns( cass.getApplicationKeyspace( applicationId ),
+                ENTITY_DICTIONARIES, key( headEntity.getUuid(), collectionName, Schema.DICTIONARY_INDEX_STATISTICS ) );
+
+        Map<String, IndexStatistics> statistics = new TreeMap<String, IndexStatistics>( CASE_INSENSITIVE_ORDER );
+
+        for ( HColumn<String, ByteBuffer> column : columns ) {
+            IndexStatistics propertyStatistics =
+                    ( IndexStatistics ) JsonUtils.fromByteBuffer( column.getValue(), IndexStatistics.class );
+
+            if ( propertyStatistics != null ) {
+                statistics.put( column.getName(), propertyStatistics );
+            }
+        }
+
+        return statistics;
+    }
+
+
+    /** @return the state of the composite indexes of a collection of the head entity, by index name */
+    public Map<String, String> getCompositeIndexStates( String collectionName ) throws Exception {
+        List<HColumn<String, ByteBuffer>> columns = cass.getAllColumns( cass.getApplicationKeyspace( applicationId ),
+                ENTITY_DICTIONARIES, key( headEntity.getUuid(), collectionName, Schema.DICTIONARY_COMPOSITE_INDEXES ) );
+
+        Map<String, String> states = new TreeMap<String, String>( CASE_INSENSITIVE_ORDER );
+
+        for ( HColumn<String, ByteBuffer> column : columns ) {
+            states.put( column.getName(), string( column.getValue() ) );
+        }
+
+        return states;
+    }
+
+
+    /** Store the state of composite indexes of a collection of the head entity */
+    public void storeCompositeIndexStates( String collectionName, Collection<String> indexNames, String state )
+            throws Exception {
+        Mutator<ByteBuffer> batch = CountingMutator.createFlushingMutator( cass.getApplicationKeyspace( applicationId ), be );
+        long timestamp = getTimestampInMicros( newTimeUUID() );
+
+        for ( String indexName : indexNames ) {
+            addInsertToMutator( batch, ENTITY_DICTIONARIES,
+                    key( headEntity.getUuid(), collectionName, Schema.DICTIONARY_COMPOSITE_INDEXES ), indexName, state,
+                    timestamp );
+        }
+
+        batchExecute( batch, CassandraService.RETRY_COUNT );
+    }
+
+
     private IndexScanner searchIndex( Object indexKey, QuerySlice slice, int pageSize ) throws Exception {
 
         DynamicComposite[] range = slice.getRange();
@@ -1428,24 +2052,36 @@ public class RelationManagerImpl implements RelationManager {
     }
 
 
+    private ConnectionShardLocator getConnectionShardLocator() {
+        return em.getConnectionShardLocator();
+    }
+
+
     /** @param connectionName The name of hte connection */
     public boolean isConnectionMember( String connectionName, EntityRef entity ) throws Exception {
         Keyspace ko = cass.getApplicationKeyspace( applicationId );
 
-        Object key = key( this.headEntity.getUuid(), DICTIONARY_CONNECTED_ENTITIES, connectionName );
-
         DynamicComposite start = new DynamicComposite( entity.getUuid() );
 
-        List<HColumn<ByteBuffer, ByteBuffer>> cols =
-                cass.getColumns( ko, ENTITY_COMPOSITE_DICTIONARIES, key, start, null, 1, false );
+        // the connection may be in the first shard if it was written before the row was split
+        for ( Object key : getConnectionShardLocator()
+                .getShardKeys( this.headEntity.getUuid(), DICTIONARY_CONNECTED_ENTITIES, connectionName ) ) {
 
-        if ( cols == null || cols.size() == 0 ) {
-            return false;
-        }
+            List<HColumn<ByteBuffer, ByteBuffer>> cols =
+                    cass.getColumns( ko, ENTITY_COMPOSITE_DICTIONARIES, key, start, null, 1, false );
 
-        UUID returnedUUID = ( UUID ) DynamicComposite.fromByteBuffer( cols.get( 0 ).getName() ).get( 0 );
+            if ( cols == null || cols.size() == 0 ) {
+                continue;
+            }
 
-        return entity.getUuid().equals( returnedUUID );
+            UUID returnedUUID = ( UUID ) DynamicComposite.fromByteBuffer( cols.get( 0 ).getName() ).get( 0 );
+
+            if ( entity.getUuid().equals( returnedUUID ) ) {
+                return true;
+            }
+        }
+
+        return false;
 
 
         //    addDeleteToMutator(batch, ENTITY_COMPOSITE_DICTIONARIES,
@@ -1767,11 +2403,18 @@ public class RelationManagerImpl implements RelationManager {
 
         query.setEntityType( collection.getType() );
 
-        final CollectionResultsLoaderFactory factory = new CollectionResultsLoaderFactory();
+        CollectionProjection projection =
+                collection.hasProjection() ? new CollectionProjection( this, collection, em ) : null;
+
+        final CollectionResultsLoaderFactory factory = new CollectionResultsLoaderFactory( projection );
 
         // we have something to search with, visit our tree and evaluate the
         // results
-        QueryProcessor qp = new QueryProcessor( query, collection, em, factory );
+        QueryProcessor qp = new QueryProcessor( query, collection, em, factory,
+                em.getBuiltCompositeIndexes( headEntity, collection ) );
+        qp.setHiddenFiltered( hiddenFiltered );
+        qp.setProjection( projection );
+        qp.setIndexStatistics( em.getIndexStatistics( headEntity, collectionName ) );
         SearchCollectionVisitor visitor = new SearchCollectionVisitor( qp );
 
         return qp.getResults( visitor );
@@ -1966,6 +2609,7 @@ public class RelationManagerImpl implements RelationManager {
         final ConnectionResultsLoaderFactory factory = new ConnectionResultsLoaderFactory( connectionRef );
 
         QueryProcessor qp = new QueryProcessor( query, null, em, factory );
+        qp.setHiddenFiltered( hiddenFiltered );
         SearchConnectionVisitor visitor = new SearchConnectionVisitor( qp, connectionRef, true );
 
         return qp.getResults( visitor );
@@ -2008,6 +2652,7 @@ public class RelationManagerImpl implements RelationManager {
         final ConnectionResultsLoaderFactory factory = new ConnectionResultsLoaderFactory( connectionRef );
 
         QueryProcessor qp = new QueryProcessor( query, null, em, factory );
+        qp.setHiddenFiltered( hiddenFiltered );
         SearchConnectionVisitor visitor = new SearchConnectionVisitor( qp, connectionRef, false );
 
         return qp.getResults( visitor );
@@ -2047,6 +2692,7 @@ public class RelationManagerImpl implements RelationManager {
         final ConnectionResultsLoaderFactory factory = new ConnectionResultsLoaderFactory( connectionRef );
 
         QueryProcessor qp = new QueryProcessor( query, null, em, factory );
+        qp.setHiddenFiltered( hiddenFiltered );
         SearchConnectionVisitor visitor = new SearchConnectionVisitor( qp, connectionRef, true );
 
         return qp.getResults( visitor );
@@ -2308,8 +2954,8 @@ public class RelationManagerImpl implements RelationManager {
             }
 
             IndexScanner connectionScanner =
-                    new ConnectedIndexScanner( cass, dictionaryType, applicationId, entityIdToUse, connectionTypes,
-                            start, slice.isReversed(), size, skipFirst );
+                    new ConnectedIndexScanner( cass, getConnectionShardLocator(), dictionaryType, applicationId,
+                            entityIdToUse, connectionTypes, start, slice.isReversed(), size, skipFirst );
 
             this.results.push( new SliceIterator( slice, connectionScanner, connectionParser ) );
         }
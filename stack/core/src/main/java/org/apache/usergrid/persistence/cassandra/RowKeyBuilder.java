@@ -0,0 +1,226 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.cassandra;
+
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.UUID;
+
+import static org.apache.usergrid.persistence.cassandra.CassandraPersistenceUtils.KEY_DELIM;
+
+
+/**
+ * Builds the composite row keys of {@link CassandraPersistenceUtils#key(Object...)} and their ids. Keys are built in a
+ * builder reused by the thread, uuids and numbers are written without converting them to strings first, and strings
+ * that are already lower case are appended as they are, so building a key only allocates the key itself.
+ * <p/>
+ * Keys are written to the database, the output must stay exactly the same as concatenating the lower case string of
+ * each component.
+ */
+final class RowKeyBuilder {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** Builders that grew past this are dropped, rather than holding the memory for the life of the thread */
+    private static final int MAX_RETAINED_CAPACITY = 1024;
+
+    /** keyID hashed the bytes of the key in the platform charset, ids stored before must not change */
+    private static final Charset KEY_CHARSET = Charset.defaultCharset();
+
+    private static final ThreadLocal<RowKeyBuilder> BUILDERS = new ThreadLocal<RowKeyBuilder>() {
+        @Override
+        protected RowKeyBuilder initialValue() {
+            return new RowKeyBuilder();
+        }
+    };
+
+    private StringBuilder builder = new StringBuilder( 128 );
+
+    private MessageDigest md5;
+
+    private boolean inUse;
+
+
+    private RowKeyBuilder() {
+    }
+
+
+    /** @return the composite key of the objects as a string */
+    static String key( Object... objects ) {
+        RowKeyBuilder keys = BUILDERS.get();
+
+        // a component's toString built a key of its own
+        if ( keys.inUse ) {
+            keys = new RowKeyBuilder();
+        }
+
+        keys.inUse = true;
+
+        try {
+            StringBuilder s = keys.builder;
+            s.setLength( 0 );
+
+            appendAll( s, objects );
+
+            String key = s.toString();
+
+            if ( s.capacity() > MAX_RETAINED_CAPACITY ) {
+                keys.builder = new StringBuilder( 128 );
+            }
+
+            return key;
+        }
+        finally {
+            keys.inUse = false;
+        }
+    }
+
+
+    /** @return the name based uuid of the key, the same as {@link UUID#nameUUIDFromBytes(byte[])} */
+    static UUID keyID( String key ) {
+        byte[] hash = BUILDERS.get().md5().digest( key.getBytes( KEY_CHARSET ) );
+
+        // version 3 and the IETF variant
+        hash[6] &= 0x0f;
+        hash[6] |= 0x30;
+        hash[8] &= 0x3f;
+        hash[8] |= 0x80;
+
+        long msb = 0;
+        long lsb = 0;
+
+        for ( int i = 0; i < 8; i++ ) {
+            msb = ( msb << 8 ) | ( hash[i] & 0xff );
+        }
+
+        for ( int i = 8; i < 16; i++ ) {
+            lsb = ( lsb << 8 ) | ( hash[i] & 0xff );
+        }
+
+        return new UUID( msb, lsb );
+    }
+
+
+    private MessageDigest md5() {
+        if ( md5 == null ) {
+            try {
+                md5 = MessageDigest.getInstance( "MD5" );
+            }
+            catch ( NoSuchAlgorithmException e ) {
+                throw new InternalError( "MD5 not supported" );
+            }
+        }
+
+        md5.reset();
+
+        return md5;
+    }
+
+
+    private static void appendAll( StringBuilder s, Object[] objects ) {
+        for ( int i = 0; i < objects.length; i++ ) {
+            if ( i > 0 ) {
+                s.append( KEY_DELIM );
+            }
+
+            append( s, objects[i] );
+        }
+    }
+
+
+    private static void append( StringBuilder s, Object obj ) {
+        if ( obj instanceof String ) {
+            appendLowerCase( s, ( String ) obj );
+        }
+        else if ( obj instanceof UUID ) {
+            appendUUID( s, ( UUID ) obj );
+        }
+        else if ( obj instanceof Long || obj instanceof Integer || obj instanceof Short || obj instanceof Byte ) {
+            s.append( ( ( Number ) obj ).longValue() );
+        }
+        else if ( obj instanceof List<?> ) {
+            appendNested( s, ( ( List<?> ) obj ).toArray() );
+        }
+        else if ( obj instanceof Object[] ) {
+            appendNested( s, ( Object[] ) obj );
+        }
+        else if ( obj != null ) {
+            s.append( obj );
+        }
+        else {
+            s.append( '*' );
+        }
+    }
+
+
+    /** A nested key of a single uuid or byte buffer is that object itself, the rest are appended in place */
+    private static void appendNested( StringBuilder s, Object[] objects ) {
+        if ( objects.length == 1 && objects[0] instanceof ByteBuffer ) {
+            s.append( objects[0] );
+            return;
+        }
+
+        appendAll( s, objects );
+    }
+
+
+    /** Append the string lower cased as String.toLowerCase() does, without copying strings that are lower case */
+    private static void appendLowerCase( StringBuilder s, String string ) {
+        int length = string.length();
+
+        for ( int i = 0; i < length; i++ ) {
+            char c = string.charAt( i );
+
+            // locale and context sensitive cases are left to toLowerCase
+            if ( Character.isHighSurrogate( c ) || Character.isLowSurrogate( c )
+                    || Character.toLowerCase( c ) != c ) {
+                s.append( string.toLowerCase() );
+                return;
+            }
+        }
+
+        s.append( string );
+    }
+
+
+    /** Append the uuid as UUID.toString() does */
+    private static void appendUUID( StringBuilder s, UUID uuid ) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+
+        appendHex( s, msb >>> 32, 8 );
+        s.append( '-' );
+        appendHex( s, msb >>> 16, 4 );
+        s.append( '-' );
+        appendHex( s, msb, 4 );
+        s.append( '-' );
+        appendHex( s, lsb >>> 48, 4 );
+        s.append( '-' );
+        appendHex( s, lsb, 12 );
+    }
+
+
+    private static void appendHex( StringBuilder s, long value, int digits ) {
+        for ( int shift = ( digits - 1 ) * 4; shift >= 0; shift -= 4 ) {
+            s.append( HEX[( int ) ( value >>> shift ) & 0xf] );
+        }
+    }
+}
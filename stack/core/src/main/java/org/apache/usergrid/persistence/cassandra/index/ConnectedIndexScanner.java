@@ -18,6 +18,7 @@ package org.apache.usergrid.persistence.cassandra.index;
 
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -26,21 +27,25 @@ import java.util.UUID;
 
 import org.springframework.util.Assert;
 import org.apache.usergrid.persistence.cassandra.CassandraService;
+import org.apache.usergrid.persistence.cassandra.ConnectionShardLocator;
 
 import com.yammer.metrics.annotation.Metered;
 
 import me.prettyprint.hector.api.beans.HColumn;
 
 import static org.apache.usergrid.persistence.cassandra.ApplicationCF.ENTITY_COMPOSITE_DICTIONARIES;
-import static org.apache.usergrid.persistence.cassandra.CassandraPersistenceUtils.key;
 
 
 /**
+ * Scans the connections of an entity, one connection type after the other. The shards of a connection type split by
+ * the {@link ConnectionShardLocator} are merged into a single ordered scan.
+ *
  * @author tnine
  */
 public class ConnectedIndexScanner implements IndexScanner {
 
     private final CassandraService cass;
+    private final ConnectionShardLocator shardLocator;
     private final UUID applicationId;
     private final boolean reversed;
     private final int pageSize;
@@ -73,14 +78,15 @@ public class ConnectedIndexScanner implements IndexScanner {
     private String currentConnectionType;
 
 
-    public ConnectedIndexScanner( CassandraService cass, String dictionaryType, UUID applicationId, UUID entityId,
-                                  Iterator<String> connectionTypes, ByteBuffer start, boolean reversed, int pageSize,
-                                  boolean skipFirst ) {
+    public ConnectedIndexScanner( CassandraService cass, ConnectionShardLocator shardLocator, String dictionaryType,
+                                  UUID applicationId, UUID entityId, Iterator<String> connectionTypes,
+                                  ByteBuffer start, boolean reversed, int pageSize, boolean skipFirst ) {
 
         Assert.notNull( entityId, "Entity id for row key construction must be specified when searching graph indexes" );
         // create our start and end ranges
         this.scanStart = start;
         this.cass = cass;
+        this.shardLocator = shardLocator;
         this.applicationId = applicationId;
         this.entityId = entityId;
         this.start = scanStart;
@@ -148,12 +154,19 @@ public class ConnectedIndexScanner implements IndexScanner {
             int selectSize = totalSelectSize - lastResults.size();
 
 
-            Object key = key( entityId, dictionaryType, currentConnectionType );
+            List<Object> keys = shardLocator.getShardKeys( entityId, dictionaryType, currentConnectionType );
 
+            List<HColumn<ByteBuffer, ByteBuffer>> results;
 
-            List<HColumn<ByteBuffer, ByteBuffer>> results =
-                    cass.getColumns( cass.getApplicationKeyspace( applicationId ), ENTITY_COMPOSITE_DICTIONARIES, key,
-                            start, null, selectSize, reversed );
+            if ( keys.size() == 1 ) {
+                results = cass.getColumns( cass.getApplicationKeyspace( applicationId ), ENTITY_COMPOSITE_DICTIONARIES,
+                        keys.get( 0 ), start, null, selectSize, reversed );
+            }
+            else {
+                results = new ArrayList<HColumn<ByteBuffer, ByteBuffer>>(
+                        IndexMultiBucketSetLoader.load( cass, ENTITY_COMPOSITE_DICTIONARIES, applicationId, keys, start,
+                                null, selectSize, reversed ) );
+            }
 
             final int resultSize = results.size();
 
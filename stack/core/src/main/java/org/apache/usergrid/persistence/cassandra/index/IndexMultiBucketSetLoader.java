@@ -18,6 +18,7 @@ package org.apache.usergrid.persistence.cassandra.index;
 
 
 import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
@@ -56,6 +57,19 @@ public class IndexMultiBucketSetLoader {
                 cass.multiGetColumns( cass.getApplicationKeyspace( applicationId ), columnFamily, rowKeys, start,
                         finish, resultSize, reversed );
 
+        return merge( results.values(), columnFamily, resultSize, reversed );
+    }
+
+
+    /**
+     * Merge the columns read from each bucket, keeping the first result size columns in comparator order
+     *
+     * @param buckets The columns of each bucket
+     */
+    public static TreeSet<HColumn<ByteBuffer, ByteBuffer>> merge(
+            Collection<List<HColumn<ByteBuffer, ByteBuffer>>> buckets, ApplicationCF columnFamily, int resultSize,
+            boolean reversed ) {
+
         final Comparator<ByteBuffer> comparator = reversed ? new DynamicCompositeReverseComparator( columnFamily ) :
                                                   new DynamicCompositeForwardComparator( columnFamily );
 
@@ -70,7 +84,7 @@ public class IndexMultiBucketSetLoader {
                     }
                 } );
 
-        for ( List<HColumn<ByteBuffer, ByteBuffer>> cols : results.values() ) {
+        for ( List<HColumn<ByteBuffer, ByteBuffer>> cols : buckets ) {
 
             for ( HColumn<ByteBuffer, ByteBuffer> col : cols ) {
                 resultsTree.add( col );
@@ -0,0 +1,243 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.cassandra.index;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.usergrid.persistence.IndexStatistics;
+import org.apache.usergrid.utils.HyperLogLog;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import static org.apache.usergrid.persistence.cassandra.IndexUpdate.compareIndexedValues;
+import static org.apache.usergrid.persistence.cassandra.IndexUpdate.indexValueCode;
+import static org.apache.usergrid.persistence.cassandra.IndexUpdate.toIndexableValue;
+
+
+/**
+ * Collects the statistics of a property index from the values of its entries, read a bucket row at a time. Distinct
+ * values are counted with a {@link HyperLogLog}, and a uniform sample of the values gives the quantiles and the most
+ * frequent values
+ */
+public class IndexStatisticsCollector {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private static final Comparator<Object> INDEX_ORDER = new Comparator<Object>() {
+        @Override
+        public int compare( Object first, Object second ) {
+            return compareIndexedValues( first, second );
+        }
+    };
+
+    private final String propertyName;
+    private final int sampleSize;
+    private final int quantileCount;
+    private final int frequentCount;
+    private final Random random;
+
+    private final HyperLogLog distinct = new HyperLogLog();
+    private final List<Object> sample;
+
+    private long entries;
+    private int buckets;
+    private String bucket;
+    private long bucketEntries;
+    private long maxBucketEntries;
+    private String hotBucket;
+    private boolean truncated;
+
+
+    /**
+     * @param sampleSize The number of values to sample
+     * @param quantileCount The number of parts to split the values in
+     * @param frequentCount The most frequent values to keep
+     */
+    public IndexStatisticsCollector( String propertyName, int sampleSize, int quantileCount, int frequentCount,
+                                     Random random ) {
+        this.propertyName = propertyName;
+        this.sampleSize = sampleSize;
+        this.quantileCount = quantileCount;
+        this.frequentCount = frequentCount;
+        this.random = random;
+        this.sample = new ArrayList<Object>( sampleSize );
+    }
+
+
+    /** Start reading the entries of a bucket row */
+    public void startBucket( String bucket ) {
+        finishBucket();
+
+        this.bucket = bucket;
+        this.bucketEntries = 0;
+        this.buckets++;
+    }
+
+
+    /** Add the value of an entry of the current bucket */
+    public void add( Object value ) {
+        value = toIndexableValue( value );
+
+        entries++;
+        bucketEntries++;
+
+        distinct.offer( hash( value ) );
+
+        // keep each value read so far with the same probability
+        if ( sample.size() < sampleSize ) {
+            sample.add( value );
+        }
+        else {
+            long index = ( long ) ( random.nextDouble() * entries );
+            if ( index < sampleSize ) {
+                sample.set( ( int ) index, value );
+            }
+        }
+    }
+
+
+    /** Signal the current bucket has more entries than were read */
+    public void truncate() {
+        truncated = true;
+    }
+
+
+    public IndexStatistics getStatistics() {
+        finishBucket();
+
+        IndexStatistics statistics = new IndexStatistics();
+        statistics.setPropertyName( propertyName );
+        statistics.setUpdated( System.currentTimeMillis() );
+        statistics.setEntries( entries );
+        statistics.setDistinct( Math.min( entries, distinct.cardinality() ) );
+        statistics.setBuckets( buckets );
+        statistics.setMaxBucketEntries( maxBucketEntries );
+        statistics.setHotBucket( hotBucket );
+        statistics.setTruncated( truncated );
+        statistics.setQuantiles( getQuantiles() );
+        statistics.setFrequent( getFrequent() );
+
+        return statistics;
+    }
+
+
+    private void finishBucket() {
+        if ( ( bucket != null ) && ( bucketEntries > maxBucketEntries ) ) {
+            maxBucketEntries = bucketEntries;
+            hotBucket = bucket;
+        }
+
+        bucket = null;
+    }
+
+
+    private List<Object> getQuantiles() {
+        if ( sample.isEmpty() || ( quantileCount <= 0 ) ) {
+            return Collections.emptyList();
+        }
+
+        List<Object> sorted = new ArrayList<Object>( sample );
+        Collections.sort( sorted, INDEX_ORDER );
+
+        List<Object> quantiles = new ArrayList<Object>( quantileCount + 1 );
+
+        for ( int i = 0; i <= quantileCount; i++ ) {
+            quantiles.add( toJsonValue( sorted.get( ( int ) ( ( long ) i * ( sorted.size() - 1 ) / quantileCount ) ) ) );
+        }
+
+        return quantiles;
+    }
+
+
+    /** The values sampled more than once, with their share of the sample applied to all the entries */
+    private Map<String, Long> getFrequent() {
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+
+        for ( Object value : sample ) {
+            if ( value instanceof ByteBuffer ) {
+                continue;
+            }
+
+            String key = IndexStatistics.getFrequentKey( value );
+            Integer count = counts.get( key );
+            counts.put( key, count == null ? 1 : count + 1 );
+        }
+
+        List<Map.Entry<String, Integer>> sorted = new ArrayList<Map.Entry<String, Integer>>( counts.entrySet() );
+
+        Collections.sort( sorted, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare( Map.Entry<String, Integer> first, Map.Entry<String, Integer> second ) {
+                return second.getValue().compareTo( first.getValue() );
+            }
+        } );
+
+        Map<String, Long> frequent = new LinkedHashMap<String, Long>();
+
+        for ( Map.Entry<String, Integer> entry : sorted ) {
+            if ( ( frequent.size() >= frequentCount ) || ( entry.getValue() < 2 ) ) {
+                break;
+            }
+
+            frequent.put( entry.getKey(), Math.round( ( double ) entry.getValue() * entries / sample.size() ) );
+        }
+
+        return frequent;
+    }
+
+
+    private static long hash( Object value ) {
+        if ( value instanceof ByteBuffer ) {
+            ByteBuffer bytes = ( ( ByteBuffer ) value ).duplicate();
+            byte[] array = new byte[bytes.remaining()];
+            bytes.get( array );
+            return HASH.hashBytes( array ).asLong();
+        }
+
+        return HASH.hashString( indexValueCode( value ) + ":" + value, Charsets.UTF_8 ).asLong();
+    }
+
+
+    /** Values are stored as json, keep the ones it can't represent as strings */
+    private static Object toJsonValue( Object value ) {
+        if ( value instanceof ByteBuffer ) {
+            ByteBuffer bytes = ( ( ByteBuffer ) value ).duplicate();
+            byte[] array = new byte[bytes.remaining()];
+            bytes.get( array );
+            return Hex.encodeHexString( array );
+        }
+
+        if ( value instanceof UUID ) {
+            return value.toString();
+        }
+
+        return value;
+    }
+}
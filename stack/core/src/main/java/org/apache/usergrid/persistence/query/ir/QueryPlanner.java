@@ -0,0 +1,238 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.query.ir;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.usergrid.persistence.IndexStatistics;
+import org.apache.usergrid.persistence.Schema;
+import org.apache.usergrid.persistence.query.ir.QuerySlice.RangeValue;
+
+import static org.apache.usergrid.persistence.Schema.getDefaultSchema;
+
+
+/**
+ * Estimates the selectivity of the nodes in a query tree, so intersections can be driven from the child that matches
+ * the fewest entities. Queries like <code>status = 'active' and email = 'x'</code> then read the single email match
+ * and read the status index only until that match is found in it, instead of reading every active entity. Index
+ * slices are ordered by value rather than by uuid, so the other children can't seek to the driver's ids, see
+ * {@link org.apache.usergrid.persistence.query.ir.result.IntersectionIterator}.
+ * <p/>
+ * Estimates are the fraction of the collection a node is expected to match. They depend on the shape of the query and
+ * the schema, and on the statistics of the property indexes when the collection has them, which are refreshed by the
+ * index statistics job. Since an intersection only writes the cursor of the child that drives it, a page that has a
+ * cursor must keep that child as the driver whatever the estimates say, slices with a cursor are ordered first.
+ */
+public class QueryPlanner {
+
+    private static final Schema SCHEMA = getDefaultSchema();
+
+    /** An identifier, or equality on a unique property */
+    public static final double SINGLE = 0.000001;
+
+    /** Equality on a property */
+    public static final double EQUALITY = 0.01;
+
+    /** A range bounded on both sides, including string prefixes */
+    public static final double RANGE = 0.1;
+
+    /** A range bounded on one side */
+    public static final double OPEN_RANGE = 0.3;
+
+    /** A geo search */
+    public static final double WITHIN = 0.05;
+
+    /** Every entity in the collection */
+    public static final double ALL = 1;
+
+    private final String entityType;
+
+    private final Map<String, IndexStatistics> statistics;
+
+
+    /** @param entityType The type of entity searched, used to find unique properties. May be null */
+    public QueryPlanner( String entityType ) {
+        this( entityType, null );
+    }
+
+
+    /**
+     * @param entityType The type of entity searched, used to find unique properties. May be null
+     * @param statistics The statistics of the indexes of the collection by property. May be null
+     */
+    public QueryPlanner( String entityType, Map<String, IndexStatistics> statistics ) {
+        this.entityType = entityType;
+        this.statistics = statistics;
+    }
+
+
+    /** Estimate the fraction of the collection the node will match */
+    public double estimate( QueryNode node ) throws Exception {
+        if ( node == null ) {
+            return ALL;
+        }
+
+        EstimateVisitor visitor = new EstimateVisitor();
+
+        node.visit( visitor );
+
+        return visitor.estimate;
+    }
+
+
+    /** Estimate the fraction of the collection the slice will match */
+    public double estimate( QuerySlice slice ) {
+        RangeValue start = slice.getStart();
+        RangeValue finish = slice.getFinish();
+
+        if ( start == null && finish == null ) {
+            return ALL;
+        }
+
+        boolean equality = start != null && start.equals( finish );
+
+        if ( equality && SCHEMA.isPropertyUnique( entityType, slice.getPropertyName() ) ) {
+            return SINGLE;
+        }
+
+        IndexStatistics propertyStatistics = statistics != null ? statistics.get( slice.getPropertyName() ) : null;
+
+        if ( propertyStatistics != null ) {
+            double estimate = equality ? propertyStatistics.estimateEqual( start.getValue() ) :
+                              propertyStatistics.estimateRange( start != null ? start.getValue() : null,
+                                      finish != null ? finish.getValue() : null );
+
+            return Math.max( SINGLE, estimate );
+        }
+
+        if ( start == null || finish == null ) {
+            return OPEN_RANGE;
+        }
+
+        if ( equality ) {
+            return EQUALITY;
+        }
+
+        return RANGE;
+    }
+
+
+    /**
+     * Order the slices most selective first, after the slices with a cursor. Slices with the same estimate keep their
+     * order
+     *
+     * @return A new list of the slices
+     */
+    public List<QuerySlice> order( Collection<QuerySlice> slices ) {
+        List<QuerySlice> ordered = new ArrayList<QuerySlice>( slices );
+
+        Collections.sort( ordered, new Comparator<QuerySlice>() {
+            @Override
+            public int compare( QuerySlice first, QuerySlice second ) {
+                if ( first.hasCursor() != second.hasCursor() ) {
+                    return first.hasCursor() ? -1 : 1;
+                }
+
+                return Double.compare( estimate( first ), estimate( second ) );
+            }
+        } );
+
+        return ordered;
+    }
+
+
+    /**
+     * Estimates a subtree. Children of an and are treated as independent, so their selectivities multiply, and
+     * children of an or as disjoint, so they add up
+     */
+    private class EstimateVisitor implements NodeVisitor {
+
+        private double estimate = ALL;
+
+
+        @Override
+        public void visit( AndNode node ) throws Exception {
+            estimate = estimate( node.getLeft() ) * estimate( node.getRight() );
+        }
+
+
+        @Override
+        public void visit( NotNode node ) throws Exception {
+            // we can't know how much the subtraction removes, the keep side bounds it
+            estimate = estimate( node.getKeepNode() );
+        }
+
+
+        @Override
+        public void visit( OrNode node ) throws Exception {
+            estimate = Math.min( ALL, estimate( node.getLeft() ) + estimate( node.getRight() ) );
+        }
+
+
+        @Override
+        public void visit( SliceNode node ) throws Exception {
+            estimate = ALL;
+
+            for ( QuerySlice slice : node.getAllSlices() ) {
+                estimate *= estimate( slice );
+            }
+        }
+
+
+        @Override
+        public void visit( WithinNode node ) throws Exception {
+            estimate = WITHIN;
+        }
+
+
+        @Override
+        public void visit( AllNode node ) throws Exception {
+            estimate = ALL;
+        }
+
+
+        @Override
+        public void visit( NameIdentifierNode nameIdentifierNode ) throws Exception {
+            estimate = SINGLE;
+        }
+
+
+        @Override
+        public void visit( UuidIdentifierNode uuidIdentifierNode ) {
+            estimate = SINGLE;
+        }
+
+
+        @Override
+        public void visit( OrderByNode orderByNode ) throws Exception {
+            // the sort slice itself is unbounded, only the query operations restrict it
+            estimate = estimate( orderByNode.getQueryOperations() );
+        }
+
+
+        @Override
+        public void visit( EmailIdentifierNode emailIdentifierNode ) throws Exception {
+            estimate = SINGLE;
+        }
+    }
+}
@@ -56,6 +56,8 @@ public abstract class SearchVisitor implements NodeVisitor {
 
     protected final Stack<ResultIterator> results = new Stack<ResultIterator>();
 
+    protected final QueryPlanner planner;
+
 
     /**
      * @param queryProcessor
@@ -64,6 +66,7 @@ public abstract class SearchVisitor implements NodeVisitor {
         this.query = queryProcessor.getQuery();
         this.queryProcessor = queryProcessor;
         this.em = queryProcessor.getEntityManager();
+        this.planner = new QueryPlanner( query.getEntityType(), queryProcessor.getIndexStatistics() );
     }
 
 
@@ -92,8 +95,22 @@ public abstract class SearchVisitor implements NodeVisitor {
          * is required for sorting to work correctly
          */
         IntersectionIterator intersection = new IntersectionIterator( queryProcessor.getPageSizeHint( node ) );
-        intersection.addIterator( left );
-        intersection.addIterator( right );
+
+        //drive the intersection from the side we expect to match the fewest entities, unless the cursor is on one side
+        boolean leftCursor = hasCursor( node.getLeft() );
+        boolean rightCursor = hasCursor( node.getRight() );
+
+        boolean driveRight = leftCursor != rightCursor ? rightCursor :
+                             planner.estimate( node.getRight() ) < planner.estimate( node.getLeft() );
+
+        if ( driveRight ) {
+            intersection.addIterator( right );
+            intersection.addIterator( left );
+        }
+        else {
+            intersection.addIterator( left );
+            intersection.addIterator( right );
+        }
 
         results.push( intersection );
     }
@@ -183,14 +200,16 @@ public abstract class SearchVisitor implements NodeVisitor {
         if ( orderByNode.hasSecondarySorts() ) {
 
             //only order by with no query, start scanning the first field
-            if ( subResults == null ) {
+            boolean candidatesOrdered = subResults == null;
+
+            if ( candidatesOrdered ) {
                 QuerySlice firstFieldSlice = new QuerySlice( slice.getPropertyName(), -1 );
                 subResults =
                         new SliceIterator( slice, secondaryIndexScan( orderByNode, firstFieldSlice ), COLLECTION_PARSER );
             }
 
-            orderIterator = new OrderByIterator( slice, orderByNode.getSecondarySorts(), subResults, em,
-                    queryProcessor.getPageSizeHint( orderByNode ) );
+            orderIterator = new OrderByIterator( slice, orderByNode.getSecondarySorts(), subResults, candidatesOrdered,
+                    em, queryProcessor.getProjection(), queryProcessor.getPageSizeHint( orderByNode ) );
         }
 
         //we don't have multi field sorting, we can simply do intersection with a single scan range
@@ -233,7 +252,12 @@ public abstract class SearchVisitor implements NodeVisitor {
     public void visit( SliceNode node ) throws Exception {
         IntersectionIterator intersections = new IntersectionIterator( queryProcessor.getPageSizeHint( node ) );
 
+        // the cursors decide which slice drives the intersection
         for ( QuerySlice slice : node.getAllSlices() ) {
+            queryProcessor.applyCursorAndSort( slice );
+        }
+
+        for ( QuerySlice slice : planner.order( node.getAllSlices() ) ) {
             IndexScanner scanner = secondaryIndexScan( node, slice );
 
             intersections.addIterator( new SliceIterator( slice, scanner, COLLECTION_PARSER) );
@@ -267,4 +291,91 @@ public abstract class SearchVisitor implements NodeVisitor {
 
         this.results.push( new StaticIdIterator( user.getUuid() ) );
     }
+
+
+    /** @return true if the cursor of the query holds a position in the subtree */
+    protected boolean hasCursor( QueryNode node ) throws Exception {
+        if ( query.getCursor() == null || node == null ) {
+            return false;
+        }
+
+        CursorVisitor visitor = new CursorVisitor();
+
+        node.visit( visitor );
+
+        return visitor.cursor;
+    }
+
+
+    /** Finds whether a subtree has a cursor, the way the iterators of its nodes read them */
+    private class CursorVisitor implements NodeVisitor {
+
+        private boolean cursor;
+
+
+        @Override
+        public void visit( AndNode node ) throws Exception {
+            cursor = hasCursor( node.getLeft() ) || hasCursor( node.getRight() );
+        }
+
+
+        @Override
+        public void visit( NotNode node ) throws Exception {
+            cursor = hasCursor( node.getKeepNode() );
+        }
+
+
+        @Override
+        public void visit( OrNode node ) throws Exception {
+            cursor = queryProcessor.getCursorCache( node.getId() ) != null;
+        }
+
+
+        @Override
+        public void visit( SliceNode node ) throws Exception {
+            for ( QuerySlice slice : node.getAllSlices() ) {
+                queryProcessor.applyCursorAndSort( slice );
+                cursor |= slice.hasCursor();
+            }
+        }
+
+
+        @Override
+        public void visit( WithinNode node ) throws Exception {
+            queryProcessor.applyCursorAndSort( node.getSlice() );
+            cursor = node.getSlice().hasCursor();
+        }
+
+
+        @Override
+        public void visit( AllNode node ) throws Exception {
+            queryProcessor.applyCursorAndSort( node.getSlice() );
+            cursor = node.getSlice().hasCursor();
+        }
+
+
+        @Override
+        public void visit( NameIdentifierNode nameIdentifierNode ) throws Exception {
+        }
+
+
+        @Override
+        public void visit( UuidIdentifierNode uuidIdentifierNode ) {
+        }
+
+
+        @Override
+        public void visit( OrderByNode orderByNode ) throws Exception {
+            QuerySlice slice = orderByNode.getFirstPredicate().getAllSlices().iterator().next();
+
+            queryProcessor.applyCursorAndSort( slice );
+
+            cursor = slice.hasCursor() || hasCursor( orderByNode.getQueryOperations() );
+        }
+
+
+        @Override
+        public void visit( EmailIdentifierNode emailIdentifierNode ) throws Exception {
+        }
+    }
 }
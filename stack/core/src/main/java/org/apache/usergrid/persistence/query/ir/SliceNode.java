@@ -22,6 +22,7 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 
 import org.apache.usergrid.persistence.query.ir.QuerySlice.RangeValue;
+import org.apache.usergrid.utils.IndexUtils;
 import static org.apache.usergrid.persistence.cassandra.IndexUpdate.indexValueCode;
 import static org.apache.usergrid.persistence.cassandra.IndexUpdate.toIndexableValue;
 
@@ -135,6 +136,18 @@ public class SliceNode extends QueryNode {
     }
 
 
+    /**
+     * Match the values of the field that start with the prefix, with a single slice of the field's prefix index
+     * instead of a range of its values
+     */
+    public void setPrefix( String fieldName, String prefix ) {
+        String indexName = IndexUtils.prefixIndexName( fieldName );
+
+        setStart( indexName, prefix, true );
+        setFinish( indexName, prefix, true );
+    }
+
+
     /** Lazy instanciate a field pair if required. Otherwise return the existing pair */
     private QuerySlice getOrCreateSlice( String fieldName ) {
         QuerySlice pair = this.pairs.get( fieldName );
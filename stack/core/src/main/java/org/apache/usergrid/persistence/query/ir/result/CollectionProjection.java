@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.query.ir.result;
+
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.usergrid.persistence.Entity;
+import org.apache.usergrid.persistence.EntityManager;
+import org.apache.usergrid.persistence.Results;
+import org.apache.usergrid.persistence.cassandra.RelationManagerImpl;
+import org.apache.usergrid.persistence.schema.CollectionInfo;
+
+
+/**
+ * Reads the entities of a collection from the properties it stores beside its indexes, see {@link
+ * CollectionInfo#getProjection()}. Entities written before the collection had a projection are loaded instead
+ */
+public class CollectionProjection {
+
+    private final RelationManagerImpl relationManager;
+    private final CollectionInfo collection;
+    private final EntityManager em;
+
+
+    public CollectionProjection( RelationManagerImpl relationManager, CollectionInfo collection, EntityManager em ) {
+        this.relationManager = relationManager;
+        this.collection = collection;
+        this.em = em;
+    }
+
+
+    /** @return true if the projection has all the properties */
+    public boolean isProjecting( Collection<String> propertyNames ) {
+        return collection.isProjecting( propertyNames );
+    }
+
+
+    /** Get the entities with the projected properties, the ones without a projection are partially loaded */
+    public List<Entity> getPartialEntities( Collection<UUID> ids, Collection<String> fields ) throws Exception {
+        Map<UUID, Entity> projected = relationManager.getProjectedEntities( collection.getName(), ids );
+
+        List<Entity> entities = new ArrayList<Entity>( projected.values() );
+
+        List<UUID> missing = getMissing( ids, projected );
+        if ( !missing.isEmpty() ) {
+            entities.addAll( em.getPartialEntities( missing, fields ) );
+        }
+
+        return entities;
+    }
+
+
+    /** Get the entities in the order of the ids with the projected properties, the ones without one are loaded */
+    public Results getEntities( List<UUID> ids ) throws Exception {
+        Map<UUID, Entity> projected = relationManager.getProjectedEntities( collection.getName(), ids );
+
+        List<UUID> missing = getMissing( ids, projected );
+        if ( !missing.isEmpty() ) {
+            for ( Entity entity : em.get( missing ).getEntities() ) {
+                projected.put( entity.getUuid(), entity );
+            }
+        }
+
+        List<Entity> entities = new ArrayList<Entity>( ids.size() );
+
+        for ( UUID id : ids ) {
+            Entity entity = projected.get( id );
+            if ( entity != null ) {
+                entities.add( entity );
+            }
+        }
+
+        return Results.fromEntities( entities );
+    }
+
+
+    private static List<UUID> getMissing( Collection<UUID> ids, Map<UUID, Entity> projected ) {
+        List<UUID> missing = new ArrayList<UUID>();
+
+        for ( UUID id : ids ) {
+            if ( !projected.containsKey( id ) ) {
+                missing.add( id );
+            }
+        }
+
+        return missing;
+    }
+}
@@ -25,6 +25,20 @@ import org.apache.usergrid.persistence.Results;
 /** Implementation for loading collection results */
 public class CollectionResultsLoaderFactory implements ResultsLoaderFactory {
 
+    private final CollectionProjection projection;
+
+
+    public CollectionResultsLoaderFactory() {
+        this( null );
+    }
+
+
+    /** @param projection The projection of the collection, null if it has none */
+    public CollectionResultsLoaderFactory( CollectionProjection projection ) {
+        this.projection = projection;
+    }
+
+
     @Override
     public ResultsLoader getResultsLoader( EntityManager em, Query query, Results.Level level ) {
         switch ( level ) {
@@ -33,6 +47,10 @@ public class CollectionResultsLoaderFactory implements ResultsLoaderFactory {
             case REFS:
                 return new EntityRefLoader( query.getEntityType() );
             default:
+                if ( ( projection != null ) && query.hasSelectSubjects() && projection
+                        .isProjecting( query.getSelectedProperties() ) ) {
+                    return new ProjectionResultsLoader( projection );
+                }
                 return new EntityResultsLoader( em );
         }
     }
@@ -17,23 +17,33 @@
 package org.apache.usergrid.persistence.query.ir.result;
 
 
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
 import org.apache.usergrid.persistence.cassandra.CursorCache;
 
-import com.google.common.collect.Sets;
-
 
 /**
- * An iterator that unions 1 or more subsets. It makes the assuming that sub iterators iterate from min(uuid) to
- * max(uuid)
+ * An iterator that intersects 1 or more subsets. The first iterator drives the intersection and defines the order
+ * of the results, the rest are read forward until the ids of each of its pages are found, see {@link JoinScan}.  Add
+ * the most selective iterator first.
  *
  * @author tnine
  */
 public class IntersectionIterator extends MultiIterator {
 
+    /**
+     * The most ids kept in memory for each join iterator. Join iterators with more ids are read again from the start
+     * for every page of the driving iterator
+     */
+    public static final int MAX_MATERIALIZED_SIZE = 10000;
+
+    private final Map<ResultIterator, JoinScan> scans = new IdentityHashMap<ResultIterator, JoinScan>();
+
 
     /**
      *
@@ -53,6 +63,10 @@ public class IntersectionIterator extends MultiIterator {
         for ( ResultIterator itr : iterators ) {
             itr.reset();
         }
+
+        for ( JoinScan scan : scans.values() ) {
+            scan.reset();
+        }
     }
 
 
@@ -128,23 +142,33 @@ public class IntersectionIterator extends MultiIterator {
     }
 
 
+    /**
+     * Intersect the candidates with the child.  The results keep the order of the candidates, which is the order of
+     * the root iterator
+     */
     private Set<ScanColumn> merge( Set<ScanColumn> current, ResultIterator child ) {
 
-        Set<ScanColumn> results = new LinkedHashSet<ScanColumn>( pageSize );
+        JoinScan scan = scans.get( child );
 
-        while ( results.size() < pageSize ) {
-            if ( !child.hasNext() ) {
-                // we've iterated to the end, reset for next pass
-                child.reset();
-                return results;
-            }
+        if ( scan == null ) {
+            scan = new JoinScan( child );
+            scans.put( child, scan );
+        }
 
+        Set<UUID> ids = new HashSet<UUID>( current.size() );
 
-            final Set<ScanColumn> childResults = child.next();
+        for ( ScanColumn candidate : current ) {
+            ids.add( candidate.getUUID() );
+        }
 
-            final Set<ScanColumn> intersection =  Sets.intersection( current, childResults );
+        Set<UUID> childIds = scan.find( ids );
 
-            results.addAll( intersection );
+        Set<ScanColumn> results = new LinkedHashSet<ScanColumn>( current.size() );
+
+        for ( ScanColumn candidate : current ) {
+            if ( childIds.contains( candidate.getUUID() ) ) {
+                results.add( candidate );
+            }
         }
 
         return results;
@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.query.ir.result;
+
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+
+/**
+ * Looks up ids in a join child of an intersection or subtraction, one page of the driving iterator at a time.
+ * <p/>
+ * Index slices are ordered by value, not by uuid, so a child can't seek to an id. Instead the child is read forward
+ * only as far as needed to find the ids of a page, and every id read is kept. The next page first checks the kept ids
+ * and then continues reading where the last one stopped, so the child is read once across all pages.
+ * <p/>
+ * At most {@link IntersectionIterator#MAX_MATERIALIZED_SIZE} ids are kept. Once a child has more than that, the kept
+ * ids are dropped and every later page reads the child from the start until its ids are found, so the cost of a
+ * large join child grows with the number of driver pages times the size of the child.
+ */
+class JoinScan {
+
+    private final ResultIterator child;
+
+    /** Every id read from the child since its start, null once there were too many to keep */
+    private Set<UUID> seen = new HashSet<UUID>();
+
+    /** True if the child was read to the end and seen holds all of its ids */
+    private boolean complete;
+
+
+    JoinScan( ResultIterator child ) {
+        this.child = child;
+    }
+
+
+    /** @return the ids that are in the child */
+    Set<UUID> find( Set<UUID> ids ) {
+
+        Set<UUID> found = new HashSet<UUID>( ids.size() );
+        Set<UUID> remaining = new HashSet<UUID>( ids.size() );
+
+        for ( UUID id : ids ) {
+            if ( seen != null && seen.contains( id ) ) {
+                found.add( id );
+            }
+            else {
+                remaining.add( id );
+            }
+        }
+
+        if ( complete || remaining.isEmpty() ) {
+            return found;
+        }
+
+        // the kept ids were dropped, so the ids we're looking for may be anywhere in the child
+        boolean fromStart = seen == null;
+
+        while ( !remaining.isEmpty() ) {
+
+            if ( !child.hasNext() ) {
+                complete = seen != null;
+                break;
+            }
+
+            Set<ScanColumn> page = child.next();
+
+            if ( seen != null && seen.size() + page.size() > IntersectionIterator.MAX_MATERIALIZED_SIZE ) {
+                seen = null;
+            }
+
+            for ( ScanColumn column : page ) {
+                UUID id = column.getUUID();
+
+                if ( remaining.remove( id ) ) {
+                    found.add( id );
+                }
+
+                if ( seen != null ) {
+                    seen.add( id );
+                }
+            }
+        }
+
+        // without the kept ids the next page has to start over
+        if ( fromStart || seen == null ) {
+            child.reset();
+        }
+
+        return found;
+    }
+
+
+    /** Start over after the child was reset. A child that was read completely is kept */
+    void reset() {
+        if ( !complete ) {
+            seen = new HashSet<UUID>();
+        }
+    }
+}
@@ -19,15 +19,16 @@ package org.apache.usergrid.persistence.query.ir.result;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
-import java.util.TreeSet;
 import java.util.UUID;
 
 import org.slf4j.Logger;
@@ -39,6 +40,7 @@ import org.apache.usergrid.persistence.Query;
 import org.apache.usergrid.persistence.Query.SortPredicate;
 import org.apache.usergrid.persistence.cassandra.CursorCache;
 import org.apache.usergrid.persistence.query.ir.QuerySlice;
+import org.apache.usergrid.persistence.query.ir.result.SecondaryIndexSliceParser.SecondaryIndexColumn;
 
 import org.apache.commons.collections.comparators.ComparatorChain;
 
@@ -59,6 +61,8 @@ public class OrderByIterator extends MergeIterator {
     private final ComparatorChain subSortCompare;
     private final List<String> secondaryFields;
     private final EntityManager em;
+    private final CollectionProjection projection;
+    private final boolean candidatesOrdered;
 
     //our last result from in memory sorting
     private SortedEntitySet entries;
@@ -69,10 +73,33 @@ public class OrderByIterator extends MergeIterator {
      */
     public OrderByIterator( QuerySlice slice, List<Query.SortPredicate> secondary, ResultIterator candidates,
                             EntityManager em, int pageSize ) {
+        this( slice, secondary, candidates, false, em, pageSize );
+    }
+
+
+    /**
+     * @param candidatesOrdered True if the candidates are a scan of the index of the primary sort field, in sort order.
+     * The scan then stops once the first pageSize entries are found and the primary value of the last one is passed,
+     * instead of reading every candidate
+     */
+    public OrderByIterator( QuerySlice slice, List<Query.SortPredicate> secondary, ResultIterator candidates,
+                            boolean candidatesOrdered, EntityManager em, int pageSize ) {
+        this( slice, secondary, candidates, candidatesOrdered, em, null, pageSize );
+    }
+
+
+    /**
+     * @param projection The projection of the collection, the sort fields are read from it when it has them all. Null
+     * if there is none
+     */
+    public OrderByIterator( QuerySlice slice, List<Query.SortPredicate> secondary, ResultIterator candidates,
+                            boolean candidatesOrdered, EntityManager em, CollectionProjection projection,
+                            int pageSize ) {
         super( pageSize );
         this.slice = slice;
         this.em = em;
         this.candidates = candidates;
+        this.candidatesOrdered = candidatesOrdered;
         this.subSortCompare = new ComparatorChain();
         this.secondaryFields = new ArrayList<String>( 1 + secondary.size() );
 
@@ -91,6 +118,9 @@ public class OrderByIterator extends MergeIterator {
         // paging
         this.secondaryFields.add( NAME_UUID );
         this.subSortCompare.addComparator( new EntityPropertyComparator( NAME_UUID, false ) );
+
+        this.projection =
+                ( projection != null ) && projection.isProjecting( this.secondaryFields ) ? projection : null;
     }
 
 
@@ -105,7 +135,7 @@ public class OrderByIterator extends MergeIterator {
             minEntryId = ue.fromByteBuffer( cursor );
         }
 
-        entries = new SortedEntitySet( subSortCompare, em, secondaryFields, pageSize, minEntryId );
+        entries = new SortedEntitySet( subSortCompare, em, projection, secondaryFields, pageSize, minEntryId );
 
         /**
          *  keep looping through our peek iterator.  We need to inspect each forward page to ensure we have performed a
@@ -116,12 +146,19 @@ public class OrderByIterator extends MergeIterator {
          */
         while ( candidates.hasNext() ) {
 
+            ScanColumn lastCandidate = null;
 
             for ( ScanColumn id : candidates.next() ) {
                 entries.add( id );
+                lastCandidate = id;
             }
 
             entries.load();
+
+            //once we're full, nothing past the primary value of our last entry can make it in
+            if ( candidatesOrdered && entries.isPast( lastCandidate ) ) {
+                break;
+            }
         }
 
 
@@ -149,30 +186,49 @@ public class OrderByIterator extends MergeIterator {
     }
 
 
-    /** A Sorted set with a max size. When a new entry is added, the max is removed */
-    public static final class SortedEntitySet extends TreeSet<Entity> {
+    /**
+     * The first entities in sort order, up to a max size.  Candidates are loaded in batches, only their sort fields
+     * are read, and only the entries are kept between batches
+     */
+    public static final class SortedEntitySet {
 
         private final int maxSize;
-        private final Map<UUID, ScanColumn> cursorVal = new HashMap<UUID, ScanColumn>();
         private final EntityManager em;
+        private final CollectionProjection projection;
         private final List<String> fields;
         private final Entity minEntity;
         private final Comparator<Entity> comparator;
 
+        /** The entries, with the last in sort order at the head so it can be evicted */
+        private final PriorityQueue<Entity> entries;
+
+        /** The columns of the entries */
+        private final Map<UUID, ScanColumn> cursorVal = new HashMap<UUID, ScanColumn>();
+
+        /** The columns of the candidates added since the last load */
+        private final Map<UUID, ScanColumn> pending = new LinkedHashMap<UUID, ScanColumn>();
+
 
         public SortedEntitySet( Comparator<Entity> comparator, EntityManager em, List<String> fields, int maxSize,
                                 UUID minEntityId ) {
-            super( comparator );
+            this( comparator, em, null, fields, maxSize, minEntityId );
+        }
+
+
+        /** @param projection The projection to read the fields from, null to read them from the entities */
+        public SortedEntitySet( Comparator<Entity> comparator, EntityManager em, CollectionProjection projection,
+                                List<String> fields, int maxSize, UUID minEntityId ) {
             this.maxSize = maxSize;
             this.em = em;
+            this.projection = projection;
             this.fields = fields;
             this.comparator = comparator;
+            this.entries = new PriorityQueue<Entity>( Math.max( 1, maxSize ), Collections.reverseOrder( comparator ) );
             this.minEntity = getPartialEntity( minEntityId );
         }
 
 
-        @Override
-        public boolean add( Entity entity ) {
+        private boolean add( Entity entity ) {
 
             // don't add this entity.  We get it in our scan range, but it's <= the minimum value that
             //should be allowed in the result set
@@ -180,30 +236,46 @@ public class OrderByIterator extends MergeIterator {
                 return false;
             }
 
-            boolean added = super.add( entity );
+            if ( entries.size() >= maxSize ) {
+
+                //we're full, the entity has to sort before our last entry to make it in
+                if ( maxSize == 0 || comparator.compare( entity, entries.peek() ) >= 0 ) {
+                    return false;
+                }
 
-            while ( size() > maxSize ) {
-                //remove our last element, we're over size
-                Entity e = this.pollLast();
                 //remove it from the cursors as well
-                cursorVal.remove( e.getUuid() );
+                cursorVal.remove( entries.poll().getUuid() );
             }
 
-            return added;
+            entries.add( entity );
+            cursorVal.put( entity.getUuid(), pending.get( entity.getUuid() ) );
+
+            return true;
         }
 
 
         /** add the id to be loaded, and the dynamiccomposite column that belongs with it */
         public void add( ScanColumn col ) {
-            cursorVal.put( col.getUUID(), col );
+            UUID id = col.getUUID();
+
+            //we've already seen this entity, I.E. it's indexed under multiple values
+            if ( cursorVal.containsKey( id ) || pending.containsKey( id ) ) {
+                return;
+            }
+
+            pending.put( id, col );
         }
 
 
         private Entity getPartialEntity( UUID minEntityId ) {
+            if ( minEntityId == null ) {
+                return null;
+            }
+
             List<Entity> entities;
 
             try {
-                entities = em.getPartialEntities( Collections.singletonList( minEntityId ), fields );
+                entities = getPartialEntities( Collections.singletonList( minEntityId ) );
             }
             catch ( Exception e ) {
                 logger.error( "Unable to load partial entities", e );
@@ -218,9 +290,14 @@ public class OrderByIterator extends MergeIterator {
         }
 
 
+        /** Load the sort fields of the pending candidates, and keep the ones that sort before our last entry */
         public void load() {
+            if ( pending.isEmpty() ) {
+                return;
+            }
+
             try {
-                for ( Entity e : em.getPartialEntities( cursorVal.keySet(), fields ) ) {
+                for ( Entity e : getPartialEntities( pending.keySet() ) ) {
                     add( e );
                 }
             }
@@ -228,20 +305,61 @@ public class OrderByIterator extends MergeIterator {
                 logger.error( "Unable to load partial entities", e );
                 throw new RuntimeException( e );
             }
+
+            pending.clear();
+        }
+
+
+        /**
+         * Returns true if we're full, and the candidate's value of the primary sort field is past the value of our last
+         * entry.  If candidates are read in order of the primary field, no later candidate can make it in
+         */
+        public boolean isPast( ScanColumn candidate ) {
+            if ( entries.isEmpty() || entries.size() < maxSize ) {
+                return false;
+            }
+
+            ScanColumn last = cursorVal.get( entries.peek().getUuid() );
+
+            if ( !( last instanceof SecondaryIndexColumn ) || !( candidate instanceof SecondaryIndexColumn ) ) {
+                return false;
+            }
+
+            Object lastValue = ( ( SecondaryIndexColumn ) last ).getValue();
+
+            return lastValue != null && !lastValue.equals( ( ( SecondaryIndexColumn ) candidate ).getValue() );
+        }
+
+
+        private List<Entity> getPartialEntities( Collection<UUID> ids ) throws Exception {
+            if ( projection != null ) {
+                return projection.getPartialEntities( ids, copyFields() );
+            }
+            return em.getPartialEntities( ids, copyFields() );
+        }
+
+
+        /** The entity manager adds to the fields, give it a copy so they don't grow with every load */
+        private List<String> copyFields() {
+            return new ArrayList<String>( fields );
+        }
+
+
+        public int size() {
+            return entries.size();
         }
 
 
         /** Turn our sorted entities into a set of ids */
         public Set<ScanColumn> toIds() {
-            Iterator<Entity> itr = iterator();
-
-            Set<ScanColumn> columns = new LinkedHashSet<ScanColumn>( this.size() );
+            List<Entity> sorted = new ArrayList<Entity>( entries );
 
-            while ( itr.hasNext() ) {
+            Collections.sort( sorted, comparator );
 
-                UUID id = itr.next().getUuid();
+            Set<ScanColumn> columns = new LinkedHashSet<ScanColumn>( sorted.size() );
 
-                columns.add( cursorVal.get( id ) );
+            for ( Entity entity : sorted ) {
+                columns.add( cursorVal.get( entity.getUuid() ) );
             }
 
             return columns;
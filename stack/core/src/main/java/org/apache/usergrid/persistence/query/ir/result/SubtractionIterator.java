@@ -17,14 +17,14 @@
 package org.apache.usergrid.persistence.query.ir.result;
 
 
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Set;
 import java.util.UUID;
 
 import org.apache.usergrid.persistence.cassandra.CursorCache;
 
-import com.google.common.collect.Sets;
-
 
 /**
  * Simple iterator to perform Unions
@@ -36,6 +36,8 @@ public class SubtractionIterator extends MergeIterator {
     private ResultIterator keepIterator;
     private ResultIterator subtractIterator;
 
+    private JoinScan subtractScan;
+
 
     public SubtractionIterator( int pageSize ) {
         super( pageSize );
@@ -45,6 +47,7 @@ public class SubtractionIterator extends MergeIterator {
     /** @param subtractIterator the subtractIterator to set */
     public void setSubtractIterator( ResultIterator subtractIterator ) {
         this.subtractIterator = subtractIterator;
+        this.subtractScan = new JoinScan( subtractIterator );
     }
 
 
@@ -63,6 +66,7 @@ public class SubtractionIterator extends MergeIterator {
     public void doReset() {
         keepIterator.reset();
         subtractIterator.reset();
+        subtractScan.reset();
     }
 
 
@@ -87,11 +91,7 @@ public class SubtractionIterator extends MergeIterator {
 
             Set<ScanColumn> keepPage = keepIterator.next();
 
-            while ( subtractIterator.hasNext() && keepPage.size() > 0 ) {
-                keepPage.removeAll( subtractIterator.next() );
-            }
-
-            subtractIterator.reset();
+            subtract( keepPage );
 
             results.addAll( keepPage );
         }
@@ -100,6 +100,32 @@ public class SubtractionIterator extends MergeIterator {
     }
 
 
+    /**
+     * Remove everything in the subtract iterator from the page.  The subtract iterator is read forward until every id
+     * of the page is found or it runs out, and the ids read are kept for the next page up to {@link
+     * IntersectionIterator#MAX_MATERIALIZED_SIZE}.  A larger subtract iterator is read from the start again for every
+     * page, see {@link JoinScan}.
+     */
+    private void subtract( Set<ScanColumn> keepPage ) {
+        Set<UUID> ids = new HashSet<UUID>( keepPage.size() );
+
+        for ( ScanColumn column : keepPage ) {
+            ids.add( column.getUUID() );
+        }
+
+        remove( keepPage, subtractScan.find( ids ) );
+    }
+
+
+    private static void remove( Set<ScanColumn> keepPage, Set<UUID> ids ) {
+        for ( Iterator<ScanColumn> itr = keepPage.iterator(); itr.hasNext(); ) {
+            if ( ids.contains( itr.next().getUUID() ) ) {
+                itr.remove();
+            }
+        }
+    }
+
+
     /* (non-Javadoc)
      * @see org.apache.usergrid.persistence.query.ir.result.ResultIterator#finalizeCursor(org.apache.usergrid.persistence.cassandra
      * .CursorCache)
@@ -0,0 +1,242 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.query.tree;
+
+
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.antlr.runtime.ANTLRStringStream;
+import org.antlr.runtime.CommonTokenStream;
+import org.antlr.runtime.RecognitionException;
+import org.antlr.runtime.Token;
+import org.antlr.runtime.tree.CommonTree;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.usergrid.persistence.Query;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+
+/**
+ * Caches parsed queries by their shape, so repeated queries skip the parser.
+ * <p/>
+ * The key of a query is its token stream with every literal replaced by a placeholder for its type. Queries that only
+ * differ in their literal values, whitespace or keyword spelling share one parsed template. A hit still runs the lexer
+ * to find the literals of the new query, then copies the template tree with those literals in place. Templates are
+ * never handed out, callers always get their own copy they are free to modify.
+ */
+public class ParsedQueryCache {
+
+    private static final Logger logger = LoggerFactory.getLogger( ParsedQueryCache.class );
+
+    private static final ConcurrentMap<Class<?>, Constructor<?>> NODE_CONSTRUCTORS =
+            new ConcurrentHashMap<Class<?>, Constructor<?>>();
+
+    private final Cache<String, Template> templates;
+
+
+    public ParsedQueryCache( int maximumSize ) {
+        templates = CacheBuilder.newBuilder().maximumSize( maximumSize ).build();
+    }
+
+
+    /**
+     * Parse the query, or copy it from a cached template of the same shape
+     *
+     * @param ql the query, as it should be handed to the lexer
+     */
+    public Query parse( String ql ) throws RecognitionException {
+
+        List<Token> literals = new ArrayList<Token>();
+        String key = shape( ql, literals );
+
+        Template template = templates.getIfPresent( key );
+
+        if ( template != null ) {
+            return template.newQuery( literals );
+        }
+
+        CommonTokenStream tokens = new CommonTokenStream( new QueryFilterLexer( new ANTLRStringStream( ql ) ) );
+        Query query = new QueryFilterParser( tokens ).ql().query;
+
+        template = Template.create( query, tokens );
+
+        if ( template != null ) {
+            templates.put( key, template );
+        }
+
+        return query;
+    }
+
+
+    /** @return the number of cached templates */
+    public long size() {
+        return templates.size();
+    }
+
+
+    public void clear() {
+        templates.invalidateAll();
+    }
+
+
+    /** Lex the query into its cache key, and collect its literal tokens in order */
+    private static String shape( String ql, List<Token> literals ) {
+        QueryFilterLexer lexer = new QueryFilterLexer( new ANTLRStringStream( ql ) );
+        StringBuilder key = new StringBuilder( ql.length() );
+
+        for ( Token token = lexer.nextToken(); token.getType() != Token.EOF; token = lexer.nextToken() ) {
+
+            if ( token.getChannel() != Token.DEFAULT_CHANNEL ) {
+                continue;
+            }
+
+            key.append( token.getType() );
+
+            if ( isLiteral( token ) ) {
+                literals.add( token );
+            }
+            else {
+                key.append( ':' ).append( token.getText() );
+            }
+
+            key.append( ' ' );
+        }
+
+        return key.toString();
+    }
+
+
+    private static boolean isLiteral( Token token ) {
+        switch ( token.getType() ) {
+            case QueryFilterLexer.BOOLEAN:
+            case QueryFilterLexer.LONG:
+            case QueryFilterLexer.FLOAT:
+            case QueryFilterLexer.STRING:
+            case QueryFilterLexer.UUID:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+
+    /** An immutable parsed query with the position of each literal in its token stream */
+    private static class Template {
+
+        private final Query query;
+
+        /** Token index in the template's stream to the position of the literal among all literals */
+        private final Map<Integer, Integer> literalPositions;
+
+
+        private Template( Query query, Map<Integer, Integer> literalPositions ) {
+            this.query = new Query( query );
+            this.literalPositions = literalPositions;
+        }
+
+
+        /** @return the template for the parsed query, or null if the query tree can't be copied */
+        private static Template create( Query query, CommonTokenStream tokens ) {
+            Map<Integer, Integer> positions = new HashMap<Integer, Integer>();
+            int position = 0;
+
+            for ( Object o : tokens.getTokens() ) {
+                Token token = ( Token ) o;
+
+                if ( token.getChannel() == Token.DEFAULT_CHANNEL && isLiteral( token ) ) {
+                    positions.put( token.getTokenIndex(), position++ );
+                }
+            }
+
+            Template template = new Template( query, positions );
+
+            // the caller keeps the parsed tree, the template gets its own copy
+            if ( query.getRootOperand() != null ) {
+                try {
+                    template.query.setRootOperand( ( Operand ) template.copy( query.getRootOperand(), null ) );
+                }
+                catch ( RuntimeException e ) {
+                    logger.debug( "Not caching query {}, its tree can't be copied", query.getQl(), e );
+                    return null;
+                }
+            }
+
+            return template;
+        }
+
+
+        private Query newQuery( List<Token> literals ) {
+            Query copy = new Query( query );
+
+            if ( query.getRootOperand() != null ) {
+                copy.setRootOperand( ( Operand ) copy( query.getRootOperand(), literals ) );
+            }
+
+            return copy;
+        }
+
+
+        /**
+         * Copy a tree node and its children
+         *
+         * @param literals the literals to put in place of the template's, null to keep the template's
+         */
+        private CommonTree copy( CommonTree node, List<Token> literals ) {
+            Token token = node.getToken();
+
+            if ( literals != null && isLiteral( token ) ) {
+                token = literals.get( literalPositions.get( token.getTokenIndex() ) );
+            }
+
+            CommonTree copy = newNode( node.getClass(), token );
+
+            for ( int i = 0; i < node.getChildCount(); i++ ) {
+                copy.addChild( copy( ( CommonTree ) node.getChild( i ), literals ) );
+            }
+
+            return copy;
+        }
+
+
+        /** Create a node of the given type the way the parser does, from its token */
+        private static CommonTree newNode( Class<?> type, Token token ) {
+            Constructor<?> constructor = NODE_CONSTRUCTORS.get( type );
+
+            try {
+                if ( constructor == null ) {
+                    constructor = type.getDeclaredConstructor( Token.class );
+                    constructor.setAccessible( true );
+                    NODE_CONSTRUCTORS.put( type, constructor );
+                }
+
+                return ( CommonTree ) constructor.newInstance( token );
+            }
+            catch ( Exception e ) {
+                throw new IllegalStateException( "Unable to copy query node " + type.getName(), e );
+            }
+        }
+    }
+}
@@ -28,6 +28,7 @@ public class StringLiteral extends Literal<String> {
 
     private String value;
     private String finishValue;
+    private boolean prefix;
 
 
     /**
@@ -63,6 +64,7 @@ public class StringLiteral extends Literal<String> {
             this.value = removeEnd( value.toString(), "*" );
 
             finishValue = this.value + "\uFFFF";
+            prefix = true;
         }
         // set the end value to the same as the start value
         else {
@@ -80,4 +82,10 @@ public class StringLiteral extends Literal<String> {
     public String getValue() {
         return this.value;
     }
+
+
+    /** @return true if the value ended with a wildcard, so every string starting with it matches */
+    public boolean isPrefix() {
+        return prefix;
+    }
 }
@@ -17,8 +17,12 @@
 package org.apache.usergrid.persistence.schema;
 
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -40,6 +44,8 @@ public class CollectionInfo {
     private boolean reversed;
     private boolean includedInExport = true;
     private String sort;
+    private List<CompositeIndexInfo> compositeIndexes = Collections.emptyList();
+    private Set<String> projection = Collections.emptySet();
 
 
     public CollectionInfo() {
@@ -56,6 +62,13 @@ public class CollectionInfo {
         setReversed( collectionAnnotation.reversed() );
         setIncludedInExport( collectionAnnotation.includedInExport() );
         setSort( collectionAnnotation.sort() );
+
+        List<CompositeIndexInfo> compositeIndexes = new ArrayList<CompositeIndexInfo>();
+        for ( String compositeIndex : collectionAnnotation.compositeIndexes() ) {
+            compositeIndexes.add( new CompositeIndexInfo( compositeIndex ) );
+        }
+        setCompositeIndexes( compositeIndexes );
+        setProjection( Arrays.asList( collectionAnnotation.projection() ) );
     }
 
 
@@ -197,11 +210,88 @@ public class CollectionInfo {
     }
 
 
+    /** @return the indexes of the collection on several properties at once */
+    public List<CompositeIndexInfo> getCompositeIndexes() {
+        return compositeIndexes;
+    }
+
+
+    public void setCompositeIndexes( List<CompositeIndexInfo> compositeIndexes ) {
+        this.compositeIndexes = compositeIndexes != null ? compositeIndexes : Collections.<CompositeIndexInfo>emptyList();
+    }
+
+
+    /** @return the composite indexes that include any of the properties */
+    public List<CompositeIndexInfo> getCompositeIndexes( Iterable<String> propertyNames ) {
+        List<CompositeIndexInfo> indexes = new ArrayList<CompositeIndexInfo>();
+        for ( CompositeIndexInfo index : compositeIndexes ) {
+            if ( index.includesAny( propertyNames ) ) {
+                indexes.add( index );
+            }
+        }
+        return indexes;
+    }
+
+
+    /** @return the properties stored beside the indexes of the collection, empty if there are none */
+    public Set<String> getProjection() {
+        return projection;
+    }
+
+
+    public void setProjection( Collection<String> projection ) {
+        if ( ( projection == null ) || projection.isEmpty() ) {
+            this.projection = Collections.emptySet();
+            return;
+        }
+
+        Set<String> properties = new TreeSet<String>( String.CASE_INSENSITIVE_ORDER );
+        properties.addAll( projection );
+        this.projection = Collections.unmodifiableSet( properties );
+    }
+
+
+    public boolean hasProjection() {
+        return !projection.isEmpty();
+    }
+
+
+    /** @return true if the projection includes any of the properties */
+    public boolean isProjectingAny( Iterable<String> propertyNames ) {
+        for ( String propertyName : propertyNames ) {
+            if ( projection.contains( propertyName ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * @return true if the collection has a projection and all the properties are in it, or are the uuid or type every
+     *         entity has
+     */
+    public boolean isProjecting( Iterable<String> propertyNames ) {
+        if ( projection.isEmpty() ) {
+            return false;
+        }
+
+        for ( String propertyName : propertyNames ) {
+            if ( !projection.contains( propertyName ) && !Schema.PROPERTY_UUID.equals( propertyName )
+                    && !Schema.PROPERTY_TYPE.equals( propertyName ) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
     @Override
     public String toString() {
         return "CollectionInfo [name=" + name + ", indexingDynamicDictionaries=" + indexingDynamicDictionaries
                 + ", linkedCollection=" + linkedCollection + ", propertiesIndexed=" + propertiesIndexed
                 + ", publicVisible=" + publicVisible + ", dictionariesIndexed=" + dictionariesIndexed + ", type=" + type
-                + ", reversed=" + reversed + ", includedInExport=" + includedInExport + ", sort=" + sort + "]";
+                + ", reversed=" + reversed + ", includedInExport=" + includedInExport + ", sort=" + sort
+                + ", compositeIndexes=" + compositeIndexes + ", projection=" + projection + "]";
     }
 }
@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.schema;
+
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.lang.StringUtils;
+
+import static org.apache.usergrid.persistence.cassandra.IndexUpdate.toIndexableValue;
+
+
+/**
+ * An index of a collection on several properties at once, declared as the property names joined by "+", for example
+ * "status+created". The values of the properties are encoded into a single string that sorts by the first property,
+ * then the second and so on. A query with equalities on the first properties and a sort on the next one is answered
+ * by a single ordered slice of the index.
+ * <p/>
+ * Writes keep the index up to date from the moment it's declared, the entities already in a collection are added by
+ * a backfill job. Until the job is done the index is incomplete and queries don't use it. An entry combines the
+ * values of all the properties, so the entries of an entity are written under its composite index lock.
+ */
+public class CompositeIndexInfo {
+
+    public static final String PROPERTY_SEPARATOR = "+";
+
+    /** Separates the encoded values, lower than any character that starts an encoded value */
+    public static final char VALUE_SEPARATOR = '\u0001';
+
+    /** States of the index in a collection, stored in the collection's composite indexes dictionary */
+    public static final String STATE_BUILDING = "building";
+    public static final String STATE_BUILT = "built";
+    /** The backfill gave up, the next read of the collection schedules it again */
+    public static final String STATE_FAILED = "failed";
+
+    private final List<String> properties;
+    private final String name;
+
+
+    public CompositeIndexInfo( String declaration ) {
+        List<String> properties = new ArrayList<String>();
+
+        for ( String property : declaration.split( "\\" + PROPERTY_SEPARATOR ) ) {
+            property = property.trim();
+            if ( property.length() > 0 ) {
+                properties.add( property );
+            }
+        }
+
+        if ( properties.size() < 2 ) {
+            throw new IllegalArgumentException( "A composite index needs at least 2 properties: " + declaration );
+        }
+
+        this.properties = Collections.unmodifiableList( properties );
+        this.name = StringUtils.join( properties, PROPERTY_SEPARATOR ).toLowerCase();
+    }
+
+
+    /** @return the name of the index, used as the property name of its index rows */
+    public String getName() {
+        return name;
+    }
+
+
+    public List<String> getProperties() {
+        return properties;
+    }
+
+
+    /** @return true if the index includes any of the properties */
+    public boolean includesAny( Iterable<String> propertyNames ) {
+        for ( String propertyName : propertyNames ) {
+            if ( indexOf( propertyName ) >= 0 ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /** @return the position of the property in the index, -1 if it isn't in it */
+    public int indexOf( String propertyName ) {
+        for ( int i = 0; i < properties.size(); i++ ) {
+            if ( properties.get( i ).equalsIgnoreCase( propertyName ) ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * Encode the values of the first properties of the index
+     *
+     * @param values The values in the order of the properties, no more than there are properties
+     *
+     * @return the encoded values, or null if a value can't be indexed
+     */
+    public String getValue( List<?> values ) {
+        if ( values.size() > properties.size() ) {
+            throw new IllegalArgumentException( "More values than properties in " + name );
+        }
+
+        StringBuilder value = new StringBuilder();
+
+        for ( Object component : values ) {
+            String encoded = encode( component );
+            if ( encoded == null ) {
+                return null;
+            }
+
+            if ( value.length() > 0 ) {
+                value.append( VALUE_SEPARATOR );
+            }
+            value.append( encoded );
+        }
+
+        return value.toString();
+    }
+
+
+    /** @return the highest value starting with the encoded values of the first properties */
+    public static String getPrefixEnd( String prefix ) {
+        return prefix + VALUE_SEPARATOR + '\uFFFF';
+    }
+
+
+    /**
+     * Encode a value the way it's indexed, tagged with its type so values of different types don't mix. Numbers are
+     * encoded as fixed length hex with the sign flipped, so they sort as numbers
+     */
+    private static String encode( Object value ) {
+        Object indexed = toIndexableValue( value );
+
+        if ( indexed instanceof String ) {
+            return "s" + ( ( String ) indexed ).replace( VALUE_SEPARATOR, ' ' );
+        }
+        if ( indexed instanceof BigInteger ) {
+            return "n" + String.format( "%016x", ( ( BigInteger ) indexed ).longValue() ^ Long.MIN_VALUE );
+        }
+        if ( indexed instanceof UUID ) {
+            return "u" + indexed;
+        }
+        if ( indexed instanceof ByteBuffer ) {
+            ByteBuffer bytes = ( ( ByteBuffer ) indexed ).duplicate();
+            byte[] array = new byte[bytes.remaining()];
+            bytes.get( array );
+            return "b" + new String( Hex.encodeHex( array ) );
+        }
+
+        return null;
+    }
+
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.utils;
+
+
+/**
+ * Estimates the number of distinct values offered in a fixed amount of memory. Each value's 64 bit hash picks a
+ * register with its first bits, and the register keeps the highest position of the first one bit in the rest. With
+ * 2^precision registers the standard error is about 1.04 / sqrt(2^precision), 1.6% for the default precision
+ */
+public class HyperLogLog {
+
+    public static final int DEFAULT_PRECISION = 12;
+
+    private final int precision;
+    private final byte[] registers;
+
+
+    public HyperLogLog() {
+        this( DEFAULT_PRECISION );
+    }
+
+
+    /** @param precision The number of bits of the hash picking a register, from 4 to 16 */
+    public HyperLogLog( int precision ) {
+        if ( ( precision < 4 ) || ( precision > 16 ) ) {
+            throw new IllegalArgumentException( "Precision must be from 4 to 16: " + precision );
+        }
+
+        this.precision = precision;
+        this.registers = new byte[1 << precision];
+    }
+
+
+    /** Offer the 64 bit hash of a value, the bits must be evenly distributed */
+    public void offer( long hash ) {
+        int index = ( int ) ( hash >>> ( 64 - precision ) );
+
+        // the one bit past the remaining bits bounds the rank
+        long remaining = ( hash << precision ) | ( 1L << ( precision - 1 ) );
+        byte rank = ( byte ) ( Long.numberOfLeadingZeros( remaining ) + 1 );
+
+        if ( rank > registers[index] ) {
+            registers[index] = rank;
+        }
+    }
+
+
+    /** Add the values offered to another estimator of the same precision */
+    public void merge( HyperLogLog other ) {
+        if ( other.precision != precision ) {
+            throw new IllegalArgumentException( "Can't merge precisions " + other.precision + " and " + precision );
+        }
+
+        for ( int i = 0; i < registers.length; i++ ) {
+            if ( other.registers[i] > registers[i] ) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+
+    /** @return the estimated number of distinct values offered */
+    public long cardinality() {
+        int m = registers.length;
+
+        double sum = 0;
+        int zeros = 0;
+
+        for ( byte register : registers ) {
+            sum += 1.0 / ( 1L << register );
+            if ( register == 0 ) {
+                zeros++;
+            }
+        }
+
+        double alpha = m >= 128 ? 0.7213 / ( 1 + 1.079 / m ) : m >= 64 ? 0.709 : m >= 32 ? 0.697 : 0.673;
+        double estimate = alpha * m * m / sum;
+
+        // small cardinalities are better estimated by the registers still empty
+        if ( ( estimate <= 2.5 * m ) && ( zeros > 0 ) ) {
+            estimate = m * Math.log( ( double ) m / zeros );
+        }
+
+        return Math.round( estimate );
+    }
+}
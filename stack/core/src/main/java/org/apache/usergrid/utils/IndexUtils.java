@@ -18,21 +18,34 @@ package org.apache.usergrid.utils;
 
 
 import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.UUID;
 
 import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.LowerCaseFilter;
+import org.apache.lucene.analysis.PorterStemFilter;
+import org.apache.lucene.analysis.StopAnalyzer;
+import org.apache.lucene.analysis.StopFilter;
+import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.standard.StandardFilter;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
 import org.apache.lucene.analysis.tokenattributes.TermAttribute;
 import org.apache.lucene.util.Version;
 
@@ -52,11 +65,164 @@ public class IndexUtils {
 
     private static final Logger LOG = LoggerFactory.getLogger( IndexUtils.class );
 
+    /** Lowercased words without stop words, the default */
+    public static final String ANALYZER_STANDARD = "standard";
+
+    /** Standard words reduced to their stems, so "running" matches "runs" */
+    public static final String ANALYZER_STEMMING = "stemming";
+
+    /** Standard words and their prefixes, so "dra" matches "dragons" */
+    public static final String ANALYZER_PREFIX = "prefix";
+
+    /** The shortest and longest prefixes indexed by the prefix analyzer, longer words are indexed whole as well */
+    public static final int PREFIX_MIN_LENGTH = 2;
+    public static final int PREFIX_MAX_LENGTH = 20;
+
     static Analyzer analyzer = new StandardAnalyzer( Version.LUCENE_30 );
 
+    /** The suffix of the index of value prefixes of a property */
+    public static final String PREFIX_INDEX = "prefix";
+
+    /** Analyzers of the properties that aren't analyzed as standard, by entity type and property name */
+    private static volatile Map<String, Analyzer> analyzers = Collections.emptyMap();
+
+    /** The type.property names of the properties with a prefix index */
+    private static volatile Set<String> prefixIndexes = Collections.emptySet();
+
+
+    /**
+     * Set the analyzers of fulltext indexed properties that shouldn't use the standard one
+     *
+     * @param config Comma separated type.property:analyzer, for example "book.summary:stemming,user.name:prefix"
+     */
+    public static void setAnalyzers( String config ) {
+        Map<String, Analyzer> configured = new HashMap<String, Analyzer>();
+
+        if ( config != null ) {
+            for ( String property : config.split( "," ) ) {
+                property = property.trim();
+                if ( property.length() == 0 ) {
+                    continue;
+                }
+
+                int separator = property.lastIndexOf( ':' );
+                if ( separator < 0 ) {
+                    throw new IllegalArgumentException( "No analyzer for " + property );
+                }
+
+                configured.put( property.substring( 0, separator ).trim().toLowerCase(),
+                        newAnalyzer( property.substring( separator + 1 ).trim() ) );
+            }
+        }
+
+        analyzers = configured;
+    }
+
+
+    /**
+     * Set the properties that have an index of the prefixes of their values, so prefix queries like <code>name =
+     * 'abc*'</code> read a single equality slice instead of a range of values
+     *
+     * @param config Comma separated type.property, for example "user.name,group.title"
+     */
+    public static void setPrefixIndexes( String config ) {
+        Set<String> configured = new LinkedHashSet<String>();
+
+        if ( config != null ) {
+            for ( String property : config.split( "," ) ) {
+                property = property.trim();
+                if ( property.length() > 0 ) {
+                    configured.add( property.toLowerCase() );
+                }
+            }
+        }
+
+        prefixIndexes = configured;
+    }
+
+
+    /** @return true if the values of the property have a prefix index */
+    public static boolean isPrefixIndexed( String entityType, String propertyName ) {
+        if ( ( entityType == null ) || ( propertyName == null ) || prefixIndexes.isEmpty() ) {
+            return false;
+        }
+
+        return prefixIndexes.contains( ( entityType + "." + propertyName ).toLowerCase() );
+    }
+
+
+    /** @return true if the prefix index of a property can answer a query for the prefix */
+    public static boolean isIndexedPrefix( String prefix ) {
+        return ( prefix != null ) && ( prefix.length() >= PREFIX_MIN_LENGTH ) && ( prefix.length()
+                <= PREFIX_MAX_LENGTH );
+    }
+
+
+    /** @return the name of the prefix index of a property */
+    public static String prefixIndexName( String propertyName ) {
+        return propertyName + "." + PREFIX_INDEX;
+    }
+
+
+    /** Get the prefixes of a value indexed for prefix queries, a value that isn't longer than a prefix included */
+    public static List<String> prefixes( String value ) {
+        value = value.trim().toLowerCase();
+
+        int longest = Math.min( value.length(), PREFIX_MAX_LENGTH );
+
+        List<String> prefixes = new ArrayList<String>();
+        for ( int length = PREFIX_MIN_LENGTH; length <= longest; length++ ) {
+            prefixes.add( value.substring( 0, length ) );
+        }
+        return prefixes;
+    }
+
+
+    private static Analyzer newAnalyzer( String name ) {
+        if ( ANALYZER_STANDARD.equalsIgnoreCase( name ) ) {
+            return analyzer;
+        }
+        if ( ANALYZER_STEMMING.equalsIgnoreCase( name ) ) {
+            return new StemmingAnalyzer();
+        }
+        if ( ANALYZER_PREFIX.equalsIgnoreCase( name ) ) {
+            return new PrefixAnalyzer();
+        }
+        throw new IllegalArgumentException( "Unknown analyzer " + name );
+    }
+
+
+    /** @return the analyzer of the fulltext indexed property */
+    public static Analyzer getAnalyzer( String entityType, String propertyName ) {
+        if ( ( entityType == null ) || ( propertyName == null ) || analyzers.isEmpty() ) {
+            return analyzer;
+        }
+
+        Analyzer configured = analyzers.get( ( entityType + "." + propertyName ).toLowerCase() );
+
+        return configured != null ? configured : analyzer;
+    }
+
+
+    /**
+     * Analyze a whole word searched for in a fulltext indexed property the way the property's text was analyzed, so
+     * a search for "running" in a stemmed property looks for "run". Prefixes are searched for as they are.
+     */
+    public static String analyzeTerm( String entityType, String propertyName, String term ) {
+        Analyzer propertyAnalyzer = getAnalyzer( entityType, propertyName );
+
+        if ( !( propertyAnalyzer instanceof StemmingAnalyzer ) || ( term == null ) ) {
+            return term;
+        }
+
+        List<String> terms = keywords( propertyAnalyzer, term );
+
+        return terms.size() == 1 ? terms.get( 0 ) : term;
+    }
+
 
     private static void buildKeyValueSet( Object node, Map<String, List<Object>> keyValues, String path,
-                                          boolean fulltextIndex, Object... history ) {
+                                          Analyzer fulltextAnalyzer, Object... history ) {
 
         if ( node == null ) {
             return;
@@ -67,7 +233,7 @@ public class IndexUtils {
             newHistory[history.length] = node;
             @SuppressWarnings("unchecked") Collection<Object> c = ( Collection<Object> ) node;
             for ( Object o : c ) {
-                buildKeyValueSet( o, keyValues, path, fulltextIndex, newHistory );
+                buildKeyValueSet( o, keyValues, path, fulltextAnalyzer, newHistory );
             }
         }
         else if ( node instanceof Map ) {
@@ -94,7 +260,7 @@ public class IndexUtils {
                         newPath = "" + "[\"" + key + "\"]";
                     }
                 }
-                buildKeyValueSet( e.getValue(), keyValues, newPath, fulltextIndex, newHistory );
+                buildKeyValueSet( e.getValue(), keyValues, newPath, fulltextAnalyzer, newHistory );
             }
         }
         else if ( node instanceof ArrayNode ) {
@@ -102,7 +268,7 @@ public class IndexUtils {
             newHistory[history.length] = node;
             ArrayNode c = ( ArrayNode ) node;
             for ( JsonNode o : c ) {
-                buildKeyValueSet( o, keyValues, path, fulltextIndex, newHistory );
+                buildKeyValueSet( o, keyValues, path, fulltextAnalyzer, newHistory );
             }
         }
         else if ( node instanceof ObjectNode ) {
@@ -131,11 +297,11 @@ public class IndexUtils {
                         newPath = "" + "[\"" + key + "\"]";
                     }
                 }
-                buildKeyValueSet( e.getValue(), keyValues, newPath, fulltextIndex, newHistory );
+                buildKeyValueSet( e.getValue(), keyValues, newPath, fulltextAnalyzer, newHistory );
             }
         }
         else if ( !isBasicType( node.getClass() ) && ( !( node instanceof JsonNode ) ) ) {
-            buildKeyValueSet( toJsonNode( node ), keyValues, path, fulltextIndex, history );
+            buildKeyValueSet( toJsonNode( node ), keyValues, path, fulltextAnalyzer, history );
         }
         else {
 
@@ -166,9 +332,9 @@ public class IndexUtils {
 
             l.add( node );
 
-            if ( ( node instanceof String ) && fulltextIndex ) {
+            if ( ( node instanceof String ) && ( fulltextAnalyzer != null ) ) {
                 String keywordsPath = ( path.length() > 0 ) ? path + ".keywords" : "keywords";
-                List<Object> keywords = cast( keywords( ( String ) node ) );
+                List<Object> keywords = cast( keywords( fulltextAnalyzer, ( String ) node ) );
 
                 if ( keywords.size() > 0 ) {
                     keyValues.put( keywordsPath, keywords );
@@ -179,14 +345,65 @@ public class IndexUtils {
 
 
     public static Map<String, List<Object>> getKeyValues( String path, Object obj, boolean fulltextIndex ) {
+        return getKeyValues( path, obj, fulltextIndex ? analyzer : null );
+    }
+
+
+    private static Map<String, List<Object>> getKeyValues( String path, Object obj, Analyzer fulltextAnalyzer ) {
         Map<String, List<Object>> keys = new LinkedHashMap<String, List<Object>>();
-        buildKeyValueSet( obj, keys, path, fulltextIndex );
+        buildKeyValueSet( obj, keys, path, fulltextAnalyzer );
         return keys;
     }
 
 
     public static List<Map.Entry<String, Object>> getKeyValueList( String path, Object obj, boolean fulltextIndex ) {
-        Map<String, List<Object>> map = getKeyValues( path, obj, fulltextIndex );
+        return getKeyValueList( path, obj, fulltextIndex ? analyzer : null );
+    }
+
+
+    /**
+     * Get the index entries of a property of an entity, analyzing its text with the property's analyzer if it's
+     * fulltext indexed, and adding the prefixes of its value if it has a prefix index
+     */
+    public static List<Map.Entry<String, Object>> getKeyValueList( String entityType, String path, Object obj,
+                                                                   boolean fulltextIndex ) {
+        List<Map.Entry<String, Object>> list =
+                getKeyValueList( path, obj, fulltextIndex ? getAnalyzer( entityType, path ) : null );
+
+        if ( ( obj instanceof String ) && isPrefixIndexed( entityType, path ) ) {
+            String prefixPath = prefixIndexName( path );
+            for ( String prefix : prefixes( ( String ) obj ) ) {
+                list.add( new AbstractMap.SimpleEntry<String, Object>( prefixPath, prefix ) );
+            }
+        }
+
+        return list;
+    }
+
+
+    private static List<Map.Entry<String, Object>> getKeyValueList( String path, Object obj,
+                                                                    Analyzer fulltextAnalyzer ) {
+
+        // most properties are a single value, they don't need to be walked
+        if ( ( obj != null ) && isBasicType( obj.getClass() ) ) {
+            if ( path == null ) {
+                path = "";
+            }
+
+            List<Map.Entry<String, Object>> list = new ArrayList<Map.Entry<String, Object>>();
+            list.add( new AbstractMap.SimpleEntry<String, Object>( path, obj ) );
+
+            if ( ( obj instanceof String ) && ( fulltextAnalyzer != null ) ) {
+                String keywordsPath = ( path.length() > 0 ) ? path + ".keywords" : "keywords";
+                for ( String keyword : keywords( fulltextAnalyzer, ( String ) obj ) ) {
+                    list.add( new AbstractMap.SimpleEntry<String, Object>( keywordsPath, keyword ) );
+                }
+            }
+
+            return list;
+        }
+
+        Map<String, List<Object>> map = getKeyValues( path, obj, fulltextAnalyzer );
         List<Map.Entry<String, Object>> list = new ArrayList<Map.Entry<String, Object>>();
         for ( Entry<String, List<Object>> entry : map.entrySet() ) {
             for ( Object value : entry.getValue() ) {
@@ -203,16 +420,156 @@ public class IndexUtils {
 
 
     public static List<String> keywords( String source ) {
-        TokenStream ts = analyzer.tokenStream( "keywords", new StringReader( source ) );
-        List<String> keywords = new ArrayList<String>();
+        return keywords( analyzer, source );
+    }
+
+
+    /**
+     * Get the distinct words of the text, in the order they first appear. The analyzer's token streams are reused by
+     * each thread, so no tokenizer or term buffer is created per call
+     */
+    public static List<String> keywords( Analyzer keywordAnalyzer, String source ) {
+        Set<String> keywords = new LinkedHashSet<String>();
         try {
+            TokenStream ts = keywordAnalyzer.reusableTokenStream( "keywords", new StringReader( source ) );
+            TermAttribute term = ts.addAttribute( TermAttribute.class );
+
+            ts.reset();
             while ( ts.incrementToken() ) {
-                keywords.add( ts.getAttribute( TermAttribute.class ).term() );
+                keywords.add( term.term() );
             }
+            ts.end();
         }
         catch ( IOException e ) {
             LOG.error( "Error getting keywords ", e );
         }
-        return keywords;
+        return new ArrayList<String>( keywords );
+    }
+
+
+    /** The token streams of an analyzer and its tokenizer, kept per thread to be reset with the next text */
+    private static class SavedStreams {
+
+        private final Tokenizer tokenizer;
+        private final TokenStream stream;
+
+
+        private SavedStreams( Tokenizer tokenizer, TokenStream stream ) {
+            this.tokenizer = tokenizer;
+            this.stream = stream;
+        }
+    }
+
+
+    /** Analyzes like the StandardAnalyzer, then filters the words */
+    private abstract static class FilteredAnalyzer extends Analyzer {
+
+        protected abstract TokenStream filter( TokenStream stream );
+
+
+        private TokenStream standard( Tokenizer tokenizer ) {
+            TokenStream stream = new StandardFilter( tokenizer );
+            stream = new LowerCaseFilter( stream );
+            stream = new StopFilter( true, stream, StopAnalyzer.ENGLISH_STOP_WORDS_SET );
+            return filter( stream );
+        }
+
+
+        @Override
+        public TokenStream tokenStream( String fieldName, Reader reader ) {
+            return standard( new StandardTokenizer( Version.LUCENE_30, reader ) );
+        }
+
+
+        @Override
+        public TokenStream reusableTokenStream( String fieldName, Reader reader ) throws IOException {
+            SavedStreams streams = ( SavedStreams ) getPreviousTokenStream();
+
+            if ( streams == null ) {
+                Tokenizer tokenizer = new StandardTokenizer( Version.LUCENE_30, reader );
+                streams = new SavedStreams( tokenizer, standard( tokenizer ) );
+                setPreviousTokenStream( streams );
+            }
+            else {
+                streams.tokenizer.reset( reader );
+            }
+
+            return streams.stream;
+        }
+    }
+
+
+    /** Analyzes like the StandardAnalyzer, then reduces the words to their stems */
+    private static class StemmingAnalyzer extends FilteredAnalyzer {
+
+        @Override
+        protected TokenStream filter( TokenStream stream ) {
+            return new PorterStemFilter( stream );
+        }
+    }
+
+
+    /** Analyzes like the StandardAnalyzer, then adds the prefixes of every word */
+    private static class PrefixAnalyzer extends FilteredAnalyzer {
+
+        @Override
+        protected TokenStream filter( TokenStream stream ) {
+            return new PrefixFilter( stream );
+        }
+    }
+
+
+    /** Emits the prefixes of each word from the shortest to the longest, followed by the word */
+    private static final class PrefixFilter extends TokenFilter {
+
+        private final TermAttribute termAttribute = addAttribute( TermAttribute.class );
+
+        private char[] word = new char[PREFIX_MAX_LENGTH];
+        private int wordLength;
+        private int prefixLength;
+
+
+        private PrefixFilter( TokenStream input ) {
+            super( input );
+        }
+
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            if ( prefixLength == 0 ) {
+                if ( !input.incrementToken() ) {
+                    return false;
+                }
+
+                wordLength = termAttribute.termLength();
+
+                if ( wordLength <= PREFIX_MIN_LENGTH ) {
+                    return true;
+                }
+
+                if ( word.length < wordLength ) {
+                    word = new char[wordLength];
+                }
+
+                System.arraycopy( termAttribute.termBuffer(), 0, word, 0, wordLength );
+                prefixLength = PREFIX_MIN_LENGTH;
+            }
+
+            if ( ( prefixLength < wordLength ) && ( prefixLength <= PREFIX_MAX_LENGTH ) ) {
+                termAttribute.setTermBuffer( word, 0, prefixLength++ );
+                return true;
+            }
+
+            termAttribute.setTermBuffer( word, 0, wordLength );
+            prefixLength = 0;
+            return true;
+        }
+
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            prefixLength = 0;
+        }
     }
 }
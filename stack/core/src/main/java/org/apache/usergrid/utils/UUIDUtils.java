@@ -21,9 +21,8 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.fasterxml.uuid.EthernetAddress;
 import com.fasterxml.uuid.UUIDComparator;
@@ -55,53 +54,43 @@ public class UUIDUtils {
     }
 
 
-    private static ReentrantLock tsLock = new ReentrantLock( true );
-
     public static final UUID MIN_TIME_UUID = UUID.fromString( "00000000-0000-1000-8000-000000000000" );
 
     public static final UUID MAX_TIME_UUID = UUID.fromString( "ffffffff-ffff-1fff-bfff-ffffffffffff" );
 
     public static final UUID ZERO_UUID = new UUID( 0, 0 );
 
-    private static long timestampMillisNow = System.currentTimeMillis();
-
-    private static AtomicInteger currentMicrosPoint = new AtomicInteger( 0 );
     private static AtomicInteger customMicrosPointer = new AtomicInteger( 0 );
 
 
     /**
      * Return the "next" UUID in micro second resolution. <b>WARNING</b>: this is designed to return the next unique
-     * timestamped UUID for this JVM. Depending on velocity of the call, this method may block internally to insure that
-     * "now" is kept in sync with the UUIDs being generated by this call.
+     * timestamped UUID for this JVM. Every call returns a later microsecond than the call before it, so the timestamps
+     * of these UUIDs can be used as unique column timestamps.
      * <p/>
-     * In other words, we will intentionally burn CPU insuring that this method is not executed more than 10k -1 times
-     * per millisecond and guarantee that those microseconds held within are sequential.
+     * The last issued microsecond is kept in a single atomic, so callers never lock. Once all 1000 microseconds of the
+     * current millisecond are issued, callers spin until the clock moves on rather than run ahead of "now".
      * <p/>
      * If we did not do this, you would get <b>timestamp collision</b> even though the UUIDs will technically be
      * 'unique.'
      */
     public static java.util.UUID newTimeUUID() {
-        // get & inc counter, but roll on 1k (because we divide by 10 on retrieval)
-        // if count + currentMicro > 1k, block and roll
-        tsLock.lock();
-        long ts = System.currentTimeMillis();
-        if ( ts > timestampMillisNow ) {
-            timestampMillisNow = ts;
-            currentMicrosPoint.set( 0 );
-        }
-        int pointer = currentMicrosPoint.getAndIncrement();
-        try {
-            if ( pointer > 990 ) {
-                TimeUnit.MILLISECONDS.sleep( 1L );
+        while ( true ) {
+            long nowMicros = System.currentTimeMillis() * 1000;
+            long last = lastMicros.get();
+            long next = Math.max( last + 1, nowMicros );
+
+            // all microseconds of this millisecond are taken, wait for the clock. If the clock was set back we
+            // are past this millisecond already, keep counting up from the last UUID instead of waiting it out
+            if ( next == nowMicros + 1000 ) {
+                Thread.yield();
+                continue;
+            }
+
+            if ( lastMicros.compareAndSet( last, next ) ) {
+                return new UUID( timeBits( next * 10 ), NODE_AND_CLOCK_SEQ );
             }
         }
-        catch ( Exception ex ) {
-            ex.printStackTrace();
-        }
-        finally {
-            tsLock.unlock();
-        }
-        return newTimeUUID( ts, MICROS[pointer] );
     }
 
 
@@ -110,6 +99,12 @@ public class UUIDUtils {
 
     private static final Random CLOCK_SEQ_RANDOM = new Random();
 
+    /** Clock sequence, variant and node of UUIDs from {@link #newTimeUUID()}, random once per JVM */
+    private static final long NODE_AND_CLOCK_SEQ = nodeAndClockSequence();
+
+    /** The last microsecond handed out by {@link #newTimeUUID()} */
+    private static final AtomicLong lastMicros = new AtomicLong();
+
 
     // 14 bits of randomness
     private static int getRandomClockSequence() {
@@ -117,6 +112,24 @@ public class UUIDUtils {
     }
 
 
+    private static long nodeAndClockSequence() {
+        // 47 bits of randomness, the multicast bit keeps these apart from real mac addresses
+        long node = EthernetAddress.constructMulticastAddress().toLong();
+        long clockSeq = getRandomClockSequence();
+
+        return ( ( clockSeq | 0x8000L ) & 0xBFFFL ) << 48 | node;
+    }
+
+
+    /** The most significant bits of a version 1 UUID for the given number of 1/10 microseconds since the epoch */
+    private static long timeBits( long timestamp ) {
+        timestamp += KCLOCK_OFFSET;
+
+        return ( timestamp & 0xFFFFFFFFL ) << 32 | ( timestamp >>> 32 & 0xFFFFL ) << 16 | 0x1000L
+                | timestamp >>> 48 & 0x0FFFL;
+    }
+
+
     private static void setTimestamp( long timestamp, byte[] uuidBytes, int clockSeq, int timeOffset ) {
 
         timestamp *= KCLOCK_MULTIPLIER_L;
@@ -195,16 +208,7 @@ public class UUIDUtils {
      * with the same timestamp, you will have non-unique temporal values stored in your UUID.
      */
     public static UUID newTimeUUID( long ts ) {
-        tsLock.lock();
-        int pointer = customMicrosPointer.getAndIncrement();
-        try {
-            if ( pointer > 990 ) {
-                customMicrosPointer.set( 0 );
-            }
-        }
-        finally {
-            tsLock.unlock();
-        }
+        int pointer = ( customMicrosPointer.getAndIncrement() & Integer.MAX_VALUE ) % MICROS.length;
         return newTimeUUID( ts, MICROS[pointer] );
     }
 
@@ -41,6 +41,12 @@ public class BulkTestUtils {
         public Job jobsFrom( JobDescriptor descriptor ) {
             return  new MyBulkJob();
         }
+
+
+        @Override
+        public String poolFor( JobDescriptor descriptor ) {
+            return null;
+        }
     }
 
 
@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.batch.job;
+
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Test;
+import org.apache.usergrid.batch.JobExecution;
+import org.apache.usergrid.persistence.EntityManagerFactory;
+import org.apache.usergrid.persistence.entities.JobData;
+import org.apache.usergrid.utils.UUIDUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+
+public class EntityCleanupJobTest {
+
+    @Test
+    public void incompleteJobsAreSkipped() throws Exception {
+        Calls calls = new Calls();
+
+        EntityCleanupJob job = new EntityCleanupJob();
+        job.setEntityManagerFactory( calls.proxy( EntityManagerFactory.class ) );
+
+        JobData jobData = new JobData();
+        jobData.setProperty( EntityCleanupJob.APPLICATION_ID, UUIDUtils.newTimeUUID() );
+
+        calls.jobData = jobData;
+        job.execute( calls.proxy( JobExecution.class ) );
+
+        assertEquals( 0, calls.names.size() );
+    }
+
+
+    @Test
+    public void cleanupsOverTheRateAreDelayed() throws Exception {
+        Calls calls = new Calls();
+
+        EntityCleanupJob job = new EntityCleanupJob();
+        job.setEntityManagerFactory( calls.proxy( EntityManagerFactory.class ) );
+        job.setRate( 0.001 );
+        job.setDelay( 500 );
+
+        JobData jobData = new JobData();
+        jobData.setProperty( EntityCleanupJob.APPLICATION_ID, UUIDUtils.newTimeUUID() );
+        jobData.setProperty( EntityCleanupJob.ENTITY_ID, UUIDUtils.newTimeUUID() );
+        jobData.setProperty( EntityCleanupJob.ENTITY_TYPE, "item" );
+
+        calls.jobData = jobData;
+
+        try {
+            job.execute( calls.proxy( JobExecution.class ) );
+            fail( "The cleanup should have been started" );
+        }
+        catch ( UnsupportedOperationException e ) {
+            // the fake factory doesn't create entity managers
+        }
+
+        job.execute( calls.proxy( JobExecution.class ) );
+
+        assertEquals( 2, calls.names.size() );
+        assertEquals( "getEntityManager", calls.names.get( 0 ) );
+        assertEquals( "delay", calls.names.get( 1 ) );
+        assertEquals( 500L, calls.delay );
+    }
+
+
+    /** Records the calls made to the execution and the entity manager factory */
+    private static class Calls implements InvocationHandler {
+
+        private final List<String> names = new ArrayList<String>();
+        private JobData jobData;
+        private long delay;
+
+
+        @SuppressWarnings( "unchecked" )
+        public <T> T proxy( Class<T> type ) {
+            return ( T ) Proxy.newProxyInstance( getClass().getClassLoader(), new Class[] { type }, this );
+        }
+
+
+        @Override
+        public Object invoke( Object proxy, Method method, Object[] args ) {
+            if ( method.getName().equals( "getJobData" ) ) {
+                return jobData;
+            }
+            if ( method.getName().equals( "getJobId" ) ) {
+                return UUID.randomUUID();
+            }
+
+            names.add( method.getName() );
+
+            if ( method.getName().equals( "delay" ) ) {
+                delay = ( Long ) args[0];
+                return null;
+            }
+
+            throw new UnsupportedOperationException( method.getName() );
+        }
+    }
+}
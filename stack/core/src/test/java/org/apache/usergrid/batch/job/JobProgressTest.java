@@ -0,0 +1,49 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.batch.job;
+
+
+import org.junit.Test;
+import org.apache.usergrid.persistence.EntityRef;
+import org.apache.usergrid.persistence.SimpleEntityRef;
+import org.apache.usergrid.persistence.entities.JobData;
+import org.apache.usergrid.utils.UUIDUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class JobProgressTest {
+
+    @Test
+    public void newJobsStartWithoutProgress() {
+        EntityRef owner = new SimpleEntityRef( "group", UUIDUtils.newTimeUUID() );
+
+        JobData jobData = JobProgress.createJobData( UUIDUtils.newTimeUUID(), owner, "users" );
+
+        assertEquals( owner.getUuid(), JobProgress.getOwner( jobData ).getUuid() );
+        assertEquals( "group", JobProgress.getOwner( jobData ).getType() );
+        assertEquals( 0, JobProgress.getProcessed( jobData ) );
+        assertNull( JobProgress.getCursor( jobData ) );
+    }
+
+
+    @Test
+    public void jobsWithoutOwnerHaveNone() {
+        assertNull( JobProgress.getOwner( new JobData() ) );
+    }
+}
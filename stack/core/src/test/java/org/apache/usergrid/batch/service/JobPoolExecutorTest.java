@@ -0,0 +1,201 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.batch.service;
+
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class JobPoolExecutorTest {
+
+    private static final ThreadFactory DAEMONS = new ThreadFactory() {
+        @Override
+        public Thread newThread( Runnable r ) {
+            Thread thread = new Thread( r );
+            thread.setDaemon( true );
+            return thread;
+        }
+    };
+
+    private JobPoolExecutor executor;
+
+
+    @After
+    public void teardown() {
+        if ( executor != null ) {
+            executor.shutdown();
+        }
+    }
+
+
+    @Test
+    public void longJobsDontStarveOtherPools() throws Exception {
+        executor = new JobPoolExecutor(
+                Arrays.asList( new JobPool( "export", 1, 0, 1 ), new JobPool( "maintenance", 1, 10, 1 ) ), "export",
+                DAEMONS, 60000, null );
+
+        CountDownLatch release = new CountDownLatch( 1 );
+
+        executor.submit( "export", blockUntil( release ), null );
+        executor.submit( "export", blockUntil( release ), null );
+
+        ListenableFuture<Void> shortJob = executor.submit( "maintenance", noop(), null );
+
+        // the maintenance worker may have stolen the second export, but the export pool is capped at its share of 1
+        shortJob.get( 5, TimeUnit.SECONDS );
+
+        release.countDown();
+    }
+
+
+    @Test
+    public void idleWorkersSteal() throws Exception {
+        executor = new JobPoolExecutor(
+                Arrays.asList( new JobPool( "a", 1, 0, 3 ), new JobPool( "b", 2, 0, 1 ) ), "a", DAEMONS, 60000,
+                null );
+
+        final CountDownLatch started = new CountDownLatch( 3 );
+        CountDownLatch release = new CountDownLatch( 1 );
+
+        for ( int i = 0; i < 3; i++ ) {
+            executor.submit( "a", countAndBlock( started, release ), null );
+        }
+
+        // pool a has 1 worker but a weighted share of 3, so b's idle workers pick up the rest
+        assertTrue( started.await( 5, TimeUnit.SECONDS ) );
+
+        release.countDown();
+    }
+
+
+    @Test
+    public void unknownPoolUsesDefault() throws Exception {
+        executor = new JobPoolExecutor( Arrays.asList( new JobPool( "default", 1, 0, 1 ) ), "default", DAEMONS,
+                60000, null );
+
+        executor.submit( "missing", noop(), null ).get( 5, TimeUnit.SECONDS );
+        executor.submit( null, noop(), null ).get( 5, TimeUnit.SECONDS );
+
+        assertEquals( 1, executor.getCapacity() );
+    }
+
+
+    @Test
+    public void queuedJobsAreKeptAlive() throws Exception {
+        executor = new JobPoolExecutor( Arrays.asList( new JobPool( "default", 1, 0, 1 ) ), "default", DAEMONS, 20,
+                null );
+
+        CountDownLatch release = new CountDownLatch( 1 );
+        final AtomicInteger renewals = new AtomicInteger();
+
+        executor.submit( "default", blockUntil( release ), null );
+
+        ListenableFuture<Void> queued = executor.submit( "default", noop(), new Runnable() {
+            @Override
+            public void run() {
+                renewals.incrementAndGet();
+            }
+        } );
+
+        Thread.sleep( 200 );
+
+        assertEquals( 1, executor.getQueueDepth( "default" ) );
+        assertTrue( renewals.get() > 0 );
+
+        release.countDown();
+        queued.get( 5, TimeUnit.SECONDS );
+
+        int afterRun = renewals.get();
+        Thread.sleep( 100 );
+        assertEquals( "running jobs are not renewed by the executor", afterRun, renewals.get() );
+    }
+
+
+    @Test
+    public void fullPoolRejectsWithoutTakingCapacity() throws Exception {
+        executor = new JobPoolExecutor(
+                Arrays.asList( new JobPool( "export", 1, 0, 1 ), new JobPool( "maintenance", 1, 0, 1 ) ), "export",
+                DAEMONS, 60000, null );
+
+        CountDownLatch started = new CountDownLatch( 1 );
+        CountDownLatch release = new CountDownLatch( 1 );
+
+        assertEquals( 2, executor.getAvailableCapacity() );
+
+        assertNotNull( executor.trySubmit( "export", countAndBlock( started, release ), null ) );
+        assertTrue( started.await( 5, TimeUnit.SECONDS ) );
+
+        // the export pool is at its limit, its backlog stays on the job queue
+        assertNull( executor.trySubmit( "export", blockUntil( release ), null ) );
+        assertEquals( 0, executor.getQueueDepth( "export" ) );
+        assertEquals( 1, executor.getAvailableCapacity() );
+
+        ListenableFuture<Void> shortJob = executor.trySubmit( "maintenance", noop(), null );
+        assertNotNull( shortJob );
+        shortJob.get( 5, TimeUnit.SECONDS );
+
+        release.countDown();
+    }
+
+
+    private static Callable<Void> noop() {
+        return new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        };
+    }
+
+
+    private static Callable<Void> blockUntil( final CountDownLatch release ) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                release.await();
+                return null;
+            }
+        };
+    }
+
+
+    private static Callable<Void> countAndBlock( final CountDownLatch started, final CountDownLatch release ) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                started.countDown();
+                release.await();
+                return null;
+            }
+        };
+    }
+}
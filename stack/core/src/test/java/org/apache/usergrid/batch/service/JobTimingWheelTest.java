@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.batch.service;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class JobTimingWheelTest {
+
+    @Test
+    public void pastFireTimeIsDueImmediately() throws InterruptedException {
+        JobTimingWheel wheel = new JobTimingWheel( 10, 16, 100 );
+
+        wheel.schedule( System.currentTimeMillis() - 1000 );
+
+        assertTrue( wheel.awaitDue( 0 ) );
+        assertFalse( "due jobs are cleared once reported", wheel.awaitDue( 0 ) );
+    }
+
+
+    @Test
+    public void emptyWheelTimesOut() throws InterruptedException {
+        JobTimingWheel wheel = new JobTimingWheel( 10, 16, 100 );
+
+        long start = System.currentTimeMillis();
+
+        assertFalse( wheel.awaitDue( 50 ) );
+        assertTrue( System.currentTimeMillis() - start >= 50 );
+    }
+
+
+    @Test
+    public void wakesWhenJobBecomesDue() throws InterruptedException {
+        JobTimingWheel wheel = new JobTimingWheel( 5, 16, 100 );
+
+        long fireTime = System.currentTimeMillis() + 100;
+        wheel.schedule( fireTime );
+
+        assertEquals( 1, wheel.getPending() );
+        assertTrue( wheel.awaitDue( 5000 ) );
+        assertTrue( "never wakes before the fire time", System.currentTimeMillis() >= fireTime );
+        assertEquals( 0, wheel.getPending() );
+    }
+
+
+    @Test
+    public void fireTimesBeyondOneTurn() throws InterruptedException {
+        // 4 buckets of 5ms, so these fire times wrap the wheel several times
+        JobTimingWheel wheel = new JobTimingWheel( 5, 4, 100 );
+
+        long now = System.currentTimeMillis();
+        wheel.schedule( now + 60 );
+        wheel.schedule( now + 200 );
+
+        assertFalse( wheel.awaitDue( 20 ) );
+        assertTrue( wheel.awaitDue( 5000 ) );
+        assertTrue( System.currentTimeMillis() >= now + 60 );
+        assertEquals( 1, wheel.getPending() );
+        assertTrue( wheel.awaitDue( 5000 ) );
+        assertTrue( System.currentTimeMillis() >= now + 200 );
+    }
+
+
+    @Test
+    public void earlierJobWakesWaiter() throws InterruptedException {
+        final JobTimingWheel wheel = new JobTimingWheel( 5, 16, 100 );
+
+        wheel.schedule( System.currentTimeMillis() + 60000 );
+
+        Thread scheduler = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep( 50 );
+                }
+                catch ( InterruptedException e ) {
+                    return;
+                }
+                wheel.schedule( System.currentTimeMillis() + 10 );
+            }
+        };
+        scheduler.start();
+
+        long start = System.currentTimeMillis();
+
+        assertTrue( wheel.awaitDue( 10000 ) );
+        assertTrue( System.currentTimeMillis() - start < 5000 );
+
+        scheduler.join();
+    }
+
+
+    @Test
+    public void fullWheelDropsFireTimes() {
+        JobTimingWheel wheel = new JobTimingWheel( 10, 16, 2 );
+
+        long future = System.currentTimeMillis() + 60000;
+        wheel.schedule( future );
+        wheel.schedule( future );
+        wheel.schedule( future );
+
+        assertEquals( 2, wheel.getPending() );
+    }
+}
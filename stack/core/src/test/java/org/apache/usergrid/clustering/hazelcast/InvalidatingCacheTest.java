@@ -0,0 +1,143 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.clustering.hazelcast;
+
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class InvalidatingCacheTest {
+
+    @Test
+    public void loadsOnce() throws Exception {
+        InvalidatingCache<String> cache = new InvalidatingCache<String>( "test", 10, 60000 );
+        CountingLoader loader = new CountingLoader( "value" );
+
+        assertEquals( "value", cache.get( "key", loader ) );
+        assertEquals( "value", cache.get( "key", loader ) );
+        assertEquals( 1, loader.loads.get() );
+    }
+
+
+    @Test
+    public void missingValuesNotCached() throws Exception {
+        InvalidatingCache<String> cache = new InvalidatingCache<String>( "test", 10, 60000 );
+        CountingLoader loader = new CountingLoader( null );
+
+        assertNull( cache.get( "key", loader ) );
+        assertNull( cache.get( "key", loader ) );
+        assertEquals( 2, loader.loads.get() );
+        assertEquals( 0, cache.size() );
+    }
+
+
+    @Test
+    public void invalidate() throws Exception {
+        InvalidatingCache<String> cache = new InvalidatingCache<String>( "test", 10, 60000 );
+        CountingLoader loader = new CountingLoader( "value" );
+
+        cache.get( "key", loader );
+        cache.invalidate( "key" );
+        cache.get( "key", loader );
+
+        assertEquals( 2, loader.loads.get() );
+    }
+
+
+    @Test
+    public void invalidationsFromOtherNodes() throws Exception {
+        InvalidatingCache<String> cache = new InvalidatingCache<String>( "test", 10, 60000 );
+        CountingLoader loader = new CountingLoader( "value" );
+
+        cache.get( "key", loader );
+
+        //for another cache, or malformed
+        cache.onMessage( "other|key" );
+        cache.onMessage( "key" );
+        cache.get( "key", loader );
+
+        assertEquals( 1, loader.loads.get() );
+
+        cache.onMessage( "test|key" );
+        cache.get( "key", loader );
+
+        assertEquals( 2, loader.loads.get() );
+    }
+
+
+    @Test
+    public void loadOverlappingInvalidateNotCached() throws Exception {
+        final InvalidatingCache<String> cache = new InvalidatingCache<String>( "test", 10, 60000 );
+
+        // the value is read, then changed and invalidated before the load stores it
+        String stale = cache.get( "key", new Callable<String>() {
+            @Override
+            public String call() {
+                cache.invalidate( "key" );
+                return "stale";
+            }
+        } );
+
+        assertEquals( "stale", stale );
+        assertEquals( 0, cache.size() );
+
+        CountingLoader loader = new CountingLoader( "fresh" );
+
+        assertEquals( "fresh", cache.get( "key", loader ) );
+        assertEquals( 1, cache.size() );
+    }
+
+
+    @Test
+    public void expires() throws Exception {
+        InvalidatingCache<String> cache = new InvalidatingCache<String>( "test", 10, 10 );
+        CountingLoader loader = new CountingLoader( "value" );
+
+        cache.get( "key", loader );
+
+        Thread.sleep( 50 );
+
+        cache.get( "key", loader );
+
+        assertEquals( 2, loader.loads.get() );
+    }
+
+
+    private static class CountingLoader implements Callable<String> {
+
+        private final String value;
+        private final AtomicInteger loads = new AtomicInteger();
+
+
+        private CountingLoader( String value ) {
+            this.value = value;
+        }
+
+
+        @Override
+        public String call() {
+            loads.incrementAndGet();
+            return value;
+        }
+    }
+}
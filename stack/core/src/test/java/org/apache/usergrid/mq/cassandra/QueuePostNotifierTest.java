@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.mq.cassandra;
+
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class QueuePostNotifierTest {
+
+    private static final UUID APP = UUID.randomUUID();
+    private static final UUID OTHER_APP = UUID.randomUUID();
+    private static final UUID QUEUE = UUID.randomUUID();
+
+
+    @Test
+    public void postWakesWaiter() throws Exception {
+        final QueuePostNotifier notifier = new QueuePostNotifier();
+
+        QueuePostNotifier.Waiter waiter = notifier.register( APP, QUEUE );
+
+        new Thread() {
+            @Override
+            public void run() {
+                notifier.posted( APP, QUEUE );
+            }
+        }.start();
+
+        assertTrue( waiter.await( 5, TimeUnit.SECONDS ) );
+        notifier.unregister( waiter );
+    }
+
+
+    @Test
+    public void postBeforeWaitIsNotMissed() throws Exception {
+        QueuePostNotifier notifier = new QueuePostNotifier();
+
+        QueuePostNotifier.Waiter waiter = notifier.register( APP, QUEUE );
+
+        notifier.posted( APP, QUEUE );
+
+        assertTrue( waiter.await( 0, TimeUnit.MILLISECONDS ) );
+        notifier.unregister( waiter );
+    }
+
+
+    @Test
+    public void postsToOtherQueuesDontWake() throws Exception {
+        QueuePostNotifier notifier = new QueuePostNotifier();
+
+        QueuePostNotifier.Waiter waiter = notifier.register( APP, QUEUE );
+
+        // the same queue path in another application has the same queue id
+        notifier.posted( OTHER_APP, QUEUE );
+        notifier.posted( APP, UUID.randomUUID() );
+
+        assertFalse( waiter.await( 50, TimeUnit.MILLISECONDS ) );
+        notifier.unregister( waiter );
+    }
+
+
+    @Test
+    public void parkingIsLimited() {
+        QueuePostNotifier notifier = new QueuePostNotifier();
+        notifier.setMaxParked( 2 );
+
+        assertTrue( notifier.tryPark() );
+        assertTrue( notifier.tryPark() );
+        assertFalse( notifier.tryPark() );
+
+        notifier.unpark();
+
+        assertTrue( notifier.tryPark() );
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.mq.cassandra.io;
+
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import org.apache.usergrid.mq.cassandra.io.ConsumerTransaction.TransactionPointer;
+import org.apache.usergrid.utils.UUIDUtils;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class ConsumerTransactionTest
+{
+
+    @Test
+    public void mergeInterleavesByTime()
+    {
+        UUID m1 = UUIDUtils.newTimeUUID( 1000 );
+        UUID m3 = UUIDUtils.newTimeUUID( 3000 );
+        UUID m5 = UUIDUtils.newTimeUUID( 5000 );
+
+        UUID expired2 = UUIDUtils.newTimeUUID( 2000 );
+        UUID expired4 = UUIDUtils.newTimeUUID( 4000 );
+        UUID target2 = UUIDUtils.newTimeUUID( 100 );
+        UUID target4 = UUIDUtils.newTimeUUID( 200 );
+
+        List<UUID> results = new ArrayList<UUID>();
+
+        int merged = ConsumerTransaction.merge( Arrays.asList( m1, m3, m5 ),
+                Arrays.asList( new TransactionPointer( expired2, target2 ), new TransactionPointer( expired4, target4 ) ),
+                10, results );
+
+        assertEquals( 2, merged );
+        assertEquals( Arrays.asList( m1, target2, m3, target4, m5 ), results );
+    }
+
+
+    @Test
+    public void mergeStopsAtLimit()
+    {
+        UUID m1 = UUIDUtils.newTimeUUID( 1000 );
+        UUID m2 = UUIDUtils.newTimeUUID( 2000 );
+        UUID expired3 = UUIDUtils.newTimeUUID( 3000 );
+        UUID target3 = UUIDUtils.newTimeUUID( 100 );
+
+        List<UUID> results = new ArrayList<UUID>();
+
+        int merged = ConsumerTransaction.merge( Arrays.asList( m1, m2 ),
+                Arrays.asList( new TransactionPointer( expired3, target3 ) ), 2, results );
+
+        // the pointer sorts after the limit, so it must stay in place to be read next time
+        assertEquals( 0, merged );
+        assertEquals( Arrays.asList( m1, m2 ), results );
+    }
+
+
+    @Test
+    public void mergeOnlyPointers()
+    {
+        UUID expired1 = UUIDUtils.newTimeUUID( 1000 );
+        UUID expired2 = UUIDUtils.newTimeUUID( 2000 );
+        UUID target1 = UUIDUtils.newTimeUUID( 100 );
+        UUID target2 = UUIDUtils.newTimeUUID( 200 );
+
+        List<UUID> results = new ArrayList<UUID>();
+
+        int merged = ConsumerTransaction.merge( Collections.<UUID>emptyList(),
+                Arrays.asList( new TransactionPointer( expired1, target1 ), new TransactionPointer( expired2, target2 ) ),
+                1, results );
+
+        assertEquals( 1, merged );
+        assertEquals( Arrays.asList( target1 ), results );
+    }
+}
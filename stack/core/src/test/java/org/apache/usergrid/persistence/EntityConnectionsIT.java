@@ -17,10 +17,14 @@
 package org.apache.usergrid.persistence;
 
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import org.junit.Test;
@@ -29,6 +33,9 @@ import org.slf4j.LoggerFactory;
 import org.apache.usergrid.AbstractCoreIT;
 import org.apache.usergrid.cassandra.Concurrent;
 import org.apache.usergrid.persistence.Results.Level;
+import org.apache.usergrid.persistence.cassandra.ApplicationCF;
+import org.apache.usergrid.persistence.cassandra.ConnectionShardLocator;
+import org.apache.usergrid.persistence.cassandra.EntityManagerImpl;
 import org.apache.usergrid.persistence.entities.User;
 
 import static org.junit.Assert.assertEquals;
@@ -84,6 +91,78 @@ public class EntityConnectionsIT extends AbstractCoreIT {
     }
 
 
+    @Test
+    public void testShardedConnections() throws Exception {
+        UUID applicationId = setup.createApplication( "EntityConnectionsIT", "testShardedConnections" );
+        assertNotNull( applicationId );
+
+        EntityManagerImpl em = ( EntityManagerImpl ) setup.getEmf().getEntityManager( applicationId );
+        em.setConnectionShardThreshold( 5 );
+        em.setConnectionShards( 4 );
+        em.setConnectionShardCheckInterval( 1 );
+
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        properties.put( "name", "celebrity" );
+        Entity celebrity = em.create( "cat", properties );
+
+        List<ConnectionRef> follows = new ArrayList<ConnectionRef>();
+
+        for ( int i = 0; i < 20; i++ ) {
+            properties = new LinkedHashMap<String, Object>();
+            properties.put( "name", "follower" + i );
+            Entity follower = em.create( "cat", properties );
+
+            follows.add( em.createConnection( follower, "follows", celebrity ) );
+        }
+
+        ConnectionShardLocator locator = em.getConnectionShardLocator();
+
+        assertTrue( locator.getShardCount( celebrity.getUuid(), Schema.DICTIONARY_CONNECTING_ENTITIES, "follows" ) > 1 );
+
+        // the connections written before the split are moved out of the first shard when they hash to another one
+        ByteBuffer start = null;
+        do {
+            start = locator.moveEntries( celebrity.getUuid(), Schema.DICTIONARY_CONNECTING_ENTITIES, "follows", start,
+                    3 );
+        }
+        while ( start != null );
+
+        Object firstShard =
+                locator.getShardKeys( celebrity.getUuid(), Schema.DICTIONARY_CONNECTING_ENTITIES, "follows" ).get( 0 );
+
+        int inFirstShard = 0;
+        for ( ConnectionRef follow : follows ) {
+            if ( firstShard.equals( locator.getShardKey( celebrity.getUuid(), Schema.DICTIONARY_CONNECTING_ENTITIES,
+                    "follows", follow.getConnectingEntity().getUuid() ) ) ) {
+                inFirstShard++;
+            }
+        }
+
+        assertEquals( inFirstShard, setup.getCassSvc()
+                                         .countColumns( setup.getCassSvc().getApplicationKeyspace( applicationId ),
+                                                 ApplicationCF.ENTITY_COMPOSITE_DICTIONARIES, firstShard, 100 ) );
+
+        Results r = em.getConnectingEntities( celebrity.getUuid(), "follows", null, Level.IDS, 100 );
+        assertEquals( 20, countDistinct( r ) );
+
+        // one written before the row was split and one after
+        em.deleteConnection( follows.get( 0 ) );
+        em.deleteConnection( follows.get( 19 ) );
+
+        r = em.getConnectingEntities( celebrity.getUuid(), "follows", null, Level.IDS, 100 );
+        assertEquals( 18, countDistinct( r ) );
+    }
+
+
+    private static int countDistinct( Results r ) {
+        Set<UUID> ids = new HashSet<UUID>( r.getIds() );
+
+        assertEquals( r.getIds().size(), ids.size() );
+
+        return ids.size();
+    }
+
+
     @Test
     public void testEntityConnections() throws Exception {
         LOG.info( "\n\nEntityConnectionsIT.testEntityConnections\n" );
@@ -18,6 +18,7 @@ package org.apache.usergrid.persistence;
 
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -33,6 +34,7 @@ import org.slf4j.LoggerFactory;
 import org.apache.usergrid.AbstractCoreIT;
 import org.apache.usergrid.cassandra.Concurrent;
 import org.apache.usergrid.persistence.Results.Level;
+import org.apache.usergrid.persistence.cassandra.EntityManagerImpl;
 import org.apache.usergrid.persistence.entities.Group;
 import org.apache.usergrid.persistence.entities.User;
 import org.apache.usergrid.utils.UUIDUtils;
@@ -339,6 +341,111 @@ public class EntityManagerIT extends AbstractCoreIT {
     }
 
 
+    @Test
+    public void testAsyncDeleteHidesEntity() throws Exception {
+        LOG.info( "EntityManagerIT.testAsyncDeleteHidesEntity" );
+
+        UUID applicationId = setup.createApplication( "testOrganization", "testAsyncDeleteHidesEntity" );
+
+        EntityManagerImpl em = ( EntityManagerImpl ) setup.getEmf().getEntityManager( applicationId );
+
+        Map<String, Object> properties = new LinkedHashMap<String, Object>();
+        properties.put( "username", "hidden" );
+        properties.put( "status", "deleted" );
+        Entity hidden = em.create( "user", properties );
+
+        properties = new LinkedHashMap<String, Object>();
+        properties.put( "username", "visible" );
+        properties.put( "status", "deleted" );
+        Entity visible = em.create( "user", properties );
+
+        properties = new LinkedHashMap<String, Object>();
+        properties.put( "path", "hidingplace" );
+        Entity group = em.create( "group", properties );
+
+        em.addToCollection( group, "users", hidden );
+        em.addToCollection( group, "users", visible );
+
+        em.createConnection( visible, "likes", hidden );
+
+        em.setAsyncDelete( true );
+        em.delete( hidden );
+
+        // the index entries of the hidden entity remain until it's cleaned up, but aren't returned at any level
+        for ( Level level : new Level[] { Level.IDS, Level.REFS, Level.ALL_PROPERTIES } ) {
+            Query query = Query.fromQL( "select * where status = 'deleted'" ).withResultsLevel( level );
+
+            Results r = em.searchCollection( em.getApplicationRef(), "users", query );
+            assertEquals( level.toString(), 1, r.size() );
+            assertEquals( level.toString(), visible.getUuid(), r.getId() );
+
+            // nor in the other collections it's a member of
+            r = em.searchCollection( group, "users", new Query().withResultsLevel( level ) );
+            assertEquals( level.toString(), 1, r.size() );
+            assertEquals( level.toString(), visible.getUuid(), r.getId() );
+        }
+
+        // nor through the connections to it
+        for ( Level level : new Level[] { Level.IDS, Level.REFS, Level.ALL_PROPERTIES } ) {
+            Results r = em.getConnectedEntities( visible.getUuid(), "likes", null, level );
+            assertEquals( level.toString(), 0, r.size() );
+        }
+
+        // once it's cleaned up there's nothing left to hide
+        em.purgeEntity( hidden.getUuid(), "user" );
+        em.setAsyncDelete( false );
+
+        assertEquals( 0, em.getConnectedEntities( visible.getUuid(), "likes", null, Level.REFS ).size() );
+
+        Results r = em.searchCollection( group, "users", new Query().withResultsLevel( Level.IDS ) );
+        assertEquals( 1, r.size() );
+        assertEquals( visible.getUuid(), r.getId() );
+    }
+
+
+    @Test
+    public void testAsyncDeleteHidesProjectedEntity() throws Exception {
+        LOG.info( "EntityManagerIT.testAsyncDeleteHidesProjectedEntity" );
+
+        UUID applicationId = setup.createApplication( "testOrganization", "testAsyncDeleteHidesProjectedEntity" );
+
+        EntityManagerImpl em = ( EntityManagerImpl ) setup.getEmf().getEntityManager( applicationId );
+
+        Schema.getDefaultSchema().setProjections( "projectedthings:name+color" );
+
+        try {
+            Map<String, Object> properties = new LinkedHashMap<String, Object>();
+            properties.put( "name", "hidden" );
+            properties.put( "color", "red" );
+            Entity hidden = em.create( "projectedthing", properties );
+
+            properties = new LinkedHashMap<String, Object>();
+            properties.put( "name", "visible" );
+            properties.put( "color", "red" );
+            Entity visible = em.create( "projectedthing", properties );
+
+            em.setAsyncDelete( true );
+            em.delete( hidden );
+
+            assertTrue( em.getRelationManager( em.getApplicationRef() )
+                          .getProjectedEntities( "projectedthings", Arrays.asList( hidden.getUuid() ) ).isEmpty() );
+
+            // selects answered from the projection, with and without a sort
+            for ( String ql : new String[] {
+                    "select name, color where color = 'red'", "select name, color where color = 'red' order by name"
+            } ) {
+                Results r = em.searchCollection( em.getApplicationRef(), "projectedthings", Query.fromQL( ql ) );
+                assertEquals( ql, 1, r.size() );
+                assertEquals( ql, visible.getUuid(), r.getId() );
+            }
+        }
+        finally {
+            em.setAsyncDelete( false );
+            Schema.getDefaultSchema().setProjections( "" );
+        }
+    }
+
+
     @SuppressWarnings("unchecked")
     @Test
     public void testJson() throws Exception {
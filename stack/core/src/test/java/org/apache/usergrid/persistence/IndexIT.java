@@ -460,4 +460,91 @@ public class IndexIT extends AbstractCoreIT {
             fail( "The last match was null but should have been herring!" );
         }
     }
+
+
+    /** Updates several indexed properties in one batch, which reads their previous index entries in one slice */
+    @Test
+    public void testMultiplePropertyUpdate() throws Exception {
+
+        UUID applicationId = setup.createApplication( "testOrganization", "testMultiplePropertyUpdate" );
+
+        EntityManager em = setup.getEmf().getEntityManager( applicationId );
+
+        Map<String, Object> entity1 = new LinkedHashMap<String, Object>();
+        entity1.put( "name", "name_1" );
+        entity1.put( "status", "pickled" );
+        entity1.put( "color", "green" );
+        entity1.put( "size", 5 );
+
+        Map<String, Object> entity2 = new LinkedHashMap<String, Object>();
+        entity2.put( "name", "name_2" );
+        entity2.put( "status", "foo" );
+
+        Entity entity1Ref = em.create( "names", entity1 );
+        Entity entity2Ref = em.create( "names", entity2 );
+
+        em.createConnection( entity2Ref, "connecting", entity1Ref );
+
+        Map<String, Object> updated = new LinkedHashMap<String, Object>();
+        updated.put( "status", "herring" );
+        updated.put( "color", "red" );
+        updated.put( "size", 7 );
+
+        em.updateProperties( entity1Ref, updated );
+
+        // none of the previous values are indexed anymore
+        for ( String ql : new String[] {
+                "select * where status = 'pickled'", "select * where color = 'green'", "select * where size = 5"
+        } ) {
+            Query query = Query.fromQL( ql );
+
+            assertEquals( ql, 0, em.searchCollection( em.getApplicationRef(), "names", query ).size() );
+            assertEquals( ql, 0, em.searchConnectedEntities( entity2Ref, query ).size() );
+        }
+
+        // and every new one is
+        for ( String ql : new String[] {
+                "select * where status = 'herring'", "select * where color = 'red'", "select * where size = 7",
+                "select * where status = 'herring' and color = 'red' and size = 7"
+        } ) {
+            Query query = Query.fromQL( ql );
+
+            Results r = em.searchCollection( em.getApplicationRef(), "names", query );
+            assertEquals( ql, 1, r.size() );
+            assertEquals( ql, entity1Ref.getUuid(), r.getEntity().getUuid() );
+
+            r = em.searchConnectedEntities( entity2Ref, query );
+            assertEquals( ql, 1, r.size() );
+            assertEquals( ql, entity1Ref.getUuid(), r.getEntity().getUuid() );
+        }
+
+        // the entity is left with a single entry per property, read one at a time or all at once
+        CassandraService cass = CoreITSuite.cassandraResource.getBean( CassandraService.class );
+        Keyspace ko = cass.getApplicationKeyspace( applicationId );
+        Mutator<ByteBuffer> m = CountingMutator.createFlushingMutator( ko, ByteBufferSerializer.get() );
+
+        RelationManagerImpl single = ( RelationManagerImpl ) em.getRelationManager( entity1Ref );
+        RelationManagerImpl prefetched = ( RelationManagerImpl ) em.getRelationManager( entity1Ref );
+        prefetched.prefetchIndexEntries();
+
+        for ( RelationManagerImpl impl : new RelationManagerImpl[] { single, prefetched } ) {
+            for ( Map.Entry<String, Object> property : updated.entrySet() ) {
+                IndexUpdate update =
+                        impl.batchStartIndexUpdate( m, entity1Ref, property.getKey(), "ignore",
+                                UUIDUtils.newTimeUUID(), false, false, true, false );
+
+                int count = 0;
+
+                for ( IndexEntry entry : update.getPrevEntries() ) {
+                    if ( property.getKey().equals( entry.getPath() ) ) {
+                        count++;
+                        assertEquals( property.getKey(), property.getValue().toString(),
+                                entry.getValue().toString() );
+                    }
+                }
+
+                assertEquals( property.getKey(), 1, count );
+            }
+        }
+    }
 }
@@ -17,6 +17,8 @@
 package org.apache.usergrid.persistence;
 
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -42,7 +44,9 @@ import org.apache.usergrid.persistence.query.tree.StringLiteral;
 import org.apache.usergrid.persistence.query.tree.WithinOperand;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 
@@ -261,6 +265,26 @@ public class QueryTest {
     }
 
 
+    @Test
+    public void bulkFromParams() throws QueryParseException {
+
+        HashMap<String, List<String>> params = new HashMap<String, List<String>>();
+
+        params.put( "ql", Collections.singletonList( "select * where age > 30" ) );
+        params.put( "bulk", Collections.singletonList( "true" ) );
+
+        Query query = Query.fromQueryParams( params );
+
+        assertTrue( query.isBulk() );
+        assertEquals( "select * where age > 30", query.getQl() );
+        assertTrue( new Query( query ).isBulk() );
+
+        params.remove( "bulk" );
+
+        assertFalse( Query.fromQueryParams( params ).isBulk() );
+    }
+
+
     @Test
     public void badOrderByBadGrammar() throws QueryParseException {
         // from isn't allowed
@@ -309,4 +333,17 @@ public class QueryTest {
         assertEquals( "name", sorts.get( 0 ).getPropertyName() );
         assertEquals( SortDirection.DESCENDING, sorts.get( 0 ).getDirection() );
     }
+
+
+    @Test
+    public void selectedProperties() {
+        Query q = new Query().addSelect( "name" ).addSelect( "picture.url" ).addSelect( "tags[0]" );
+
+        assertEquals( Arrays.asList( "name", "picture", "tags" ),
+                new ArrayList<String>( q.getSelectedProperties() ) );
+
+        q = new Query().addSelect( "mail", "email" ).addSelect( "pic", "picture.url" );
+
+        assertEquals( Arrays.asList( "email", "picture" ), new ArrayList<String>( q.getSelectedProperties() ) );
+    }
 }
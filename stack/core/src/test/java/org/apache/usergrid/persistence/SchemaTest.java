@@ -17,13 +17,16 @@
 package org.apache.usergrid.persistence;
 
 
+import java.util.Arrays;
 import java.util.List;
 
 import org.junit.Assert;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.apache.usergrid.persistence.entities.Application;
 import org.apache.usergrid.persistence.entities.SampleEntity;
+import org.apache.usergrid.persistence.schema.CollectionInfo;
 
 import org.usergrid.Simple;
 
@@ -125,4 +128,26 @@ public class SchemaTest {
 
         assertTrue( Schema.getDefaultSchema().isPropertyIndexed( "things", "foo" ) );
     }
+
+
+    @Test
+    public void projectionDynamic() {
+        Schema schema = Schema.getDefaultSchema();
+
+        schema.setProjections( "things:name+picture, things:color" );
+
+        try {
+            CollectionInfo collection = schema.getCollection( Application.ENTITY_TYPE, "things" );
+
+            assertTrue( collection.hasProjection() );
+            assertTrue( collection.isProjecting( Arrays.asList( "uuid", "Name", "color" ) ) );
+            assertFalse( collection.isProjecting( Arrays.asList( "name", "size" ) ) );
+            assertTrue( collection.isProjectingAny( Arrays.asList( "size", "picture" ) ) );
+
+            assertFalse( schema.getCollection( Application.ENTITY_TYPE, "others" ).hasProjection() );
+        }
+        finally {
+            schema.setProjections( "" );
+        }
+    }
 }
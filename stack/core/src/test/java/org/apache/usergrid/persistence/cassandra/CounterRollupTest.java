@@ -0,0 +1,361 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.cassandra;
+
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import org.apache.usergrid.persistence.CounterResolution;
+import org.apache.usergrid.utils.UUIDUtils;
+
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.beans.HColumn;
+import me.prettyprint.hector.api.beans.HCounterColumn;
+import me.prettyprint.hector.api.mutation.Mutator;
+
+import static org.apache.usergrid.persistence.cassandra.ApplicationCF.APPLICATION_AGGREGATE_COUNTERS;
+import static org.apache.usergrid.persistence.cassandra.CounterUtils.AggregateCounterSelection.rowBuilder;
+import static org.apache.usergrid.utils.ConversionUtils.string;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class CounterRollupTest {
+
+    @Test
+    public void sources() {
+        assertNull( CounterRollup.getSource( CounterResolution.ALL ) );
+        assertNull( CounterRollup.getSource( CounterResolution.MINUTE ) );
+
+        assertEquals( CounterResolution.MINUTE, CounterRollup.getSource( CounterResolution.FIVE_MINUTES ) );
+        assertEquals( CounterResolution.FIVE_MINUTES, CounterRollup.getSource( CounterResolution.HALF_HOUR ) );
+        assertEquals( CounterResolution.HALF_HOUR, CounterRollup.getSource( CounterResolution.HOUR ) );
+        assertEquals( CounterResolution.HOUR, CounterRollup.getSource( CounterResolution.SIX_HOUR ) );
+        assertEquals( CounterResolution.SIX_HOUR, CounterRollup.getSource( CounterResolution.HALF_DAY ) );
+        assertEquals( CounterResolution.HALF_DAY, CounterRollup.getSource( CounterResolution.DAY ) );
+        assertEquals( CounterResolution.DAY, CounterRollup.getSource( CounterResolution.WEEK ) );
+
+        // 30 days aren't a number of weeks
+        assertEquals( CounterResolution.DAY, CounterRollup.getSource( CounterResolution.MONTH ) );
+    }
+
+
+    @Test
+    public void pendingColumnsSortByMinute() {
+        String earlier = CounterRollup.pendingColumn( 60000, "zzz:*:*:*:*" );
+        String later = CounterRollup.pendingColumn( 600000, "aaa:*:*:*:*" );
+
+        assertTrue( earlier.compareTo( later ) < 0 );
+
+        // the end of a pass's range is before every row of its checkpoint
+        assertTrue( CounterRollup.pendingColumn( 600000, "" ).compareTo( later ) < 0 );
+        assertTrue( CounterRollup.pendingColumn( 600000, "" ).compareTo( earlier ) > 0 );
+    }
+
+
+    @Test
+    public void rollupWritesTheFinestResolution() {
+        CounterUtils utils = new CounterUtils();
+        utils.setRollup( true );
+
+        Mutations mutations = new Mutations();
+        UUID applicationId = UUIDUtils.newTimeUUID();
+        long now = System.currentTimeMillis();
+
+        utils.batchIncrementAggregateCounters( mutations.proxy(), applicationId, null, null, null, "cat", "a.b", 1,
+                now, now * 1000 );
+
+        // a, a.b, each with and without the category
+        assertEquals( 8, mutations.counters.size() );
+
+        for ( String row : mutations.counters ) {
+            assertTrue( row, row.endsWith( ":ALL" ) || row.endsWith( ":MINUTE" ) );
+        }
+
+        assertEquals( 4, mutations.pending.size() );
+        assertTrue( mutations.pending.contains(
+                CounterRollup.pendingColumn( CounterResolution.MINUTE.round( now ), "a.b:*:*:*:cat" ) ) );
+
+        // rows are only marked once a minute
+        mutations.pending.clear();
+
+        utils.batchIncrementAggregateCounters( mutations.proxy(), applicationId, null, null, null, "cat", "a.b", 1,
+                now, now * 1000 );
+
+        assertEquals( 0, mutations.pending.size() );
+
+        // unless the minute may have been rolled up already
+        long old = now - CounterUtils.DEFAULT_ROLLUP_LAG * 2;
+
+        utils.batchIncrementAggregateCounters( mutations.proxy(), applicationId, null, null, null, "cat", "a.b", 1,
+                old, now * 1000 );
+        utils.batchIncrementAggregateCounters( mutations.proxy(), applicationId, null, null, null, "cat", "a.b", 1,
+                old, now * 1000 );
+
+        assertEquals( 8, mutations.pending.size() );
+    }
+
+
+    @Test
+    public void batchedCountersAreNotRolledUp() {
+        CounterUtils utils = new CounterUtils();
+        utils.setRollup( true );
+        utils.setCounterType( "p" );
+
+        assertFalse( utils.isRollup() );
+
+        utils.setCounterType( "o" );
+
+        assertTrue( utils.isRollup() );
+    }
+
+
+    @Test
+    public void rollupOfBatchedCountersFailsToStart() {
+        CounterUtils utils = new CounterUtils();
+        utils.setRollup( true );
+        utils.setCounterType( "n" );
+
+        CounterRollup rollup = new CounterRollup();
+        rollup.setCounterUtils( utils );
+
+        try {
+            rollup.init();
+            fail( "Rollups of batched counters should not start" );
+        }
+        catch ( IllegalStateException e ) {
+            // expected
+        }
+
+        // disabled rollups start whatever the counter type
+        utils.setRollup( false );
+        rollup.init();
+        rollup.destroy();
+    }
+
+
+    @Test
+    public void pendingMinutesAreBucketedByHour() {
+        UUID applicationId = UUIDUtils.newTimeUUID();
+        long hour = CounterResolution.HOUR.round( System.currentTimeMillis() );
+
+        assertEquals( CounterRollup.pendingRow( applicationId, hour ),
+                CounterRollup.pendingRow( applicationId, hour + CounterResolution.HOUR.interval() - 1 ) );
+        assertFalse( CounterRollup.pendingRow( applicationId, hour )
+                .equals( CounterRollup.pendingRow( applicationId, hour + CounterResolution.HOUR.interval() ) ) );
+    }
+
+
+    @Test
+    public void foldSetsBucketsToTheSumOfTheSource() {
+        FakeCounters store = new FakeCounters();
+        CounterRollup rollup = store.rollup();
+
+        long t = CounterResolution.DAY.round( 1400000000000L );
+        long minute = CounterResolution.MINUTE.interval();
+
+        store.set( MINUTE, t, 1 );
+        store.set( MINUTE, t + minute, 2 );
+        store.set( MINUTE, t + 6 * minute, 4 );
+
+        // a bucket written by an earlier pass that's off
+        store.set( FIVE_MINUTES, t, 10 );
+
+        Mutations mutations = new Mutations();
+        rollup.fold( null, mutations.proxy(), BASE, CounterResolution.FIVE_MINUTES,
+                new TreeSet<Long>( Arrays.asList( t, t + 6 * minute ) ) );
+
+        assertEquals( 2, mutations.deltas.size() );
+        assertEquals( Long.valueOf( -7 ), mutations.deltas.get( FIVE_MINUTES + "/" + t ) );
+        assertEquals( Long.valueOf( 4 ), mutations.deltas.get( FIVE_MINUTES + "/" + ( t + 5 * minute ) ) );
+
+        store.apply( mutations );
+
+        // folding again adds nothing
+        mutations = new Mutations();
+        rollup.fold( null, mutations.proxy(), BASE, CounterResolution.FIVE_MINUTES,
+                new TreeSet<Long>( Arrays.asList( t, t + 6 * minute ) ) );
+
+        assertTrue( mutations.deltas.isEmpty() );
+
+        // the next resolution is summed from the one before
+        rollup.fold( null, mutations.proxy(), BASE, CounterResolution.HALF_HOUR,
+                new TreeSet<Long>( Arrays.asList( t, t + 6 * minute ) ) );
+
+        assertEquals( 1, mutations.deltas.size() );
+        assertEquals( Long.valueOf( 7 ), mutations.deltas.get( HALF_HOUR + "/" + t ) );
+    }
+
+
+    @Test
+    public void readMergesTheTailAfterTheCheckpoint() {
+        FakeCounters store = new FakeCounters();
+        CounterRollup rollup = store.rollup();
+
+        long t = CounterResolution.DAY.round( 1400000000000L );
+        long minute = CounterResolution.MINUTE.interval();
+
+        store.set( MINUTE, t, 1 );
+        store.set( MINUTE, t + minute, 2 );
+        store.set( MINUTE, t + 6 * minute, 4 );
+        store.set( MINUTE, t + 7 * minute, 8 );
+
+        // folded before the checkpoint
+        store.set( FIVE_MINUTES, t, 3 );
+
+        // written after the checkpoint by a pass that's still running, and ignored
+        store.set( FIVE_MINUTES, t + 5 * minute, 100 );
+
+        long checkpoint = t + 7 * minute;
+
+        SortedMap<Long, Long> counters = rollup.read( null, Collections.singleton( BASE ),
+                CounterResolution.FIVE_MINUTES, t, t + 10 * minute, checkpoint ).get( BASE );
+
+        assertEquals( 2, counters.size() );
+        assertEquals( Long.valueOf( 3 ), counters.get( t ) );
+        assertEquals( Long.valueOf( 12 ), counters.get( t + 5 * minute ) );
+
+        // summed through the resolutions in between
+        counters = rollup.read( null, Collections.singleton( BASE ), CounterResolution.HOUR, t, t, checkpoint )
+                         .get( BASE );
+
+        assertEquals( 1, counters.size() );
+        assertEquals( Long.valueOf( 15 ), counters.get( t ) );
+
+        // without a checkpoint the resolution is read as it is
+        counters = rollup.read( null, Collections.singleton( BASE ), CounterResolution.FIVE_MINUTES, t,
+                t + 10 * minute, 0 ).get( BASE );
+
+        assertEquals( Long.valueOf( 100 ), counters.get( t + 5 * minute ) );
+    }
+
+
+    private static final String BASE = "a:*:*:*:*";
+
+    private static final String MINUTE = rowBuilder( BASE, CounterResolution.MINUTE );
+
+    private static final String FIVE_MINUTES = rowBuilder( BASE, CounterResolution.FIVE_MINUTES );
+
+    private static final String HALF_HOUR = rowBuilder( BASE, CounterResolution.HALF_HOUR );
+
+
+    /** Counter rows in memory, read by a rollup instead of Cassandra */
+    private static class FakeCounters {
+
+        private final Map<String, TreeMap<Long, Long>> rows = new HashMap<String, TreeMap<Long, Long>>();
+
+
+        public void set( String row, long bucket, long value ) {
+            TreeMap<Long, Long> counters = rows.get( row );
+
+            if ( counters == null ) {
+                counters = new TreeMap<Long, Long>();
+                rows.put( row, counters );
+            }
+
+            counters.put( bucket, value );
+        }
+
+
+        public void apply( Mutations mutations ) {
+            for ( Map.Entry<String, Long> delta : mutations.deltas.entrySet() ) {
+                String[] parts = delta.getKey().split( "/" );
+                long bucket = Long.parseLong( parts[1] );
+                Long value = rows.containsKey( parts[0] ) ? rows.get( parts[0] ).get( bucket ) : null;
+
+                set( parts[0], bucket, ( value != null ? value : 0 ) + delta.getValue() );
+            }
+        }
+
+
+        public CounterRollup rollup() {
+            return new CounterRollup() {
+                @Override
+                Map<String, Map<Long, Long>> read( Keyspace ko, Collection<String> keys, long start, long finish ) {
+                    Map<String, Map<Long, Long>> values = new HashMap<String, Map<Long, Long>>();
+
+                    for ( String key : keys ) {
+                        TreeMap<Long, Long> counters = rows.get( key );
+
+                        values.put( key, counters != null ? new HashMap<Long, Long>(
+                                counters.subMap( start, true, finish, true ) ) : new HashMap<Long, Long>() );
+                    }
+
+                    return values;
+                }
+            };
+        }
+    }
+
+
+    /** Records the counter rows and pending columns written to a mutator */
+    private static class Mutations implements InvocationHandler {
+
+        private final List<String> counters = new ArrayList<String>();
+        private final List<String> pending = new ArrayList<String>();
+        private final Map<String, Long> deltas = new HashMap<String, Long>();
+
+
+        @SuppressWarnings( "unchecked" )
+        public Mutator<ByteBuffer> proxy() {
+            return ( Mutator<ByteBuffer> ) Proxy
+                    .newProxyInstance( getClass().getClassLoader(), new Class[] { Mutator.class }, this );
+        }
+
+
+        @Override
+        public Object invoke( Object proxy, Method method, Object[] args ) {
+            if ( method.getName().equals( "addCounter" ) ) {
+                if ( APPLICATION_AGGREGATE_COUNTERS.toString().equals( args[1] ) ) {
+                    counters.add( string( args[0] ) );
+
+                    HCounterColumn<?> column = ( HCounterColumn<?> ) args[2];
+                    deltas.put( string( args[0] ) + "/" + column.getName(), column.getValue() );
+                }
+            }
+            else if ( method.getName().equals( "addInsertion" ) ) {
+                if ( string( args[0] ).contains( CounterUtils.DICTIONARY_COUNTER_ROLLUPS ) ) {
+                    pending.add( string( ( ( HColumn<?, ?> ) args[2] ).getName() ) );
+                }
+            }
+            else {
+                throw new UnsupportedOperationException( method.getName() );
+            }
+
+            return proxy;
+        }
+    }
+}
@@ -18,7 +18,10 @@ package org.apache.usergrid.persistence.cassandra;
 
 
 import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.Set;
 import java.util.UUID;
 
 import org.antlr.runtime.ANTLRStringStream;
@@ -38,6 +41,9 @@ import org.apache.usergrid.persistence.query.ir.SliceNode;
 import org.apache.usergrid.persistence.query.ir.WithinNode;
 import org.apache.usergrid.persistence.query.tree.QueryFilterLexer;
 import org.apache.usergrid.persistence.query.tree.QueryFilterParser;
+import org.apache.usergrid.persistence.schema.CollectionInfo;
+import org.apache.usergrid.persistence.schema.CompositeIndexInfo;
+import org.apache.usergrid.utils.IndexUtils;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -239,6 +245,27 @@ public class QueryProcessorTest {
     }
 
 
+    @Test
+    public void containsStemmedMixedCase() throws Exception {
+        IndexUtils.setAnalyzers( "book.title:stemming" );
+
+        try {
+            Query query = Query.fromQL( "select * where title contains 'Running'" );
+            query.setEntityType( "book" );
+
+            SliceNode node = ( SliceNode ) new QueryProcessor( query, null, null, null ).getFirstNode();
+
+            QuerySlice slice = node.getAllSlices().iterator().next();
+
+            assertEquals( "run", slice.getStart().getValue() );
+            assertEquals( "run", slice.getFinish().getValue() );
+        }
+        finally {
+            IndexUtils.setAnalyzers( null );
+        }
+    }
+
+
     @Test
     public void containsRange() throws Exception, PersistenceException {
         String queryString = "select * where a contains 'foo*'";
@@ -647,6 +674,118 @@ public class QueryProcessorTest {
     }
 
 
+    @Test
+    public void compositeIndex() throws Exception {
+        CompositeIndexInfo compositeIndex = new CompositeIndexInfo( "status+created" );
+
+        CollectionInfo collection = new CollectionInfo();
+        collection.setName( "orders" );
+        collection.setCompositeIndexes( Arrays.asList( compositeIndex ) );
+
+        Set<String> built = Collections.singleton( compositeIndex.getName() );
+
+        Query query = Query.fromQL( "select * where status = 'active' order by created desc" );
+
+        QueryProcessor processor = new QueryProcessor( query, collection, null, null, built );
+
+        SliceNode node = ( SliceNode ) processor.getFirstNode();
+
+        assertEquals( 1, node.getAllSlices().size() );
+
+        QuerySlice slice = node.getSlice( "status+created" );
+        String prefix = compositeIndex.getValue( Arrays.asList( "active" ) );
+
+        assertEquals( prefix, slice.getStart().getValue() );
+        assertEquals( CompositeIndexInfo.getPrefixEnd( prefix ), slice.getFinish().getValue() );
+
+        processor.applyCursorAndSort( slice );
+
+        assertTrue( slice.isReversed() );
+
+        // equalities on every property
+        query = Query.fromQL( "select * where created = 5 and status = 'active'" );
+
+        node = ( SliceNode ) new QueryProcessor( query, collection, null, null, built ).getFirstNode();
+        slice = node.getSlice( "status+created" );
+
+        assertEquals( compositeIndex.getValue( Arrays.asList( "active", 5L ) ), slice.getStart().getValue() );
+        assertEquals( slice.getStart().getValue(), slice.getFinish().getValue() );
+
+        // entities without a created aren't in the index
+        query = Query.fromQL( "select * where status = 'active'" );
+
+        node = ( SliceNode ) new QueryProcessor( query, collection, null, null, built ).getFirstNode();
+
+        assertNull( node.getSlice( "status+created" ) );
+
+        query = Query.fromQL( "select * where status = 'active' or status = 'new' order by created" );
+
+        assertTrue( new QueryProcessor( query, collection, null, null, built ).getFirstNode() instanceof OrderByNode );
+    }
+
+
+    @Test
+    public void compositeIndexNotBuilt() throws Exception {
+        CollectionInfo collection = new CollectionInfo();
+        collection.setName( "orders" );
+        collection.setCompositeIndexes( Arrays.asList( new CompositeIndexInfo( "status+created" ) ) );
+
+        Query query = Query.fromQL( "select * where status = 'active' order by created desc" );
+
+        // the index misses the entities written before it was declared until it's backfilled
+        assertTrue( new QueryProcessor( query, collection, null, null ).getFirstNode() instanceof OrderByNode );
+
+        Set<String> built = Collections.singleton( "status+type" );
+
+        assertTrue( new QueryProcessor( query, collection, null, null, built ).getFirstNode() instanceof OrderByNode );
+    }
+
+
+    @Test
+    public void prefixIndex() throws Exception {
+        IndexUtils.setPrefixIndexes( "book.title" );
+
+        try {
+            Query query = Query.fromQL( "select * where title = 'Dra*' and pages > 100" );
+            query.setEntityType( "book" );
+
+            QueryProcessor processor = new QueryProcessor( query, null, null, null );
+
+            SliceNode node = ( SliceNode ) processor.getFirstNode();
+
+            assertNull( node.getSlice( "title" ) );
+
+            QuerySlice slice = node.getSlice( "title.prefix" );
+
+            assertEquals( "dra", slice.getStart().getValue() );
+            assertEquals( "dra", slice.getFinish().getValue() );
+
+            // too short for the prefix index
+            query = Query.fromQL( "select * where title = 'd*'" );
+            query.setEntityType( "book" );
+
+            node = ( SliceNode ) new QueryProcessor( query, null, null, null ).getFirstNode();
+
+            slice = node.getSlice( "title" );
+
+            assertEquals( "d", slice.getStart().getValue() );
+            assertEquals( "d\uffff", slice.getFinish().getValue() );
+
+            // not a prefix
+            query = Query.fromQL( "select * where title = 'Dra'" );
+            query.setEntityType( "book" );
+
+            node = ( SliceNode ) new QueryProcessor( query, null, null, null ).getFirstNode();
+
+            assertNull( node.getSlice( "title.prefix" ) );
+            assertEquals( "dra", node.getSlice( "title" ).getFinish().getValue() );
+        }
+        finally {
+            IndexUtils.setPrefixIndexes( null );
+        }
+    }
+
+
     @Test
     public void fieldWithDash() throws Exception {
         String queryString = "select * where a-foo = 5";
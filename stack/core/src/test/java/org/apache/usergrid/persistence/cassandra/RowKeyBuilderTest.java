@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.cassandra;
+
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import org.apache.usergrid.utils.UUIDUtils;
+
+import static org.apache.usergrid.persistence.cassandra.CassandraPersistenceUtils.key;
+import static org.apache.usergrid.persistence.cassandra.CassandraPersistenceUtils.keyID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+
+public class RowKeyBuilderTest {
+
+    private static final UUID ID = UUIDUtils.newTimeUUID();
+
+
+    /** Keys are stored, they must be exactly what concatenating the components used to build */
+    @Test
+    public void sameAsConcatenation() {
+        List<Object[]> keys = Arrays.asList( new Object[] { ID, "users", "name" },
+                new Object[] { ID, "Users", "NAME", 3 }, new Object[] { ID, "connections", ID, 12L, ( short ) 4 },
+                new Object[] { "straße", "İstanbul", "ΣΊΣΥΦΟΣ", "𐐀" },
+                new Object[] { ID, null, "dictionary" }, new Object[] { ID, Arrays.asList( "Likes", ID ), "x" },
+                new Object[] { ID, new Object[] { "A", null }, Collections.singletonList( ID ) },
+                new Object[] { ID, 1.5, true, new UUID( 0, 0 ), new UUID( -1, -1 ) },
+                new Object[] { "Single" } );
+
+        for ( Object[] objects : keys ) {
+            assertEquals( concatenate( objects ), key( objects ) );
+        }
+    }
+
+
+    @Test
+    public void singleIdsReturnedAsIs() {
+        ByteBuffer bytes = ByteBuffer.allocate( 4 );
+
+        assertSame( ID, key( ID ) );
+        assertSame( bytes, key( bytes ) );
+        assertSame( ID, keyID( ID ) );
+    }
+
+
+    @Test
+    public void sameIdsAsNameUUID() {
+        List<Object[]> keys = Arrays.asList( new Object[] { ID, "users", "name" },
+                new Object[] { ID, "user", "Ünïcödé" }, new Object[] { "single" } );
+
+        for ( Object[] objects : keys ) {
+            UUID expected = UUID.nameUUIDFromBytes( concatenate( objects ).getBytes() );
+
+            assertEquals( expected, keyID( objects ) );
+
+            // the digest is reused
+            assertEquals( expected, keyID( objects ) );
+        }
+    }
+
+
+    /** How keys were built before RowKeyBuilder */
+    private static String concatenate( Object... objects ) {
+        if ( objects.length == 1 && objects[0] instanceof UUID ) {
+            return objects[0].toString();
+        }
+
+        StringBuilder s = new StringBuilder();
+        for ( Object obj : objects ) {
+            if ( obj instanceof String ) {
+                s.append( ( ( String ) obj ).toLowerCase() );
+            }
+            else if ( obj instanceof List<?> ) {
+                s.append( concatenate( ( ( List<?> ) obj ).toArray() ) );
+            }
+            else if ( obj instanceof Object[] ) {
+                s.append( concatenate( ( Object[] ) obj ) );
+            }
+            else if ( obj != null ) {
+                s.append( obj );
+            }
+            else {
+                s.append( "*" );
+            }
+
+            s.append( CassandraPersistenceUtils.KEY_DELIM );
+        }
+
+        s.deleteCharAt( s.length() - 1 );
+
+        return s.toString();
+    }
+}
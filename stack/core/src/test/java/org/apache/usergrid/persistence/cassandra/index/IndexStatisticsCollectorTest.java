@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.cassandra.index;
+
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.junit.Test;
+import org.apache.usergrid.batch.job.IndexStatisticsJob;
+import org.apache.usergrid.persistence.IndexStatistics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class IndexStatisticsCollectorTest {
+
+    @Test
+    public void countsAndQuantiles() {
+        IndexStatisticsCollector collector = new IndexStatisticsCollector( "age", 1000, 10, 5, new Random( 1 ) );
+
+        collector.startBucket( "0" );
+        for ( int i = 0; i < 100; i++ ) {
+            collector.add( i );
+        }
+
+        collector.startBucket( "1" );
+        for ( int i = 100; i < 200; i++ ) {
+            collector.add( i );
+        }
+
+        IndexStatistics statistics = collector.getStatistics();
+
+        assertEquals( "age", statistics.getPropertyName() );
+        assertEquals( 200, statistics.getEntries() );
+        assertEquals( 200, statistics.getDistinct() );
+        assertEquals( 2, statistics.getBuckets() );
+        assertEquals( 100, statistics.getMaxBucketEntries() );
+        assertFalse( statistics.isTruncated() );
+        assertFalse( IndexStatisticsJob.isHot( statistics ) );
+
+        assertEquals( 11, statistics.getQuantiles().size() );
+        assertEquals( BigInteger.valueOf( 0 ), statistics.getQuantiles().get( 0 ) );
+        assertEquals( BigInteger.valueOf( 199 ), statistics.getQuantiles().get( 10 ) );
+        assertTrue( statistics.getFrequent().isEmpty() );
+
+        assertEquals( 0.5, statistics.estimateRange( 0, 99 ), 0.1 );
+    }
+
+
+    @Test
+    public void frequentValuesAndHotBuckets() {
+        IndexStatisticsCollector collector = new IndexStatisticsCollector( "status", 100, 4, 2, new Random( 1 ) );
+
+        collector.startBucket( "0" );
+        for ( int i = 0; i < 900; i++ ) {
+            collector.add( "active" );
+        }
+        for ( int i = 0; i < 50; i++ ) {
+            collector.add( "pending" + i );
+        }
+        collector.truncate();
+
+        collector.startBucket( "1" );
+        for ( int i = 0; i < 50; i++ ) {
+            collector.add( "deleted" + i );
+        }
+
+        collector.startBucket( "2" );
+        collector.startBucket( "3" );
+
+        IndexStatistics statistics = collector.getStatistics();
+
+        assertEquals( 1000, statistics.getEntries() );
+        assertEquals( 101, statistics.getDistinct(), 3 );
+        assertEquals( "0", statistics.getHotBucket() );
+        assertEquals( 950, statistics.getMaxBucketEntries() );
+        assertTrue( statistics.isTruncated() );
+        assertTrue( IndexStatisticsJob.isHot( statistics ) );
+
+        assertTrue( statistics.getFrequent().containsKey( "active" ) );
+        assertEquals( 0.9, statistics.estimateEqual( "active" ), 0.1 );
+        assertTrue( statistics.estimateEqual( "pending1" ) < 0.05 );
+    }
+}
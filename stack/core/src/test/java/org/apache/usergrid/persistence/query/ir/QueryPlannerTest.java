@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.query.ir;
+
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Test;
+import org.apache.usergrid.persistence.IndexStatistics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class QueryPlannerTest {
+
+    private final QueryPlanner planner = new QueryPlanner( "user" );
+
+
+    @Test
+    public void sliceEstimates() {
+        SliceNode node = new SliceNode( 1 );
+
+        node.setStart( "status", "active", true );
+        node.setFinish( "status", "active", true );
+
+        node.setStart( "email", "foo@bar.com", true );
+        node.setFinish( "email", "foo@bar.com", true );
+
+        node.setStart( "age", 10, true );
+        node.setFinish( "age", 20, true );
+
+        node.setStart( "created", 5, false );
+
+        assertEquals( QueryPlanner.EQUALITY, planner.estimate( node.getSlice( "status" ) ), 0 );
+        assertEquals( QueryPlanner.SINGLE, planner.estimate( node.getSlice( "email" ) ), 0 );
+        assertEquals( QueryPlanner.RANGE, planner.estimate( node.getSlice( "age" ) ), 0 );
+        assertEquals( QueryPlanner.OPEN_RANGE, planner.estimate( node.getSlice( "created" ) ), 0 );
+        assertEquals( QueryPlanner.ALL, planner.estimate( new QuerySlice( "name", 2 ) ), 0 );
+
+        List<QuerySlice> ordered = planner.order( node.getAllSlices() );
+
+        assertEquals( "email", ordered.get( 0 ).getPropertyName() );
+        assertEquals( "status", ordered.get( 1 ).getPropertyName() );
+        assertEquals( "age", ordered.get( 2 ).getPropertyName() );
+        assertEquals( "created", ordered.get( 3 ).getPropertyName() );
+    }
+
+
+    @Test
+    public void uniqueOnlyForTheEntityType() {
+        SliceNode node = new SliceNode( 1 );
+
+        node.setStart( "email", "foo@bar.com", true );
+        node.setFinish( "email", "foo@bar.com", true );
+
+        assertEquals( QueryPlanner.EQUALITY, new QueryPlanner( "widget" ).estimate( node.getSlice( "email" ) ), 0 );
+        assertEquals( QueryPlanner.EQUALITY, new QueryPlanner( null ).estimate( node.getSlice( "email" ) ), 0 );
+    }
+
+
+    @Test
+    public void treeEstimates() throws Exception {
+        SliceNode status = new SliceNode( 1 );
+        status.setStart( "status", "active", true );
+        status.setFinish( "status", "active", true );
+
+        SliceNode age = new SliceNode( 2 );
+        age.setStart( "age", 10, true );
+
+        UuidIdentifierNode id = new UuidIdentifierNode( UUID.randomUUID() );
+
+        double and = planner.estimate( new AndNode( status, age ) );
+        double or = planner.estimate( new OrNode( status, age, 3 ) );
+
+        assertEquals( QueryPlanner.EQUALITY * QueryPlanner.OPEN_RANGE, and, 0.0000001 );
+        assertEquals( QueryPlanner.EQUALITY + QueryPlanner.OPEN_RANGE, or, 0.0000001 );
+        assertEquals( QueryPlanner.EQUALITY, planner.estimate( new NotNode( age, status ) ), 0 );
+        assertEquals( QueryPlanner.ALL, planner.estimate( new AllNode( 4, false ) ), 0 );
+        assertEquals( QueryPlanner.ALL, planner.estimate( new OrNode( new AllNode( 5, false ), age, 6 ) ), 0 );
+
+        assertTrue( planner.estimate( id ) < planner.estimate( status ) );
+    }
+
+
+    @Test
+    public void statisticsEstimates() {
+        IndexStatistics status = new IndexStatistics();
+        status.setPropertyName( "status" );
+        status.setEntries( 1000 );
+        status.setDistinct( 10 );
+        status.setFrequent( Collections.singletonMap( "active", 900L ) );
+
+        IndexStatistics age = new IndexStatistics();
+        age.setPropertyName( "age" );
+        age.setEntries( 1000 );
+        age.setDistinct( 100 );
+        age.setQuantiles( Arrays.<Object>asList( 0, 10, 20, 30, 40, 50, 60, 70, 80, 90, 100 ) );
+
+        Map<String, IndexStatistics> statistics = new HashMap<String, IndexStatistics>();
+        statistics.put( "status", status );
+        statistics.put( "age", age );
+
+        QueryPlanner statisticsPlanner = new QueryPlanner( "user", statistics );
+
+        SliceNode active = new SliceNode( 1 );
+        active.setStart( "status", "active", true );
+        active.setFinish( "status", "active", true );
+
+        SliceNode deleted = new SliceNode( 2 );
+        deleted.setStart( "status", "deleted", true );
+        deleted.setFinish( "status", "deleted", true );
+
+        SliceNode range = new SliceNode( 3 );
+        range.setStart( "age", 10, true );
+        range.setFinish( "age", 20, true );
+
+        SliceNode email = new SliceNode( 4 );
+        email.setStart( "email", "foo@bar.com", true );
+        email.setFinish( "email", "foo@bar.com", true );
+
+        assertEquals( 0.9, statisticsPlanner.estimate( active.getSlice( "status" ) ), 0.0000001 );
+        assertEquals( 0.1, statisticsPlanner.estimate( deleted.getSlice( "status" ) ), 0.0000001 );
+        assertEquals( 3.0 / 12, statisticsPlanner.estimate( range.getSlice( "age" ) ), 0.0000001 );
+
+        // unique properties and properties without statistics keep the schema estimates
+        assertEquals( QueryPlanner.SINGLE, statisticsPlanner.estimate( email.getSlice( "email" ) ), 0 );
+
+        List<QuerySlice> ordered = statisticsPlanner
+                .order( Arrays.asList( active.getSlice( "status" ), range.getSlice( "age" ) ) );
+
+        assertEquals( "age", ordered.get( 0 ).getPropertyName() );
+    }
+
+
+    @Test
+    public void cursorSlicesFirst() {
+        SliceNode node = new SliceNode( 1 );
+
+        node.setStart( "status", "active", true );
+        node.setFinish( "status", "active", true );
+
+        node.setStart( "email", "foo@bar.com", true );
+        node.setFinish( "email", "foo@bar.com", true );
+
+        QuerySlice status = node.getSlice( "status" );
+        status.setCursor( ByteBuffer.wrap( new byte[] { 1 } ) );
+
+        List<QuerySlice> ordered = planner.order( Arrays.asList( node.getSlice( "email" ), status ) );
+
+        assertEquals( "status", ordered.get( 0 ).getPropertyName() );
+    }
+}
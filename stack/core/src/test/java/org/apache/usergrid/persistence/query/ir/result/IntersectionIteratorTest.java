@@ -294,6 +294,101 @@ public class IntersectionIteratorTest {
     }
 
 
+    /** A selective root should stop reading a join iterator as soon as all of its candidates are found */
+    @Test
+    public void selectiveRootStopsEarly() {
+
+        UUID match = UUIDUtils.minTimeUUID( 5 );
+
+        InOrderIterator root = new InOrderIterator( 100 );
+        root.add( match );
+
+        CountingIterator large = new CountingIterator( 10 );
+
+        for ( int i = 0; i < 1000; i++ ) {
+            large.add( UUIDUtils.minTimeUUID( i ) );
+        }
+
+        IntersectionIterator intersection = new IntersectionIterator( 100 );
+        intersection.addIterator( root );
+        intersection.addIterator( large );
+
+        Set<ScanColumn> results = intersection.next();
+
+        assertEquals( 1, results.size() );
+        assertEquals( match, results.iterator().next().getUUID() );
+
+        //the match is in the first page
+        assertEquals( 1, large.pagesRead );
+    }
+
+
+    /** A join iterator small enough to keep should only be read once for all pages of the root */
+    @Test
+    public void smallJoinReadOnce() {
+
+        InOrderIterator root = new InOrderIterator( 10 );
+        CountingIterator small = new CountingIterator( 10 );
+
+        for ( int i = 0; i < 100; i++ ) {
+            UUID id = UUIDUtils.minTimeUUID( i );
+
+            root.add( id );
+
+            if ( i % 2 == 0 ) {
+                small.add( id );
+            }
+        }
+
+        IntersectionIterator intersection = new IntersectionIterator( 1000 );
+        intersection.addIterator( root );
+        intersection.addIterator( small );
+
+        Set<ScanColumn> results = intersection.next();
+
+        assertEquals( 50, results.size() );
+
+        int i = 0;
+
+        for ( ScanColumn column : results ) {
+            assertEquals( UUIDUtils.minTimeUUID( i ), column.getUUID() );
+            i += 2;
+        }
+
+        assertEquals( 5, small.pagesRead );
+    }
+
+
+    /** A large join iterator is read forward across the pages of the root instead of from the start for each */
+    @Test
+    public void joinReadForwardAcrossPages() {
+
+        InOrderIterator root = new InOrderIterator( 10 );
+        CountingIterator large = new CountingIterator( 10 );
+
+        for ( int i = 0; i < 1000; i++ ) {
+            UUID id = UUIDUtils.minTimeUUID( i );
+
+            if ( i < 100 ) {
+                root.add( id );
+            }
+
+            large.add( id );
+        }
+
+        IntersectionIterator intersection = new IntersectionIterator( 1000 );
+        intersection.addIterator( root );
+        intersection.addIterator( large );
+
+        Set<ScanColumn> results = intersection.next();
+
+        assertEquals( 100, results.size() );
+
+        //only the pages up to the last match of the root are read, each of them once
+        assertEquals( 10, large.pagesRead );
+    }
+
+
     private void reverse( UUID[] array ) {
 
         UUID temp = null;
@@ -304,4 +399,22 @@ public class IntersectionIteratorTest {
             array[array.length - i - 1] = temp;
         }
     }
+
+
+    private static class CountingIterator extends InOrderIterator {
+
+        private int pagesRead;
+
+
+        public CountingIterator( int pageSize ) {
+            super( pageSize );
+        }
+
+
+        @Override
+        public Set<ScanColumn> next() {
+            pagesRead++;
+            return super.next();
+        }
+    }
 }
@@ -0,0 +1,315 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.query.ir.result;
+
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import org.apache.usergrid.persistence.DynamicEntity;
+import org.apache.usergrid.persistence.Entity;
+import org.apache.usergrid.persistence.EntityManager;
+import org.apache.usergrid.persistence.Query;
+import org.apache.usergrid.persistence.cassandra.CursorCache;
+import org.apache.usergrid.persistence.cassandra.RelationManagerImpl;
+import org.apache.usergrid.persistence.query.ir.QuerySlice;
+import org.apache.usergrid.persistence.query.ir.result.SecondaryIndexSliceParser.SecondaryIndexColumn;
+import org.apache.usergrid.persistence.schema.CollectionInfo;
+import org.apache.usergrid.utils.UUIDUtils;
+
+import com.google.common.collect.Iterables;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class OrderByIteratorTest {
+
+    private static final List<Query.SortPredicate> CREATED_DESC = Collections.singletonList(
+            new Query.SortPredicate( "created", Query.SortDirection.DESCENDING ) );
+
+
+    /** order by active asc, created desc with candidates from the active index */
+    @Test
+    public void orderedCandidatesStopAtPrimaryValue() {
+        Entities entities = new Entities();
+        ColumnIterator candidates = new ColumnIterator( 10 );
+
+        //the inactive entities come first in the index, then the active ones
+        for ( int i = 0; i < 20; i++ ) {
+            candidates.add( entities.create( false, i ) );
+        }
+
+        for ( int i = 20; i < 100; i++ ) {
+            candidates.add( entities.create( true, i ) );
+        }
+
+        OrderByIterator orderBy =
+                new OrderByIterator( new QuerySlice( "active", 0 ), CREATED_DESC, candidates, true, entities.proxy(),
+                        5 );
+
+        assertCreated( orderBy.next(), 19, 18, 17, 16, 15 );
+
+        //we read until we saw an active entity, none of them can sort before the inactive ones
+        assertEquals( 3, candidates.pagesRead );
+        assertEquals( 30, entities.loaded );
+    }
+
+
+    /** Candidates from a query aren't in sort order, all of them must be read */
+    @Test
+    public void unorderedCandidatesReadFully() {
+        Entities entities = new Entities();
+        ColumnIterator candidates = new ColumnIterator( 10 );
+
+        for ( int i = 0; i < 100; i++ ) {
+            candidates.add( entities.create( i % 2 == 0, i ) );
+        }
+
+        OrderByIterator orderBy =
+                new OrderByIterator( new QuerySlice( "active", 0 ), CREATED_DESC, candidates, entities.proxy(), 5 );
+
+        assertCreated( orderBy.next(), 99, 97, 95, 93, 91 );
+
+        assertEquals( 10, candidates.pagesRead );
+        assertEquals( 100, entities.loaded );
+    }
+
+
+    /** Entities with the same sort values are all kept, and ordered by uuid */
+    @Test
+    public void tiesOrderedByUuid() {
+        Entities entities = new Entities();
+        ColumnIterator candidates = new ColumnIterator( 10 );
+
+        List<UUID> ids = new ArrayList<UUID>();
+
+        for ( int i = 0; i < 4; i++ ) {
+            ids.add( entities.create( true, 1 ).getUUID() );
+        }
+
+        Collections.reverse( ids );
+
+        for ( UUID id : ids ) {
+            candidates.add( entities.column( id ) );
+        }
+
+        OrderByIterator orderBy =
+                new OrderByIterator( new QuerySlice( "active", 0 ), CREATED_DESC, candidates, true, entities.proxy(),
+                        10 );
+
+        Collections.reverse( ids );
+
+        List<UUID> results = new ArrayList<UUID>();
+
+        for ( ScanColumn column : orderBy.next() ) {
+            results.add( column.getUUID() );
+        }
+
+        assertEquals( ids, results );
+    }
+
+
+    /** Sort fields are read from the collection's projection, entities without one are loaded */
+    @Test
+    public void sortFieldsFromProjection() {
+        final Entities entities = new Entities();
+        ColumnIterator candidates = new ColumnIterator( 10 );
+
+        for ( int i = 0; i < 100; i++ ) {
+            candidates.add( entities.create( i % 2 == 0, i ) );
+        }
+
+        // the first 40 entities were written after the collection had a projection
+        final Map<UUID, Entity> projected = new HashMap<UUID, Entity>();
+        for ( ScanColumn column : Iterables.limit( candidates.columns, 40 ) ) {
+            projected.put( column.getUUID(), entities.entities.get( column.getUUID() ) );
+        }
+
+        RelationManagerImpl relationManager = new RelationManagerImpl() {
+            @Override
+            public Map<UUID, Entity> getProjectedEntities( String collectionName, Collection<UUID> ids ) {
+                Map<UUID, Entity> results = new HashMap<UUID, Entity>();
+                for ( UUID id : ids ) {
+                    if ( projected.containsKey( id ) ) {
+                        results.put( id, projected.get( id ) );
+                    }
+                }
+                return results;
+            }
+        };
+
+        CollectionInfo collection = new CollectionInfo();
+        collection.setName( "users" );
+        collection.setProjection( Arrays.asList( "active", "created", "name" ) );
+
+        OrderByIterator orderBy =
+                new OrderByIterator( new QuerySlice( "active", 0 ), CREATED_DESC, candidates, false, entities.proxy(),
+                        new CollectionProjection( relationManager, collection, entities.proxy() ), 5 );
+
+        assertCreated( orderBy.next(), 99, 97, 95, 93, 91 );
+        assertEquals( 60, entities.loaded );
+
+        // a projection missing a sort field isn't used
+        collection.setProjection( Arrays.asList( "active" ) );
+        candidates.reset();
+        entities.loaded = 0;
+
+        orderBy = new OrderByIterator( new QuerySlice( "active", 0 ), CREATED_DESC, candidates, false,
+                entities.proxy(), new CollectionProjection( relationManager, collection, entities.proxy() ), 5 );
+
+        assertCreated( orderBy.next(), 99, 97, 95, 93, 91 );
+        assertEquals( 100, entities.loaded );
+    }
+
+
+    private static void assertCreated( Set<ScanColumn> results, long... created ) {
+        assertEquals( created.length, results.size() );
+
+        Iterator<ScanColumn> itr = results.iterator();
+
+        for ( long expected : created ) {
+            assertEquals( expected, UUIDUtils.getTimestampInMillis( itr.next().getUUID() ) );
+        }
+    }
+
+
+    /** Entities with active and created properties, served as partial entities by a proxy entity manager */
+    private static class Entities implements InvocationHandler {
+
+        private final Map<UUID, Entity> entities = new HashMap<UUID, Entity>();
+        private int loaded;
+
+
+        public SecondaryIndexColumn create( boolean active, long created ) {
+            UUID id = UUIDUtils.newTimeUUID( created );
+
+            DynamicEntity entity = new DynamicEntity( "user", id );
+            entity.setProperty( "active", active );
+            entity.setProperty( "created", created );
+
+            entities.put( id, entity );
+
+            return column( id );
+        }
+
+
+        public SecondaryIndexColumn column( UUID id ) {
+            boolean active = ( Boolean ) entities.get( id ).getProperty( "active" );
+
+            return new SecondaryIndexColumn( id, BigInteger.valueOf( active ? 1 : 0 ), ByteBuffer.allocate( 0 ) );
+        }
+
+
+        public EntityManager proxy() {
+            return ( EntityManager ) Proxy
+                    .newProxyInstance( getClass().getClassLoader(), new Class[] { EntityManager.class }, this );
+        }
+
+
+        @Override
+        public Object invoke( Object proxy, Method method, Object[] args ) {
+            if ( !method.getName().equals( "getPartialEntities" ) ) {
+                throw new UnsupportedOperationException( method.getName() );
+            }
+
+            List<Entity> results = new ArrayList<Entity>();
+
+            for ( Object id : ( Collection<?> ) args[0] ) {
+                results.add( entities.get( id ) );
+                loaded++;
+            }
+
+            return results;
+        }
+    }
+
+
+    /** Pages of columns in the order they were added */
+    private static class ColumnIterator implements ResultIterator {
+
+        private final Set<ScanColumn> columns = new LinkedHashSet<ScanColumn>();
+        private final int pageSize;
+        private Iterator<List<ScanColumn>> pages;
+        private int pagesRead;
+
+
+        public ColumnIterator( int pageSize ) {
+            this.pageSize = pageSize;
+        }
+
+
+        public void add( ScanColumn column ) {
+            columns.add( column );
+        }
+
+
+        @Override
+        public void reset() {
+            pages = Iterables.partition( columns, pageSize ).iterator();
+        }
+
+
+        @Override
+        public void finalizeCursor( CursorCache cache, UUID lastValue ) {
+        }
+
+
+        @Override
+        public Iterator<Set<ScanColumn>> iterator() {
+            return this;
+        }
+
+
+        @Override
+        public boolean hasNext() {
+            if ( pages == null ) {
+                reset();
+            }
+
+            return pages.hasNext();
+        }
+
+
+        @Override
+        public Set<ScanColumn> next() {
+            pagesRead++;
+            return new LinkedHashSet<ScanColumn>( pages.next() );
+        }
+
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.query.tree;
+
+
+import java.util.UUID;
+
+import org.antlr.runtime.RecognitionException;
+import org.junit.Test;
+
+import org.apache.usergrid.persistence.Query;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class ParsedQueryCacheTest {
+
+    @Test
+    public void sameShapeSharesTemplate() throws RecognitionException {
+        ParsedQueryCache cache = new ParsedQueryCache( 10 );
+
+        Query first = cache.parse( "select * where a = 5 and b = 'foo' order by c desc" );
+        Query second = cache.parse( "select *  where a = 7 and b = 'bar*' order by c desc" );
+
+        assertEquals( 1, cache.size() );
+
+        assertLiterals( first, 5, "foo" );
+        assertLiterals( second, 7, "bar" );
+
+        assertEquals( "bar￿", ( ( StringLiteral ) ( ( Equal ) ( ( AndOperand ) second.getRootOperand() ).getRight() )
+                .getLiteral() ).getEndValue() );
+
+        assertEquals( 1, second.getSortPredicates().size() );
+        assertEquals( "c", second.getSortPredicates().get( 0 ).getPropertyName() );
+        assertEquals( Query.SortDirection.DESCENDING, second.getSortPredicates().get( 0 ).getDirection() );
+    }
+
+
+    @Test
+    public void literalTypesAreDifferentShapes() throws RecognitionException {
+        ParsedQueryCache cache = new ParsedQueryCache( 10 );
+
+        cache.parse( "select * where a = 5" );
+        Query floats = cache.parse( "select * where a = 5.5" );
+        Query uuids = cache.parse( "select * where a = " + UUID.randomUUID() );
+
+        assertEquals( 3, cache.size() );
+        assertTrue( ( ( Equal ) floats.getRootOperand() ).getLiteral() instanceof FloatLiteral );
+        assertTrue( ( ( Equal ) uuids.getRootOperand() ).getLiteral() instanceof UUIDLiteral );
+    }
+
+
+    @Test
+    public void callersGetIndependentTrees() throws RecognitionException {
+        ParsedQueryCache cache = new ParsedQueryCache( 10 );
+
+        Query first = cache.parse( "select * where a = 5" );
+        first.addEqualityFilter( "b", 6 );
+        ( ( Equal ) ( ( AndOperand ) first.getRootOperand() ).getLeft() ).setLiteral( 100 );
+
+        Query second = cache.parse( "select * where a = 5" );
+        Query third = cache.parse( "select * where a = 5" );
+
+        assertNotSame( second.getRootOperand(), third.getRootOperand() );
+        assertTrue( second.getRootOperand() instanceof Equal );
+        assertEquals( 5L, ( ( Equal ) second.getRootOperand() ).getLiteral().getValue() );
+    }
+
+
+    @Test
+    public void withinAndContains() throws RecognitionException {
+        ParsedQueryCache cache = new ParsedQueryCache( 10 );
+
+        cache.parse( "select * where location within 100 of 37.776753, -122.407846 and name contains 'a'" );
+        Query query = cache.parse( "select * where location within 50 of 10.5, -20.25 and name contains 'b'" );
+
+        AndOperand and = ( AndOperand ) query.getRootOperand();
+        WithinOperand within = ( WithinOperand ) and.getLeft();
+        ContainsOperand contains = ( ContainsOperand ) and.getRight();
+
+        assertEquals( 50f, within.getDistance().getFloatValue(), 0 );
+        assertEquals( 10.5f, within.getLattitude().getFloatValue(), 0 );
+        assertEquals( -20.25f, within.getLongitude().getFloatValue(), 0 );
+        assertEquals( "location.coordinates", within.getProperty().getIndexedName() );
+        assertEquals( "b", contains.getString().getValue() );
+        assertEquals( "name.keywords", contains.getProperty().getIndexedValue() );
+    }
+
+
+    private static void assertLiterals( Query query, long a, String b ) {
+        AndOperand and = ( AndOperand ) query.getRootOperand();
+
+        assertEquals( "a", ( ( Equal ) and.getLeft() ).getProperty().getValue() );
+        assertEquals( a, ( ( Equal ) and.getLeft() ).getLiteral().getValue() );
+        assertEquals( "b", ( ( Equal ) and.getRight() ).getProperty().getValue() );
+        assertEquals( b, ( ( Equal ) and.getRight() ).getLiteral().getValue() );
+    }
+}
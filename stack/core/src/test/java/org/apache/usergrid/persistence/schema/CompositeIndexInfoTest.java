@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.persistence.schema;
+
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class CompositeIndexInfoTest {
+
+    @Test
+    public void declaration() {
+        CompositeIndexInfo index = new CompositeIndexInfo( "status + Created" );
+
+        assertEquals( "status+created", index.getName() );
+        assertEquals( Arrays.asList( "status", "Created" ), index.getProperties() );
+        assertEquals( 1, index.indexOf( "created" ) );
+        assertEquals( -1, index.indexOf( "modified" ) );
+    }
+
+
+    @Test( expected = IllegalArgumentException.class )
+    public void singleProperty() {
+        new CompositeIndexInfo( "status" );
+    }
+
+
+    @Test
+    public void valuesSortByProperty() {
+        CompositeIndexInfo index = new CompositeIndexInfo( "status+created" );
+
+        String prefix = index.getValue( Arrays.asList( "Active" ) );
+        String end = CompositeIndexInfo.getPrefixEnd( prefix );
+
+        String negative = index.getValue( Arrays.asList( "active", -5L ) );
+        String early = index.getValue( Arrays.asList( "active", 10L ) );
+        String late = index.getValue( Arrays.asList( "active", 200L ) );
+        String longer = index.getValue( Arrays.asList( "actives", 1L ) );
+
+        assertTrue( prefix.compareTo( negative ) < 0 );
+        assertTrue( negative.compareTo( early ) < 0 );
+        assertTrue( early.compareTo( late ) < 0 );
+        assertTrue( late.compareTo( end ) < 0 );
+
+        // other values of the first property are outside the prefix
+        assertTrue( longer.compareTo( end ) > 0 );
+
+        assertNull( index.getValue( Arrays.asList( "active", null ) ) );
+    }
+}
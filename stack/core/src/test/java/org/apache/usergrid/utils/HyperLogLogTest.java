@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.utils;
+
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class HyperLogLogTest {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+
+    @Test
+    public void smallCardinalities() {
+        HyperLogLog counter = new HyperLogLog();
+
+        assertEquals( 0, counter.cardinality() );
+
+        for ( int i = 0; i < 100; i++ ) {
+            counter.offer( hash( "value" + ( i % 10 ) ) );
+        }
+
+        assertEquals( 10, counter.cardinality() );
+    }
+
+
+    @Test
+    public void largeCardinalities() {
+        HyperLogLog counter = new HyperLogLog();
+
+        for ( int i = 0; i < 100000; i++ ) {
+            counter.offer( hash( "value" + i ) );
+        }
+
+        assertEquals( 100000, counter.cardinality(), 5000 );
+    }
+
+
+    @Test
+    public void merge() {
+        HyperLogLog first = new HyperLogLog();
+        HyperLogLog second = new HyperLogLog();
+
+        for ( int i = 0; i < 20000; i++ ) {
+            first.offer( hash( "value" + i ) );
+            second.offer( hash( "value" + ( i + 10000 ) ) );
+        }
+
+        first.merge( second );
+
+        assertEquals( 30000, first.cardinality(), 1500 );
+    }
+
+
+    private static long hash( String value ) {
+        return HASH.hashString( value, Charsets.UTF_8 ).asLong();
+    }
+}
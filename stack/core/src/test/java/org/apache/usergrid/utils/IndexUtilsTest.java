@@ -17,6 +17,8 @@
 package org.apache.usergrid.utils;
 
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map.Entry;
 
@@ -28,6 +30,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 
 public class IndexUtilsTest {
@@ -68,4 +72,86 @@ public class IndexUtilsTest {
 
         assertEquals( 7, l.size() );
     }
+
+
+    @Test
+    public void testRepeatedKeywords() {
+        List<String> keywords = IndexUtils.keywords( "Fire, fire and more FIRE" );
+
+        assertEquals( 2, keywords.size() );
+        assertEquals( "fire", keywords.get( 0 ) );
+        assertEquals( "more", keywords.get( 1 ) );
+    }
+
+
+    @Test
+    public void testPropertyAnalyzers() throws Exception {
+        IndexUtils.setAnalyzers( "book.summary:stemming, user.name:prefix" );
+
+        try {
+            List<String> stems =
+                    values( IndexUtils.getKeyValueList( "book", "summary", "Dragons breathing fire", true ) );
+
+            assertTrue( stems.contains( "Dragons breathing fire" ) );
+            assertTrue( stems.contains( "dragon" ) );
+            assertTrue( stems.contains( "breath" ) );
+            assertFalse( stems.contains( "dragons" ) );
+
+            assertEquals( "dragon", IndexUtils.analyzeTerm( "book", "summary", "dragons" ) );
+            assertEquals( "dragons", IndexUtils.analyzeTerm( "book", "title", "dragons" ) );
+
+            List<String> prefixes = values( IndexUtils.getKeyValueList( "user", "name", "Ed Anuff", true ) );
+
+            assertEquals( 6, prefixes.size() );
+            assertTrue( prefixes.contains( "ed" ) );
+            assertTrue( prefixes.contains( "an" ) );
+            assertTrue( prefixes.contains( "anu" ) );
+            assertTrue( prefixes.contains( "anuf" ) );
+            assertTrue( prefixes.contains( "anuff" ) );
+
+            // the other properties stay standard
+            List<String> words = values( IndexUtils.getKeyValueList( "user", "title", "Ed Anuff", true ) );
+
+            assertEquals( 3, words.size() );
+            assertTrue( words.contains( "anuff" ) );
+        }
+        finally {
+            IndexUtils.setAnalyzers( null );
+        }
+    }
+
+
+    @Test
+    public void testPrefixIndex() throws Exception {
+        IndexUtils.setPrefixIndexes( "user.name" );
+
+        try {
+            List<Entry<String, Object>> entries = IndexUtils.getKeyValueList( "user", "name", "Anuff", false );
+
+            assertEquals( 5, entries.size() );
+            assertEquals( "name", entries.get( 0 ).getKey() );
+            assertEquals( "name.prefix", entries.get( 1 ).getKey() );
+            assertEquals( Arrays.asList( "Anuff", "an", "anu", "anuf", "anuff" ), values( entries ) );
+
+            assertEquals( 1, IndexUtils.getKeyValueList( "group", "name", "Anuff", false ).size() );
+        }
+        finally {
+            IndexUtils.setPrefixIndexes( null );
+        }
+    }
+
+
+    @Test( expected = IllegalArgumentException.class )
+    public void testUnknownAnalyzer() {
+        IndexUtils.setAnalyzers( "book.summary:soundex" );
+    }
+
+
+    private static List<String> values( List<Entry<String, Object>> entries ) {
+        List<String> values = new ArrayList<String>();
+        for ( Entry<String, Object> e : entries ) {
+            values.add( ( String ) e.getValue() );
+        }
+        return values;
+    }
 }
@@ -220,6 +220,29 @@ public class UUIDUtilsTest {
     }
 
 
+    @Test
+    public void newTimeUUIDIsTimeBasedAndIncreasing() {
+        long start = System.currentTimeMillis();
+
+        UUID previous = newTimeUUID();
+
+        for ( int i = 0; i < 10000; i++ ) {
+            UUID current = newTimeUUID();
+
+            assertEquals( 1, current.version() );
+            assertEquals( 2, current.variant() );
+            assertTrue( UUIDUtils.compare( previous, current ) < 0 );
+
+            previous = current;
+        }
+
+        long millis = getTimestampInMillis( previous );
+
+        assertTrue( millis >= start );
+        assertTrue( millis <= System.currentTimeMillis() );
+    }
+
+
     @Test
     public void timeUUIDOrderingRolls() {
 
@@ -46,6 +46,7 @@ import org.apache.usergrid.exception.NotImplementedException;
 import org.apache.usergrid.management.ApplicationInfo;
 import org.apache.usergrid.management.exceptions.DisabledAdminUserException;
 import org.apache.usergrid.management.exceptions.DisabledAppUserException;
+import org.apache.usergrid.management.exceptions.TooManyLoginAttemptsException;
 import org.apache.usergrid.management.exceptions.UnactivatedAdminUserException;
 import org.apache.usergrid.management.exceptions.UnactivatedAppUserException;
 import org.apache.usergrid.mq.QueueManager;
@@ -62,6 +63,7 @@ import org.apache.usergrid.rest.applications.users.UsersResource;
 import org.apache.usergrid.rest.exceptions.AuthErrorInfo;
 import org.apache.usergrid.rest.exceptions.RedirectionException;
 import org.apache.usergrid.rest.security.annotations.RequireApplicationAccess;
+import org.apache.usergrid.security.crypto.HashRejectedException;
 import org.apache.usergrid.security.oauth.AccessInfo;
 import org.apache.usergrid.security.oauth.ClientCredentialsInfo;
 
@@ -236,8 +238,8 @@ public class ApplicationResource extends ServiceResource {
             String errorDescription = "invalid username or password";
             if ( GrantType.PASSWORD.toString().equals( grant_type ) ) {
                 try {
-                    user = management
-                            .verifyAppUserPasswordCredentials( services.getApplicationId(), username, password );
+                    user = management.verifyAppUserPasswordCredentials( services.getApplicationId(), username,
+                            password, httpServletRequest.getRemoteAddr() );
                 }
                 catch ( UnactivatedAppUserException uaue ) {
                     errorDescription = "user not activated";
@@ -245,6 +247,12 @@ public class ApplicationResource extends ServiceResource {
                 catch ( DisabledAppUserException daue ) {
                     errorDescription = "user disabled";
                 }
+                catch ( TooManyLoginAttemptsException tmla ) {
+                    errorDescription = "too many failed login attempts, try again later";
+                }
+                catch ( HashRejectedException hre ) {
+                    errorDescription = "too many concurrent logins, try again later";
+                }
                 catch ( Exception e1 ) {
                 }
             }
@@ -451,7 +459,8 @@ public class ApplicationResource extends ServiceResource {
             User user = null;
             String errorDescription = "Username or password do not match";
             try {
-                user = management.verifyAppUserPasswordCredentials( services.getApplicationId(), username, password );
+                user = management.verifyAppUserPasswordCredentials( services.getApplicationId(), username, password,
+                        httpServletRequest.getRemoteAddr() );
             }
             catch ( UnactivatedAdminUserException uaue ) {
                 errorDescription = "user not activated";
@@ -46,6 +46,7 @@ import org.apache.usergrid.management.OrganizationInfo;
 import org.apache.usergrid.management.OrganizationOwnerInfo;
 import org.apache.usergrid.management.UserInfo;
 import org.apache.usergrid.management.exceptions.DisabledAdminUserException;
+import org.apache.usergrid.management.exceptions.TooManyLoginAttemptsException;
 import org.apache.usergrid.management.exceptions.UnactivatedAdminUserException;
 import org.apache.usergrid.management.exceptions.UnconfirmedAdminUserException;
 import org.apache.usergrid.metrics.MetricsFactory;
@@ -54,6 +55,7 @@ import org.apache.usergrid.rest.AbstractContextResource;
 import org.apache.usergrid.rest.exceptions.RedirectionException;
 import org.apache.usergrid.rest.management.organizations.OrganizationsResource;
 import org.apache.usergrid.rest.management.users.UsersResource;
+import org.apache.usergrid.security.crypto.HashRejectedException;
 import org.apache.usergrid.security.oauth.AccessInfo;
 import org.apache.usergrid.security.shiro.utils.SubjectUtils;
 import org.codehaus.jackson.JsonNode;
@@ -244,7 +246,8 @@ public class ManagementResource extends AbstractContextResource {
                 // do checking for different grant types
                 if ( GrantType.PASSWORD.toString().equals( grant_type ) ) {
                     try {
-                        user = management.verifyAdminUserPasswordCredentials( username, password );
+                        user = management.verifyAdminUserPasswordCredentials( username, password,
+                                httpServletRequest.getRemoteAddr() );
 
                         if ( user != null ) {
                             logger.info( "found user from verify: {}", user.getUuid() );
@@ -258,6 +261,14 @@ public class ManagementResource extends AbstractContextResource {
                         errorDescription = "user disabled";
                         logger.error( errorDescription, daue );
                     }
+                    catch ( TooManyLoginAttemptsException tmla ) {
+                        errorDescription = "too many failed login attempts, try again later";
+                        logger.warn( "Refused login of {}, too many failed attempts", username );
+                    }
+                    catch ( HashRejectedException hre ) {
+                        errorDescription = "too many concurrent logins, try again later";
+                        logger.warn( "Refused login of {}, password hashing is saturated", username );
+                    }
                     catch ( UnconfirmedAdminUserException uaue ) {
                         errorDescription = "User must be confirmed to authenticate";
                         logger.warn( "Responding with HTTP 403 forbidden response for unconfirmed user {}" , user);
@@ -452,7 +463,8 @@ public class ManagementResource extends AbstractContextResource {
 
             UserInfo user = null;
             try {
-                user = management.verifyAdminUserPasswordCredentials( username, password );
+                user = management.verifyAdminUserPasswordCredentials( username, password,
+                        httpServletRequest.getRemoteAddr() );
             }
             catch ( Exception e1 ) {
             }
@@ -17,7 +17,9 @@
 package org.apache.usergrid.rest.management.organizations.applications;
 
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
@@ -43,9 +45,11 @@ import org.apache.amber.oauth2.common.exception.OAuthSystemException;
 import org.apache.amber.oauth2.common.message.OAuthResponse;
 import org.apache.commons.lang.StringUtils;
 
+import org.apache.usergrid.batch.job.IndexStatisticsJob;
 import org.apache.usergrid.management.ApplicationInfo;
 import org.apache.usergrid.management.OrganizationInfo;
 import org.apache.usergrid.management.export.ExportService;
+import org.apache.usergrid.persistence.EntityManager;
 import org.apache.usergrid.rest.AbstractContextResource;
 import org.apache.usergrid.rest.ApiResponse;
 import org.apache.usergrid.rest.applications.ServiceResource;
@@ -82,6 +86,9 @@ public class ApplicationResource extends AbstractContextResource {
     @Autowired
     private SignInProviderFactory signInProviderFactory;
 
+    @Autowired
+    private IndexStatisticsJob indexStatisticsJob;
+
 
     public ApplicationResource() {
     }
@@ -172,6 +179,79 @@ public class ApplicationResource extends AbstractContextResource {
     }
 
 
+    @RequireOrganizationAccess
+    @GET
+    @Path("collection/{collection_name}/statistics")
+    public JSONWithPadding getIndexStatistics( @Context UriInfo ui,
+                                               @PathParam("collection_name") String collectionName,
+                                               @QueryParam("callback") @DefaultValue("callback") String callback )
+            throws Exception {
+
+        ApiResponse response = createApiResponse();
+        response.setAction( "get collection index statistics" );
+
+        EntityManager em = emf.getEntityManager( applicationId );
+        response.setData( em.getIndexStatistics( em.getApplicationRef(), collectionName ) );
+
+        return new JSONWithPadding( response, callback );
+    }
+
+
+    /**
+     * Schedule the collection of the index statistics of a collection, of the properties given separated by commas or
+     * of every indexed one. With an interval in milliseconds they're collected again after it, it must be at least
+     * usergrid.index.statistics.interval.min. The collection's previous schedule is replaced
+     */
+    @RequireOrganizationAccess
+    @POST
+    @Path("collection/{collection_name}/statistics")
+    public JSONWithPadding collectIndexStatistics( @Context UriInfo ui,
+                                                   @PathParam("collection_name") String collectionName,
+                                                   @QueryParam("properties") String properties,
+                                                   @QueryParam("interval") @DefaultValue("0") long interval,
+                                                   @QueryParam("callback") @DefaultValue("callback") String callback )
+            throws Exception {
+
+        ApiResponse response = createApiResponse();
+        response.setAction( "collect collection index statistics" );
+
+        List<String> propertyNames = null;
+        if ( StringUtils.isNotBlank( properties ) ) {
+            propertyNames = Arrays.asList( StringUtils.stripAll( StringUtils.split( properties, ',' ) ) );
+        }
+
+        EntityManager em = emf.getEntityManager( applicationId );
+
+        response.setData(
+                indexStatisticsJob.schedule( applicationId, em.getApplicationRef(), collectionName, propertyNames,
+                        interval ) );
+
+        return new JSONWithPadding( response, callback );
+    }
+
+
+    /** Stop collecting the index statistics of a collection, the collected ones are kept */
+    @RequireOrganizationAccess
+    @DELETE
+    @Path("collection/{collection_name}/statistics")
+    public JSONWithPadding stopIndexStatistics( @Context UriInfo ui,
+                                                @PathParam("collection_name") String collectionName,
+                                                @QueryParam("callback") @DefaultValue("callback") String callback )
+            throws Exception {
+
+        ApiResponse response = createApiResponse();
+        response.setAction( "stop collection index statistics" );
+
+        EntityManager em = emf.getEntityManager( applicationId );
+
+        Map<String, Object> data = new HashMap<String, Object>();
+        data.put( "stopped", indexStatisticsJob.stop( applicationId, em.getApplicationRef(), collectionName ) );
+        response.setData( data );
+
+        return new JSONWithPadding( response, callback );
+    }
+
+
     @POST
     @Path("sia-provider")
     @Consumes(APPLICATION_JSON)
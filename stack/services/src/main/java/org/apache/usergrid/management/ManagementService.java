@@ -248,6 +248,13 @@ public interface ManagementService {
 
     public UserInfo verifyAdminUserPasswordCredentials( String name, String password ) throws Exception;
 
+    /**
+     * Verify the password of an admin user logging in from the client address.  Failed attempts are throttled per user
+     * and address, so failures from one address don't lock the user out from others
+     */
+    public UserInfo verifyAdminUserPasswordCredentials( String name, String password, String clientAddress )
+            throws Exception;
+
     public UserInfo verifyMongoCredentials( String name, String nonce, String key ) throws Exception;
 
     public void activateAppUser( UUID applicationId, UUID userId ) throws Exception;
@@ -282,6 +289,13 @@ public interface ManagementService {
 
     public User verifyAppUserPasswordCredentials( UUID applicationId, String name, String password ) throws Exception;
 
+    /**
+     * Verify the password of an application user logging in from the client address.  Failed attempts are throttled
+     * per user and address, so failures from one address don't lock the user out from others
+     */
+    public User verifyAppUserPasswordCredentials( UUID applicationId, String name, String password,
+                                                  String clientAddress ) throws Exception;
+
     public UserInfo getAppUserFromAccessToken( String token ) throws Exception;
 
     public void setAppUserPin( UUID applicationId, UUID userId, String newPin ) throws Exception;
@@ -27,6 +27,7 @@ import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,6 +37,7 @@ import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang.text.StrSubstitutor;
 import org.apache.shiro.UnavailableSecurityManagerException;
 
+import org.apache.usergrid.clustering.hazelcast.InvalidatingCache;
 import org.apache.usergrid.locking.Lock;
 import org.apache.usergrid.locking.LockManager;
 import org.apache.usergrid.management.AccountCreationProps;
@@ -50,6 +52,7 @@ import org.apache.usergrid.management.exceptions.DisabledAppUserException;
 import org.apache.usergrid.management.exceptions.IncorrectPasswordException;
 import org.apache.usergrid.management.exceptions.ManagementException;
 import org.apache.usergrid.management.exceptions.RecentlyUsedPasswordException;
+import org.apache.usergrid.management.exceptions.TooManyLoginAttemptsException;
 import org.apache.usergrid.management.exceptions.UnableToLeaveOrganizationException;
 import org.apache.usergrid.management.exceptions.UnactivatedAdminUserException;
 import org.apache.usergrid.management.exceptions.UnactivatedAppUserException;
@@ -71,6 +74,7 @@ import org.apache.usergrid.persistence.exceptions.DuplicateUniquePropertyExistsE
 import org.apache.usergrid.persistence.exceptions.EntityNotFoundException;
 import org.apache.usergrid.security.AuthPrincipalInfo;
 import org.apache.usergrid.security.AuthPrincipalType;
+import org.apache.usergrid.security.LoginThrottle;
 import org.apache.usergrid.security.crypto.EncryptionService;
 import org.apache.usergrid.security.oauth.AccessInfo;
 import org.apache.usergrid.security.oauth.ClientCredentialsInfo;
@@ -214,6 +218,9 @@ public class ManagementServiceImpl implements ManagementService {
     public static final String REGISTRATION_REQUIRES_EMAIL_CONFIRMATION = "registration_requires_email_confirmation";
     public static final String NOTIFY_ADMIN_OF_NEW_USERS = "notify_admin_of_new_users";
 
+    /** How long the applications of an organization are cached, in milliseconds */
+    public static final long DEFAULT_ORGANIZATION_APPLICATIONS_TTL = 30000;
+
     protected ServiceManagerFactory smf;
 
     protected EntityManagerFactory emf;
@@ -231,6 +238,15 @@ public class ManagementServiceImpl implements ManagementService {
 
     protected EncryptionService encryptionService;
 
+    /** The applications of each organization by organization id, read on most management requests */
+    protected InvalidatingCache<BiMap<UUID, String>> organizationApplications =
+            new InvalidatingCache<BiMap<UUID, String>>( "organizationApplications", 10000,
+                    DEFAULT_ORGANIZATION_APPLICATIONS_TTL );
+
+    /** Failed password checks by user */
+    protected LoginThrottle loginThrottle =
+            new LoginThrottle( LoginThrottle.DEFAULT_MAX_ATTEMPTS, LoginThrottle.DEFAULT_WINDOW );
+
 
     /** Must be constructed with a CassandraClientPool. */
     public ManagementServiceImpl() {
@@ -286,6 +302,17 @@ public class ManagementServiceImpl implements ManagementService {
     }
 
 
+    /** Replace the cache of applications by organization, I.E. with one that is clustered */
+    public void setOrganizationApplicationsCache( InvalidatingCache<BiMap<UUID, String>> organizationApplications ) {
+        this.organizationApplications = organizationApplications;
+    }
+
+
+    public void setLoginThrottle( LoginThrottle loginThrottle ) {
+        this.loginThrottle = loginThrottle;
+    }
+
+
     @Override
     public void setup() throws Exception {
 
@@ -1239,6 +1266,13 @@ public class ManagementServiceImpl implements ManagementService {
 
     @Override
     public UserInfo verifyAdminUserPasswordCredentials( String name, String password ) throws Exception {
+        return verifyAdminUserPasswordCredentials( name, password, null );
+    }
+
+
+    @Override
+    public UserInfo verifyAdminUserPasswordCredentials( String name, String password, String clientAddress )
+            throws Exception {
         UserInfo userInfo = null;
 
         User user = findUserEntity( MANAGEMENT_APPLICATION_ID, name );
@@ -1246,7 +1280,7 @@ public class ManagementServiceImpl implements ManagementService {
             return null;
         }
 
-        if ( verify( MANAGEMENT_APPLICATION_ID, user.getUuid(), password ) ) {
+        if ( verify( MANAGEMENT_APPLICATION_ID, user.getUuid(), password, clientAddress ) ) {
             userInfo = getUserInfo( MANAGEMENT_APPLICATION_ID, user );
 
             boolean userIsSuperAdmin = properties.getSuperUser().isEnabled() && properties.getSuperUser().getEmail().equals(userInfo.getEmail());
@@ -1661,11 +1695,26 @@ public class ManagementServiceImpl implements ManagementService {
 
 
     @Override
-    public BiMap<UUID, String> getApplicationsForOrganization( UUID organizationId ) throws Exception {
+    public BiMap<UUID, String> getApplicationsForOrganization( final UUID organizationId ) throws Exception {
 
         if ( organizationId == null ) {
             return null;
         }
+
+        BiMap<UUID, String> applications =
+                organizationApplications.get( organizationId.toString(), new Callable<BiMap<UUID, String>>() {
+                    @Override
+                    public BiMap<UUID, String> call() throws Exception {
+                        return loadApplicationsForOrganization( organizationId );
+                    }
+                } );
+
+        //callers are free to modify what they get
+        return HashBiMap.create( applications );
+    }
+
+
+    private BiMap<UUID, String> loadApplicationsForOrganization( UUID organizationId ) throws Exception {
         final BiMap<UUID, String> applications = HashBiMap.create();
         final EntityManager em = emf.getEntityManager( MANAGEMENT_APPLICATION_ID );
         final Results results = em.getConnectedEntities( organizationId, "owns", APPLICATION_INFO, Level.ALL_PROPERTIES );
@@ -1717,6 +1766,8 @@ public class ManagementServiceImpl implements ManagementService {
         em.createConnection( new SimpleEntityRef( "group", organizationId ), "owns",
                 new SimpleEntityRef( APPLICATION_INFO, applicationId ) );
 
+        organizationApplications.invalidate( organizationId.toString() );
+
         return applicationId;
     }
 
@@ -2655,13 +2706,20 @@ public class ManagementServiceImpl implements ManagementService {
 
     @Override
     public User verifyAppUserPasswordCredentials( UUID applicationId, String name, String password ) throws Exception {
+        return verifyAppUserPasswordCredentials( applicationId, name, password, null );
+    }
+
+
+    @Override
+    public User verifyAppUserPasswordCredentials( UUID applicationId, String name, String password,
+                                                  String clientAddress ) throws Exception {
 
         User user = findUserEntity( applicationId, name );
         if ( user == null ) {
             return null;
         }
 
-        if ( verify( applicationId, user.getUuid(), password ) ) {
+        if ( verify( applicationId, user.getUuid(), password, clientAddress ) ) {
             if ( !user.activated() ) {
                 throw new UnactivatedAppUserException();
             }
@@ -2888,13 +2946,49 @@ public class ManagementServiceImpl implements ManagementService {
 
 
     private boolean verify( UUID applicationId, UUID userId, String password ) throws Exception {
+        return verify( applicationId, userId, password, null );
+    }
+
+
+    /**
+     * Check the password of the user.  Users that failed too often recently from the same client address are refused
+     * without hashing, and credentials hashed with weaker settings than the current ones are hashed again once the
+     * password is known, if upgrades are enabled
+     *
+     * @param clientAddress the address the login comes from, null if unknown
+     *
+     * @throws TooManyLoginAttemptsException If the user failed to log in too many times recently from the address
+     */
+    private boolean verify( UUID applicationId, UUID userId, String password, String clientAddress )
+            throws Exception {
+        String throttleKey = applicationId + "/" + userId + "/" + ( clientAddress != null ? clientAddress : "" );
+
+        loginThrottle.check( throttleKey );
+
         CredentialsInfo ci = readUserPasswordCredentials( applicationId, userId );
 
         if ( ci == null ) {
             return false;
         }
 
-        return encryptionService.verify( password, ci, userId, applicationId );
+        if ( !encryptionService.verify( password, ci, userId, applicationId ) ) {
+            loginThrottle.failed( throttleKey );
+            return false;
+        }
+
+        loginThrottle.succeeded( throttleKey );
+
+        try {
+            if ( encryptionService.upgrade( password, ci, userId, applicationId ) ) {
+                writeUserPassword( applicationId, new SimpleEntityRef( User.ENTITY_TYPE, userId ), ci );
+            }
+        }
+        catch ( Exception e ) {
+            // the existing credentials still work, we'll try again on the next login
+            logger.warn( "Unable to upgrade the password credentials of user {}", userId, e );
+        }
+
+        return true;
     }
 
 
@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.security;
+
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.usergrid.management.exceptions.TooManyLoginAttemptsException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+
+/**
+ * Counts failed logins per key, such as a user and the address the login comes from, and refuses further attempts
+ * once there were too many. Attempts are allowed again once the window since the first failure has passed, or after a
+ * successful login. Every attempt costs a password hash, this keeps brute force attempts on one account from using up
+ * the hashing capacity of the node.
+ * <p/>
+ * Keys should include the client address, otherwise anyone can lock any user out by failing on purpose. Counts are
+ * kept per node, so a cluster allows up to the maximum attempts on each node.
+ */
+public class LoginThrottle {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 10;
+
+    public static final long DEFAULT_WINDOW = 300000;
+
+    private final int maxAttempts;
+
+    private final Cache<String, AtomicInteger> failures;
+
+
+    /**
+     * @param maxAttempts The number of failed attempts allowed within the window, 0 to allow any number
+     * @param window How long failures are counted after the first one, in milliseconds
+     */
+    public LoginThrottle( int maxAttempts, long window ) {
+        this.maxAttempts = maxAttempts;
+        this.failures = CacheBuilder.newBuilder().maximumSize( 100000 ).expireAfterWrite( window, TimeUnit.MILLISECONDS )
+                                    .build();
+    }
+
+
+    /** Throw if there were too many failed attempts for the key */
+    public void check( String key ) throws TooManyLoginAttemptsException {
+        if ( maxAttempts <= 0 ) {
+            return;
+        }
+
+        AtomicInteger count = failures.getIfPresent( key );
+
+        if ( count != null && count.get() >= maxAttempts ) {
+            throw new TooManyLoginAttemptsException( "Too many failed login attempts, try again later" );
+        }
+    }
+
+
+    /** Record a failed attempt for the key */
+    public void failed( String key ) {
+        if ( maxAttempts <= 0 ) {
+            return;
+        }
+
+        AtomicInteger count = failures.getIfPresent( key );
+
+        if ( count == null ) {
+            count = new AtomicInteger();
+
+            AtomicInteger existing = failures.asMap().putIfAbsent( key, count );
+
+            if ( existing != null ) {
+                count = existing;
+            }
+        }
+
+        count.incrementAndGet();
+    }
+
+
+    /** Forget the failed attempts of the key */
+    public void succeeded( String key ) {
+        failures.invalidate( key );
+    }
+}
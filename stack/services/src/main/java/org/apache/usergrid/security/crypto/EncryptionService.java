@@ -40,6 +40,21 @@ public interface EncryptionService {
     public boolean verify( String inputSecret, CredentialsInfo creds, UUID userId, UUID applicationId );
 
 
+    /**
+     * Hash the secret again with the default encryption command if the credentials were hashed with weaker settings
+     * than it uses now, such as a lower bcrypt cost.  Only call this once the secret was verified.  Does nothing unless
+     * upgrades are enabled.
+     *
+     * @param inputSecret The verified secret
+     * @param creds The credentials to upgrade.  Its secret is replaced when upgraded
+     * @param userId The id of the user
+     * @param applicationId The application id of the parent application
+     *
+     * @return True if the credentials were upgraded and need to be stored
+     */
+    public boolean upgrade( String inputSecret, CredentialsInfo creds, UUID userId, UUID applicationId );
+
+
     /**
      * Generate a plain text credentials info with the given type.  Used for storing oAuth tokens and prehashes mongo
      * passwords etc
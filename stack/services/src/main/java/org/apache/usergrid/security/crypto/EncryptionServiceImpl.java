@@ -22,10 +22,13 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
 
 import javax.annotation.PostConstruct;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.util.Assert;
 import org.apache.usergrid.persistence.CredentialsInfo;
@@ -34,7 +37,19 @@ import org.apache.usergrid.security.crypto.command.EncryptionCommand;
 import static org.apache.commons.codec.binary.Base64.encodeBase64URLSafeString;
 
 
-/** @author tnine */
+/**
+ * Hashes and verifies secrets with the configured commands.
+ * <p/>
+ * Hashing a password with bcrypt takes long on purpose, and it runs on the calling request thread.  When a maximum of
+ * concurrent hashes is configured, a hash beyond that maximum fails right away with a {@link HashRejectedException}
+ * instead of waiting, so a login storm can only hold that many request threads, and other requests to the node are
+ * still served.
+ * <p/>
+ * Credentials hashed with weaker settings than the default command's are only hashed again on login when upgrades are
+ * enabled, see {@link #setUpgradeOnLogin(boolean)}.
+ *
+ * @author tnine
+ */
 @Service("encryptionService")
 public class EncryptionServiceImpl implements EncryptionService {
 
@@ -44,6 +59,13 @@ public class EncryptionServiceImpl implements EncryptionService {
     private List<EncryptionCommand> inputCommands;
     private EncryptionCommand defaultCommand;
 
+    /** The most hashes running at once, 0 for no limit */
+    private int maxConcurrentHashes = 0;
+
+    private boolean upgradeOnLogin = false;
+
+    private Semaphore hashPermits;
+
 
     /*
      * (non-Javadoc)
@@ -54,7 +76,18 @@ public class EncryptionServiceImpl implements EncryptionService {
      * java.util.UUID)
      */
     @Override
-    public boolean verify( String inputSecret, CredentialsInfo creds, UUID userId, UUID applicationId ) {
+    public boolean verify( final String inputSecret, final CredentialsInfo creds, final UUID userId,
+                           final UUID applicationId ) {
+        return run( new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return verifyInternal( inputSecret, creds, userId, applicationId );
+            }
+        } );
+    }
+
+
+    private boolean verifyInternal( String inputSecret, CredentialsInfo creds, UUID userId, UUID applicationId ) {
 
 
         String[] storedCommands = null;
@@ -97,6 +130,58 @@ public class EncryptionServiceImpl implements EncryptionService {
     }
 
 
+    @Override
+    public boolean upgrade( final String inputSecret, final CredentialsInfo creds, final UUID userId,
+                            final UUID applicationId ) {
+        if ( !upgradeOnLogin ) {
+            return false;
+        }
+
+        String[] chain = creds.getCryptoChain();
+
+        // only credentials hashed by the default command alone can be hashed again from the secret
+        if ( chain == null || chain.length != 1 || !defaultCommand.getName().equals( chain[0] ) ) {
+            return false;
+        }
+
+        if ( !defaultCommand.needsUpgrade( creds ) ) {
+            return false;
+        }
+
+        creds.setSecret( run( new Callable<String>() {
+            @Override
+            public String call() {
+                return encode( defaultCommand.hash( inputSecret.getBytes( UTF8 ), creds, userId, applicationId ) );
+            }
+        } ) );
+
+        return true;
+    }
+
+
+    /** Run the hash on this thread, unless the maximum number of hashes is already running */
+    private <T> T run( Callable<T> hash ) {
+        if ( hashPermits != null && !hashPermits.tryAcquire() ) {
+            throw new HashRejectedException( "Too many concurrent password hashes, try again later" );
+        }
+
+        try {
+            return hash.call();
+        }
+        catch ( RuntimeException e ) {
+            throw e;
+        }
+        catch ( Exception e ) {
+            throw new RuntimeException( e );
+        }
+        finally {
+            if ( hashPermits != null ) {
+                hashPermits.release();
+            }
+        }
+    }
+
+
     /** @param wiredCommands the wiredCommands to set */
     @Autowired
     public void setCommands( List<EncryptionCommand> inputCommands ) {
@@ -137,6 +222,25 @@ public class EncryptionServiceImpl implements EncryptionService {
         defaultCommand = commands.get( defaultCommandName );
 
         Assert.notNull( defaultCommand, "Encryption command for type " + defaultCommandName + " must be present" );
+
+        hashPermits = maxConcurrentHashes > 0 ? new Semaphore( maxConcurrentHashes ) : null;
+    }
+
+
+    /** @param maxConcurrentHashes the most hashes running at once before further ones are rejected, 0 for no limit */
+    @Value( "${usergrid.crypto.hash.concurrent:0}" )
+    public void setMaxConcurrentHashes( int maxConcurrentHashes ) {
+        this.maxConcurrentHashes = maxConcurrentHashes;
+    }
+
+
+    /**
+     * @param upgradeOnLogin true to hash credentials again with the default command's settings when they were hashed
+     * with weaker ones. Every such user then pays an extra hash at the new cost on their next login
+     */
+    @Value( "${usergrid.crypto.hash.upgrade:false}" )
+    public void setUpgradeOnLogin( boolean upgradeOnLogin ) {
+        this.upgradeOnLogin = upgradeOnLogin;
     }
 
 
@@ -172,14 +276,19 @@ public class EncryptionServiceImpl implements EncryptionService {
      * (java.lang.String, org.apache.usergrid.persistence.entities.User, java.util.UUID)
      */
     @Override
-    public CredentialsInfo defaultEncryptedCredentials( String input, UUID userId, UUID applicationId ) {
-        CredentialsInfo credentials = new CredentialsInfo();
+    public CredentialsInfo defaultEncryptedCredentials( final String input, final UUID userId,
+                                                        final UUID applicationId ) {
+        final CredentialsInfo credentials = new CredentialsInfo();
         credentials.setRecoverable( false );
         credentials.setEncrypted( true );
         credentials.setCryptoChain( new String[] { defaultCommand.getName() } );
 
-        credentials.setSecret(
-                encode( defaultCommand.hash( input.getBytes( UTF8 ), credentials, userId, applicationId ) ) );
+        credentials.setSecret( run( new Callable<String>() {
+            @Override
+            public String call() {
+                return encode( defaultCommand.hash( input.getBytes( UTF8 ), credentials, userId, applicationId ) );
+            }
+        } ) );
 
         return credentials;
     }
@@ -20,7 +20,12 @@ package org.apache.usergrid.security.crypto.command;
 import java.nio.charset.Charset;
 import java.util.UUID;
 
+import javax.annotation.PostConstruct;
+
 import org.mindrot.jbcrypt.BCrypt;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.util.Assert;
 import org.apache.usergrid.persistence.CredentialsInfo;
@@ -30,19 +35,33 @@ import static org.apache.commons.codec.binary.Base64.decodeBase64;
 
 /**
  * Simple bcrypt command.  Runtime encoding of bytes is expected to convert to a UTF8 string
+ * <p/>
+ * When a target latency is set, the cost is raised at startup until a hash takes about that long on this machine.
+ * Credentials hashed with a lower cost are upgraded the next time their user logs in, see {@link #needsUpgrade}
  *
  * @author tnine
  */
 @Component("org.apache.usergrid.security.crypto.command.BcryptCommand")
 public class BcryptCommand extends EncryptionCommand {
 
+    private static final Logger logger = LoggerFactory.getLogger( BcryptCommand.class );
+
     private static final Charset UTF8 = Charset.forName( "UTF-8" );
 
+    /** The highest cost calibration will pick, 2^16 rounds already take seconds */
+    public static final int MAX_ITERATIONS = 16;
+
     /**
-     * 2^12 seems to be far too slow on modern processors.  Approximately 1.8 seconds per crypt on a 2.2 GHZ intel i7.
-     * 2^11 is less than 1 second
+     * The log2 of the number of rounds. 2^12 seems to be far too slow on modern processors.  Approximately 1.8 seconds
+     * per crypt on a 2.2 GHZ intel i7. 2^11 is less than 1 second
      */
-    private int defaultIterations = 2 ^ 11;
+    private int defaultIterations = 11;
+
+    /** The cost new hashes use, at least the default */
+    private int iterations = defaultIterations;
+
+    /** The time a hash should take in milliseconds, 0 to always use the default iterations */
+    private long targetLatency = 0;
 
 
     /* (non-Javadoc)
@@ -51,7 +70,7 @@ public class BcryptCommand extends EncryptionCommand {
      */
     @Override
     public byte[] hash( byte[] input, CredentialsInfo info, UUID userId, UUID applicationId ) {
-        return BCrypt.hashpw(new String(input, UTF8), BCrypt.gensalt(defaultIterations)).getBytes();
+        return BCrypt.hashpw( new String( input, UTF8 ), BCrypt.gensalt( iterations ) ).getBytes( UTF8 );
     }
 
 
@@ -73,13 +92,94 @@ public class BcryptCommand extends EncryptionCommand {
 
 
     /**
-     * Set the number of default iterations to use.  If the password was previously hashed, the number of iterations
-     * will be in the CredentialsInfo.  Otherwise the default is used
+     * Returns true if the credentials were hashed with fewer iterations than new hashes use. Credentials that aren't
+     * bcrypt hashes are left alone
+     */
+    @Override
+    public boolean needsUpgrade( CredentialsInfo info ) {
+        int existing = getIterations( info );
+
+        return existing > 0 && existing < iterations;
+    }
+
+
+    /**
+     * Pick the cost from the target latency.  Every additional iteration doubles the time of a hash, so a single hash
+     * with the default iterations is enough to find it
+     */
+    @PostConstruct
+    public void calibrate() {
+        iterations = defaultIterations;
+
+        if ( targetLatency <= 0 ) {
+            return;
+        }
+
+        long start = System.nanoTime();
+
+        BCrypt.hashpw( "calibration", BCrypt.gensalt( defaultIterations ) );
+
+        long elapsed = Math.max( 1, ( System.nanoTime() - start ) / 1000000 );
+
+        while ( iterations < MAX_ITERATIONS && elapsed * 2 <= targetLatency ) {
+            iterations++;
+            elapsed *= 2;
+        }
+
+        logger.info( "Using {} bcrypt iterations for a target latency of {} ms", iterations, targetLatency );
+    }
+
+
+    /** Get the log2 of the rounds the credentials were hashed with, or -1 if they aren't a bcrypt hash */
+    public static int getIterations( CredentialsInfo info ) {
+        String secret = info.getSecret();
+
+        if ( secret == null ) {
+            return -1;
+        }
+
+        // hashes look like $2a$11$ followed by the salt and hash
+        String existing = new String( decodeBase64( secret ), UTF8 );
+
+        if ( existing.length() < 7 || existing.charAt( 0 ) != '$' || existing.charAt( 6 ) != '$' ) {
+            return -1;
+        }
+
+        try {
+            return Integer.parseInt( existing.substring( 4, 6 ) );
+        }
+        catch ( NumberFormatException e ) {
+            return -1;
+        }
+    }
+
+
+    /**
+     * Set the number of default iterations to use, as the log2 of the number of rounds.  If the password was
+     * previously hashed, the number of iterations will be in the CredentialsInfo.  Otherwise the default is used
      *
      * @param defaultIterations the defaultIterations to set
      */
+    @Value( "${usergrid.crypto.bcrypt.iterations:11}" )
     public void setDefaultIterations( int defaultIterations ) {
         this.defaultIterations = defaultIterations;
+        this.iterations = defaultIterations;
+    }
+
+
+    /** @return the iterations new hashes use */
+    public int getIterations() {
+        return iterations;
+    }
+
+
+    /**
+     * Set the time a hash should take in milliseconds.  The cost is raised from the default iterations until a hash
+     * takes about this long, 0 disables this
+     */
+    @Value( "${usergrid.crypto.bcrypt.latency:0}" )
+    public void setTargetLatency( long targetLatency ) {
+        this.targetLatency = targetLatency;
     }
 
 
@@ -47,4 +47,13 @@ public abstract class EncryptionCommand {
 
     /** Get the name of this encryption command */
     public abstract String getName();
+
+
+    /**
+     * Return true if the credentials were hashed by this command with weaker settings than it uses now, and should be
+     * hashed again the next time the secret is known
+     */
+    public boolean needsUpgrade( CredentialsInfo info ) {
+        return false;
+    }
 }
@@ -25,15 +25,18 @@ import java.util.UUID;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.apache.usergrid.batch.job.BulkQueryJob;
 import org.apache.usergrid.persistence.Entity;
 import org.apache.usergrid.persistence.EntityRef;
 import org.apache.usergrid.persistence.Query;
 import org.apache.usergrid.persistence.Results;
 import org.apache.usergrid.persistence.Results.Level;
 import org.apache.usergrid.persistence.Schema;
+import org.apache.usergrid.persistence.entities.JobData;
 import org.apache.usergrid.persistence.exceptions.UnexpectedEntityTypeException;
 import org.apache.usergrid.services.ServiceResults.Type;
 import org.apache.usergrid.services.exceptions.ForbiddenServiceOperationException;
+import org.apache.usergrid.services.exceptions.ServiceInvocationException;
 import org.apache.usergrid.services.exceptions.ServiceResourceNotFoundException;
 
 import static org.apache.usergrid.utils.ClassUtils.cast;
@@ -325,6 +328,22 @@ public class AbstractCollectionService extends AbstractService {
             return getItemsByQuery( context, query );
         }
 
+        if ( query.isBulk() ) {
+            if ( context.getPayload().isBatch() ) {
+                throw new ServiceInvocationException( context, "A bulk update takes a single set of properties" );
+            }
+
+            // every match would get the same value
+            for ( String propertyName : context.getPayload().getProperties().keySet() ) {
+                if ( Schema.getDefaultSchema().isPropertyUnique( getEntityType(), propertyName ) ) {
+                    throw new ServiceInvocationException( context,
+                            "A bulk update can't set the unique property " + propertyName );
+                }
+            }
+
+            return scheduleBulkQuery( context, query, BulkQueryJob.UPDATE, context.getPayload().getProperties() );
+        }
+
         query = new Query( query );
         query.setResultsLevel( Level.ALL_PROPERTIES );
         query.setLimit( 1000 );
@@ -521,6 +540,10 @@ public class AbstractCollectionService extends AbstractService {
             return getItemsByQuery( context, query );
         }
 
+        if ( query.isBulk() ) {
+            return scheduleBulkQuery( context, query, BulkQueryJob.DELETE, null );
+        }
+
         query = new Query( query );
         query.setResultsLevel( Level.ALL_PROPERTIES );
         query.setLimit( query.getLimit() );
@@ -550,6 +573,34 @@ public class AbstractCollectionService extends AbstractService {
     }
 
 
+    /**
+     * Apply a delete or update to everything the query matches in a background job rather than to the first page in the
+     * request. The results are the job data, whose uuid is the id of the job.
+     * <p/>
+     * Updates are written by the job straight through the entity manager, without {@link #updateEntity} and the
+     * service of each entity's type it dispatches to through the {@link ServiceManager}. A service that overrides
+     * updateEntity must reject bulk updates of its collection
+     */
+    protected ServiceResults scheduleBulkQuery( ServiceContext context, Query query, String operation,
+                                                Map<String, Object> properties ) throws Exception {
+
+        if ( query.getQl() == null ) {
+            throw new ServiceInvocationException( context, "A bulk " + operation + " needs a ql query" );
+        }
+
+        logger.info( "Scheduling bulk {} of {} in collection {}",
+                new Object[] { operation, query.getQl(), context.getCollectionName() } );
+
+        JobData jobData =
+                BulkQueryJob.createJobData( sm.getApplicationId(), context.getOwner(), context.getCollectionName(),
+                        query.getQl(), operation, properties );
+
+        jobData = sm.getSchedulerService().createJob( BulkQueryJob.NAME, System.currentTimeMillis(), jobData );
+
+        return new ServiceResults( this, context, Type.GENERIC, Results.fromEntity( jobData ), null, null );
+    }
+
+
     @Override
     public ServiceResults getServiceMetadata( ServiceContext context, String metadataType ) throws Exception {
 
@@ -311,28 +311,46 @@ public class ServiceManager {
     private Service getServiceInstance( ServiceInfo info ) {
 
         Class<Service> cls = findServiceClass( info );
-        if ( cls != null ) {
-            Service s = null;
-            try {
-                s = cls.newInstance();
-            }
-            catch ( Exception e ) {
-                logger.error( "cannot instantiate " + cls.getName(), e );
-            }
-            if ( s instanceof AbstractService ) {
-                AbstractService as = ( ( AbstractService ) s );
-                as.setServiceManager( this );
-                as.init( info );
-            }
-            if ( s != null ) {
-                if ( s.getEntityType() == null ) {
-                    throw new UndefinedServiceEntityTypeException();
-                }
+        if ( cls == null ) {
+            return null;
+        }
+
+        if ( smf == null ) {
+            return newServiceInstance( cls, info );
+        }
+
+        return smf.getServiceInstance( this, applicationId, cls, info );
+    }
+
+
+    /** Create and initialize a service.  Services are shared by all requests to the application once created */
+    Service newServiceInstance( Class<Service> cls, ServiceInfo info ) {
+        Service s = null;
+        try {
+            s = cls.newInstance();
+        }
+        catch ( Exception e ) {
+            logger.error( "cannot instantiate " + cls.getName(), e );
+        }
+        if ( s instanceof AbstractService ) {
+            AbstractService as = ( ( AbstractService ) s );
+            as.setServiceManager( this );
+            as.init( info );
+        }
+        if ( s != null ) {
+            if ( s.getEntityType() == null ) {
+                throw new UndefinedServiceEntityTypeException();
             }
-            return s;
         }
+        return s;
+    }
 
-        return null;
+
+    /** Drop the service instances of this application, I.E. after its collections changed */
+    public void invalidateServices() {
+        if ( smf != null ) {
+            smf.invalidateServices( applicationId );
+        }
     }
 
 
@@ -20,6 +20,7 @@ package org.apache.usergrid.services;
 import java.util.List;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
@@ -31,9 +32,16 @@ import org.apache.usergrid.mq.QueueManagerFactory;
 import org.apache.usergrid.persistence.EntityManager;
 import org.apache.usergrid.persistence.EntityManagerFactory;
 
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
 
 public class ServiceManagerFactory implements ApplicationContextAware {
 
+    /** How long an unused service instance is kept, in milliseconds */
+    public static final long SERVICE_INSTANCE_TTL = 600000;
+
     private ApplicationContext applicationContext;
 
     private EntityManagerFactory emf;
@@ -45,6 +53,14 @@ public class ServiceManagerFactory implements ApplicationContextAware {
     private List<ServiceExecutionEventListener> eventListeners;
     private List<ServiceCollectionEventListener> collectionListeners;
 
+    /**
+     * Service instances by application and service.  Services keep no request state once initialized, so a single
+     * instance serves every request to the application, and dispatching a request creates and initializes nothing
+     */
+    private final Cache<ServiceKey, Service> services =
+            CacheBuilder.newBuilder().maximumSize( 10000 ).expireAfterAccess( SERVICE_INSTANCE_TTL, TimeUnit.MILLISECONDS )
+                        .build();
+
 
     public ServiceManagerFactory( EntityManagerFactory emf, Properties properties, SchedulerService schedulerService,
                                   LockManager lockManager, QueueManagerFactory qmf ) {
@@ -71,6 +87,43 @@ public class ServiceManagerFactory implements ApplicationContextAware {
     }
 
 
+    /** Get the instance of the service class for the application, creating it with the service manager if needed */
+    Service getServiceInstance( ServiceManager sm, UUID applicationId, Class<Service> cls, ServiceInfo info ) {
+        ServiceKey key = new ServiceKey( applicationId, info );
+
+        Service service = services.getIfPresent( key );
+
+        if ( service != null ) {
+            return service;
+        }
+
+        // two requests may both create the service, either instance will do
+        service = sm.newServiceInstance( cls, info );
+
+        if ( service != null ) {
+            services.put( key, service );
+        }
+
+        return service;
+    }
+
+
+    /** Drop the service instances of the application */
+    public void invalidateServices( UUID applicationId ) {
+        for ( ServiceKey key : services.asMap().keySet() ) {
+            if ( Objects.equal( applicationId, key.applicationId ) ) {
+                services.invalidate( key );
+            }
+        }
+    }
+
+
+    /** Drop every service instance */
+    public void invalidateServices() {
+        services.invalidateAll();
+    }
+
+
     public List<ServiceExecutionEventListener> getExecutionEventListeners() {
         return eventListeners;
     }
@@ -129,4 +182,35 @@ public class ServiceManagerFactory implements ApplicationContextAware {
     public LockManager getLockManager() {
         return lockManager;
     }
+
+
+    private static final class ServiceKey {
+
+        private final UUID applicationId;
+        private final ServiceInfo info;
+
+
+        private ServiceKey( UUID applicationId, ServiceInfo info ) {
+            this.applicationId = applicationId;
+            this.info = info;
+        }
+
+
+        @Override
+        public boolean equals( Object obj ) {
+            if ( !( obj instanceof ServiceKey ) ) {
+                return false;
+            }
+
+            ServiceKey other = ( ServiceKey ) obj;
+
+            return Objects.equal( applicationId, other.applicationId ) && info.equals( other.info );
+        }
+
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode( applicationId, info );
+        }
+    }
 }
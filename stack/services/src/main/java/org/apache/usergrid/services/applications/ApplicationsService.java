@@ -148,6 +148,9 @@ public class ApplicationsService extends AbstractService {
                     em.createApplicationCollection( collection );
                     logger.info( "Created collection " + collection + " for application " + sm.getApplicationId() );
                 }
+
+                // the collections of the application changed, drop its cached services
+                sm.invalidateServices();
             }
         }
 
@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.services.assets.data;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.jclouds.aws.s3.AWSS3Client;
+import org.jclouds.blobstore.BlobStore;
+import org.jclouds.blobstore.BlobStoreContext;
+import org.jclouds.blobstore.domain.Blob;
+import org.jclouds.blobstore.domain.BlobBuilder;
+import org.jclouds.io.Payload;
+import org.jclouds.io.Payloads;
+import org.jclouds.s3.domain.ObjectMetadataBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.ByteSource;
+
+
+/** {@link MultipartClient} on top of the jclouds aws-s3 provider */
+public class JcloudsMultipartClient implements MultipartClient {
+
+    private static final Logger LOG = LoggerFactory.getLogger( JcloudsMultipartClient.class );
+
+    private final BlobStoreContext context;
+    private final String bucketName;
+
+
+    public JcloudsMultipartClient( BlobStoreContext context, String bucketName ) {
+        this.context = context;
+        this.bucketName = bucketName;
+    }
+
+
+    private AWSS3Client getS3Client() {
+        return context.unwrapApi( AWSS3Client.class );
+    }
+
+
+    @Override
+    public String putObject( String key, ByteBuffer data, byte[] md5, String contentType, String contentDisposition )
+            throws IOException {
+
+        BlobStore blobStore = context.getBlobStore();
+        BlobBuilder.PayloadBlobBuilder bb = blobStore.blobBuilder( key ).payload( payload( data, md5 ) )
+                                                     .contentLength( data.remaining() ).contentMD5( md5 )
+                                                     .contentType( contentType );
+
+        if ( contentDisposition != null ) {
+            bb.contentDisposition( contentDisposition );
+        }
+
+        Blob blob = bb.build();
+
+        return blobStore.putBlob( bucketName, blob );
+    }
+
+
+    @Override
+    public String initiate( String key, String contentType, String contentDisposition ) throws IOException {
+        ObjectMetadataBuilder metadata = ObjectMetadataBuilder.create().key( key ).contentType( contentType );
+
+        if ( contentDisposition != null ) {
+            metadata.contentDisposition( contentDisposition );
+        }
+
+        return getS3Client().initiateMultipartUpload( bucketName, metadata.build() );
+    }
+
+
+    @Override
+    public String uploadPart( String key, String uploadId, int partNumber, ByteBuffer data, byte[] md5 )
+            throws IOException {
+        return getS3Client().uploadPart( bucketName, key, partNumber, uploadId, payload( data, md5 ) );
+    }
+
+
+    @Override
+    public String complete( String key, String uploadId, Map<Integer, String> partETags ) throws IOException {
+        return getS3Client().completeMultipartUpload( bucketName, key, uploadId, partETags );
+    }
+
+
+    @Override
+    public void abort( String key, String uploadId ) {
+        try {
+            getS3Client().abortMultipartUpload( bucketName, key, uploadId );
+        }
+        catch ( RuntimeException e ) {
+            LOG.error( "Unable to abort multipart upload {} for {}", new Object[] { uploadId, key, e } );
+        }
+    }
+
+
+    /** A repeatable payload over the remaining bytes of the buffer, so the http layer can retry without a copy */
+    private static Payload payload( ByteBuffer data, byte[] md5 ) {
+        Payload payload = Payloads.newByteSourcePayload( new ByteBufferByteSource( data.duplicate() ) );
+        payload.getContentMetadata().setContentLength( ( long ) data.remaining() );
+        payload.getContentMetadata().setContentMD5( md5 );
+        return payload;
+    }
+
+
+    private static class ByteBufferByteSource extends ByteSource {
+
+        private final ByteBuffer data;
+
+
+        private ByteBufferByteSource( ByteBuffer data ) {
+            this.data = data;
+        }
+
+
+        @Override
+        public InputStream openStream() {
+            return new ByteBufferInputStream( data.duplicate() );
+        }
+
+
+        @Override
+        public long size() {
+            return data.remaining();
+        }
+    }
+
+
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer data;
+
+
+        private ByteBufferInputStream( ByteBuffer data ) {
+            this.data = data;
+        }
+
+
+        @Override
+        public int read() {
+            return data.hasRemaining() ? data.get() & 0xff : -1;
+        }
+
+
+        @Override
+        public int read( byte[] b, int off, int len ) {
+            if ( len == 0 ) {
+                return 0;
+            }
+            if ( !data.hasRemaining() ) {
+                return -1;
+            }
+
+            int count = Math.min( len, data.remaining() );
+            data.get( b, off, count );
+            return count;
+        }
+
+
+        @Override
+        public int available() {
+            return data.remaining();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.services.assets.data;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+
+/**
+ * The small set of S3 object operations used by {@link StreamingMultipartUploader}. Kept separate from any client
+ * library so uploads can be exercised against a local stand-in.
+ */
+public interface MultipartClient {
+
+    /**
+     * Store an object in a single request.
+     *
+     * @param data the remaining bytes of the buffer are the object content. Implementations must not modify the
+     * buffer position.
+     * @param md5 the MD5 digest of the content, sent so the store can verify what it received
+     *
+     * @return the eTag of the stored object
+     */
+    String putObject( String key, ByteBuffer data, byte[] md5, String contentType, String contentDisposition )
+            throws IOException;
+
+    /** Start a multipart upload and return its upload id */
+    String initiate( String key, String contentType, String contentDisposition ) throws IOException;
+
+    /**
+     * Upload a single part of a multipart upload.
+     *
+     * @param data the remaining bytes of the buffer are the part content. Implementations must not modify the buffer
+     * position.
+     *
+     * @return the eTag of the part
+     */
+    String uploadPart( String key, String uploadId, int partNumber, ByteBuffer data, byte[] md5 ) throws IOException;
+
+    /**
+     * Complete a multipart upload.
+     *
+     * @param partETags the eTag of each part keyed by part number
+     *
+     * @return the eTag of the assembled object
+     */
+    String complete( String key, String uploadId, Map<Integer, String> partETags ) throws IOException;
+
+    /** Abort a multipart upload, discarding any parts already stored */
+    void abort( String key, String uploadId );
+}
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.services.assets.data;
+
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+
+/**
+ * A fixed size pool of part buffers shared by all uploads of a binary store. Buffers are allocated lazily up to the
+ * pool size and reused afterwards, so the memory held for uploads on a node never exceeds size * partSize no matter how
+ * many uploads run concurrently. Callers block in {@link #acquire()} while every buffer is in use.
+ */
+public class PartBufferPool {
+
+    private final int partSize;
+    private final boolean direct;
+    private final Semaphore available;
+    private final LinkedBlockingQueue<ByteBuffer> free = new LinkedBlockingQueue<ByteBuffer>();
+
+
+    /**
+     * @param size the maximum number of buffers
+     * @param partSize the capacity of each buffer in bytes
+     * @param direct true to allocate buffers off heap
+     */
+    public PartBufferPool( int size, int partSize, boolean direct ) {
+        if ( size < 1 ) {
+            throw new IllegalArgumentException( "size must be at least 1" );
+        }
+        if ( partSize < 1 ) {
+            throw new IllegalArgumentException( "partSize must be at least 1" );
+        }
+
+        this.partSize = partSize;
+        this.direct = direct;
+        this.available = new Semaphore( size, true );
+    }
+
+
+    /** Take a cleared buffer from the pool, waiting until one is returned if all are in use */
+    public ByteBuffer acquire() throws InterruptedException {
+        available.acquire();
+
+        ByteBuffer buffer = free.poll();
+
+        if ( buffer == null ) {
+            buffer = direct ? ByteBuffer.allocateDirect( partSize ) : ByteBuffer.allocate( partSize );
+        }
+
+        buffer.clear();
+
+        return buffer;
+    }
+
+
+    /** Return a buffer obtained from {@link #acquire()} */
+    public void release( ByteBuffer buffer ) {
+        free.offer( buffer );
+        available.release();
+    }
+
+
+    public int getPartSize() {
+        return partSize;
+    }
+
+
+    /** Number of buffers that have been allocated and are currently idle */
+    public int getIdleCount() {
+        return free.size();
+    }
+}
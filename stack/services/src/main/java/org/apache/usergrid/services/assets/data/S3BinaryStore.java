@@ -17,28 +17,21 @@
 package org.apache.usergrid.services.assets.data;
 
 
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Stack;
 import java.util.UUID;
 import java.util.concurrent.*;
 
 import org.apache.usergrid.utils.StringUtils;
 import org.jclouds.ContextBuilder;
-import org.jclouds.blobstore.AsyncBlobStore;
 import org.jclouds.blobstore.BlobStore;
 import org.jclouds.blobstore.BlobStoreContext;
 import org.jclouds.blobstore.domain.Blob;
-import org.jclouds.blobstore.domain.BlobBuilder;
 import org.jclouds.blobstore.options.GetOptions;
-import org.jclouds.blobstore.options.PutOptions;
 import org.jclouds.http.config.JavaUrlHttpCommandExecutorServiceModule;
 import org.jclouds.logging.log4j.config.Log4JLoggingModule;
 import org.jclouds.netty.config.NettyPayloadModule;
@@ -46,15 +39,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.apache.usergrid.persistence.Entity;
-import org.apache.usergrid.persistence.EntityManager;
-import org.apache.usergrid.persistence.EntityManagerFactory;
 
-import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 
 import com.google.common.collect.ImmutableSet;
-import com.google.common.util.concurrent.ListenableFuture;
 import com.google.inject.Module;
 
 
@@ -65,20 +54,24 @@ public class S3BinaryStore implements BinaryStore {
 
     private static final Logger LOG = LoggerFactory.getLogger( S3BinaryStore.class );
     private static final long FIVE_MB = ( FileUtils.ONE_MB * 5 );
-    private static String WORKERS_PROP_NAME = "usergrid.binary.upload-workers";
+    private static final int MIME_DETECT_BYTES = 8 * 1024;
+    private static final String WORKERS_PROP_NAME = "usergrid.binary.upload-workers";
+    private static final String MAX_SIZE_PROP_NAME = "usergrid.binary.max-size-mb";
+    private static final String PART_SIZE_PROP_NAME = "usergrid.binary.part-size-mb";
+    private static final String PART_BUFFERS_PROP_NAME = "usergrid.binary.part-buffers";
+    private static final String PARTS_IN_FLIGHT_PROP_NAME = "usergrid.binary.parts-in-flight";
+    private static final String DIRECT_BUFFERS_PROP_NAME = "usergrid.binary.direct-buffers";
 
     private BlobStoreContext context;
     private String accessId;
     private String secretKey;
     private String bucketName;
     private ExecutorService executorService;
+    private StreamingMultipartUploader uploader;
 
     @Autowired
     private Properties properties;
 
-    @Autowired
-    private EntityManagerFactory emf;
-
 
     public S3BinaryStore( String accessId, String secretKey, String bucketName ) {
         this.accessId = accessId;
@@ -87,7 +80,7 @@ public class S3BinaryStore implements BinaryStore {
     }
 
 
-    private BlobStoreContext getContext() {
+    private synchronized BlobStoreContext getContext() {
         if ( context == null ) {
             context = ContextBuilder.newBuilder( "aws-s3" ).credentials( accessId, secretKey ).modules( MODULES )
                                     .buildView( BlobStoreContext.class );
@@ -104,66 +97,110 @@ public class S3BinaryStore implements BinaryStore {
         if ( context != null ) {
             context.close();
         }
+        if ( executorService != null ) {
+            executorService.shutdown();
+        }
     }
 
 
     @Override
     public void write( final UUID appId, final Entity entity, InputStream inputStream ) throws IOException {
 
-        // write up to 5mb of data to an byte array
+        // peek at the start of the stream to detect the mime type, without buffering the whole upload
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        long written = IOUtils.copyLarge( inputStream, baos, 0, FIVE_MB );
-        byte[] data = baos.toByteArray();
+        PushbackInputStream pushbackInputStream = new PushbackInputStream( inputStream, MIME_DETECT_BYTES );
+        byte[] header = new byte[MIME_DETECT_BYTES];
+        int headerLength = IOUtils.read( pushbackInputStream, header );
+        pushbackInputStream.unread( header, 0, headerLength );
 
-        if ( written < FIVE_MB ) { // total smaller than 5mb
+        final String uploadFileName = AssetUtils.buildAssetKey( appId, entity );
+        final String mimeType = AssetMimeHandler.get().getMimeType( entity, Arrays.copyOf( header, headerLength ) );
 
-            final String uploadFileName = AssetUtils.buildAssetKey( appId, entity );
-            final String mimeType = AssetMimeHandler.get().getMimeType( entity, data );
+        final Map<String, Object> fileMetadata = AssetUtils.getFileMetadata( entity );
+
+        String contentDisposition = null;
+        if ( fileMetadata.get( AssetUtils.CONTENT_DISPOSITION ) != null ) {
+            contentDisposition = fileMetadata.get( AssetUtils.CONTENT_DISPOSITION ).toString();
+        }
 
-            final Map<String, Object> fileMetadata = AssetUtils.getFileMetadata( entity );
-            fileMetadata.put( AssetUtils.LAST_MODIFIED, System.currentTimeMillis() );
+        long maxSizeBytes = getMaxSizeBytes();
 
-            BlobStore blobStore = getContext().getBlobStore();
-            BlobBuilder.PayloadBlobBuilder bb = blobStore.blobBuilder( uploadFileName )
-                    .payload( data ).calculateMD5().contentType( mimeType );
+        StreamingMultipartUploader.Result result = getUploader()
+                .upload( uploadFileName, pushbackInputStream, mimeType, contentDisposition, maxSizeBytes );
+
+        if ( result.isTooLarge() ) {
+            LOG.debug( "File too large. Size (bytes) > {}, Max file size (bytes) = {} ", result.getContentLength(),
+                    maxSizeBytes );
+            fileMetadata.put( "error", "Asset size is larger than max size of " + maxSizeBytes );
+            return;
+        }
+
+        fileMetadata.remove( "error" );
+        fileMetadata.put( AssetUtils.CHECKSUM, result.getChecksum() );
+        fileMetadata.put( AssetUtils.E_TAG, result.getETag() );
+        fileMetadata.put( AssetUtils.LAST_MODIFIED, System.currentTimeMillis() );
+        fileMetadata.put( AssetUtils.CONTENT_LENGTH, result.getContentLength() );
+    }
 
-            fileMetadata.put( AssetUtils.CONTENT_LENGTH, written );
-            if ( fileMetadata.get( AssetUtils.CONTENT_DISPOSITION ) != null ) {
-                bb.contentDisposition( fileMetadata.get( AssetUtils.CONTENT_DISPOSITION ).toString() );
+
+    private synchronized StreamingMultipartUploader getUploader() {
+
+        if ( uploader == null ) {
+
+            int partSizeMb = getIntProperty( PART_SIZE_PROP_NAME, 5 );
+
+            // S3 rejects multipart uploads with parts smaller than 5mb
+            if ( partSizeMb < 5 ) {
+                partSizeMb = 5;
             }
-            final Blob blob = bb.build();
 
-            String md5sum = Hex.encodeHexString( blob.getMetadata().getContentMetadata().getContentMD5() );
-            fileMetadata.put( AssetUtils.CHECKSUM, md5sum );
+            int partBuffers = getIntProperty( PART_BUFFERS_PROP_NAME, 16 );
+            int partsInFlight = getIntProperty( PARTS_IN_FLIGHT_PROP_NAME, 4 );
+            boolean direct = Boolean.parseBoolean( properties.getProperty( DIRECT_BUFFERS_PROP_NAME, "false" ) );
 
-            String eTag = blobStore.putBlob( bucketName, blob );
-            fileMetadata.put( AssetUtils.E_TAG, eTag );
+            PartBufferPool bufferPool =
+                    new PartBufferPool( partBuffers, ( int ) ( partSizeMb * FileUtils.ONE_MB ), direct );
+
+            uploader = new StreamingMultipartUploader( new JcloudsMultipartClient( getContext(), bucketName ),
+                    bufferPool, getExecutorService(), partsInFlight );
         }
-        else { // bigger than 5mb... dump 5 mb tmp files and upload from them
 
-            ExecutorService executors = getExecutorService();
+        return uploader;
+    }
+
+
+    private long getMaxSizeBytes() {
 
-            executors.submit( new UploadWorker( appId, entity, inputStream, data, written ) );
+        // determine max size file allowed, default to 50mb
+        long maxSizeBytes = getIntProperty( MAX_SIZE_PROP_NAME, 50 ) * FileUtils.ONE_MB;
+
+        // always allow files up to 5mb
+        if ( maxSizeBytes < FIVE_MB ) {
+            maxSizeBytes = FIVE_MB;
         }
+
+        return maxSizeBytes;
     }
 
 
-    private ExecutorService getExecutorService() {
+    private int getIntProperty( String name, int defaultValue ) {
+        String value = properties.getProperty( name, String.valueOf( defaultValue ) );
 
-        if ( executorService == null ) {
-            synchronized (this) {
+        if ( StringUtils.isNumeric( value ) ) {
+            return Integer.parseInt( value );
+        }
+        else if ( !StringUtils.isEmpty( value ) ) {
+            LOG.error( "Ignoring invalid setting for {}", name );
+        }
+
+        return defaultValue;
+    }
 
-                int workers = 40;
-                String workersString = properties.getProperty( WORKERS_PROP_NAME, "40");
 
-                if ( StringUtils.isNumeric( workersString ) ) {
-                    workers = Integer.parseInt( workersString );
-                } else if ( !StringUtils.isEmpty( workersString )) {
-                    LOG.error("Ignoring invalid setting for {}", WORKERS_PROP_NAME);
-                }
-                executorService = Executors.newFixedThreadPool( workers );
-            }
+    private synchronized ExecutorService getExecutorService() {
+
+        if ( executorService == null ) {
+            executorService = Executors.newFixedThreadPool( getIntProperty( WORKERS_PROP_NAME, 40 ) );
         }
 
         return executorService;
@@ -199,124 +236,4 @@ public class S3BinaryStore implements BinaryStore {
         BlobStore blobStore = getContext().getBlobStore();
         blobStore.removeBlob( bucketName, AssetUtils.buildAssetKey( appId, entity ) );
     }
-
-    class UploadWorker implements Callable<Void> {
-
-        private UUID appId;
-        private Entity entity;
-        private InputStream inputStream;
-        private byte[] data;
-        private long written;
-
-
-        public UploadWorker( UUID appId, Entity entity, InputStream is, byte[] data, long written ) {
-            this.appId = appId;
-            this.entity = entity;
-            this.inputStream = is;
-            this.data = data;
-            this.written = written;
-        }
-
-        @Override
-        public Void call() {
-
-            LOG.debug( "Writing temp file for S3 upload" );
-
-            // determine max size file allowed, default to 50mb
-            long maxSizeBytes = 50 * FileUtils.ONE_MB;
-            String maxSizeMbString = properties.getProperty( "usergrid.binary.max-size-mb", "50" );
-            if (StringUtils.isNumeric( maxSizeMbString )) {
-                maxSizeBytes = Long.parseLong( maxSizeMbString ) * FileUtils.ONE_MB;
-            }
-
-            // always allow files up to 5mb
-            if (maxSizeBytes < 5 * FileUtils.ONE_MB ) {
-                maxSizeBytes = 5 * FileUtils.ONE_MB;
-            }
-
-            // write temporary file, slightly larger than our size limit
-            OutputStream os = null;
-            File tempFile;
-            try {
-                tempFile = File.createTempFile( entity.getUuid().toString(), "tmp" );
-                tempFile.deleteOnExit();
-                os = new BufferedOutputStream( new FileOutputStream( tempFile.getAbsolutePath() ) );
-                os.write( data );
-                written += IOUtils.copyLarge( inputStream, os, 0, maxSizeBytes + 1 );
-
-            } catch ( IOException e ) {
-                throw new RuntimeException( "Error creating temp file", e );
-
-            } finally {
-                if ( os != null ) {
-                    IOUtils.closeQuietly( os );
-                }
-            }
-
-            // if tempFile is too large, delete it, add error to entity file metadata and abort
-
-            Map<String, Object> fileMetadata = AssetUtils.getFileMetadata( entity );
-
-            if ( tempFile.length() > maxSizeBytes ) {
-                LOG.debug("File too large. Temp file size (bytes) = {}, " +
-                        "Max file size (bytes) = {} ", tempFile.length(), maxSizeBytes);
-                try {
-                    EntityManager em = emf.getEntityManager( appId );
-                    fileMetadata.put( "error", "Asset size " + tempFile.length()
-                                    + " is larger than max size of " + maxSizeBytes );
-                    em.update( entity );
-                    tempFile.delete();
-
-                } catch ( Exception e ) {
-                    LOG.error( "Error updating entity with error message", e);
-                }
-                return null;
-            }
-
-            String uploadFileName = AssetUtils.buildAssetKey( appId, entity );
-            String mimeType = AssetMimeHandler.get().getMimeType( entity, data );
-
-            try {  // start the upload
-
-                LOG.debug( "S3 upload thread started" );
-
-                BlobStore blobStore = getContext().getBlobStore();
-
-                BlobBuilder.PayloadBlobBuilder bb =  blobStore.blobBuilder( uploadFileName )
-                        .payload( tempFile ).calculateMD5().contentType( mimeType );
-
-                if ( fileMetadata.get( AssetUtils.CONTENT_DISPOSITION ) != null ) {
-                    bb.contentDisposition( fileMetadata.get( AssetUtils.CONTENT_DISPOSITION ).toString() );
-                }
-                final Blob blob = bb.build();
-
-                String md5sum = Hex.encodeHexString( blob.getMetadata().getContentMetadata().getContentMD5() );
-                fileMetadata.put( AssetUtils.CHECKSUM, md5sum );
-
-                LOG.debug( "S3 upload starting" );
-
-                String eTag = blobStore.putBlob( bucketName, blob );
-
-                LOG.debug( "S3 upload complete eTag=" + eTag);
-
-                // update entity with information about uploaded asset
-
-                EntityManager em = emf.getEntityManager( appId );
-                fileMetadata.put( AssetUtils.E_TAG, eTag );
-                fileMetadata.put( AssetUtils.LAST_MODIFIED, System.currentTimeMillis() );
-                fileMetadata.put( AssetUtils.CONTENT_LENGTH, written );
-                em.update( entity );
-            }
-            catch ( Exception e ) {
-                LOG.error( "error uploading", e );
-            }
-
-            if ( tempFile != null && tempFile.exists() ) {
-                tempFile.delete();
-            }
-
-            return null;
-        }
-    }
 }
-
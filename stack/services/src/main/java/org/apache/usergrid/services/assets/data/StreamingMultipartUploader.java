@@ -0,0 +1,433 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.services.assets.data;
+
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.apache.commons.codec.binary.Hex;
+
+
+/**
+ * Streams an input stream to S3 without staging it in memory or on disk. The stream is read one part at a time into
+ * buffers from a shared {@link PartBufferPool}, and each full part is handed to the executor for upload while the next
+ * one is read. A stream that ends within the first part is stored with a single put.
+ * <p/>
+ * Every part is sent with its MD5 and the eTag returned for it is compared with that digest, so a part corrupted in
+ * transit fails the upload. Any failure aborts the multipart upload so no orphaned parts are left behind.
+ */
+public class StreamingMultipartUploader {
+
+    private static final Logger LOG = LoggerFactory.getLogger( StreamingMultipartUploader.class );
+
+    private static final int READ_CHUNK = 64 * 1024;
+
+    private final MultipartClient client;
+    private final PartBufferPool bufferPool;
+    private final ExecutorService executor;
+    private final int maxPartsInFlight;
+
+
+    /**
+     * @param client the store to upload to
+     * @param bufferPool the pool part buffers are taken from, its part size is the multipart part size
+     * @param executor the executor parts are uploaded on
+     * @param maxPartsInFlight the maximum number of parts of a single upload being read or sent at once
+     */
+    public StreamingMultipartUploader( MultipartClient client, PartBufferPool bufferPool, ExecutorService executor,
+                                       int maxPartsInFlight ) {
+        if ( maxPartsInFlight < 1 ) {
+            throw new IllegalArgumentException( "maxPartsInFlight must be at least 1" );
+        }
+
+        this.client = client;
+        this.bufferPool = bufferPool;
+        this.executor = executor;
+        this.maxPartsInFlight = maxPartsInFlight;
+    }
+
+
+    /**
+     * Upload the stream under the given key.
+     *
+     * @param maxSizeBytes uploads larger than this are aborted and reported with {@link Result#isTooLarge()}
+     */
+    public Result upload( String key, InputStream inputStream, String contentType, String contentDisposition,
+                          long maxSizeBytes ) throws IOException {
+
+        MessageDigest objectDigest = md5();
+
+        ByteBuffer first = acquire();
+        long written;
+        String uploadId;
+
+        boolean multipart = false;
+
+        try {
+            written = fill( inputStream, first, maxSizeBytes );
+
+            if ( written > maxSizeBytes ) {
+                LOG.debug( "Upload of {} exceeded max size of {} bytes, aborting", key, maxSizeBytes );
+                return new Result( null, null, written, true );
+            }
+
+            if ( first.hasRemaining() ) {
+                // the whole stream fit in one part, no need for a multipart upload
+                first.flip();
+                objectDigest.update( first.duplicate() );
+                byte[] md5 = objectDigest.digest();
+
+                String eTag = client.putObject( key, first, md5, contentType, contentDisposition );
+
+                return new Result( unquote( eTag ), Hex.encodeHexString( md5 ), written, false );
+            }
+
+            uploadId = client.initiate( key, contentType, contentDisposition );
+            multipart = true;
+        }
+        finally {
+            // once the upload is started the first buffer is released by its part upload
+            if ( !multipart ) {
+                bufferPool.release( first );
+            }
+        }
+
+        LOG.debug( "Started multipart upload {} for {}", uploadId, key );
+
+        // the first part is already read, so it holds one of the permits
+        Semaphore inFlight = new Semaphore( maxPartsInFlight - 1 );
+        List<Future<PartResult>> parts = new ArrayList<Future<PartResult>>();
+
+        boolean completed = false;
+
+        try {
+            ByteBuffer buffer = first;
+            int partNumber = 1;
+
+            while ( buffer != null ) {
+                buffer.flip();
+
+                if ( !buffer.hasRemaining() ) {
+                    // the stream ended exactly on a part boundary
+                    release( buffer, inFlight );
+                    break;
+                }
+
+                objectDigest.update( buffer.duplicate() );
+
+                try {
+                    parts.add( executor.submit( new PartUpload( key, uploadId, partNumber, buffer, inFlight ) ) );
+                }
+                catch ( RejectedExecutionException e ) {
+                    release( buffer, inFlight );
+                    throw new IOException( "Unable to schedule part " + partNumber + " of " + key, e );
+                }
+                partNumber++;
+
+                if ( buffer.limit() < buffer.capacity() ) {
+                    break;
+                }
+
+                checkFailed( parts );
+
+                inFlight.acquire();
+                buffer = acquire( inFlight );
+
+                try {
+                    written += fill( inputStream, buffer, maxSizeBytes - written );
+                }
+                catch ( IOException e ) {
+                    release( buffer, inFlight );
+                    throw e;
+                }
+
+                if ( written > maxSizeBytes ) {
+                    release( buffer, inFlight );
+
+                    LOG.debug( "Upload of {} exceeded max size of {} bytes, aborting", key, maxSizeBytes );
+
+                    waitQuietly( parts );
+                    return new Result( null, null, written, true );
+                }
+            }
+
+            Map<Integer, String> eTags = new TreeMap<Integer, String>();
+
+            for ( Future<PartResult> part : parts ) {
+                PartResult result = get( part );
+                eTags.put( result.partNumber, result.eTag );
+            }
+
+            String eTag = client.complete( key, uploadId, eTags );
+            completed = true;
+
+            LOG.debug( "Completed multipart upload {} for {} in {} parts", new Object[] { uploadId, key, eTags.size() } );
+
+            return new Result( unquote( eTag ), Hex.encodeHexString( objectDigest.digest() ), written, false );
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while uploading " + key, e );
+        }
+        finally {
+            if ( !completed ) {
+                // parts are never cancelled since each one returns its buffer to the pool when it finishes
+                waitQuietly( parts );
+                client.abort( key, uploadId );
+            }
+        }
+    }
+
+
+    /** Read from the stream until the buffer is full or the stream ends, returning the number of bytes read */
+    static int fill( InputStream inputStream, ByteBuffer buffer ) throws IOException {
+        return fill( inputStream, buffer, Long.MAX_VALUE );
+    }
+
+
+    /**
+     * Read from the stream until the buffer is full, the stream ends or more than <code>limit</code> bytes were read,
+     * returning the number of bytes read. The limit is checked after every read so an oversized stream is detected
+     * without filling the rest of the part.
+     */
+    static int fill( InputStream inputStream, ByteBuffer buffer, long limit ) throws IOException {
+        int total = 0;
+
+        if ( buffer.hasArray() ) {
+            byte[] array = buffer.array();
+
+            while ( buffer.hasRemaining() && total <= limit ) {
+                int read = inputStream.read( array, buffer.arrayOffset() + buffer.position(), buffer.remaining() );
+                if ( read < 0 ) {
+                    break;
+                }
+                buffer.position( buffer.position() + read );
+                total += read;
+            }
+
+            return total;
+        }
+
+        byte[] chunk = new byte[Math.min( READ_CHUNK, buffer.remaining() )];
+
+        while ( buffer.hasRemaining() && total <= limit ) {
+            int read = inputStream.read( chunk, 0, Math.min( chunk.length, buffer.remaining() ) );
+            if ( read < 0 ) {
+                break;
+            }
+            buffer.put( chunk, 0, read );
+            total += read;
+        }
+
+        return total;
+    }
+
+
+    private ByteBuffer acquire() throws IOException {
+        try {
+            return bufferPool.acquire();
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new IOException( "Interrupted while waiting for an upload buffer", e );
+        }
+    }
+
+
+    private ByteBuffer acquire( Semaphore inFlight ) throws IOException {
+        try {
+            return acquire();
+        }
+        catch ( IOException e ) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+
+    private void release( ByteBuffer buffer, Semaphore inFlight ) {
+        bufferPool.release( buffer );
+        inFlight.release();
+    }
+
+
+    /** Fail fast if a part already finished with an error instead of reading the rest of the stream */
+    private static void checkFailed( List<Future<PartResult>> parts ) throws IOException, InterruptedException {
+        for ( Future<PartResult> part : parts ) {
+            if ( part.isDone() ) {
+                get( part );
+            }
+        }
+    }
+
+
+    private static PartResult get( Future<PartResult> part ) throws IOException, InterruptedException {
+        try {
+            return part.get();
+        }
+        catch ( ExecutionException e ) {
+            Throwable cause = e.getCause();
+            if ( cause instanceof IOException ) {
+                throw ( IOException ) cause;
+            }
+            throw new IOException( "Unable to upload part", cause );
+        }
+    }
+
+
+    /** Wait for submitted parts to finish so their buffers are back in the pool before aborting */
+    private static void waitQuietly( List<Future<PartResult>> parts ) {
+        for ( Future<PartResult> part : parts ) {
+            try {
+                part.get();
+            }
+            catch ( Exception e ) {
+                LOG.debug( "Ignoring part failure while aborting upload", e );
+            }
+        }
+    }
+
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance( "MD5" );
+        }
+        catch ( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException( "MD5 is not supported", e );
+        }
+    }
+
+
+    private static String unquote( String eTag ) {
+        if ( eTag != null && eTag.length() > 1 && eTag.startsWith( "\"" ) && eTag.endsWith( "\"" ) ) {
+            return eTag.substring( 1, eTag.length() - 1 );
+        }
+        return eTag;
+    }
+
+
+    private class PartUpload implements Callable<PartResult> {
+
+        private final String key;
+        private final String uploadId;
+        private final int partNumber;
+        private final ByteBuffer buffer;
+        private final Semaphore inFlight;
+
+
+        private PartUpload( String key, String uploadId, int partNumber, ByteBuffer buffer, Semaphore inFlight ) {
+            this.key = key;
+            this.uploadId = uploadId;
+            this.partNumber = partNumber;
+            this.buffer = buffer;
+            this.inFlight = inFlight;
+        }
+
+
+        @Override
+        public PartResult call() throws Exception {
+            try {
+                MessageDigest digest = md5();
+                digest.update( buffer.duplicate() );
+                byte[] md5 = digest.digest();
+
+                String eTag = unquote( client.uploadPart( key, uploadId, partNumber, buffer, md5 ) );
+                String expected = Hex.encodeHexString( md5 );
+
+                if ( eTag == null || !eTag.equalsIgnoreCase( expected ) ) {
+                    throw new IOException(
+                            "Checksum mismatch for part " + partNumber + " of " + key + ", expected " + expected
+                                    + " but the store returned " + eTag );
+                }
+
+                return new PartResult( partNumber, eTag );
+            }
+            finally {
+                release( buffer, inFlight );
+            }
+        }
+    }
+
+
+    private static class PartResult {
+        private final int partNumber;
+        private final String eTag;
+
+
+        private PartResult( int partNumber, String eTag ) {
+            this.partNumber = partNumber;
+            this.eTag = eTag;
+        }
+    }
+
+
+    /** The outcome of an upload */
+    public static class Result {
+        private final String eTag;
+        private final String checksum;
+        private final long contentLength;
+        private final boolean tooLarge;
+
+
+        Result( String eTag, String checksum, long contentLength, boolean tooLarge ) {
+            this.eTag = eTag;
+            this.checksum = checksum;
+            this.contentLength = contentLength;
+            this.tooLarge = tooLarge;
+        }
+
+
+        public String getETag() {
+            return eTag;
+        }
+
+
+        /** Hex encoded MD5 of the full content */
+        public String getChecksum() {
+            return checksum;
+        }
+
+
+        /** The number of bytes read from the stream */
+        public long getContentLength() {
+            return contentLength;
+        }
+
+
+        /** True if the stream exceeded the max size and the upload was aborted */
+        public boolean isTooLarge() {
+            return tooLarge;
+        }
+    }
+}
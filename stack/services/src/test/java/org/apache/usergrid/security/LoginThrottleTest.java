@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.security;
+
+
+import org.junit.Test;
+
+import org.apache.usergrid.management.exceptions.TooManyLoginAttemptsException;
+
+import static org.junit.Assert.fail;
+
+
+public class LoginThrottleTest {
+
+    @Test
+    public void refusesAfterMaxAttempts() throws Exception {
+        LoginThrottle throttle = new LoginThrottle( 3, 60000 );
+
+        for ( int i = 0; i < 3; i++ ) {
+            throttle.check( "user" );
+            throttle.failed( "user" );
+        }
+
+        assertRefused( throttle, "user" );
+
+        //other users aren't affected
+        throttle.check( "other" );
+    }
+
+
+    @Test
+    public void successResets() throws Exception {
+        LoginThrottle throttle = new LoginThrottle( 3, 60000 );
+
+        throttle.failed( "user" );
+        throttle.failed( "user" );
+        throttle.succeeded( "user" );
+        throttle.failed( "user" );
+        throttle.failed( "user" );
+
+        throttle.check( "user" );
+    }
+
+
+    @Test
+    public void windowExpires() throws Exception {
+        LoginThrottle throttle = new LoginThrottle( 1, 10 );
+
+        throttle.failed( "user" );
+
+        assertRefused( throttle, "user" );
+
+        Thread.sleep( 50 );
+
+        throttle.check( "user" );
+    }
+
+
+    @Test
+    public void disabled() throws Exception {
+        LoginThrottle throttle = new LoginThrottle( 0, 60000 );
+
+        for ( int i = 0; i < 100; i++ ) {
+            throttle.failed( "user" );
+        }
+
+        throttle.check( "user" );
+    }
+
+
+    private static void assertRefused( LoginThrottle throttle, String key ) {
+        try {
+            throttle.check( key );
+            fail( "The login should have been refused" );
+        }
+        catch ( TooManyLoginAttemptsException e ) {
+            //expected
+        }
+    }
+}
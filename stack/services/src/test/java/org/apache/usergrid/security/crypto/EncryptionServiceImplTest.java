@@ -20,14 +20,18 @@ package org.apache.usergrid.security.crypto;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.Test;
 import org.apache.usergrid.persistence.CredentialsInfo;
+import org.apache.usergrid.security.crypto.command.BcryptCommand;
 import org.apache.usergrid.security.crypto.command.EncryptionCommand;
 import org.apache.usergrid.security.crypto.command.Md5HashCommand;
 import org.apache.usergrid.security.crypto.command.Sha1HashCommand;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 
 /** @author tnine */
@@ -168,4 +172,117 @@ public class EncryptionServiceImplTest {
 
         assertTrue( "Legacy password verified", result );
     }
+
+
+    /** Hashes are rejected right away once the maximum number of hashes is running */
+    @Test
+    public void saturatedHashPoolRejects() throws Exception {
+        final CountDownLatch started = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+
+        EncryptionCommand blocking = new EncryptionCommand() {
+
+            @Override
+            public byte[] hash( byte[] input, CredentialsInfo info, UUID userId, UUID applicationId ) {
+                started.countDown();
+
+                try {
+                    release.await();
+                }
+                catch ( InterruptedException e ) {
+                    throw new RuntimeException( e );
+                }
+
+                return input;
+            }
+
+
+            @Override
+            public String getName() {
+                return "blocking";
+            }
+
+
+            @Override
+            public byte[] auth( byte[] input, CredentialsInfo info, UUID userId, UUID applicationId ) {
+                return hash( input, info, userId, applicationId );
+            }
+        };
+
+        List<EncryptionCommand> commands = new ArrayList<EncryptionCommand>();
+        commands.add( blocking );
+
+        final EncryptionServiceImpl service = new EncryptionServiceImpl();
+        service.setCommands( commands );
+        service.setDefaultCommandName( blocking.getName() );
+        service.setMaxConcurrentHashes( 1 );
+        service.init();
+
+        Thread running = hashInBackground( service );
+        started.await();
+
+        try {
+            service.defaultEncryptedCredentials( "secret", null, null );
+            fail( "The hash should have been rejected" );
+        }
+        catch ( HashRejectedException e ) {
+            //expected
+        }
+        finally {
+            release.countDown();
+        }
+
+        running.join();
+
+        CredentialsInfo creds = service.defaultEncryptedCredentials( "secret", null, null );
+
+        assertTrue( service.verify( "secret", creds, null, null ) );
+        assertFalse( service.verify( "wrong", creds, null, null ) );
+    }
+
+
+    /** Credentials are hashed again when the default command hashes with more iterations */
+    @Test
+    public void upgrade() {
+        BcryptCommand bcrypt = new BcryptCommand();
+        bcrypt.setDefaultIterations( 4 );
+
+        List<EncryptionCommand> commands = new ArrayList<EncryptionCommand>();
+        commands.add( bcrypt );
+
+        EncryptionServiceImpl service = new EncryptionServiceImpl();
+        service.setCommands( commands );
+        service.init();
+
+        CredentialsInfo creds = service.defaultEncryptedCredentials( "secret", null, null );
+        String secret = creds.getSecret();
+
+        assertFalse( service.upgrade( "secret", creds, null, null ) );
+
+        bcrypt.setDefaultIterations( 5 );
+
+        //upgrades are off unless enabled
+        assertFalse( service.upgrade( "secret", creds, null, null ) );
+
+        service.setUpgradeOnLogin( true );
+
+        assertTrue( service.upgrade( "secret", creds, null, null ) );
+        assertFalse( secret.equals( creds.getSecret() ) );
+        assertTrue( service.verify( "secret", creds, null, null ) );
+        assertFalse( service.upgrade( "secret", creds, null, null ) );
+    }
+
+
+    private static Thread hashInBackground( final EncryptionService service ) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                service.defaultEncryptedCredentials( "secret", null, null );
+            }
+        };
+
+        thread.start();
+
+        return thread;
+    }
 }
@@ -31,6 +31,9 @@ import com.yammer.metrics.reporting.ConsoleReporter;
 
 import static org.apache.commons.codec.binary.Base64.encodeBase64URLSafeString;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 
 /** @author tnine */
@@ -40,7 +43,7 @@ public class BcryptCommandTest {
     @Test
     public void hashWithNoExistingImpl() throws UnsupportedEncodingException {
 
-        int cryptIterations = 2 ^ 4;
+        int cryptIterations = 4;
 
         BcryptCommand command = new BcryptCommand();
         command.setDefaultIterations( cryptIterations );
@@ -70,7 +73,7 @@ public class BcryptCommandTest {
     @Test(expected = IllegalArgumentException.class)
     public void authNoSecret() throws UnsupportedEncodingException {
 
-        int cryptIterations = 2 ^ 4;
+        int cryptIterations = 4;
 
         BcryptCommand command = new BcryptCommand();
         command.setDefaultIterations( cryptIterations );
@@ -92,7 +95,7 @@ public class BcryptCommandTest {
     @Test(expected = IllegalArgumentException.class)
     public void authInvalidSecret() throws UnsupportedEncodingException {
 
-        int cryptIterations = 2 ^ 4;
+        int cryptIterations = 4;
 
         BcryptCommand command = new BcryptCommand();
         command.setDefaultIterations( cryptIterations );
@@ -121,7 +124,7 @@ public class BcryptCommandTest {
     @Test
     public void testHashRoundSpeed() throws UnsupportedEncodingException {
 
-        int cryptIterations = 2 ^ 11;
+        int cryptIterations = 11;
         int numberOfTests = 10;
 
         BcryptCommand command = new BcryptCommand();
@@ -163,4 +166,45 @@ public class BcryptCommandTest {
 
         reporter.run();
     }
+
+
+    /** Credentials hashed with fewer iterations than the command uses now need an upgrade */
+    @Test
+    public void needsUpgrade() throws UnsupportedEncodingException {
+        BcryptCommand command = new BcryptCommand();
+        command.setDefaultIterations( 4 );
+
+        CredentialsInfo info = new CredentialsInfo();
+        info.setSecret( encodeBase64URLSafeString( command.hash( "password".getBytes( "UTF-8" ), info, null, null ) ) );
+
+        assertEquals( 4, BcryptCommand.getIterations( info ) );
+        assertFalse( command.needsUpgrade( info ) );
+
+        command.setDefaultIterations( 5 );
+
+        assertTrue( command.needsUpgrade( info ) );
+
+        //not a bcrypt hash
+        info.setSecret( "I'm a junk secret that's not bcrypted" );
+
+        assertEquals( -1, BcryptCommand.getIterations( info ) );
+        assertFalse( command.needsUpgrade( info ) );
+    }
+
+
+    /** The iterations are raised with the target latency, but never below the default */
+    @Test
+    public void calibrate() {
+        BcryptCommand command = new BcryptCommand();
+        command.setDefaultIterations( 4 );
+        command.calibrate();
+
+        assertEquals( 4, command.getIterations() );
+
+        command.setTargetLatency( 1000 );
+        command.calibrate();
+
+        assertTrue( command.getIterations() > 4 );
+        assertTrue( command.getIterations() <= BcryptCommand.MAX_ITERATIONS );
+    }
 }
@@ -21,10 +21,12 @@ import org.junit.Assert;
 import org.junit.Test;
 import org.apache.usergrid.cassandra.Concurrent;
 import org.apache.usergrid.persistence.Entity;
+import org.apache.usergrid.persistence.Query;
 import org.apache.usergrid.persistence.Schema;
 import org.apache.usergrid.persistence.exceptions.RequiredPropertyNotFoundException;
 import org.apache.usergrid.persistence.exceptions.UnexpectedEntityTypeException;
 import org.apache.usergrid.persistence.schema.CollectionInfo;
+import org.apache.usergrid.services.exceptions.ServiceInvocationException;
 import org.apache.usergrid.services.exceptions.ServiceResourceNotFoundException;
 
 import static org.junit.Assert.assertEquals;
@@ -288,4 +290,47 @@ public class CollectionServiceIT extends AbstractServiceIT {
             //ok
         }
     }
+
+
+    @Test
+    public void testBulkUpdateRejectsUniqueProperties() throws Exception {
+        app.put( "username", "bulk1" );
+        app.put( "email", "bulk1@usergrid.org" );
+        app.put( "status", "bulk" );
+        app.testRequest( ServiceAction.POST, 1, "users" );
+
+        app.put( "username", "bulk2" );
+        app.put( "email", "bulk2@usergrid.org" );
+        app.put( "status", "bulk" );
+        app.testRequest( ServiceAction.POST, 1, "users" );
+
+        Query query = Query.fromQL( "select * where status = 'bulk'" );
+        query.setBulk( true );
+
+        // every match would get the same username
+        app.put( "username", "bulk" );
+
+        try {
+            app.testRequest( ServiceAction.PUT, 0, "users", query );
+            Assert.fail();
+        }
+        catch ( ServiceInvocationException sie ) {
+            // ok
+        }
+
+        app.clear();
+        app.put( "email", "bulk@usergrid.org" );
+
+        try {
+            app.testRequest( ServiceAction.PUT, 0, "users", query );
+            Assert.fail();
+        }
+        catch ( ServiceInvocationException sie ) {
+            // ok
+        }
+
+        app.clear();
+        app.testRequest( ServiceAction.GET, 1, "users", "bulk1" );
+        app.testRequest( ServiceAction.GET, 1, "users", "bulk2" );
+    }
 }
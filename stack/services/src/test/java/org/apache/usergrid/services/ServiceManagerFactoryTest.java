@@ -0,0 +1,56 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.services;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+
+public class ServiceManagerFactoryTest {
+
+    @Test
+    public void servicesShared() {
+        ServiceManagerFactory smf = new ServiceManagerFactory( null, null, null, null, null );
+
+        Service users = smf.getServiceManager( null ).getService( "/users" );
+
+        assertNotNull( users );
+        assertSame( users, smf.getServiceManager( null ).getService( "/users" ) );
+        assertNotSame( users, smf.getServiceManager( null ).getService( "/groups" ) );
+        assertNull( smf.getServiceManager( null ).getService( null ) );
+    }
+
+
+    @Test
+    public void invalidate() {
+        ServiceManagerFactory smf = new ServiceManagerFactory( null, null, null, null, null );
+
+        Service users = smf.getServiceManager( null ).getService( "/users" );
+
+        smf.getServiceManager( null ).invalidateServices();
+
+        Service reloaded = smf.getServiceManager( null ).getService( "/users" );
+
+        assertNotSame( users, reloaded );
+        assertSame( reloaded, smf.getServiceManager( null ).getService( "/users" ) );
+    }
+}
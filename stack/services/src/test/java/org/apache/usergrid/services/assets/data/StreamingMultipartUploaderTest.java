@@ -0,0 +1,239 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.usergrid.services.assets.data;
+
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class StreamingMultipartUploaderTest {
+
+    private static final int PART_SIZE = 1024;
+
+    private ExecutorService executor;
+    private LocalS3 s3;
+
+
+    @Before
+    public void setup() {
+        executor = Executors.newFixedThreadPool( 4 );
+        s3 = new LocalS3();
+    }
+
+
+    @After
+    public void teardown() {
+        executor.shutdownNow();
+    }
+
+
+    @Test
+    public void smallUploadUsesSinglePut() throws IOException {
+        byte[] data = randomBytes( PART_SIZE - 1 );
+        PartBufferPool pool = new PartBufferPool( 2, PART_SIZE, false );
+
+        StreamingMultipartUploader.Result result = new StreamingMultipartUploader( s3, pool, executor, 2 )
+                .upload( "small", new ByteArrayInputStream( data ), "text/plain", null, Long.MAX_VALUE );
+
+        assertArrayEquals( data, s3.objects.get( "small" ) );
+        assertEquals( 0, s3.initiated.get() );
+        assertEquals( data.length, result.getContentLength() );
+        assertEquals( DigestUtils.md5Hex( data ), result.getChecksum() );
+        assertFalse( result.isTooLarge() );
+        assertEquals( 1, pool.getIdleCount() );
+    }
+
+
+    @Test
+    public void largeUploadStreamsParts() throws IOException {
+        byte[] data = randomBytes( PART_SIZE * 7 + 13 );
+        PartBufferPool pool = new PartBufferPool( 3, PART_SIZE, true );
+
+        StreamingMultipartUploader.Result result = new StreamingMultipartUploader( s3, pool, executor, 2 )
+                .upload( "large", new ByteArrayInputStream( data ), "text/plain", null, Long.MAX_VALUE );
+
+        assertArrayEquals( data, s3.objects.get( "large" ) );
+        assertEquals( 8, s3.partsUploaded.get() );
+        assertEquals( data.length, result.getContentLength() );
+        assertEquals( DigestUtils.md5Hex( data ), result.getChecksum() );
+        assertTrue( pool.getIdleCount() <= 3 );
+        assertEquals( 0, s3.aborted.get() );
+    }
+
+
+    @Test
+    public void uploadEndingOnPartBoundary() throws IOException {
+        byte[] data = randomBytes( PART_SIZE * 3 );
+        PartBufferPool pool = new PartBufferPool( 2, PART_SIZE, false );
+
+        new StreamingMultipartUploader( s3, pool, executor, 2 )
+                .upload( "boundary", new ByteArrayInputStream( data ), "text/plain", null, Long.MAX_VALUE );
+
+        assertArrayEquals( data, s3.objects.get( "boundary" ) );
+        assertEquals( 3, s3.partsUploaded.get() );
+    }
+
+
+    @Test
+    public void tooLargeAborts() throws IOException {
+        byte[] data = randomBytes( PART_SIZE * 4 );
+        PartBufferPool pool = new PartBufferPool( 2, PART_SIZE, false );
+
+        StreamingMultipartUploader.Result result = new StreamingMultipartUploader( s3, pool, executor, 2 )
+                .upload( "huge", new ByteArrayInputStream( data ), "text/plain", null, PART_SIZE * 2 );
+
+        assertTrue( result.isTooLarge() );
+        assertNull( s3.objects.get( "huge" ) );
+        assertEquals( 1, s3.aborted.get() );
+        assertEquals( 2, pool.getIdleCount() );
+    }
+
+
+    @Test
+    public void tooLargeSinglePartIsNotStored() throws IOException {
+        byte[] data = randomBytes( PART_SIZE - 1 );
+        PartBufferPool pool = new PartBufferPool( 2, PART_SIZE, false );
+
+        StreamingMultipartUploader.Result result = new StreamingMultipartUploader( s3, pool, executor, 2 )
+                .upload( "small", new ByteArrayInputStream( data ), "text/plain", null, PART_SIZE / 2 );
+
+        assertTrue( result.isTooLarge() );
+        assertNull( s3.objects.get( "small" ) );
+        assertEquals( 0, s3.initiated.get() );
+        assertEquals( 1, pool.getIdleCount() );
+    }
+
+
+    @Test
+    public void corruptPartAborts() {
+        byte[] data = randomBytes( PART_SIZE * 3 );
+        PartBufferPool pool = new PartBufferPool( 2, PART_SIZE, false );
+
+        s3.corruptPart = 2;
+
+        try {
+            new StreamingMultipartUploader( s3, pool, executor, 2 )
+                    .upload( "corrupt", new ByteArrayInputStream( data ), "text/plain", null, Long.MAX_VALUE );
+            fail( "checksum mismatch should fail the upload" );
+        }
+        catch ( IOException e ) {
+            // expected
+        }
+
+        assertNull( s3.objects.get( "corrupt" ) );
+        assertEquals( 1, s3.aborted.get() );
+        assertEquals( 2, pool.getIdleCount() );
+    }
+
+
+    private static byte[] randomBytes( int length ) {
+        byte[] data = new byte[length];
+        new Random( length ).nextBytes( data );
+        return data;
+    }
+
+
+    /** An in memory stand-in for S3 that returns the MD5 of each part as its eTag, as S3 does */
+    private static class LocalS3 implements MultipartClient {
+
+        private final Map<String, byte[]> objects = new ConcurrentHashMap<String, byte[]>();
+        private final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<String, Map<Integer, byte[]>>();
+        private final AtomicInteger initiated = new AtomicInteger();
+        private final AtomicInteger partsUploaded = new AtomicInteger();
+        private final AtomicInteger aborted = new AtomicInteger();
+        private volatile int corruptPart = -1;
+
+
+        @Override
+        public String putObject( String key, ByteBuffer data, byte[] md5, String contentType,
+                                 String contentDisposition ) {
+            byte[] bytes = bytes( data );
+            objects.put( key, bytes );
+            return "\"" + DigestUtils.md5Hex( bytes ) + "\"";
+        }
+
+
+        @Override
+        public String initiate( String key, String contentType, String contentDisposition ) {
+            initiated.incrementAndGet();
+            String uploadId = UUID.randomUUID().toString();
+            uploads.put( uploadId, new ConcurrentHashMap<Integer, byte[]>() );
+            return uploadId;
+        }
+
+
+        @Override
+        public String uploadPart( String key, String uploadId, int partNumber, ByteBuffer data, byte[] md5 ) {
+            byte[] bytes = bytes( data );
+            if ( partNumber == corruptPart ) {
+                bytes[0]++;
+            }
+            uploads.get( uploadId ).put( partNumber, bytes );
+            partsUploaded.incrementAndGet();
+            return "\"" + DigestUtils.md5Hex( bytes ) + "\"";
+        }
+
+
+        @Override
+        public String complete( String key, String uploadId, Map<Integer, String> partETags ) throws IOException {
+            Map<Integer, byte[]> parts = uploads.remove( uploadId );
+            ByteArrayOutputStream object = new ByteArrayOutputStream();
+            for ( int i = 1; i <= partETags.size(); i++ ) {
+                object.write( parts.get( i ) );
+            }
+            objects.put( key, object.toByteArray() );
+            return "\"multipart-" + partETags.size() + "\"";
+        }
+
+
+        @Override
+        public void abort( String key, String uploadId ) {
+            uploads.remove( uploadId );
+            aborted.incrementAndGet();
+        }
+
+
+        private static byte[] bytes( ByteBuffer data ) {
+            byte[] bytes = new byte[data.remaining()];
+            data.duplicate().get( bytes );
+            return bytes;
+        }
+    }
+}